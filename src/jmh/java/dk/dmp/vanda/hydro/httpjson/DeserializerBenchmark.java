@@ -0,0 +1,118 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.MeasurementBatch;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import static dk.dmp.vanda.hydro.httpjson.SyntheticPayloads.MEASUREMENTS_PER_POINT;
+
+/**
+ * Measures the throughput of {@link Deserializer} on synthetic
+ * responses. One operation is one station or one measurement, so that
+ * {@code -prof gc} reports the allocation per station or measurement
+ * as {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeserializerBenchmark {
+    static final int STATIONS = 2000;
+    /** The number of measurements in the Parquet test resource. */
+    static final int PARQUET_MEASUREMENTS = 600;
+
+    @Param({"DIRECT", "JSONB"})
+    public Deserializer.Decoder decoder;
+
+    private Deserializer deserializer;
+    private byte[] stations, waterLevels1, waterLevels2, waterLevels2Csv, waterFlows1, waterLevelsParquet;
+
+    @Setup
+    public void setUp() throws IOException {
+        deserializer = new Deserializer(decoder);
+        stations = SyntheticPayloads.stations(STATIONS);
+        waterLevels1 = SyntheticPayloads.waterLevels(1);
+        waterLevels2 = SyntheticPayloads.waterLevels(2);
+        waterFlows1 = SyntheticPayloads.waterFlows(1);
+        waterLevels2Csv = SyntheticPayloads.waterLevelsCsv(2);
+        try (InputStream in = DeserializerBenchmark.class.getResourceAsStream("water-level_61000181_snappy.parquet")) {
+            waterLevelsParquet = in.readAllBytes();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        deserializer.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STATIONS)
+    public Object stations() throws IOException {
+        return deserializer.deserializeStations(new ByteArrayInputStream(stations));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MEASUREMENTS_PER_POINT)
+    public void waterLevelsOneMeasurementPoint(Blackhole bh) throws IOException {
+        deserializer.readWaterLevels(new ByteArrayInputStream(waterLevels1), "benchmark").forEachRemaining(bh::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * MEASUREMENTS_PER_POINT)
+    public void waterLevelsTwoMeasurementPoints(Blackhole bh) throws IOException {
+        deserializer.readWaterLevels(new ByteArrayInputStream(waterLevels2), "benchmark").forEachRemaining(bh::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * MEASUREMENTS_PER_POINT)
+    public void waterLevelsTwoMeasurementPointsCsv(Blackhole bh) throws IOException {
+        deserializer.readWaterLevelsCsv(new ByteArrayInputStream(waterLevels2Csv), "benchmark").forEachRemaining(bh::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MEASUREMENTS_PER_POINT)
+    public void waterFlowsOneMeasurementPoint(Blackhole bh) throws IOException {
+        deserializer.readWaterFlows(new ByteArrayInputStream(waterFlows1), "benchmark").forEachRemaining(bh::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * MEASUREMENTS_PER_POINT)
+    public void waterLevelsTwoMeasurementPointsColumnar(Blackhole bh) throws IOException {
+        ColumnarMeasurementReader reader = deserializer.readColumnar(new ByteArrayInputStream(waterLevels2), true, "benchmark");
+        while (reader.hasNext()) {
+            MeasurementBatch b = reader.next();
+            bh.consume(b.results());
+            bh.consume(b.measurementEpochMinutes());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PARQUET_MEASUREMENTS)
+    public void waterLevelsParquetColumnar(Blackhole bh) throws IOException {
+        ParquetMeasurementReader reader = deserializer.readParquet(new ByteArrayInputStream(waterLevelsParquet), true, "benchmark");
+        while (reader.hasNext()) {
+            MeasurementBatch b = reader.next();
+            bh.consume(b.results());
+            bh.consume(b.measurementEpochMinutes());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PARQUET_MEASUREMENTS)
+    public void waterLevelsParquet(Blackhole bh) throws IOException {
+        deserializer.readWaterLevelsParquet(new ByteArrayInputStream(waterLevelsParquet), "benchmark").forEachRemaining(bh::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * MEASUREMENTS_PER_POINT)
+    public Object waterLevelsTwoMeasurementPointsTree() throws IOException {
+        return deserializer.deserializeWaterLevels(new ByteArrayInputStream(waterLevels2));
+    }
+}
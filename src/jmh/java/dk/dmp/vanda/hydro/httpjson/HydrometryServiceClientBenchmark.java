@@ -0,0 +1,102 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static dk.dmp.vanda.hydro.httpjson.SyntheticPayloads.MEASUREMENTS_PER_POINT;
+
+/**
+ * Measures the end-to-end time of {@link HydrometryServiceClient}
+ * operations, from building the request until the last result has been
+ * iterated, against an in-process stream service that serves synthetic
+ * responses from memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HydrometryServiceClientBenchmark {
+    @Param({"DIRECT", "JSONB"})
+    public Deserializer.Decoder decoder;
+
+    @Param({"1", "2"})
+    public int measurementPoints;
+
+    private HydrometryServiceClient client;
+
+    /**
+     * Serves the response of each operation from memory.
+     */
+    private static class StubStreamService implements StreamService {
+        private final byte[] stations, waterLevels, waterFlows;
+
+        StubStreamService(int measurementPoints) {
+            stations = SyntheticPayloads.stations(DeserializerBenchmark.STATIONS);
+            waterLevels = SyntheticPayloads.waterLevels(measurementPoints);
+            waterFlows = SyntheticPayloads.waterFlows(measurementPoints);
+        }
+
+        @Override
+        public InputStream get(String path, String query) throws IOException {
+            return switch (path) {
+                case "stations" -> new ByteArrayInputStream(stations);
+                case "water-levels" -> new ByteArrayInputStream(waterLevels);
+                case "water-flows" -> new ByteArrayInputStream(waterFlows);
+                default -> throw new IOException("No stub response for " + path);
+            };
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        client = new HydrometryServiceClient(new StubStreamService(measurementPoints), VirtualThreads.executor, decoder);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+    }
+
+    @Benchmark
+    public void getStations(Blackhole bh) throws IOException, InterruptedException {
+        client.getStations().exec().forEachRemaining(bh::consume);
+    }
+
+    @Benchmark
+    public void getWaterLevels(Blackhole bh) throws IOException, InterruptedException {
+        HydrometryService.GetWaterLevelsOperation op = client.getWaterLevels();
+        op.stationId("61000181");
+        op.from(SyntheticPayloads.FROM);
+        op.to(SyntheticPayloads.TO);
+        op.exec().forEachRemaining(bh::consume);
+    }
+
+    @Benchmark
+    public void getWaterFlows(Blackhole bh) throws IOException, InterruptedException {
+        HydrometryService.GetWaterFlowsOperation op = client.getWaterFlows();
+        op.stationId("61000181");
+        op.from(SyntheticPayloads.FROM);
+        op.to(SyntheticPayloads.TO);
+        op.exec().forEachRemaining(bh::consume);
+    }
+
+    @Benchmark
+    public int getWaterLevelsColumnar() throws IOException, InterruptedException {
+        HydrometryService.GetWaterLevelsOperation op = client.getWaterLevels();
+        op.stationId("61000181");
+        op.from(SyntheticPayloads.FROM);
+        op.to(SyntheticPayloads.TO);
+        int n = 0;
+        for (var i = op.execColumnar(); i.hasNext(); ) n += i.next().size();
+        if (n != measurementPoints * MEASUREMENTS_PER_POINT) throw new IllegalStateException("Read " + n + " measurements");
+        return n;
+    }
+}
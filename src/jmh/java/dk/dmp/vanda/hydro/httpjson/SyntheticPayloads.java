@@ -0,0 +1,156 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Generates response bodies shaped like those of the VanDa Hydro
+ * service, with deterministic content for a given size.
+ */
+final class SyntheticPayloads {
+    /** The measurement interval of the generated series. */
+    static final Duration INTERVAL = Duration.ofMinutes(10);
+    /** The length of the generated series in years of 365 days. */
+    static final int YEARS = 2;
+    /** The number of measurements per measurement point in a series. */
+    static final int MEASUREMENTS_PER_POINT = YEARS * 365 * 24 * 6;
+    /** The latest measurement time of the generated series. */
+    static final OffsetDateTime TO = OffsetDateTime.of(2023, 10, 2, 18, 10, 0, 0, ZoneOffset.UTC);
+    /** The earliest measurement time of the generated series. */
+    static final OffsetDateTime FROM = TO.minus(INTERVAL.multipliedBy(MEASUREMENTS_PER_POINT - 1));
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SS'Z'");
+
+    private SyntheticPayloads() {}
+
+    /**
+     * Generate a station catalog like the one returned by the stations
+     * operation. Every other station has two measurement points.
+     * @param count The number of stations.
+     */
+    static byte[] stations(int count) {
+        SplittableRandom random = new SplittableRandom(count);
+        StringBuilder b = new StringBuilder(count * 2048).append('[');
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) b.append(',');
+            String stationId = String.valueOf(61000000 + i);
+            b.append("{\"stationUid\":\"").append(new UUID(random.nextLong(), random.nextLong()))
+                .append("\",\"stationId\":\"").append(stationId)
+                .append("\",\"operatorStationId\":\"").append(610000 + i)
+                .append("\",\"oldStationNumber\":null,\"locationType\":\"Vandløb\",\"locationTypeSc\":1")
+                .append(",\"stationOwnerCvr\":\"DK25798376\",\"stationOwnerName\":\"Miljøstyrelsen\"")
+                .append(",\"operatorCvr\":\"DK25798376\",\"operatorName\":\"Miljøstyrelsen\"")
+                .append(",\"name\":\"Station ").append(i).append(", Vålse Vig\"")
+                .append(",\"description\":\"Opland = ").append(random.nextInt(1, 500)).append(" km2\"")
+                .append(",\"loggerId\":\"").append(40000 + i).append('"')
+                .append(",\"location\":");
+            point(b, random);
+            b.append(",\"measurementPoints\":[");
+            int points = i % 2 + 1;
+            for (int n = 1; n <= points; ++n) {
+                if (n > 1) b.append(',');
+                b.append("{\"number\":").append(n)
+                    .append(",\"name\":\"Målepunkt ").append(n)
+                    .append("\",\"measurementPointType\":\"Vandstandsmåler\",\"measurementPointTypeSc\":1,\"description\":null,\"location\":");
+                point(b, random);
+                b.append(",\"examinations\":[");
+                examination(b, "Vandstand", 1233, "Vandstand", 25, "cm", 19);
+                b.append(',');
+                examination(b, "Vandføring", 1155, "Vandføring", 27, "l/s", 55);
+                b.append("]}");
+            }
+            b.append("]}");
+        }
+        return b.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void point(StringBuilder b, SplittableRandom random) {
+        b.append(String.format(Locale.ROOT, "{\"x\":%.4f,\"y\":%.4f,\"srid\":\"25832\"}",
+            random.nextDouble(440000, 890000), random.nextDouble(6050000, 6400000)));
+    }
+
+    private static void examination(StringBuilder b, String parameter, int parameterSc, String examinationType, int examinationTypeSc, String unit, int unitSc) {
+        b.append("{\"parameter\":\"").append(parameter).append("\",\"parameterSc\":").append(parameterSc)
+            .append(",\"examinationType\":\"").append(examinationType).append("\",\"examinationTypeSc\":").append(examinationTypeSc)
+            .append(",\"unit\":\"").append(unit).append("\",\"unitSc\":").append(unitSc)
+            .append(",\"firstResult\":\"").append(TIMESTAMP.format(FROM))
+            .append("\",\"latestResult\":\"").append(TIMESTAMP.format(TO)).append("\"}");
+    }
+
+    /**
+     * Generate a water level series of a single station, with
+     * {@link #MEASUREMENTS_PER_POINT} measurements per measurement point,
+     * latest first.
+     * @param measurementPoints The number of measurement points.
+     */
+    static byte[] waterLevels(int measurementPoints) {
+        return series(measurementPoints, true);
+    }
+
+    /**
+     * Generate a water flow series like {@link #waterLevels(int)}.
+     */
+    static byte[] waterFlows(int measurementPoints) {
+        return series(measurementPoints, false);
+    }
+
+    /**
+     * Generate the water level series of {@link #waterLevels(int)} in
+     * CSV format.
+     */
+    static byte[] waterLevelsCsv(int measurementPoints) {
+        SplittableRandom random = new SplittableRandom(measurementPoints);
+        StringBuilder b = new StringBuilder(measurementPoints * MEASUREMENTS_PER_POINT * 120)
+            .append("stationId,operatorStationId,measurementPointNumber,parameterSc,parameter,examinationTypeSc,examinationType,")
+            .append("measurementDateTime,result,resultElevationCorrected,unitSc,unit\r\n");
+        for (int n = 1; n <= measurementPoints; ++n) {
+            double level = 30;
+            OffsetDateTime t = TO;
+            for (int i = 0; i < MEASUREMENTS_PER_POINT; ++i, t = t.minus(INTERVAL)) {
+                level = Math.max(-150, Math.min(1000, level + random.nextDouble(-0.5, 0.5)));
+                b.append("61000181,610181,").append(n).append(",1233,Vandstand,25,Vandstand,")
+                    .append(TIMESTAMP.format(t)).append(',')
+                    .append(String.format(Locale.ROOT, "%.1f,%.1f", level, level - 90))
+                    .append(",19,cm\r\n");
+            }
+        }
+        return b.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] series(int measurementPoints, boolean waterLevel) {
+        SplittableRandom random = new SplittableRandom(measurementPoints);
+        StringBuilder b = new StringBuilder(measurementPoints * MEASUREMENTS_PER_POINT * 260)
+            .append("[{\"stationId\":\"61000181\",\"operatorStationId\":\"610181\",\"results\":[");
+        boolean first = true;
+        for (int n = 1; n <= measurementPoints; ++n) {
+            double level = 30;
+            OffsetDateTime t = TO;
+            for (int i = 0; i < MEASUREMENTS_PER_POINT; ++i, t = t.minus(INTERVAL)) {
+                if (!first) b.append(',');
+                first = false;
+                level = Math.max(-150, Math.min(1000, level + random.nextDouble(-0.5, 0.5)));
+                b.append("{\"measurementPointNumber\":").append(n);
+                if (waterLevel) {
+                    b.append(",\"parameterSc\":1233,\"parameter\":\"Vandstand\",\"examinationTypeSc\":25,\"examinationType\":\"Vandstand\"");
+                } else {
+                    b.append(",\"parameterSc\":1155,\"parameter\":\"Vandføring\",\"examinationTypeSc\":27,\"examinationType\":\"Vandføring\"");
+                }
+                b.append(",\"measurementDateTime\":\"").append(TIMESTAMP.format(t)).append('"');
+                b.append(",\"result\":").append(String.format(Locale.ROOT, "%.1f", waterLevel ? level : level * 10));
+                if (waterLevel) {
+                    b.append(",\"resultElevationCorrected\":").append(String.format(Locale.ROOT, "%.1f", level - 90));
+                    b.append(",\"unitSc\":19,\"unit\":\"cm\"}");
+                } else {
+                    b.append(",\"unitSc\":55,\"unit\":\"l/s\"}");
+                }
+            }
+        }
+        return b.append("]}]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -1,8 +1,19 @@
 package dk.dmp.vanda.hydro;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.DoublePredicate;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+import java.util.stream.Stream;
 
 /**
  * A selection of operations to interact with the VanDa Hydro API.
@@ -26,6 +37,18 @@ public interface HydrometryService {
      */
     GetWaterFlowsOperation getWaterFlows();
 
+    /**
+     * Get water level measurements of several stations.
+     * @return a batch water-levels request builder.
+     */
+    GetWaterLevelsBatchOperation getWaterLevelsBatch();
+
+    /**
+     * Get water flow, a.k.a. discharge, measurements of several stations.
+     * @return a batch water-flows request builder.
+     */
+    GetWaterFlowsBatchOperation getWaterFlowsBatch();
+
     /**
      * Build a request for the {@link #getStations()} operation.
      */
@@ -37,6 +60,24 @@ public interface HydrometryService {
          */
         Iterator<Station> exec() throws IOException, InterruptedException;
 
+        /**
+         * Perform the request without blocking the calling thread while
+         * waiting for the response.
+         * @return The future stations fulfilling all conditions of the
+         * request, completed exceptionally with the exceptions of
+         * {@link #exec()}.
+         */
+        CompletableFuture<Iterator<Station>> execAsync();
+
+        /**
+         * Perform the request, returning the stations as a stream.
+         * The stations are read before this returns, so the stream is
+         * {@link Spliterator#SIZED} as well as {@link Spliterator#ORDERED}
+         * and {@link Spliterator#NONNULL}.
+         * @return The stations fulfilling all conditions of the request.
+         */
+        Stream<Station> stream() throws IOException, InterruptedException;
+
         /**
          * Query by station ID.
          */
@@ -79,6 +120,19 @@ public interface HydrometryService {
          * Note that time components after minute are ignored.
          */
         void withResultsCreatedAfter(OffsetDateTime pointInTime);
+
+        /**
+         * Decode only the given fields of each station, named as in the
+         * JSON format, e.g. {@code stationId}, {@code name} and
+         * {@code location}. The other fields, such as the nested
+         * {@code measurementPoints}, need not be decoded and may be left
+         * unset, which saves parsing them and allocating their values.
+         * May be called more than once to add more fields. If not
+         * called, all fields are decoded.
+         * @param fields The names of the fields.
+         * @throws IllegalArgumentException If a field is unknown.
+         */
+        void fields(Collection<String> fields);
     }
 
     /**
@@ -105,6 +159,51 @@ public interface HydrometryService {
          */
         Iterator<T> exec() throws IOException, InterruptedException;
 
+        /**
+         * Perform the request without blocking the calling thread while
+         * waiting for the response.
+         * Returns the current results, i.e. no overwritten history.
+         * @return The future measurements fulfilling all conditions of
+         * the request, completed exceptionally with the exceptions of
+         * {@link #exec()}.
+         */
+        CompletableFuture<Iterator<T>> execAsync();
+
+        /**
+         * Perform the request, returning the measurements in columns of
+         * primitive values rather than an object per measurement.
+         * Returns the current results in the order of the response, and
+         * the window is not {@linkplain #splitWindow(Duration) split}.
+         * @return The measurements fulfilling all conditions of the request.
+         */
+        Iterator<MeasurementBatch> execColumnar() throws IOException, InterruptedException;
+
+        /**
+         * Perform the request like {@link #exec()}, returning the
+         * measurements as a stream. Closing the stream, e.g. by
+         * try-with-resources, releases the response even if not all
+         * the measurements have been consumed, which an iterator cannot.
+         * The stream is {@link Spliterator#ORDERED} and
+         * {@link Spliterator#NONNULL}, and {@link Spliterator#SIZED}
+         * when the number of measurements is known before they are
+         * consumed.
+         * @return The measurements fulfilling all conditions of the request.
+         */
+        Stream<T> stream() throws IOException, InterruptedException;
+
+        /**
+         * Publish the measurements to reactive subscribers. Each
+         * subscription performs the request when the first measurement
+         * is requested, and measurements are read from the response only
+         * as the subscriber requests them, without holding a thread
+         * while waiting for demand. Cancelling the subscription releases
+         * the response. The request must not be changed while subscribed.
+         * @return A publisher of the measurements fulfilling all
+         * conditions of the request, signalling the exceptions of
+         * {@link #exec()} by {@link Flow.Subscriber#onError(Throwable)}.
+         */
+        Flow.Publisher<T> publisher();
+
         /**
          * Query by station ID.
          */
@@ -145,5 +244,297 @@ public interface HydrometryService {
          * are ignored.
          */
         void createdAfter(OffsetDateTime pointInTime);
+
+        /**
+         * Split the window given by {@linkplain #from(OffsetDateTime) from}
+         * and {@linkplain #to(OffsetDateTime) to} into consecutive chunks,
+         * each fetched by a request of its own. Since both ends of a
+         * window are inclusive, each chunk starts the minute after the
+         * previous one ends, so the chunks do not overlap. The chunks are
+         * fetched concurrently, and the measurements are returned in
+         * ascending order of measurement time. A chunk that fails is
+         * retried on its own. Has no effect unless both from and to are
+         * specified.
+         * @param chunkLength The length of each chunk, at least a minute.
+         * @throws IllegalArgumentException If the length is less than a minute.
+         */
+        void splitWindow(Duration chunkLength);
+
+        /**
+         * Limit the number of chunk requests in progress at the same time
+         * when the {@linkplain #splitWindow(Duration) window is split}.
+         * @param maxConcurrency The maximum number of concurrent requests, at least 1.
+         * @throws IllegalArgumentException If the limit is less than 1.
+         */
+        void maxConcurrency(int maxConcurrency);
+
+        /**
+         * Limit the number of chunks fetched ahead of the chunk being
+         * iterated when the {@linkplain #splitWindow(Duration) window is
+         * split}. Chunks are fetched while the caller processes earlier
+         * chunks, so a scan takes about the longer of fetching and
+         * processing, rather than their sum. If not specified, all the
+         * chunks are fetched as soon as the concurrency limit allows.
+         * @param chunks The number of chunks fetched ahead, at least 1.
+         * @throws IllegalArgumentException If the number is less than 1.
+         */
+        void prefetch(int chunks);
+
+        /**
+         * Limit the memory held by chunks fetched ahead when the
+         * {@linkplain #splitWindow(Duration) window is split}. No more
+         * chunks are requested while the fetched chunks not yet iterated
+         * and the chunks being fetched hold this many measurements, except
+         * the chunk following the one being iterated. The size of a
+         * chunk being fetched is estimated by the latest fetched chunk.
+         * @param measurements The maximum number of buffered measurements, at least 1.
+         * @throws IllegalArgumentException If the number is less than 1.
+         */
+        void maxBufferedMeasurements(int measurements);
+
+        /**
+         * Limit the number of times each chunk is requested when the
+         * {@linkplain #splitWindow(Duration) window is split}. Only
+         * transient failures are retried, i.e. I/O errors other than
+         * interruption, timeouts, rate limiting and unavailability of the
+         * service. Each retry waits for an exponentially increasing,
+         * randomized backoff, or as long as the service asks by
+         * {@code Retry-After}, unless that is longer than the maximum
+         * backoff. If the client sends requests through a resilience
+         * layer, which retries them by itself, only failures while the
+         * response is read are retried here, so that attempts do not
+         * multiply.
+         * @param maxAttempts The maximum number of requests per chunk, at least 1.
+         * @throws IllegalArgumentException If the limit is less than 1.
+         */
+        void maxAttempts(int maxAttempts);
+
+        /**
+         * Decode only the given fields of each measurement, named as in
+         * the JSON format, e.g. {@code measurementDateTime} and
+         * {@code result}. The other fields need not be decoded and may
+         * be left unset, which saves parsing them and allocating their
+         * values. May be called more than once to add more fields. If
+         * not called, all fields are decoded.
+         * @param fields The names of the fields.
+         * @throws IllegalArgumentException If a field is unknown.
+         */
+        void fields(Collection<String> fields);
+
+        /**
+         * Return only the measurements whose result fulfils a condition,
+         * e.g. exceeds a threshold. The condition is tested on the
+         * result as it is parsed, and a measurement that fails it is
+         * skipped without making a measurement object for it, so that
+         * scanning for a few measurements allocates little more than
+         * those, unless the client decodes by JSON-B, which makes the
+         * object first. A measurement without a result is tested as 0.
+         * May be called more than once to add more conditions, all of
+         * which must hold. Conditions are not applied to
+         * {@linkplain #execColumnar() columnar batches}.
+         * @param condition The condition on the result.
+         */
+        void filterResult(DoublePredicate condition);
+
+        /**
+         * Return only the measurements whose measurement time fulfils a
+         * condition, tested while parsing like {@link #filterResult(DoublePredicate)}.
+         * A measurement without a time is skipped.
+         * @param condition The condition on the measurement time, as
+         *         minutes since 1970-01-01T00:00Z.
+         */
+        void filterMeasurementTime(LongPredicate condition);
+
+        /**
+         * Return only the measurements whose parameter stancode fulfils
+         * a condition, tested while parsing like {@link #filterResult(DoublePredicate)}.
+         * A measurement without the stancode is tested as 0.
+         * @param condition The condition on the stancode.
+         */
+        void filterParameterSc(IntPredicate condition);
+
+        /**
+         * Return only the measurements whose examination type stancode
+         * fulfils a condition, e.g. equals a given one, tested while
+         * parsing like {@link #filterResult(DoublePredicate)}.
+         * A measurement without the stancode is tested as 0.
+         * @param condition The condition on the stancode.
+         */
+        void filterExaminationTypeSc(IntPredicate condition);
+
+        /**
+         * Return only the measurements whose unit stancode fulfils a
+         * condition, tested while parsing like {@link #filterResult(DoublePredicate)}.
+         * A measurement without the stancode is tested as 0.
+         * @param condition The condition on the stancode.
+         */
+        void filterUnitSc(IntPredicate condition);
+    }
+
+    /**
+     * Request for the {@link #getWaterLevelsBatch()} operation.
+     */
+    interface GetWaterLevelsBatchOperation extends GetMeasurementsBatch<WaterLevelMeasurement> {}
+
+    /**
+     * Request for the {@link #getWaterFlowsBatch()} operation.
+     */
+    interface GetWaterFlowsBatchOperation extends GetMeasurementsBatch<Measurement> {}
+
+    /**
+     * Measurements of several stations in a shared time window.
+     * The service accepts just one station per request, so a request
+     * per station is performed, running concurrently.
+     * {@linkplain #stationIds(Collection) Station IDs} must be specified.
+     * @param <T> The kind of measurement
+     */
+    interface GetMeasurementsBatch<T> {
+        /**
+         * Perform the requests. The outcome of each station is available
+         * as soon as its response starts, thus the stations are iterated
+         * in order of response. Waiting for the next station blocks the
+         * calling thread. If it is interrupted while waiting, the
+         * outstanding requests are cancelled and reported as failed.
+         * <p>The measurements of a station are read from its response
+         * as they are consumed, and the station takes up one of the
+         * {@linkplain #maxConcurrency(int) concurrent requests} until
+         * they are read to the end or the outcome is closed. So that
+         * the batch proceeds, when the next station waits for a request
+         * taken up by the outcomes handed out, the earliest of those not
+         * being {@linkplain StationMeasurements#stream() streamed} is
+         * read into memory. If they are all being streamed, getting the
+         * next station fails by {@link IllegalStateException}.</p>
+         * @return The outcome for each station.
+         */
+        Iterator<StationMeasurements<T>> exec();
+
+        /**
+         * Perform the requests like {@link #exec()}, returning the
+         * outcomes as a stream. Closing the stream, e.g. by
+         * try-with-resources, cancels the outstanding requests and closes
+         * the responses of the outcomes that have not been read to the
+         * end or closed, which an iterator cannot.
+         * @return The outcome for each station.
+         */
+        Stream<StationMeasurements<T>> stream();
+
+        /**
+         * Query by station IDs. May be called more than once to add more stations.
+         */
+        void stationIds(Collection<String> stationIds);
+
+        /**
+         * Query by measurement point. If not specified, return data for
+         * all measurement points.
+         */
+        void measurementPointNumber(int measurementPointNumber);
+
+        /**
+         * Query measurements taken from the given point in time, inclusive.
+         * @see GetMeasurements#from(OffsetDateTime)
+         */
+        void from(OffsetDateTime pointInTime);
+
+        /**
+         * Query measurements taken until the given timestamp, inclusive.
+         * @see GetMeasurements#to(OffsetDateTime)
+         */
+        void to(OffsetDateTime pointInTime);
+
+        /**
+         * Query measurements registered from the given point in time, inclusive.
+         * @see GetMeasurements#createdAfter(OffsetDateTime)
+         */
+        void createdAfter(OffsetDateTime pointInTime);
+
+        /**
+         * Limit the number of requests in progress at the same time.
+         * @param maxConcurrency The maximum number of concurrent requests, at least 1.
+         * @throws IllegalArgumentException If the limit is less than 1.
+         */
+        void maxConcurrency(int maxConcurrency);
+
+        /**
+         * Decode only the given fields of each measurement.
+         * @see GetMeasurements#fields(Collection)
+         */
+        void fields(Collection<String> fields);
+
+        /**
+         * Return only the measurements whose result fulfils a condition.
+         * @see GetMeasurements#filterResult(DoublePredicate)
+         */
+        void filterResult(DoublePredicate condition);
+
+        /**
+         * Return only the measurements whose measurement time fulfils a condition.
+         * @see GetMeasurements#filterMeasurementTime(LongPredicate)
+         */
+        void filterMeasurementTime(LongPredicate condition);
+
+        /**
+         * Return only the measurements whose parameter stancode fulfils a condition.
+         * @see GetMeasurements#filterParameterSc(IntPredicate)
+         */
+        void filterParameterSc(IntPredicate condition);
+
+        /**
+         * Return only the measurements whose examination type stancode fulfils a condition.
+         * @see GetMeasurements#filterExaminationTypeSc(IntPredicate)
+         */
+        void filterExaminationTypeSc(IntPredicate condition);
+
+        /**
+         * Return only the measurements whose unit stancode fulfils a condition.
+         * @see GetMeasurements#filterUnitSc(IntPredicate)
+         */
+        void filterUnitSc(IntPredicate condition);
+    }
+
+    /**
+     * The outcome of requesting the measurements of one station in a batch.
+     * @param <T> The kind of measurement
+     */
+    interface StationMeasurements<T> extends AutoCloseable {
+        /**
+         * Get the station ID that was requested.
+         * @return The 8-digit station ID.
+         */
+        String stationId();
+
+        /**
+         * Get the measurements of the station, reading the rest of them
+         * from the response.
+         * @return The measurements, or an empty list if the request
+         * failed, or reading it failed.
+         * @throws IllegalStateException If the measurements are being streamed.
+         */
+        List<T> measurements();
+
+        /**
+         * Stream the measurements of the station as they are read from
+         * the response. The response is closed when the stream is read
+         * to the end or closed. Can only be called once, unless the
+         * measurements have been read by {@link #measurements()}.
+         * @return The measurements. Reading them throws
+         * {@link java.io.UncheckedIOException} if the response cannot
+         * be read.
+         * @throws IllegalStateException If the measurements are being streamed.
+         */
+        Stream<T> stream();
+
+        /**
+         * Get the reason why the request failed.
+         * @return The failure, if the request failed, or reading it by
+         * {@link #measurements()} failed.
+         */
+        Optional<Exception> error();
+
+        /**
+         * Close the response, discarding the measurements not yet read,
+         * so that another station can be requested.
+         */
+        @Override
+        void close();
     }
 }
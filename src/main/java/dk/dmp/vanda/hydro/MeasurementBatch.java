@@ -0,0 +1,109 @@
+package dk.dmp.vanda.hydro;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Consecutive results of measuring something in a watercourse, held in
+ * columns of primitive values. All the results in a batch share
+ * station, measurement point, parameter, examination type and unit.
+ * <p>The column arrays are not copied, and all have {@link #size()}
+ * elements.</p>
+ */
+public interface MeasurementBatch {
+    /**
+     * Get the unique VanDa Hydro station ID.
+     * @return The 8-digit station ID.
+     * @see Measurement#stationId()
+     */
+    String stationId();
+
+    /**
+     * Get the station ID assigned by the operator of the station.
+     * @return Operator station ID, a.k.a. ejerStedNr.
+     * @see Measurement#operatorStationId()
+     */
+    String operatorStationId();
+
+    /**
+     * Get the number (starting from 1) of the measurement point in the
+     * station.
+     * @return Measurement point number in a station.
+     */
+    int measurementPointNumber();
+
+    /**
+     * Get the stancode of the property being measured.
+     * @return Measured parameter.
+     */
+    int parameterSc();
+
+    /**
+     * Get the denotation of the property being measured.
+     * @return Measured parameter.
+     */
+    String parameter();
+
+    /**
+     * Get the stancode of the type of examination.
+     * @return Type of examination.
+     */
+    int examinationTypeSc();
+
+    /**
+     * Get the denotation of the type of examination.
+     * @return Type of examination.
+     */
+    String examinationType();
+
+    /**
+     * Get the stancode of the unit of measurement.
+     * @return Measurement unit.
+     */
+    int unitSc();
+
+    /**
+     * Get the symbol of the unit of measurement.
+     * @return Measurement unit.
+     */
+    String unit();
+
+    /**
+     * Get the number of results in the batch.
+     * @return Number of results.
+     */
+    int size();
+
+    /**
+     * Get the points in time when the examinations were performed, as
+     * minutes since 1970-01-01T00:00Z. {@link Long#MIN_VALUE} if unknown.
+     * @return Measurement timestamps.
+     */
+    long[] measurementEpochMinutes();
+
+    /**
+     * Get the measured values. {@link Double#NaN} if unknown.
+     * @return Measured values.
+     */
+    double[] results();
+
+    /**
+     * Get the results corrected for measuring equipment elevation.
+     * {@link Double#NaN} where not available, see
+     * {@link WaterLevelMeasurement#resultElevationCorrected()}.
+     * @return Elevation corrected measurements, or {@code null} if the
+     * kind of measurement has no elevation correction.
+     */
+    double[] resultsElevationCorrected();
+
+    /**
+     * Get the point in time when an examination was performed.
+     * @param index The index of the result in the batch.
+     * @return Measurement timestamp in UTC, or {@code null} if unknown.
+     */
+    default OffsetDateTime measurementDateTime(int index) {
+        long t = measurementEpochMinutes()[index];
+        return t == Long.MIN_VALUE ? null : OffsetDateTime.ofInstant(Instant.ofEpochSecond(t * 60), ZoneOffset.UTC);
+    }
+}
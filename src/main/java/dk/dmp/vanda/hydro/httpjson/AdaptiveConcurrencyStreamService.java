@@ -0,0 +1,412 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * A {@link StreamService} that limits the number of concurrent requests
+ * to another stream service, adapting the limit to the latency and
+ * failures of the service by additive increase and multiplicative
+ * decrease (AIMD).
+ * <p>A request is in flight from it is sent until its response body is
+ * closed or read to the end. Requests beyond the limit wait in a queue
+ * in the order they were made. When a request succeeds while at least
+ * half of the limit is used, the limit increases by one divided by the
+ * limit, i.e. by about one per round trip of the full limit. When a
+ * request fails by an {@link IOException} other than an error response,
+ * by status 429, 503 or 504, or its response takes more than twice the
+ * baseline latency, the limit is multiplied by {@value #BACKOFF_RATIO}.
+ * The limit is decreased at most once per round trip, i.e. not again
+ * for requests that were sent before the last decrease, so that a
+ * burst of slow responses, e.g. to requests for long windows, counts
+ * as one signal of overload. The baseline latency follows the lowest
+ * observed latency, slowly drifting up with the observed latency, so
+ * that it adapts to lasting changes of the service.</p>
+ * <p>Cancelling the future of {@link #getAsync(String, String)} withdraws
+ * the request from the queue, or cancels the request sent, and a body
+ * that arrives anyway is closed, so that the permit is released.</p>
+ * <p>Conditional requests are limited alike, the request of a response
+ * that is not modified being in flight until the response arrives.</p>
+ * <p>Put it below {@link ResilientStreamService}, so that every attempt
+ * is limited, and retries see the failures.</p>
+ * <p>All the methods in this class are safe for use by multiple
+ * concurrent threads.</p>
+ */
+public class AdaptiveConcurrencyStreamService implements ConditionalStreamService {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    /** The factor to decrease the limit by on overload. */
+    public static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double BASELINE_DRIFT = 0.01;
+    private final StreamService streamService;
+    private final int minLimit;
+    private final int maxLimit;
+    private final Clock clock;
+    private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+    private double limit;
+    private int inFlight = 0;
+    private double baselineNanos = Double.NaN;
+    /** The number of requests sent. */
+    private long sent = 0;
+    /** The number of requests sent when the limit was last decreased. */
+    private long sentAtDecrease = 0;
+
+    /**
+     * Construct the limiter.
+     * @param streamService The service to send requests to.
+     * @param initialLimit The initial number of concurrent requests.
+     * @param minLimit The least number of concurrent requests.
+     * @param maxLimit The greatest number of concurrent requests.
+     * @throws IllegalArgumentException If the limits are not positive
+     * or the initial limit is not between the others.
+     */
+    public AdaptiveConcurrencyStreamService(StreamService streamService, int initialLimit, int minLimit, int maxLimit) {
+        this(streamService, initialLimit, minLimit, maxLimit, Clock.systemUTC());
+    }
+
+    /**
+     * Construct the limiter.
+     * @param streamService The service to send requests to.
+     * @param initialLimit The initial number of concurrent requests.
+     * @param minLimit The least number of concurrent requests.
+     * @param maxLimit The greatest number of concurrent requests.
+     * @param clock The clock to measure latency by.
+     * @throws IllegalArgumentException If the limits are not positive
+     * or the initial limit is not between the others.
+     */
+    public AdaptiveConcurrencyStreamService(StreamService streamService, int initialLimit, int minLimit, int maxLimit, Clock clock) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit)
+            throw new IllegalArgumentException("Limits must be positive and ordered: " + minLimit + " <= " + initialLimit + " <= " + maxLimit);
+        this.streamService = Objects.requireNonNull(streamService);
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    /**
+     * Sends a request to the underlying service.
+     */
+    private interface Request<R> {
+        R send() throws IOException, InterruptedException;
+    }
+
+    @Override
+    public InputStream get(String path, String query) throws IOException, InterruptedException, IllegalArgumentException {
+        return call(() -> streamService.get(path, query), this::track);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getAsync(String path, String query) {
+        return callAsync(() -> streamService.getAsync(path, query), this::track, body -> body);
+    }
+
+    @Override
+    public boolean retries() {
+        return streamService.retries();
+    }
+
+    @Override
+    public Response getConditional(String path, String query, Validators validators)
+        throws IOException, InterruptedException, IllegalArgumentException {
+        return call(() -> ConditionalStreamService.of(streamService).getConditional(path, query, validators), this::track);
+    }
+
+    @Override
+    public CompletableFuture<Response> getConditionalAsync(String path, String query, Validators validators) {
+        return callAsync(() -> ConditionalStreamService.of(streamService).getConditionalAsync(path, query, validators),
+            this::track, Response::body);
+    }
+
+    /**
+     * Send a request when permitted.
+     * @param request Sends the request.
+     * @param track Makes the response release the permit when its body is done.
+     */
+    private <R> R call(Request<R> request, UnaryOperator<R> track) throws IOException, InterruptedException {
+        CompletableFuture<Void> permit = acquire();
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            if (!withdraw(permit)) release();
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Permits are never failed", e);
+        }
+        long sequence = send();
+        Instant start = clock.instant();
+        try {
+            R response = request.send();
+            completed(sequence, start, null);
+            return track.apply(response);
+        } catch (IOException | RuntimeException e) {
+            completed(sequence, start, e);
+            release();
+            throw e;
+        } catch (InterruptedException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Send a request when permitted, without waiting.
+     * @param request Sends the request.
+     * @param track Makes the response release the permit when its body is done.
+     * @param body Gets the body of a response.
+     */
+    private <R> CompletableFuture<R> callAsync(Supplier<CompletableFuture<R>> request, UnaryOperator<R> track,
+                                               Function<R, InputStream> body) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<R>> sending = new AtomicReference<>();
+        CompletableFuture<Void> permit = acquire();
+        permit.thenRun(() -> {
+            // Cancelled after the permit was granted
+            if (result.isDone()) {
+                release();
+                return;
+            }
+            long sequence = send();
+            Instant start = clock.instant();
+            CompletableFuture<R> response;
+            try {
+                response = request.get();
+            } catch (RuntimeException e) {
+                release();
+                result.completeExceptionally(e);
+                return;
+            }
+            sending.set(response);
+            response.whenComplete((r, t) -> {
+                Throwable e = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                if (e != null) {
+                    // Cancellation says nothing about the service
+                    if (!(e instanceof CancellationException)) completed(sequence, start, e);
+                    release();
+                    result.completeExceptionally(e);
+                    return;
+                }
+                completed(sequence, start, null);
+                R tracked = track.apply(r);
+                // Closing the body of a cancelled request releases its permit
+                if (!result.complete(tracked)) closeQuietly(body.apply(tracked));
+            });
+            if (result.isCancelled()) response.cancel(true);
+        });
+        result.whenComplete((r, t) -> {
+            if (!result.isCancelled() || withdraw(permit)) return;
+            CompletableFuture<R> response = sending.get();
+            if (response != null) response.cancel(true);
+        });
+        return result;
+    }
+
+    private static void closeQuietly(InputStream body) {
+        if (body == null) return;
+        try {
+            body.close();
+        } catch (IOException e) {
+            log.debug("Cannot close response of cancelled request", e);
+        }
+    }
+
+    /**
+     * Count a request as sent.
+     * @return The sequence number of the request.
+     */
+    private long send() {
+        synchronized (waiting) {
+            return ++sent;
+        }
+    }
+
+    private CompletableFuture<Void> acquire() {
+        synchronized (waiting) {
+            if (inFlight < (int) limit && waiting.isEmpty()) {
+                ++inFlight;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> permit = new CompletableFuture<>();
+            waiting.add(permit);
+            return permit;
+        }
+    }
+
+    /**
+     * Remove a permit from the queue.
+     * @return Whether the permit was waiting, otherwise it was granted.
+     */
+    private boolean withdraw(CompletableFuture<Void> permit) {
+        synchronized (waiting) {
+            return waiting.remove(permit);
+        }
+    }
+
+    private void release() {
+        List<CompletableFuture<Void>> granted;
+        synchronized (waiting) {
+            --inFlight;
+            granted = grant();
+        }
+        granted.forEach(p -> p.complete(null));
+    }
+
+    /**
+     * Let waiting requests in up to the limit. The returned permits
+     * are completed without holding the lock.
+     */
+    private List<CompletableFuture<Void>> grant() {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        while (inFlight < (int) limit && !waiting.isEmpty()) {
+            ++inFlight;
+            granted.add(waiting.remove());
+        }
+        return granted;
+    }
+
+    private static boolean isOverload(Throwable e) {
+        if (e instanceof HttpResponseException h) {
+            int s = h.statusCode();
+            return s == 429 || s == 503 || s == 504;
+        }
+        return e instanceof IOException;
+    }
+
+    /**
+     * Adapt the limit to the outcome of a request.
+     * @param sequence The sequence number of the request.
+     * @param start When the request was sent.
+     * @param e The failure, or {@code null} if the request succeeded.
+     */
+    private void completed(long sequence, Instant start, Throwable e) {
+        long nanos = Duration.between(start, clock.instant()).toNanos();
+        List<CompletableFuture<Void>> granted;
+        synchronized (waiting) {
+            boolean slow = false;
+            if (e == null) {
+                if (Double.isNaN(baselineNanos) || nanos < baselineNanos) baselineNanos = nanos;
+                else {
+                    slow = nanos > LATENCY_TOLERANCE * baselineNanos;
+                    baselineNanos += (nanos - baselineNanos) * BASELINE_DRIFT;
+                }
+            }
+            double previous = limit;
+            if (slow || isOverload(e)) {
+                // Requests sent before the last decrease saw the old limit
+                if (sequence > sentAtDecrease) {
+                    limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                    sentAtDecrease = sent;
+                }
+            } else if (e == null && inFlight * 2 >= limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            if ((int) limit != (int) previous)
+                log.debug("Concurrency limit {} after {} ms{}", (int) limit, nanos / 1_000_000, e == null ? "" : " and " + e);
+            granted = grant();
+        }
+        granted.forEach(p -> p.complete(null));
+    }
+
+    private InputStream track(InputStream body) {
+        if (body == null) {
+            release();
+            return null;
+        }
+        return new ReleasingInputStream(body);
+    }
+
+    private Response track(Response response) {
+        return new Response(response.notModified(), track(response.body()), response.validators());
+    }
+
+    /**
+     * Get the present limit of concurrent requests.
+     * @return The limit.
+     */
+    public int limit() {
+        synchronized (waiting) {
+            return (int) limit;
+        }
+    }
+
+    /**
+     * Get the number of requests in flight.
+     * @return Number of requests sent, of which the response body is
+     * not yet closed or read to the end.
+     */
+    public int inFlight() {
+        synchronized (waiting) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * Get the number of requests waiting to be sent.
+     * @return Queue depth.
+     */
+    public int queueDepth() {
+        synchronized (waiting) {
+            return waiting.size();
+        }
+    }
+
+    /**
+     * Releases the permit of the request when the body is closed or
+     * read to the end, whichever comes first.
+     */
+    private class ReleasingInputStream extends FilterInputStream {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        ReleasingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) done();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) done();
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                done();
+            }
+        }
+
+        private void done() {
+            if (released.compareAndSet(false, true)) release();
+        }
+    }
+}
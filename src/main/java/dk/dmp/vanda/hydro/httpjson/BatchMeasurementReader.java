@@ -0,0 +1,139 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.MeasurementBatch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * Reads the measurements of a Parquet measurement response one at a
+ * time, by expanding the {@linkplain MeasurementBatch columnar batches}
+ * of a {@link ParquetMeasurementReader}. Measurement times have the
+ * minute resolution of the batches.
+ * <p>Given a filter, the stancodes are tested once per batch, and the
+ * times and results in the columns of the batch, so that a measurement
+ * is made only for the rows that pass.</p>
+ * <p>The underlying stream is closed when the response has been read,
+ * when reading fails, or when the reader is closed.
+ * Instances are not safe for use by multiple concurrent threads.</p>
+ * @param <J> The kind of measurement.
+ */
+public class BatchMeasurementReader<J extends JsonMeasurement> implements MeasurementReader<J> {
+    private final ParquetMeasurementReader batches;
+    private final Supplier<J> factory;
+    private final MeasurementFilter filter;
+    private MeasurementBatch batch;
+    private int index;
+    private long returned;
+    private J next;
+
+    /**
+     * Construct a reader.
+     * @param batches The batches of the response.
+     * @param factory Creates an empty measurement.
+     */
+    public BatchMeasurementReader(ParquetMeasurementReader batches, Supplier<J> factory) {
+        this(batches, factory, null);
+    }
+
+    /**
+     * Construct a reader that returns only the measurements that pass a filter.
+     * @param batches The batches of the response.
+     * @param factory Creates an empty measurement.
+     * @param filter The conditions, or {@code null} if there are none.
+     */
+    BatchMeasurementReader(ParquetMeasurementReader batches, Supplier<J> factory, MeasurementFilter filter) {
+        this.batches = batches;
+        this.factory = factory;
+        this.filter = filter;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) try {
+            next = prefetch();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return next != null;
+    }
+
+    @Override
+    public J next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        J r = next;
+        next = null;
+        ++returned;
+        return r;
+    }
+
+    /**
+     * The number of measurements is known once the first one has been
+     * {@linkplain #prefetch() read}, since the whole response is read,
+     * unless measurements are filtered.
+     */
+    @Override
+    public long remaining() {
+        if (filter != null) return -1;
+        long rows = batches.rowCount();
+        return rows < 0 ? -1 : rows - returned;
+    }
+
+    @Override
+    public J prefetch() throws IOException {
+        if (next != null) return next;
+        for (;;) {
+            while (batch == null || index == batch.size()) {
+                if (!batches.prefetch()) {
+                    batch = null;
+                    return null;
+                }
+                batch = batches.next();
+                // Skip the whole batch if its stancodes fail
+                index = filter == null || filter.acceptsBatch(batch) ? 0 : batch.size();
+            }
+            int i = index++;
+            if (filter == null || accepts(batch, i)) {
+                next = measurement(batch, i);
+                return next;
+            }
+        }
+    }
+
+    private boolean accepts(MeasurementBatch b, int i) {
+        long t = b.measurementEpochMinutes()[i];
+        double result = b.results()[i];
+        return filter.acceptsResult(Double.isNaN(result) ? 0 : result)
+            && (t == Long.MIN_VALUE ? filter.acceptsNoMeasurementTime() : filter.acceptsMeasurementTime(t));
+    }
+
+    private J measurement(MeasurementBatch b, int i) {
+        J m = factory.get();
+        m.setStationId(b.stationId());
+        m.setOperatorStationId(b.operatorStationId());
+        m.setMeasurementPointNumber(b.measurementPointNumber());
+        m.setParameterSc(b.parameterSc());
+        m.setParameter(b.parameter());
+        m.setExaminationTypeSc(b.examinationTypeSc());
+        m.setExaminationType(b.examinationType());
+        m.setUnitSc(b.unitSc());
+        m.setUnit(b.unit());
+        m.setMeasurementDateTime(b.measurementDateTime(i));
+        double result = b.results()[i];
+        if (!Double.isNaN(result)) m.setResult(result);
+        double[] corrected = b.resultsElevationCorrected();
+        if (corrected != null && m instanceof JsonWaterLevelMeasurement w && !Double.isNaN(corrected[i])) {
+            w.setResultElevationCorrected(corrected[i]);
+        }
+        return m;
+    }
+
+    @Override
+    public void close() {
+        next = null;
+        batch = null;
+        batches.close();
+    }
+}
@@ -0,0 +1,244 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link StreamService} that keeps the response bodies of another
+ * stream service in memory, so that repeated requests are answered
+ * without contacting the service.
+ * <p>Requests are identified by path and query with the parameters in
+ * canonical order, see {@link URLEncodedFormData#canonicalize(String)}.
+ * A response is stored when its body has been read to the end, thus
+ * bodies are still streamed to the first reader. Entries expire after
+ * a fixed time to live, and the least recently used entries are evicted
+ * when the total size of the stored bodies exceeds a limit.</p>
+ * <p>All the methods in this class are safe for use by multiple
+ * concurrent threads.</p>
+ */
+public class CachingStreamService implements StreamService {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private final StreamService streamService;
+    private final long maxBytes;
+    private final Duration timeToLive;
+    private final Clock clock;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private record Entry(byte[] body, Instant expires) {}
+
+    /**
+     * Construct the cache.
+     * @param streamService The service to fetch responses from.
+     * @param maxBytes The maximum total size of stored response bodies.
+     * @param timeToLive How long a response is used after it was fetched.
+     */
+    public CachingStreamService(StreamService streamService, long maxBytes, Duration timeToLive) {
+        this(streamService, maxBytes, timeToLive, Clock.systemUTC());
+    }
+
+    /**
+     * Construct the cache.
+     * @param streamService The service to fetch responses from.
+     * @param maxBytes The maximum total size of stored response bodies.
+     * @param timeToLive How long a response is used after it was fetched.
+     * @param clock The clock to measure time to live by.
+     */
+    public CachingStreamService(StreamService streamService, long maxBytes, Duration timeToLive, Clock clock) {
+        this.streamService = Objects.requireNonNull(streamService);
+        this.maxBytes = maxBytes;
+        this.timeToLive = Objects.requireNonNull(timeToLive);
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    @Override
+    public InputStream get(String path, String query) throws IOException, InterruptedException, IllegalArgumentException {
+        String key = key(path, query);
+        Entry e = lookup(key);
+        if (e != null) return e.body() == null ? null : new ByteArrayInputStream(e.body());
+        return capture(key, streamService.get(path, query));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getAsync(String path, String query) {
+        String key = key(path, query);
+        Entry e = lookup(key);
+        if (e != null) return CompletableFuture.completedFuture(e.body() == null ? null : new ByteArrayInputStream(e.body()));
+        return streamService.getAsync(path, query).thenApply(body -> capture(key, body));
+    }
+
+    @Override
+    public boolean retries() {
+        return streamService.retries();
+    }
+
+    private static String key(String path, String query) {
+        return path + "?" + URLEncodedFormData.canonicalize(query);
+    }
+
+    private Entry lookup(String key) {
+        Entry e;
+        synchronized (entries) {
+            e = entries.get(key);
+            if (e != null && ! clock.instant().isBefore(e.expires())) {
+                remove(key);
+                e = null;
+            }
+        }
+        (e == null ? misses : hits).incrementAndGet();
+        return e;
+    }
+
+    private InputStream capture(String key, InputStream body) {
+        if (body == null) {
+            store(key, null);
+            return null;
+        }
+        return new CapturingInputStream(body, key);
+    }
+
+    private void store(String key, byte[] body) {
+        long size = body == null ? 0 : body.length;
+        if (size > maxBytes) {
+            log.debug("Response from {} of {} bytes is too large to cache", key, size);
+            return;
+        }
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, new Entry(body, clock.instant().plus(timeToLive)));
+            totalBytes += size;
+            Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && i.hasNext()) {
+                Entry eldest = i.next().getValue();
+                totalBytes -= eldest.body() == null ? 0 : eldest.body().length;
+                i.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null && e.body() != null) totalBytes -= e.body().length;
+    }
+
+    /**
+     * Remove all stored responses.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    /**
+     * Get the number of requests answered by a stored response.
+     * @return Number of cache hits.
+     */
+    public long hitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests passed on to the underlying service.
+     * @return Number of cache misses.
+     */
+    public long missCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of stored responses evicted to make room for others.
+     * Expired responses are not counted.
+     * @return Number of evictions.
+     */
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the total size of the stored response bodies.
+     * @return Size in bytes.
+     */
+    public long size() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * Copies the body while it is read, and stores the copy when the
+     * end is reached, unless it grows too large to be stored.
+     */
+    private class CapturingInputStream extends FilterInputStream {
+        private final String key;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CapturingInputStream(InputStream in, String key) {
+            super(in);
+            this.key = key;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) complete();
+            else if (copy != null) {
+                copy.write(b);
+                limit();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) complete();
+            else if (copy != null) {
+                copy.write(b, off, n);
+                limit();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            copy = null;
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void limit() {
+            if (copy.size() > maxBytes) copy = null;
+        }
+
+        private void complete() {
+            if (copy != null) store(key, copy.toByteArray());
+            copy = null;
+        }
+    }
+}
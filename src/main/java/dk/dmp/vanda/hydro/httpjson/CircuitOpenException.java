@@ -0,0 +1,19 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.io.IOException;
+
+/**
+ * Signals that a request was not sent, since the service has failed
+ * repeatedly and is not yet expected to have recovered.
+ * @see ResilientStreamService
+ */
+public class CircuitOpenException extends IOException {
+    /**
+     * Construct the exception.
+     * @param message The detail message.
+     * @param cause The last failure of the service, or {@code null} if unknown.
+     */
+    public CircuitOpenException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,323 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link StreamService} that lets concurrent identical requests share
+ * a single request to another stream service.
+ * <p>Requests are identified by path and query with the parameters in
+ * canonical order, see {@link URLEncodedFormData#canonicalize(String)}.
+ * The first request for a resource is passed on. Requests for the same
+ * resource arriving before its response has arrived wait for it, and
+ * failures are reported to all of them. A request arriving later is
+ * passed on by itself, so only the time to the first byte is shared.</p>
+ * <p>The body of a response that no other request waits for is
+ * returned as it is, without being buffered. Otherwise, every caller
+ * reads its own stream, and the bytes read from the response are
+ * buffered until every stream has read or closed past them, so a
+ * caller that reads slowly, or leaves its stream open, holds up to the
+ * whole body in memory. The response is closed when every stream is
+ * closed. Nothing is kept beyond that, use {@link CachingStreamService}
+ * for that.</p>
+ * <p>All the methods in this class are safe for use by multiple
+ * concurrent threads.</p>
+ */
+public class CoalescingStreamService implements StreamService {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private final StreamService streamService;
+    private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Construct the coalescing layer.
+     * @param streamService The service to fetch responses from.
+     */
+    public CoalescingStreamService(StreamService streamService) {
+        this.streamService = Objects.requireNonNull(streamService);
+    }
+
+    @Override
+    public InputStream get(String path, String query) throws IOException, InterruptedException, IllegalArgumentException {
+        String key = key(path, query);
+        Flight flight = new Flight();
+        for (;;) {
+            Flight shared = inFlight.putIfAbsent(key, flight);
+            if (shared == null) break;
+            CompletableFuture<InputStream> response = shared.follow();
+            if (response != null) {
+                coalesced.incrementAndGet();
+                return await(response);
+            }
+        }
+        requests.incrementAndGet();
+        InputStream body;
+        try {
+            body = streamService.get(path, query);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.fail(e);
+            throw e;
+        }
+        inFlight.remove(key, flight);
+        return flight.land(body);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getAsync(String path, String query) {
+        String key = key(path, query);
+        Flight flight = new Flight();
+        for (;;) {
+            Flight shared = inFlight.putIfAbsent(key, flight);
+            if (shared == null) break;
+            CompletableFuture<InputStream> response = shared.follow();
+            if (response != null) {
+                coalesced.incrementAndGet();
+                return response;
+            }
+        }
+        requests.incrementAndGet();
+        CompletableFuture<InputStream> result = new CompletableFuture<>();
+        streamService.getAsync(path, query).whenComplete((body, e) -> {
+            inFlight.remove(key, flight);
+            if (e == null) {
+                InputStream own = flight.land(body);
+                if (!result.complete(own)) closeQuietly(own);
+            } else {
+                Throwable cause = unwrap(e);
+                flight.fail(cause);
+                result.completeExceptionally(cause);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public boolean retries() {
+        return streamService.retries();
+    }
+
+    private static String key(String path, String query) {
+        return path + "?" + URLEncodedFormData.canonicalize(query);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        if (e instanceof UncheckedIOException && e.getCause() != null) e = e.getCause();
+        return e;
+    }
+
+    private static InputStream await(CompletableFuture<InputStream> response) throws IOException, InterruptedException {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            // A stream handed out later is closed by the flight
+            if (!response.cancel(true) && response.state() == Future.State.SUCCESS) closeQuietly(response.resultNow());
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            if (cause instanceof InterruptedException)
+                throw new IOException("Shared request was interrupted", cause);
+            if (cause instanceof RuntimeException r) throw r;
+            if (cause instanceof Error err) throw err;
+            throw new IOException(cause);
+        }
+    }
+
+    private static void closeQuietly(InputStream body) {
+        if (body == null) return;
+        try {
+            body.close();
+        } catch (IOException e) {
+            log.debug("Cannot close response of cancelled request", e);
+        }
+    }
+
+    /**
+     * A request passed on, which other requests may follow until its
+     * response has arrived.
+     */
+    private static class Flight {
+        private List<CompletableFuture<InputStream>> followers = new ArrayList<>();
+
+        /**
+         * Wait for the response too.
+         * @return The stream of the follower, or {@code null} if the
+         * response has already arrived.
+         */
+        synchronized CompletableFuture<InputStream> follow() {
+            if (followers == null) return null;
+            CompletableFuture<InputStream> response = new CompletableFuture<>();
+            followers.add(response);
+            return response;
+        }
+
+        private synchronized List<CompletableFuture<InputStream>> depart() {
+            List<CompletableFuture<InputStream>> f = followers;
+            followers = null;
+            return f;
+        }
+
+        /**
+         * Hand out the response to the followers.
+         * @return The stream of the request passed on.
+         */
+        InputStream land(InputStream body) {
+            List<CompletableFuture<InputStream>> f = depart();
+            if (body == null || f.isEmpty()) {
+                for (CompletableFuture<InputStream> response : f) response.complete(null);
+                return body;
+            }
+            Tee tee = new Tee(body, f.size() + 1);
+            for (CompletableFuture<InputStream> response : f) {
+                InputStream own = tee.new Reader();
+                if (!response.complete(own)) closeQuietly(own);
+            }
+            return tee.new Reader();
+        }
+
+        void fail(Throwable e) {
+            for (CompletableFuture<InputStream> response : depart()) response.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A response read by several streams, each at its own pace. The
+     * bytes are buffered in chunks, and a chunk is dropped once every
+     * stream has read or closed past it.
+     */
+    private static class Tee {
+        private static final int CHUNK_SIZE = 8192;
+        private final InputStream body;
+        private final List<byte[]> chunks = new ArrayList<>();
+        private final List<Reader> readers = new ArrayList<>();
+        private long buffered, dropped;
+        private int open;
+        private boolean ended;
+        private IOException failure;
+
+        Tee(InputStream body, int streams) {
+            this.body = body;
+            this.open = streams;
+        }
+
+        /**
+         * Read more of the response into the buffer.
+         * @return Whether there is more.
+         */
+        private boolean fill() throws IOException {
+            if (failure != null) throw failure;
+            if (ended) return false;
+            int offset = (int) (buffered % CHUNK_SIZE);
+            if (offset == 0) chunks.add(new byte[CHUNK_SIZE]);
+            int n;
+            try {
+                n = body.read(chunks.get(chunks.size() - 1), offset, CHUNK_SIZE - offset);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+            if (n < 0) {
+                ended = true;
+                return false;
+            }
+            buffered += n;
+            return true;
+        }
+
+        /**
+         * Drop the chunks every open stream has read past.
+         */
+        private void drop() {
+            long min = buffered;
+            for (Reader r : readers) if (!r.closed) min = Math.min(min, r.position);
+            for (long c = dropped; c < min / CHUNK_SIZE; ++c) chunks.set((int) c, null);
+            dropped = Math.max(dropped, min / CHUNK_SIZE);
+        }
+
+        private class Reader extends InputStream {
+            private long position;
+            private boolean closed;
+
+            Reader() {
+                synchronized (Tee.this) {
+                    readers.add(this);
+                }
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                return n < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                Objects.checkFromIndexSize(off, len, b.length);
+                synchronized (Tee.this) {
+                    if (closed) throw new IOException("Stream closed");
+                    if (len == 0) return 0;
+                    while (position == buffered) if (!fill()) return -1;
+                    byte[] chunk = chunks.get((int) (position / CHUNK_SIZE));
+                    int offset = (int) (position % CHUNK_SIZE);
+                    int n = (int) Math.min(len, Math.min(CHUNK_SIZE - offset, buffered - position));
+                    System.arraycopy(chunk, offset, b, off, n);
+                    position += n;
+                    drop();
+                    return n;
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (Tee.this) {
+                    return closed ? 0 : (int) Math.min(Integer.MAX_VALUE, buffered - position);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                synchronized (Tee.this) {
+                    if (closed) return;
+                    closed = true;
+                    drop();
+                    if (--open > 0) return;
+                }
+                body.close();
+            }
+        }
+    }
+
+    /**
+     * Get the number of requests passed on to the underlying service.
+     * @return Number of requests made.
+     */
+    public long requestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of requests answered by sharing another request.
+     * @return Number of requests coalesced.
+     */
+    public long coalescedCount() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,158 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.MeasurementBatch;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+import static dk.dmp.vanda.hydro.httpjson.Labler.lable;
+
+/**
+ * A measurement batch filled one result at a time. The columns grow
+ * as needed, and are trimmed to size when the batch is complete.
+ */
+class ColumnarMeasurementBatch implements MeasurementBatch {
+    String stationId;
+    String operatorStationId;
+    final int measurementPointNumber;
+    final int parameterSc;
+    final String parameter;
+    final int examinationTypeSc;
+    final String examinationType;
+    final int unitSc;
+    final String unit;
+    private int size = 0;
+    private long[] times = new long[16];
+    private double[] results = new double[16];
+    private double[] corrected;
+
+    ColumnarMeasurementBatch(int measurementPointNumber, int parameterSc, String parameter,
+                             int examinationTypeSc, String examinationType, int unitSc, String unit,
+                             boolean elevationCorrected) {
+        this.measurementPointNumber = measurementPointNumber;
+        this.parameterSc = parameterSc;
+        this.parameter = parameter;
+        this.examinationTypeSc = examinationTypeSc;
+        this.examinationType = examinationType;
+        this.unitSc = unitSc;
+        this.unit = unit;
+        if (elevationCorrected) corrected = new double[16];
+    }
+
+    /**
+     * Tell whether a result with the given constants belongs in this batch.
+     */
+    boolean accepts(int measurementPointNumber, int parameterSc, String parameter,
+                    int examinationTypeSc, String examinationType, int unitSc, String unit) {
+        return this.measurementPointNumber == measurementPointNumber
+            && this.parameterSc == parameterSc
+            && Objects.equals(this.parameter, parameter)
+            && this.examinationTypeSc == examinationTypeSc
+            && Objects.equals(this.examinationType, examinationType)
+            && this.unitSc == unitSc
+            && Objects.equals(this.unit, unit);
+    }
+
+    void add(long time, double result, double resultElevationCorrected) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            results = Arrays.copyOf(results, capacity);
+            if (corrected != null) corrected = Arrays.copyOf(corrected, capacity);
+        }
+        times[size] = time;
+        results[size] = result;
+        if (corrected != null) corrected[size] = resultElevationCorrected;
+        ++size;
+    }
+
+    void trim() {
+        if (size < times.length) {
+            times = Arrays.copyOf(times, size);
+            results = Arrays.copyOf(results, size);
+            if (corrected != null) corrected = Arrays.copyOf(corrected, size);
+        }
+    }
+
+    @Override
+    public String stationId() {
+        return stationId;
+    }
+
+    @Override
+    public String operatorStationId() {
+        return operatorStationId;
+    }
+
+    @Override
+    public int measurementPointNumber() {
+        return measurementPointNumber;
+    }
+
+    @Override
+    public int parameterSc() {
+        return parameterSc;
+    }
+
+    @Override
+    public String parameter() {
+        return parameter;
+    }
+
+    @Override
+    public int examinationTypeSc() {
+        return examinationTypeSc;
+    }
+
+    @Override
+    public String examinationType() {
+        return examinationType;
+    }
+
+    @Override
+    public int unitSc() {
+        return unitSc;
+    }
+
+    @Override
+    public String unit() {
+        return unit;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long[] measurementEpochMinutes() {
+        return times;
+    }
+
+    @Override
+    public double[] results() {
+        return results;
+    }
+
+    @Override
+    public double[] resultsElevationCorrected() {
+        return corrected;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner sj = Labler.joiner(getClass());
+        sj.add(lable(stationId, "stationId"));
+        sj.add(lable(operatorStationId, "operatorStationId"));
+        sj.add(lable(measurementPointNumber, "measurementPointNumber"));
+        sj.add(lable(parameterSc, "parameterSc"));
+        sj.add(lable(parameter, "parameter"));
+        sj.add(lable(examinationTypeSc, "examinationTypeSc"));
+        sj.add(lable(examinationType, "examinationType"));
+        sj.add(lable(unitSc, "unitSc"));
+        sj.add(lable(unit, "unit"));
+        sj.add(lable(size, "size"));
+        return sj.toString();
+    }
+}
@@ -0,0 +1,302 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.MeasurementBatch;
+import jakarta.json.JsonException;
+import jakarta.json.stream.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+import static dk.dmp.vanda.hydro.httpjson.JsonDecoder.expect;
+import static dk.dmp.vanda.hydro.httpjson.JsonDecoder.number;
+import static dk.dmp.vanda.hydro.httpjson.JsonDecoder.readString;
+import static dk.dmp.vanda.hydro.httpjson.JsonDecoder.skipValue;
+
+/**
+ * Reads the measurements of a VanDa Hydro measurement response into
+ * {@linkplain MeasurementBatch columnar batches}, without creating an
+ * object per measurement. A new batch is started whenever measurement
+ * point, parameter, examination type or unit changes from one result to
+ * the next, or when a batch reaches {@value #MAX_BATCH_SIZE} results.
+ * A batch is available as soon as it ends and its station is identified,
+ * i.e. the station ids have been read, so batches are returned in
+ * response order while the response is streamed. Batches read before
+ * the station ids are held, and grow without limit, until then.
+ * <p>The underlying stream is closed when the last batch has been
+ * read, when reading fails, or when the reader is closed.
+ * Instances are not safe for use by multiple concurrent threads.</p>
+ */
+public class ColumnarMeasurementReader implements Iterator<MeasurementBatch>, Closeable {
+    /** The number of results after which a new batch is started. */
+    static final int MAX_BATCH_SIZE = 4096;
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private enum State { START, STATIONS, STATION, RESULTS, END }
+
+    private final JsonParser parser;
+    private final boolean elevationCorrected;
+    private final String description;
+    private final Queue<ColumnarMeasurementBatch> ready = new ArrayDeque<>();
+    private final Queue<ColumnarMeasurementBatch> unidentified = new ArrayDeque<>();
+    private State state;
+    private String stationId, operatorStationId;
+    private boolean stationIdSeen, operatorStationIdSeen;
+    private ColumnarMeasurementBatch batch;
+    private boolean closed;
+
+    /**
+     * Construct a reader.
+     * @param parser The parser of the response, or {@code null} if there is no response body.
+     * @param elevationCorrected Whether the measurements have results
+     *         corrected for elevation, i.e. are water levels.
+     * @param description Description of the response origin, used for logging.
+     */
+    public ColumnarMeasurementReader(JsonParser parser, boolean elevationCorrected, String description) {
+        this.parser = parser;
+        this.elevationCorrected = elevationCorrected;
+        this.description = description;
+        state = parser == null ? State.END : State.START;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return prefetch();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public MeasurementBatch next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return ready.poll();
+    }
+
+    /**
+     * Read ahead until the next batch is available or the end of the
+     * response is reached. Unlike {@link #hasNext()}, parse failures
+     * are reported as checked exceptions.
+     * @return Whether there is a next batch.
+     * @throws IOException If the response cannot be parsed.
+     */
+    boolean prefetch() throws IOException {
+        try {
+            while (ready.isEmpty() && state != State.END) advance();
+        } catch (JsonException | IllegalStateException | DateTimeException | NumberFormatException e) {
+            close();
+            throw new IOException("Cannot deserialize measurements from " + description, e);
+        }
+        if (ready.isEmpty()) close();
+        return !ready.isEmpty();
+    }
+
+    private void advance() {
+        switch (state) {
+            case START -> {
+                expect(parser, JsonParser.Event.START_ARRAY, parser.next());
+                state = State.STATIONS;
+            }
+            case STATIONS -> {
+                JsonParser.Event e = parser.next();
+                if (e == JsonParser.Event.END_ARRAY) {
+                    // Consume the rest of the body, verifying that it is only whitespace
+                    if (parser.hasNext()) expect(parser, null, parser.next());
+                    state = State.END;
+                    return;
+                }
+                expect(parser, JsonParser.Event.START_OBJECT, e);
+                stationId = operatorStationId = null;
+                stationIdSeen = operatorStationIdSeen = false;
+                state = State.STATION;
+            }
+            case STATION -> {
+                JsonParser.Event e = parser.next();
+                if (e == JsonParser.Event.END_OBJECT) {
+                    if (!unidentified.isEmpty())
+                        log.debug("Station identification after results in response from {}: {}", description, stationId);
+                    identify();
+                    state = State.STATIONS;
+                    return;
+                }
+                expect(parser, JsonParser.Event.KEY_NAME, e);
+                switch (parser.getString()) {
+                    case "stationId" -> {
+                        stationId = readString(parser);
+                        stationIdSeen = true;
+                    }
+                    case "operatorStationId" -> {
+                        operatorStationId = readString(parser);
+                        operatorStationIdSeen = true;
+                    }
+                    case "results" -> {
+                        e = parser.next();
+                        if (e != JsonParser.Event.VALUE_NULL) {
+                            expect(parser, JsonParser.Event.START_ARRAY, e);
+                            state = State.RESULTS;
+                        }
+                    }
+                    default -> skipValue(parser);
+                }
+                if (stationIdSeen && operatorStationIdSeen) identify();
+            }
+            case RESULTS -> {
+                JsonParser.Event e = parser.next();
+                if (e == JsonParser.Event.END_ARRAY) {
+                    if (batch != null) end(batch);
+                    batch = null;
+                    state = State.STATION;
+                    return;
+                }
+                expect(parser, JsonParser.Event.START_OBJECT, e);
+                readResult();
+            }
+            case END -> {}
+        }
+    }
+
+    private void readResult() {
+        JsonParser.Event e;
+        int measurementPointNumber = 0, parameterSc = 0, examinationTypeSc = 0, unitSc = 0;
+        String parameter = null, examinationType = null, unit = null;
+        long time = Long.MIN_VALUE;
+        double result = Double.NaN, corrected = Double.NaN;
+        while ((e = parser.next()) != JsonParser.Event.END_OBJECT) {
+            expect(parser, JsonParser.Event.KEY_NAME, e);
+            switch (parser.getString()) {
+                case "measurementPointNumber" -> measurementPointNumber = readInt();
+                case "parameterSc" -> parameterSc = readInt();
+                case "parameter" -> parameter = readString(parser);
+                case "examinationTypeSc" -> examinationTypeSc = readInt();
+                case "examinationType" -> examinationType = readString(parser);
+                case "unitSc" -> unitSc = readInt();
+                case "unit" -> unit = readString(parser);
+                case "measurementDateTime" -> {
+                    String t = readString(parser);
+                    if (t != null) time = epochMinute(t);
+                }
+                case "result" -> result = readDouble();
+                case "resultElevationCorrected" -> corrected = readDouble();
+                default -> skipValue(parser);
+            }
+        }
+        // Batches of unidentified stations are not emitted, so they are not split either
+        boolean full = batch != null && batch.size() >= MAX_BATCH_SIZE && stationIdSeen && operatorStationIdSeen;
+        if (batch == null || full
+            || !batch.accepts(measurementPointNumber, parameterSc, parameter, examinationTypeSc, examinationType, unitSc, unit))
+        {
+            if (batch != null) end(batch);
+            batch = new ColumnarMeasurementBatch(measurementPointNumber, parameterSc, parameter,
+                examinationTypeSc, examinationType, unitSc, unit, elevationCorrected);
+        }
+        batch.add(time, result, corrected);
+    }
+
+    /**
+     * Emit a batch that has ended, or hold it until its station is identified.
+     */
+    private void end(ColumnarMeasurementBatch b) {
+        if (stationIdSeen && operatorStationIdSeen) emit(b);
+        else unidentified.add(b);
+    }
+
+    /**
+     * Emit the batches held until the station was identified.
+     */
+    private void identify() {
+        while (!unidentified.isEmpty()) emit(unidentified.poll());
+    }
+
+    private void emit(ColumnarMeasurementBatch b) {
+        b.stationId = stationId;
+        b.operatorStationId = operatorStationId;
+        b.trim();
+        ready.add(b);
+    }
+
+    /**
+     * Parse an RFC 3339 timestamp to minutes since the epoch, ignoring
+     * seconds. UTC timestamps, as sent by the service, are parsed
+     * without creating a date-time object.
+     * @param t The timestamp.
+     * @return Minutes since 1970-01-01T00:00Z.
+     * @throws DateTimeException If the timestamp cannot be parsed.
+     */
+    static long epochMinute(String t) {
+        int n = t.length();
+        if (n >= 17 && t.charAt(n - 1) == 'Z' && t.charAt(4) == '-' && t.charAt(7) == '-'
+            && (t.charAt(10) == 'T' || t.charAt(10) == 't') && t.charAt(13) == ':' && hasSeconds(t))
+        {
+            int year = digits(t, 0, 4), month = digits(t, 5, 2), day = digits(t, 8, 2);
+            int hour = digits(t, 11, 2), minute = digits(t, 14, 2);
+            if (year >= 0 && month >= 0 && day >= 0 && hour >= 0 && hour < 24 && minute >= 0 && minute < 60)
+                return LocalDate.of(year, month, day).toEpochDay() * 1440 + hour * 60 + minute;
+        }
+        return Math.floorDiv(OffsetDateTime.parse(t).toEpochSecond(), 60);
+    }
+
+    /**
+     * Tell whether the seconds of a UTC timestamp, between the minutes
+     * and the {@code Z}, are absent or valid, with at most 9 decimals.
+     */
+    private static boolean hasSeconds(String t) {
+        int n = t.length();
+        if (n == 17) return true;
+        if (n < 20 || t.charAt(16) != ':') return false;
+        int second = digits(t, 17, 2);
+        if (second < 0 || second >= 60) return false;
+        if (n == 20) return true;
+        return t.charAt(19) == '.' && n >= 22 && n <= 30 && digits(t, 20, n - 21) >= 0;
+    }
+
+    private static int digits(String s, int start, int count) {
+        int v = 0;
+        for (int i = start; i < start + count; ++i) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    private int readInt() {
+        JsonParser.Event e = parser.next();
+        if (e == JsonParser.Event.VALUE_NULL) return 0;
+        return Integer.parseInt(number(parser, e));
+    }
+
+    private double readDouble() {
+        JsonParser.Event e = parser.next();
+        if (e == JsonParser.Event.VALUE_NULL) return Double.NaN;
+        return Double.parseDouble(number(parser, e));
+    }
+
+    /**
+     * Close the underlying stream. Batches that are not yet read are
+     * discarded.
+     */
+    @Override
+    public void close() {
+        state = State.END;
+        ready.clear();
+        unidentified.clear();
+        batch = null;
+        if (parser != null && !closed) try {
+            closed = true;
+            parser.close();
+        } catch (JsonException e) {
+            log.debug("Cannot close response from {}", description, e);
+        }
+    }
+}
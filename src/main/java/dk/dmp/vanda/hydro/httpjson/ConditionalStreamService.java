@@ -0,0 +1,121 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link StreamService} that can make conditional requests, which
+ * are answered without a body if a stored response is still current.
+ * <p>The stream service layers pass conditional requests on to the
+ * service below them, so that a {@link DiskCachingStreamService} can
+ * be put above them. If that service cannot make conditional requests,
+ * they are made unconditionally, see {@link #of(StreamService)}.</p>
+ */
+public interface ConditionalStreamService extends StreamService {
+    /**
+     * The validators of a response, by which a later request can be
+     * made conditional on the response having changed.
+     * @param etag The entity tag, or {@code null} if none.
+     * @param lastModified The last modification date as an HTTP-date,
+     *         or {@code null} if none.
+     */
+    record Validators(String etag, String lastModified) {
+        /**
+         * Tell whether there are any validators.
+         * @return Whether a conditional request can be made.
+         */
+        public boolean isPresent() {
+            return etag != null || lastModified != null;
+        }
+    }
+
+    /**
+     * The response to a conditional request.
+     * @param notModified Whether the stored response is still current,
+     *         in which case there is no body.
+     * @param body The response body, or {@code null} if there is none.
+     * @param validators The validators of the response.
+     */
+    record Response(boolean notModified, InputStream body, Validators validators) {}
+
+    /**
+     * Submit a request for the given request path and query parameters,
+     * conditional on the response differing from a stored response.
+     * @param path The URL-encoded operation path that the request shall be sent to.
+     * @param query The URL-encoded query.
+     * @param validators The validators of the stored response, or
+     *         {@code null} to make the request unconditional.
+     * @return The response.
+     * @throws IllegalArgumentException If the path and query violates RFC 2396.
+     * @throws IOException If an I/O error occurs when sending or receiving, or the client has shut down.
+     * @throws InterruptedException If the operation is interrupted.
+     */
+    Response getConditional(String path, String query, Validators validators)
+        throws IOException, InterruptedException, IllegalArgumentException;
+
+    /**
+     * Submit a conditional request without waiting for the response.
+     * <p>The default implementation performs the request by
+     * {@link #getConditional(String, String, Validators)} in the calling
+     * thread.</p>
+     * @param path The URL-encoded operation path that the request shall be sent to.
+     * @param query The URL-encoded query.
+     * @param validators The validators of the stored response, or
+     *         {@code null} to make the request unconditional.
+     * @return The future response. It is completed exceptionally with
+     * the exceptions declared by {@link #getConditional(String, String, Validators)}.
+     */
+    default CompletableFuture<Response> getConditionalAsync(String path, String query, Validators validators) {
+        try {
+            return CompletableFuture.completedFuture(getConditional(path, query, validators));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * View a stream service as one that can make conditional requests.
+     * @param streamService The service.
+     * @return The service itself, if it can make conditional requests,
+     * otherwise a view that makes every request unconditionally, and
+     * answers it without validators, so that the response is not stored.
+     */
+    static ConditionalStreamService of(StreamService streamService) {
+        if (streamService instanceof ConditionalStreamService c) return c;
+        Objects.requireNonNull(streamService);
+        return new ConditionalStreamService() {
+            private static final Validators NONE = new Validators(null, null);
+
+            @Override
+            public InputStream get(String path, String query) throws IOException, InterruptedException, IllegalArgumentException {
+                return streamService.get(path, query);
+            }
+
+            @Override
+            public CompletableFuture<InputStream> getAsync(String path, String query) {
+                return streamService.getAsync(path, query);
+            }
+
+            @Override
+            public boolean retries() {
+                return streamService.retries();
+            }
+
+            @Override
+            public Response getConditional(String path, String query, Validators validators)
+                throws IOException, InterruptedException, IllegalArgumentException {
+                return new Response(false, streamService.get(path, query), NONE);
+            }
+
+            @Override
+            public CompletableFuture<Response> getConditionalAsync(String path, String query, Validators validators) {
+                return streamService.getAsync(path, query).thenApply(body -> new Response(false, body, NONE));
+            }
+        };
+    }
+}
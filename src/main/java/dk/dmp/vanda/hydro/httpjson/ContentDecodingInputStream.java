@@ -0,0 +1,140 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes a response body according to its {@code Content-Encoding}
+ * while it is streamed, counting the bytes received and decoded. The
+ * decoders are created on the first read, so that constructing the
+ * stream never blocks.
+ * <p>Both {@code gzip} and {@code deflate} are supported. Deflate is
+ * the zlib format by RFC 9110, but raw deflate data, as sent by some
+ * servers, is recognized too.</p>
+ */
+class ContentDecodingInputStream extends InputStream {
+    private final InputStream raw;
+    private final List<String> encodings;
+    private final AtomicLong decodedBytes;
+    private InputStream decoded;
+
+    /**
+     * Construct a decoding stream.
+     * @param body The response body.
+     * @param encodings The content codings in the order they were applied.
+     * @param receivedBytes Counts the bytes read from the body.
+     * @param decodedBytes Counts the decoded bytes.
+     */
+    ContentDecodingInputStream(InputStream body, List<String> encodings, AtomicLong receivedBytes, AtomicLong decodedBytes) {
+        this.raw = new CountingInputStream(body, receivedBytes);
+        this.encodings = encodings;
+        this.decodedBytes = decodedBytes;
+    }
+
+    private InputStream decoded() throws IOException {
+        if (decoded == null) {
+            // An identity coded body is passed through, without peeking
+            if (encodings.stream().allMatch("identity"::equals)) return decoded = raw;
+            PushbackInputStream p = new PushbackInputStream(raw, 1);
+            int first = p.read();
+            // An empty body is left empty, rather than failing to decode
+            if (first < 0) return decoded = InputStream.nullInputStream();
+            p.unread(first);
+            InputStream in = p;
+            for (int i = encodings.size() - 1; i >= 0; --i) {
+                String encoding = encodings.get(i);
+                switch (encoding) {
+                    case "gzip", "x-gzip" -> in = new GZIPInputStream(in, 8192);
+                    case "deflate" -> in = inflate(in);
+                    case "identity" -> {}
+                    default -> throw new IOException("Unsupported content encoding: " + encoding);
+                }
+            }
+            decoded = in;
+        }
+        return decoded;
+    }
+
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream p = new PushbackInputStream(in, 2);
+        byte[] header = p.readNBytes(2);
+        p.unread(header);
+        // A zlib header has compression method 8 and is a multiple of 31
+        boolean zlib = header.length == 2 && (header[0] & 0x0f) == 8 && ((header[0] & 0xff) << 8 | header[1] & 0xff) % 31 == 0;
+        return new InflaterInputStream(p, new Inflater(!zlib), 8192) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = decoded().read();
+        if (b >= 0) decodedBytes.incrementAndGet();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = decoded().read(b, off, len);
+        if (n > 0) decodedBytes.addAndGet(n);
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return decoded == null ? 0 : decoded.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (decoded != null) decoded.close();
+        } finally {
+            raw.close();
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) count.addAndGet(skipped);
+            return skipped;
+        }
+    }
+}
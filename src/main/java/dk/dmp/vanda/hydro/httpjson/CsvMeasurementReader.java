@@ -0,0 +1,486 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Reads the measurements of a VanDa Hydro measurement response in CSV
+ * format, as requested by {@code format=csv}, lazily while the response
+ * is streamed.
+ * <p>The first row is a header naming the columns by the field names of
+ * the JSON format, e.g. {@code stationId}, {@code measurementDateTime}
+ * and {@code result}, in any order and case. Unknown columns are
+ * ignored. The delimiter is semicolon if the header has one, otherwise
+ * comma. Fields may be quoted as by RFC 4180, and decimal numbers may
+ * use decimal comma. Empty fields and {@code null} leave the field of the
+ * measurement unset. Given a projection, the columns of the other
+ * fields are ignored like unknown columns.</p>
+ * <p>Given a filter, the columns it tests are parsed and tested first,
+ * and a row that fails is skipped before a measurement is made.</p>
+ * <p>Rows are parsed in a reused buffer, and unchanged text fields reuse
+ * the string of the previous row, so that the only objects made per
+ * measurement are the measurement and its time.</p>
+ * <p>The underlying stream is closed when the last measurement has been
+ * read, when reading fails, or when the reader is closed.
+ * Instances are not safe for use by multiple concurrent threads.</p>
+ * @param <J> The kind of measurement.
+ */
+public class CsvMeasurementReader<J extends JsonMeasurement> implements MeasurementReader<J> {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /** Never a delimiter, for reading the header as a single field. */
+    private static final char NO_DELIMITER = '\uFFFF';
+
+    private enum Column {
+        STATION_ID("stationId"),
+        OPERATOR_STATION_ID("operatorStationId"),
+        MEASUREMENT_POINT_NUMBER("measurementPointNumber"),
+        PARAMETER_SC("parameterSc"),
+        PARAMETER("parameter"),
+        EXAMINATION_TYPE_SC("examinationTypeSc"),
+        EXAMINATION_TYPE("examinationType"),
+        MEASUREMENT_DATE_TIME("measurementDateTime"),
+        RESULT("result"),
+        RESULT_ELEVATION_CORRECTED("resultElevationCorrected"),
+        UNIT_SC("unitSc"),
+        UNIT("unit");
+
+        final String name;
+
+        Column(String name) {
+            this.name = name;
+        }
+
+        static Column of(String name) {
+            for (Column c : values()) if (c.name.equalsIgnoreCase(name)) return c;
+            return null;
+        }
+    }
+
+    private final Reader reader;
+    private final Supplier<J> factory;
+    private final String description;
+    private final Set<String> fields;
+    private final MeasurementFilter filter;
+    private final char[] buffer = new char[8192];
+    private int position, limit;
+    private char[] row = new char[256];
+    private int[] starts = new int[16], ends = new int[16];
+    private int fieldCount;
+    private Column[] columns;
+    /** The columns tested by the filter, by position, or {@code null} if there is no filter. */
+    private Column[] tested;
+    private final String[] previous = new String[Column.values().length];
+    private char delimiter = NO_DELIMITER;
+    private int line, rowLine;
+    private boolean started, ended, closed;
+    private J next;
+
+    /**
+     * Construct a reader.
+     * @param body The response body, or {@code null} if there is none.
+     * @param factory Makes an empty measurement for each row.
+     * @param description Description of the response origin, used for logging.
+     */
+    public CsvMeasurementReader(InputStream body, Supplier<J> factory, String description) {
+        this(body, factory, description, null);
+    }
+
+    /**
+     * Construct a reader that parses only the columns of some fields.
+     * @param body The response body, or {@code null} if there is none.
+     * @param factory Makes an empty measurement for each row.
+     * @param description Description of the response origin, used for logging.
+     * @param fields The fields to parse, named as in JSON, or {@code null} for all.
+     */
+    public CsvMeasurementReader(InputStream body, Supplier<J> factory, String description, Set<String> fields) {
+        this(body, factory, description, fields, null);
+    }
+
+    /**
+     * Construct a reader that returns only the measurements that pass a filter.
+     * @param body The response body, or {@code null} if there is none.
+     * @param factory Makes an empty measurement for each row.
+     * @param description Description of the response origin, used for logging.
+     * @param fields The fields to parse, named as in JSON, or {@code null} for all.
+     *         The fields tested by the filter must be included.
+     * @param filter The conditions, or {@code null} if there are none.
+     */
+    CsvMeasurementReader(InputStream body, Supplier<J> factory, String description, Set<String> fields,
+                         MeasurementFilter filter) {
+        this.reader = body == null ? null : new InputStreamReader(body, StandardCharsets.UTF_8);
+        this.factory = factory;
+        this.description = description;
+        this.fields = fields;
+        this.filter = filter;
+        ended = body == null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !ended) try {
+            next = prefetch();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return next != null;
+    }
+
+    @Override
+    public J next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        J r = next;
+        next = null;
+        return r;
+    }
+
+    @Override
+    public J prefetch() throws IOException {
+        if (next != null || ended) return next;
+        try {
+            if (!started) {
+                started = true;
+                if (!readHeader()) {
+                    close();
+                    return null;
+                }
+            }
+            while (readRow()) {
+                if (fieldCount == 1 && starts[0] == ends[0]) continue; // Blank line
+                if (filter != null && !accepts()) continue;
+                next = map();
+                return next;
+            }
+        } catch (IllegalStateException | IllegalArgumentException | DateTimeException e) {
+            close();
+            throw new IOException("Cannot deserialize measurements from " + description + " at line " + rowLine, e);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        close();
+        return null;
+    }
+
+    /**
+     * Read the header and determine the delimiter.
+     * @return {@code false} if the body is blank.
+     */
+    private boolean readHeader() throws IOException {
+        if (peek() == '\uFEFF') read();
+        String header;
+        do {
+            if (!readRow()) return false;
+            header = new String(row, 0, ends[0]).strip();
+        } while (header.isEmpty());
+        delimiter = header.indexOf(';') >= 0 ? ';' : ',';
+        String[] names = header.split(String.valueOf(delimiter), -1);
+        columns = new Column[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            String name = names[i].strip();
+            if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) name = name.substring(1, name.length() - 1);
+            columns[i] = Column.of(name);
+            if (columns[i] == null) log.debug("Ignoring unknown column {} in response from {}", name, description);
+            else if (fields != null && !fields.contains(columns[i].name)) columns[i] = null;
+        }
+        if (filter != null) {
+            tested = new Column[columns.length];
+            for (int i = 0; i < columns.length; ++i) {
+                if (columns[i] != null && filter.tests(columns[i].name)) tested[i] = columns[i];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the fields of the next row into the row buffer.
+     * @return {@code false} at the end of the body.
+     */
+    private boolean readRow() throws IOException {
+        int c = read();
+        if (c < 0) return false;
+        rowLine = ++line;
+        fieldCount = 0;
+        int length = 0, start = 0;
+        boolean quoted = false;
+        for (;; c = read()) {
+            if (c < 0) {
+                if (quoted) throw new IllegalStateException("Unterminated quoted field");
+                addField(start, length);
+                return true;
+            }
+            if (!quoted && (c == delimiter || c == '\n' || c == '\r')) {
+                addField(start, length);
+                if (c == delimiter) {
+                    start = length;
+                    continue;
+                }
+                if (c == '\r' && peek() == '\n') read();
+                return true;
+            }
+            if (c == '"') {
+                if (!quoted) {
+                    quoted = true;
+                    continue;
+                }
+                if (peek() != '"') {
+                    quoted = false;
+                    continue;
+                }
+                read();
+            } else if (c == '\n') {
+                ++line;
+            }
+            if (length == row.length) row = Arrays.copyOf(row, length * 2);
+            row[length++] = (char) c;
+        }
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == starts.length) {
+            starts = Arrays.copyOf(starts, fieldCount * 2);
+            ends = Arrays.copyOf(ends, fieldCount * 2);
+        }
+        starts[fieldCount] = start;
+        ends[fieldCount++] = end;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) return -1;
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int n;
+        do {
+            n = reader.read(buffer);
+        } while (n == 0);
+        position = 0;
+        limit = Math.max(n, 0);
+        return n > 0;
+    }
+
+    /**
+     * Test the columns of the row that the filter tests, without making
+     * a measurement. Absent and empty fields are tested as unset.
+     */
+    private boolean accepts() {
+        boolean result = false, time = false, parameterSc = false, examinationTypeSc = false, unitSc = false;
+        for (int i = 0; i < fieldCount && i < tested.length; ++i) {
+            Column column = tested[i];
+            int s = starts[i], e = ends[i];
+            if (column == null || s == e || isNull(s, e)) continue;
+            boolean accepted = switch (column) {
+                case RESULT -> result = filter.acceptsResult(parseDouble(row, s, e));
+                case MEASUREMENT_DATE_TIME -> time = filter.acceptsMeasurementTime(epochMinute(row, s, e));
+                case PARAMETER_SC -> parameterSc = filter.acceptsParameterSc(parseInt(row, s, e));
+                case EXAMINATION_TYPE_SC -> examinationTypeSc = filter.acceptsExaminationTypeSc(parseInt(row, s, e));
+                case UNIT_SC -> unitSc = filter.acceptsUnitSc(parseInt(row, s, e));
+                default -> true;
+            };
+            if (!accepted) return false;
+        }
+        return (result || filter.acceptsResult(0)) && (time || filter.acceptsNoMeasurementTime())
+            && (parameterSc || filter.acceptsParameterSc(0))
+            && (examinationTypeSc || filter.acceptsExaminationTypeSc(0))
+            && (unitSc || filter.acceptsUnitSc(0));
+    }
+
+    private J map() {
+        J m = factory.get();
+        for (int i = 0; i < fieldCount && i < columns.length; ++i) {
+            Column column = columns[i];
+            int s = starts[i], e = ends[i];
+            if (column == null || s == e || isNull(s, e)) continue;
+            switch (column) {
+                case STATION_ID -> m.setStationId(string(column, s, e));
+                case OPERATOR_STATION_ID -> m.setOperatorStationId(string(column, s, e));
+                case MEASUREMENT_POINT_NUMBER -> m.setMeasurementPointNumber(parseInt(row, s, e));
+                case PARAMETER_SC -> m.setParameterSc(parseInt(row, s, e));
+                case PARAMETER -> m.setParameter(string(column, s, e));
+                case EXAMINATION_TYPE_SC -> m.setExaminationTypeSc(parseInt(row, s, e));
+                case EXAMINATION_TYPE -> m.setExaminationType(string(column, s, e));
+                case MEASUREMENT_DATE_TIME -> m.setMeasurementDateTime(parseDateTime(row, s, e));
+                case RESULT -> m.setResult(parseDouble(row, s, e));
+                case RESULT_ELEVATION_CORRECTED -> {
+                    if (m instanceof JsonWaterLevelMeasurement w) w.setResultElevationCorrected(parseDouble(row, s, e));
+                }
+                case UNIT_SC -> m.setUnitSc(parseInt(row, s, e));
+                case UNIT -> m.setUnit(string(column, s, e));
+            }
+        }
+        return m;
+    }
+
+    private boolean isNull(int s, int e) {
+        return e - s == 4 && row[s] == 'n' && row[s + 1] == 'u' && row[s + 2] == 'l' && row[s + 3] == 'l';
+    }
+
+    /**
+     * Get the text of a field, reusing the string of the previous row
+     * if the text is unchanged.
+     */
+    private String string(Column column, int s, int e) {
+        String p = previous[column.ordinal()];
+        if (p != null && p.length() == e - s) {
+            int i = 0;
+            while (i < e - s && p.charAt(i) == row[s + i]) ++i;
+            if (i == e - s) return p;
+        }
+        return previous[column.ordinal()] = new String(row, s, e - s);
+    }
+
+    static int parseInt(char[] c, int s, int e) {
+        int i = s;
+        boolean negative = c[i] == '-';
+        if (negative || c[i] == '+') ++i;
+        if (i == e || e - i > 9) return Integer.parseInt(new String(c, s, e - s));
+        int v = 0;
+        for (; i < e; ++i) {
+            int d = c[i] - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException("Not an integer: " + new String(c, s, e - s));
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    /**
+     * Parse a decimal number. Numbers of at most 15 significant digits
+     * and 22 decimals without exponent are parsed without creating a
+     * string, exactly, since both the digits and the power of ten are
+     * exact doubles. A decimal comma is accepted.
+     */
+    static double parseDouble(char[] c, int s, int e) {
+        int i = s;
+        boolean negative = c[i] == '-';
+        if (negative || c[i] == '+') ++i;
+        long digits = 0;
+        int significant = 0, decimals = 0;
+        boolean point = false, any = false;
+        for (; i < e; ++i) {
+            char ch = c[i];
+            if (ch >= '0' && ch <= '9') {
+                any = true;
+                if (digits != 0 || ch != '0') ++significant;
+                digits = digits * 10 + (ch - '0');
+                if (point) ++decimals;
+                if (significant > 15 || decimals > 22) break;
+            } else if ((ch == '.' || ch == ',') && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (i < e || !any) return Double.parseDouble(new String(c, s, e - s).replace(',', '.'));
+        double v = digits / POWERS_OF_TEN[decimals];
+        return negative ? -v : v;
+    }
+
+    /**
+     * Parse an RFC 3339 timestamp. UTC timestamps, as sent by the
+     * service, are parsed without creating a string.
+     */
+    static OffsetDateTime parseDateTime(char[] c, int s, int e) {
+        int n = e - s;
+        if (n >= 17 && c[e - 1] == 'Z' && c[s + 4] == '-' && c[s + 7] == '-'
+            && (c[s + 10] == 'T' || c[s + 10] == 't') && c[s + 13] == ':')
+        {
+            int year = digits(c, s, 4), month = digits(c, s + 5, 2), day = digits(c, s + 8, 2);
+            int hour = digits(c, s + 11, 2), minute = digits(c, s + 14, 2);
+            int second = 0, nano = 0;
+            boolean valid = year >= 0 && month >= 0 && day >= 0 && hour >= 0 && minute >= 0;
+            if (valid && n > 17) {
+                valid = n >= 20 && c[s + 16] == ':' && (second = digits(c, s + 17, 2)) >= 0;
+                if (valid && n > 20) {
+                    valid = c[s + 19] == '.' && n - 21 >= 1 && n - 21 <= 9;
+                    for (int i = s + 20, scale = 100_000_000; valid && i < e - 1; ++i, scale /= 10) {
+                        int d = c[i] - '0';
+                        valid = d >= 0 && d <= 9;
+                        nano += d * scale;
+                    }
+                }
+            }
+            if (valid) return OffsetDateTime.of(year, month, day, hour, minute, second, nano, ZoneOffset.UTC);
+        }
+        return OffsetDateTime.parse(new String(c, s, n));
+    }
+
+    /**
+     * Parse an RFC 3339 timestamp to minutes since the epoch, ignoring
+     * seconds, as {@link ColumnarMeasurementReader#epochMinute(String)}.
+     * UTC timestamps, as sent by the service, are parsed without
+     * creating a string or date-time object.
+     */
+    static long epochMinute(char[] c, int s, int e) {
+        int n = e - s;
+        if (n >= 17 && c[e - 1] == 'Z' && c[s + 4] == '-' && c[s + 7] == '-'
+            && (c[s + 10] == 'T' || c[s + 10] == 't') && c[s + 13] == ':' && hasSeconds(c, s, e))
+        {
+            int year = digits(c, s, 4), month = digits(c, s + 5, 2), day = digits(c, s + 8, 2);
+            int hour = digits(c, s + 11, 2), minute = digits(c, s + 14, 2);
+            if (year >= 0 && month >= 0 && day >= 0 && hour >= 0 && hour < 24 && minute >= 0 && minute < 60)
+                return LocalDate.of(year, month, day).toEpochDay() * 1440 + hour * 60 + minute;
+        }
+        return MeasurementFilter.epochMinute(parseDateTime(c, s, e));
+    }
+
+    /**
+     * Tell whether the seconds of a UTC timestamp, between the minutes
+     * and the {@code Z}, are absent or valid, with at most 9 decimals.
+     */
+    private static boolean hasSeconds(char[] c, int s, int e) {
+        int n = e - s;
+        if (n == 17) return true;
+        if (n < 20 || c[s + 16] != ':') return false;
+        int second = digits(c, s + 17, 2);
+        if (second < 0 || second >= 60) return false;
+        if (n == 20) return true;
+        return c[s + 19] == '.' && n >= 22 && n <= 30 && digits(c, s + 20, n - 21) >= 0;
+    }
+
+    private static int digits(char[] c, int start, int count) {
+        int v = 0;
+        for (int i = start; i < start + count; ++i) {
+            int d = c[i] - '0';
+            if (d < 0 || d > 9) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    @Override
+    public void close() {
+        ended = true;
+        next = null;
+        if (reader != null && !closed) try {
+            closed = true;
+            reader.close();
+        } catch (IOException e) {
+            log.debug("Cannot close response from {}", description, e);
+        }
+    }
+}
@@ -1,23 +1,67 @@
 package dk.dmp.vanda.hydro.httpjson;
 
 import dk.dmp.vanda.hydro.Station;
-import jakarta.json.bind.Jsonb;
+import jakarta.json.Json;
+import jakarta.json.JsonException;
 import jakarta.json.bind.JsonbBuilder;
 import jakarta.json.bind.JsonbException;
-import org.apache.commons.io.input.ObservableInputStream;
+import jakarta.json.stream.JsonParser;
+import jakarta.json.stream.JsonParserFactory;
+import org.eclipse.yasson.YassonJsonb;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
- * Deserializer for VanDa Hydro JSON data.
+ * Deserializer for VanDa Hydro JSON data, and CSV measurement data.
  * All the methods in this class are safe for use by multiple concurrent threads.
  */
 public class Deserializer implements AutoCloseable {
-    private final Jsonb jsonb = JsonbBuilder.create();
+    private final YassonJsonb jsonb = (YassonJsonb) JsonbBuilder.create();
+    private final JsonParserFactory parserFactory = Json.createParserFactory(null);
+    private final Decoder decoder;
+
+    /**
+     * How JSON values are mapped to objects.
+     */
+    public enum Decoder {
+        /**
+         * Map the fields of the VanDa Hydro schemas directly to setters,
+         * without reflection.
+         */
+        DIRECT,
+        /**
+         * Map by JSON-B, using reflection and type adapters. Each
+         * measurement is bound as a whole, and only then tested by the
+         * conditions of a request, so filtering saves no decoding.
+         */
+        JSONB
+    }
+
+    /**
+     * Construct a deserializer using the {@link Decoder#DIRECT} decoder.
+     */
+    public Deserializer() {
+        this(Decoder.DIRECT);
+    }
+
+    /**
+     * Construct a deserializer.
+     * @param decoder How JSON values are mapped to objects.
+     */
+    public Deserializer(Decoder decoder) {
+        this.decoder = Objects.requireNonNull(decoder);
+    }
 
     /**
      * Closes the internal JSON-B deserializer.
@@ -32,55 +76,366 @@ public class Deserializer implements AutoCloseable {
     private static final Type JsonStationArrayType = JsonStationArray.class.getGenericInterfaces()[0];
 
     public List<Station> deserializeStations(InputStream body) throws IOException {
-        return fromJson(body, JsonStationArrayType);
+        return fromJson(body, JsonStationArrayType, JsonDecoder::readStations);
+    }
+
+    /**
+     * Deserialize stations, decoding only some of their fields. The
+     * fields not projected are skipped by the {@link Decoder#DIRECT}
+     * decoder, while JSON-B decodes all of them.
+     * @param body The response body, or {@code null} if there is none.
+     * @param fields The fields to decode, named as in JSON, or {@code null} for all.
+     * @return The stations.
+     * @throws IOException If the body cannot be deserialized.
+     */
+    public List<Station> deserializeStations(InputStream body, Set<String> fields) throws IOException {
+        return fromJson(body, JsonStationArrayType, p -> JsonDecoder.readStations(p, fields));
     }
 
     private interface JsonStationWaterFlowArray extends List<JsonStationResults<JsonMeasurement>>{}
     private final Type JsonStationWaterFlowArrayType = JsonStationWaterFlowArray.class.getGenericInterfaces()[0];
 
     public List<JsonStationResults<JsonMeasurement>> deserializeWaterFlows(InputStream body) throws IOException {
-        return fromJson(body, JsonStationWaterFlowArrayType);
+        return fromJson(body, JsonStationWaterFlowArrayType, JsonDecoder::readStationWaterFlows);
     }
 
     private interface JsonStationWaterLevelArray extends List<JsonStationResults<JsonWaterLevelMeasurement>>{}
     private final Type JsonStationWaterLevelArrayType = JsonStationWaterLevelArray.class.getGenericInterfaces()[0];
 
     public List<JsonStationResults<JsonWaterLevelMeasurement>> deserializeWaterLevels(InputStream body) throws IOException {
-        return fromJson(body, JsonStationWaterLevelArrayType);
+        return fromJson(body, JsonStationWaterLevelArrayType, JsonDecoder::readStationWaterLevels);
+    }
+
+    /**
+     * Read water level measurements lazily while the body is streamed.
+     * @param body The response body, or {@code null} if there is none.
+     * @param description Description of the response origin, used for logging.
+     * @return The measurements, read up to the first one.
+     * @throws IOException If the start of the body cannot be deserialized.
+     */
+    public JsonMeasurementReader<JsonWaterLevelMeasurement> readWaterLevels(InputStream body, String description) throws IOException {
+        return readWaterLevels(body, description, null);
+    }
+
+    /**
+     * Read water level measurements lazily while the body is streamed,
+     * decoding only some of their fields. The fields not projected are
+     * skipped by the {@link Decoder#DIRECT} decoder, while JSON-B
+     * decodes all of them.
+     * @param body The response body, or {@code null} if there is none.
+     * @param description Description of the response origin, used for logging.
+     * @param fields The fields to decode, named as in JSON, or {@code null} for all.
+     * @return The measurements, read up to the first one.
+     * @throws IOException If the start of the body cannot be deserialized.
+     */
+    public JsonMeasurementReader<JsonWaterLevelMeasurement> readWaterLevels(InputStream body, String description,
+                                                                            Set<String> fields) throws IOException {
+        return readWaterLevels(body, description, fields, null);
+    }
+
+    /**
+     * Read the water level measurements that pass a filter.
+     * @param filter The conditions, or {@code null} if there are none.
+     * @see #readWaterLevels(InputStream, String, Set)
+     */
+    JsonMeasurementReader<JsonWaterLevelMeasurement> readWaterLevels(InputStream body, String description, Set<String> fields,
+                                                                     MeasurementFilter filter) throws IOException {
+        return read(body, JsonWaterLevelMeasurement.class, JsonWaterLevelMeasurement::new, fields, filter, description);
+    }
+
+    /**
+     * Read water flow measurements lazily while the body is streamed.
+     * @param body The response body, or {@code null} if there is none.
+     * @param description Description of the response origin, used for logging.
+     * @return The measurements, read up to the first one.
+     * @throws IOException If the start of the body cannot be deserialized.
+     */
+    public JsonMeasurementReader<JsonMeasurement> readWaterFlows(InputStream body, String description) throws IOException {
+        return readWaterFlows(body, description, null);
+    }
+
+    /**
+     * Read water flow measurements lazily while the body is streamed,
+     * decoding only some of their fields.
+     * @param body The response body, or {@code null} if there is none.
+     * @param description Description of the response origin, used for logging.
+     * @param fields The fields to decode, named as in JSON, or {@code null} for all.
+     * @return The measurements, read up to the first one.
+     * @throws IOException If the start of the body cannot be deserialized.
+     * @see #readWaterLevels(InputStream, String, Set)
+     */
+    public JsonMeasurementReader<JsonMeasurement> readWaterFlows(InputStream body, String description,
+                                                                 Set<String> fields) throws IOException {
+        return readWaterFlows(body, description, fields, null);
+    }
+
+    /**
+     * Read the water flow measurements that pass a filter.
+     * @param filter The conditions, or {@code null} if there are none.
+     * @see #readWaterFlows(InputStream, String, Set)
+     */
+    JsonMeasurementReader<JsonMeasurement> readWaterFlows(InputStream body, String description, Set<String> fields,
+                                                          MeasurementFilter filter) throws IOException {
+        return read(body, JsonMeasurement.class, JsonMeasurement::new, fields, filter, description);
+    }
+
+    /**
+     * Read water level measurements in CSV format lazily while the body
+     * is streamed.
+     * @param body The response body, or {@code null} if there is none.
+     * @param description Description of the response origin, used for logging.
+     * @return The measurements, read up to the first one.
+     * @throws IOException If the start of the body cannot be read.
+     * @see CsvMeasurementReader
+     */
+    public CsvMeasurementReader<JsonWaterLevelMeasurement> readWaterLevelsCsv(InputStream body, String description) throws IOException {
+        return readWaterLevelsCsv(body, description, null);
+    }
+
+    /**
+     * Read water level measurements in CSV format lazily while the body
+     * is streamed, parsing only the columns of some fields.
+     * @param body The response body, or {@code null} if there is none.
+     * @param description Description of the response origin, used for logging.
+     * @param fields The fields to parse, named as in JSON, or {@code null} for all.
+     * @return The measurements, read up to the first one.
+     * @throws IOException If the start of the body cannot be read.
+     * @see CsvMeasurementReader
+     */
+    public CsvMeasurementReader<JsonWaterLevelMeasurement> readWaterLevelsCsv(InputStream body, String description,
+                                                                              Set<String> fields) throws IOException {
+        return readWaterLevelsCsv(body, description, fields, null);
     }
 
-    private <T> List<T> fromJson(InputStream body, Type jsonType) throws IOException {
-        WhitespaceObserver w = new WhitespaceObserver();
+    /**
+     * Read the water level measurements in CSV format that pass a filter.
+     * @param filter The conditions, or {@code null} if there are none.
+     * @see #readWaterLevelsCsv(InputStream, String, Set)
+     */
+    CsvMeasurementReader<JsonWaterLevelMeasurement> readWaterLevelsCsv(InputStream body, String description, Set<String> fields,
+                                                                       MeasurementFilter filter) throws IOException {
+        CsvMeasurementReader<JsonWaterLevelMeasurement> reader =
+            new CsvMeasurementReader<>(body, JsonWaterLevelMeasurement::new, description, fields, filter);
+        reader.prefetch();
+        return reader;
+    }
+
+    /**
+     * Read water flow measurements in CSV format lazily while the body
+     * is streamed.
+     * @param body The response body, or {@code null} if there is none.
+     * @param description Description of the response origin, used for logging.
+     * @return The measurements, read up to the first one.
+     * @throws IOException If the start of the body cannot be read.
+     * @see CsvMeasurementReader
+     */
+    public CsvMeasurementReader<JsonMeasurement> readWaterFlowsCsv(InputStream body, String description) throws IOException {
+        return readWaterFlowsCsv(body, description, null);
+    }
+
+    /**
+     * Read water flow measurements in CSV format lazily while the body
+     * is streamed, parsing only the columns of some fields.
+     * @param body The response body, or {@code null} if there is none.
+     * @param description Description of the response origin, used for logging.
+     * @param fields The fields to parse, named as in JSON, or {@code null} for all.
+     * @return The measurements, read up to the first one.
+     * @throws IOException If the start of the body cannot be read.
+     * @see CsvMeasurementReader
+     */
+    public CsvMeasurementReader<JsonMeasurement> readWaterFlowsCsv(InputStream body, String description,
+                                                                   Set<String> fields) throws IOException {
+        return readWaterFlowsCsv(body, description, fields, null);
+    }
+
+    /**
+     * Read the water flow measurements in CSV format that pass a filter.
+     * @param filter The conditions, or {@code null} if there are none.
+     * @see #readWaterFlowsCsv(InputStream, String, Set)
+     */
+    CsvMeasurementReader<JsonMeasurement> readWaterFlowsCsv(InputStream body, String description, Set<String> fields,
+                                                            MeasurementFilter filter) throws IOException {
+        CsvMeasurementReader<JsonMeasurement> reader =
+            new CsvMeasurementReader<>(body, JsonMeasurement::new, description, fields, filter);
+        reader.prefetch();
+        return reader;
+    }
+
+    /**
+     * Read measurements into columnar batches while the body is streamed.
+     * @param body The response body, or {@code null} if there is none.
+     * @param elevationCorrected Whether the measurements have results
+     *         corrected for elevation, i.e. are water levels.
+     * @param description Description of the response origin, used for logging.
+     * @return The batches, read up to the first one.
+     * @throws IOException If the start of the body cannot be deserialized.
+     */
+    public ColumnarMeasurementReader readColumnar(InputStream body, boolean elevationCorrected, String description) throws IOException {
+        ColumnarMeasurementReader reader;
+        body = skipWhitespace(body);
         if (body == null) {
-            return Collections.emptyList();
-        } else try (ObservableInputStream is = new ObservableInputStream(body, w)) {
-            return jsonb.fromJson(is, jsonType);
-        } catch (JsonbException e) {
-            if (w.hasObservedOnlyWhitespace()) return Collections.emptyList();
-            else throw new IOException("Cannot deserialize stream as " + jsonType.getTypeName(), e);
+            reader = new ColumnarMeasurementReader(null, elevationCorrected, description);
+        } else {
+            JsonParser parser = parserFactory.createParser(body, StandardCharsets.UTF_8);
+            reader = new ColumnarMeasurementReader(parser, elevationCorrected, description);
         }
+        reader.prefetch();
+        return reader;
+    }
+
+    /**
+     * Read measurements in Parquet format into columnar batches. The
+     * whole body is read before the first batch is available.
+     * @param body The response body, or {@code null} if there is none.
+     * @param elevationCorrected Whether the measurements have results
+     *         corrected for elevation, i.e. are water levels.
+     * @param description Description of the response origin, used for logging.
+     * @return The batches, read up to the first one.
+     * @throws IOException If the body cannot be read.
+     * @see ParquetMeasurementReader
+     */
+    public ParquetMeasurementReader readParquet(InputStream body, boolean elevationCorrected, String description) throws IOException {
+        ParquetMeasurementReader reader = new ParquetMeasurementReader(body, elevationCorrected, description);
+        reader.prefetch();
+        return reader;
+    }
+
+    /**
+     * Read water level measurements in Parquet format.
+     * @param body The response body, or {@code null} if there is none.
+     * @param description Description of the response origin, used for logging.
+     * @return The measurements, read up to the first one.
+     * @throws IOException If the body cannot be read.
+     */
+    public BatchMeasurementReader<JsonWaterLevelMeasurement> readWaterLevelsParquet(InputStream body, String description) throws IOException {
+        return readWaterLevelsParquet(body, description, null);
+    }
+
+    /**
+     * Read the water level measurements in Parquet format that pass a filter.
+     * @param filter The conditions, or {@code null} if there are none.
+     * @see #readWaterLevelsParquet(InputStream, String)
+     */
+    BatchMeasurementReader<JsonWaterLevelMeasurement> readWaterLevelsParquet(InputStream body, String description,
+                                                                             MeasurementFilter filter) throws IOException {
+        BatchMeasurementReader<JsonWaterLevelMeasurement> reader =
+            new BatchMeasurementReader<>(readParquet(body, true, description), JsonWaterLevelMeasurement::new, filter);
+        reader.prefetch();
+        return reader;
+    }
+
+    /**
+     * Read water flow measurements in Parquet format.
+     * @param body The response body, or {@code null} if there is none.
+     * @param description Description of the response origin, used for logging.
+     * @return The measurements, read up to the first one.
+     * @throws IOException If the body cannot be read.
+     */
+    public BatchMeasurementReader<JsonMeasurement> readWaterFlowsParquet(InputStream body, String description) throws IOException {
+        return readWaterFlowsParquet(body, description, null);
     }
 
     /**
-     * Poor man's check for empty input stream: works only for ASCII-like
-     * encodings, e.g. UTF-8.
+     * Read the water flow measurements in Parquet format that pass a filter.
+     * @param filter The conditions, or {@code null} if there are none.
+     * @see #readWaterFlowsParquet(InputStream, String)
      */
-    private static class WhitespaceObserver extends ObservableInputStream.Observer {
-        private boolean observedOnlyWhitespace = true;
+    BatchMeasurementReader<JsonMeasurement> readWaterFlowsParquet(InputStream body, String description,
+                                                                  MeasurementFilter filter) throws IOException {
+        BatchMeasurementReader<JsonMeasurement> reader =
+            new BatchMeasurementReader<>(readParquet(body, false, description), JsonMeasurement::new, filter);
+        reader.prefetch();
+        return reader;
+    }
 
-        public boolean hasObservedOnlyWhitespace() {
-            return observedOnlyWhitespace;
+    private <J extends JsonMeasurement> JsonMeasurementReader<J> read(InputStream body, Class<J> type, Supplier<J> factory,
+                                                                      Set<String> fields, MeasurementFilter filter,
+                                                                      String description) throws IOException {
+        JsonMeasurementReader<J> reader;
+        body = skipWhitespace(body);
+        if (body == null) {
+            reader = new JsonMeasurementReader<>(null, null, description);
+        } else {
+            JsonParser parser = parserFactory.createParser(body, StandardCharsets.UTF_8);
+            JsonMeasurementReader.ResultMapper<J> mapper = decoder == Decoder.JSONB
+                ? p -> {
+                    // JSON-B binds the whole object, so conditions can only be tested after
+                    J m = jsonb.fromJson(p, type);
+                    return filter == null || filter.accepts(m) ? m : null;
+                }
+                : direct(factory, fields, filter);
+            reader = new JsonMeasurementReader<>(parser, mapper, description);
         }
+        reader.prefetch();
+        return reader;
+    }
+
+    /**
+     * Map measurements by the {@link Decoder#DIRECT} decoder. The object
+     * of a measurement that fails the filter is reused for the next one,
+     * so that skipped measurements allocate no measurement objects.
+     */
+    private static <J extends JsonMeasurement> JsonMeasurementReader.ResultMapper<J> direct(Supplier<J> factory, Set<String> fields,
+                                                                                           MeasurementFilter filter) {
+        return new JsonMeasurementReader.ResultMapper<>() {
+            private J spare;
+
+            @Override
+            public J map(JsonParser p) {
+                J m = spare != null ? spare : factory.get();
+                spare = null;
+                if (JsonDecoder.readMeasurement(p, m, fields, filter)) return m;
+                m.clear();
+                spare = m;
+                return null;
+            }
+        };
+    }
 
-        @Override
-        public void data(byte[] buffer, int offset, int length) {
-            for (int i = offset, n = length; observedOnlyWhitespace && n > 0; ++i, --n)
-                data(buffer[i]);
+    private <T> List<T> fromJson(InputStream body, Type jsonType, Function<JsonParser, List<T>> direct) throws IOException {
+        body = skipWhitespace(body);
+        if (body == null) {
+            return Collections.emptyList();
+        } else try (JsonParser parser = parserFactory.createParser(body, StandardCharsets.UTF_8)) {
+            List<T> r = decoder == Decoder.JSONB ? jsonb.fromJson(parser, jsonType) : direct.apply(parser);
+            // Read to the end, so that stream decorators see the whole body
+            if (parser.hasNext()) throw new IOException("Unexpected content after " + jsonType.getTypeName() + " at " + parser.getLocation());
+            return r;
+        } catch (JsonbException | JsonException | IllegalStateException | IllegalArgumentException | DateTimeException e) {
+            throw new IOException("Cannot deserialize stream as " + jsonType.getTypeName(), e);
         }
+    }
 
-        @Override
-        public void data(int value) {
-            if (observedOnlyWhitespace && !Character.isWhitespace(value)) observedOnlyWhitespace = false;
+    /**
+     * Skip the whitespace at the start of a body, to tell an empty body
+     * from invalid content before parsing. A response with a
+     * Content-Length of 0 has no body already, so this peeks at the
+     * first byte of the others, which is not whitespace unless the
+     * service pads its responses. Works only for ASCII-like encodings,
+     * e.g. UTF-8.
+     * @param body The response body, or {@code null} if there is none.
+     * @return The body from its first byte that is not whitespace, or
+     * {@code null} if there is none. The body is closed if it is empty.
+     * @throws IOException If the body cannot be read.
+     */
+    private static InputStream skipWhitespace(InputStream body) throws IOException {
+        if (body == null) return null;
+        PushbackInputStream in = new PushbackInputStream(body);
+        try {
+            for (;;) {
+                int b = in.read();
+                if (b < 0) {
+                    in.close();
+                    return null;
+                }
+                if (!Character.isWhitespace(b)) {
+                    in.unread(b);
+                    return in;
+                }
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
         }
     }
 }
@@ -0,0 +1,328 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link StreamService} that stores the response bodies of a
+ * {@link ConditionalStreamService} in a directory together with their
+ * {@code ETag} and {@code Last-Modified} validators, and revalidates
+ * them by conditional requests. If the service answers that a stored
+ * response is not modified, the stored body is returned, so that the
+ * body is not transferred again. As the directory survives the process,
+ * so does the cache.
+ * <p>Requests are identified by path and query with the parameters in
+ * canonical order, see {@link URLEncodedFormData#canonicalize(String)}.
+ * A response is stored when its body has been read to the end, and only
+ * if it has a validator. Each response is stored in a file named by the
+ * SHA-256 hash of the request, which is replaced atomically, so that a
+ * reader never sees a partially written response. Stored responses are
+ * not evicted, but can be removed by {@link #invalidateAll()}.</p>
+ * <p>{@link ResilientStreamService}, {@link AdaptiveConcurrencyStreamService}
+ * and {@link HedgingStreamService} pass conditional requests on, so the
+ * cache can be put above them, and a response that is not modified is
+ * retried, limited and hedged like any other. A layer that cannot make
+ * conditional requests, e.g. {@link CoalescingStreamService}, belongs
+ * above the cache. Below it, viewed by
+ * {@link ConditionalStreamService#of(StreamService)}, it would make the
+ * cache store nothing.</p>
+ * <p>All the methods in this class are safe for use by multiple
+ * concurrent threads, and by multiple processes sharing the directory.</p>
+ */
+public class DiskCachingStreamService implements StreamService {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".response";
+    private final ConditionalStreamService streamService;
+    private final Path directory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A stored response, open for reading its body.
+     */
+    private record Stored(ConditionalStreamService.Validators validators, InputStream body) {}
+
+    /**
+     * Construct the cache.
+     * @param streamService The service to fetch responses from.
+     * @param directory The directory to store responses in. It is
+     *         created if it does not exist.
+     * @throws IOException If the directory cannot be created.
+     */
+    public DiskCachingStreamService(ConditionalStreamService streamService, Path directory) throws IOException {
+        this.streamService = Objects.requireNonNull(streamService);
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public InputStream get(String path, String query) throws IOException, InterruptedException, IllegalArgumentException {
+        String key = key(path, query);
+        Stored stored = open(key);
+        ConditionalStreamService.Response response;
+        try {
+            response = streamService.getConditional(path, query, stored == null ? null : stored.validators());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            closeQuietly(stored);
+            throw e;
+        }
+        return handle(key, stored, response);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getAsync(String path, String query) {
+        String key = key(path, query);
+        Stored stored;
+        try {
+            stored = open(key);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return streamService.getConditionalAsync(path, query, stored == null ? null : stored.validators())
+            .handle((response, e) -> {
+                if (e != null) {
+                    closeQuietly(stored);
+                    throw e instanceof CompletionException c ? c : new CompletionException(e);
+                }
+                try {
+                    return handle(key, stored, response);
+                } catch (IOException x) {
+                    throw new CompletionException(x);
+                }
+            });
+    }
+
+    @Override
+    public boolean retries() {
+        return streamService.retries();
+    }
+
+    private static String key(String path, String query) {
+        return path + "?" + URLEncodedFormData.canonicalize(query);
+    }
+
+    private Path file(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(hash) + SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required of every Java platform", e);
+        }
+    }
+
+    /**
+     * Open the stored response to a request.
+     * @param key The request.
+     * @return The stored response, or {@code null} if none is stored.
+     * @throws IOException If the stored response cannot be read.
+     */
+    private Stored open(String key) throws IOException {
+        Path file = file(key);
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(key)) {
+                log.debug("Ignoring stored response in {}, which is not a response to {}", file, key);
+                in.close();
+                return null;
+            }
+            String etag = readOptionalUTF(in);
+            String lastModified = readOptionalUTF(in);
+            return new Stored(new ConditionalStreamService.Validators(etag, lastModified), in);
+        } catch (IOException e) {
+            in.close();
+            log.debug("Ignoring unreadable stored response in {}", file, e);
+            return null;
+        }
+    }
+
+    private InputStream handle(String key, Stored stored, ConditionalStreamService.Response response) throws IOException {
+        if (response.notModified()) {
+            if (stored == null) throw new IOException("Not modified response to unconditional request " + key);
+            hits.incrementAndGet();
+            return stored.body();
+        }
+        if (stored != null) stored.body().close();
+        misses.incrementAndGet();
+        InputStream body = response.body();
+        if (body == null || response.validators() == null || !response.validators().isPresent()) {
+            Files.deleteIfExists(file(key));
+            return body;
+        }
+        return new StoringInputStream(body, key, response.validators());
+    }
+
+    private static void closeQuietly(Stored stored) {
+        if (stored == null) return;
+        try {
+            stored.body().close();
+        } catch (IOException e) {
+            log.debug("Cannot close stored response", e);
+        }
+    }
+
+    private static String readOptionalUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptionalUTF(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    /**
+     * Remove all stored responses.
+     * @throws IOException If the stored responses cannot be removed.
+     */
+    public void invalidateAll() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path f : files) Files.deleteIfExists(f);
+        }
+    }
+
+    /**
+     * Get the number of requests answered by a stored response, that the
+     * service reported to be not modified.
+     * @return Number of cache hits.
+     */
+    public long hitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests answered by a new response from the
+     * service.
+     * @return Number of cache misses.
+     */
+    public long missCount() {
+        return misses.get();
+    }
+
+    /**
+     * Copies the body to a temporary file while it is read, and moves
+     * the file in place of the stored response when the end is reached.
+     * Failing to store the response does not fail the reader.
+     */
+    private class StoringInputStream extends FilterInputStream {
+        private final String key;
+        private final ConditionalStreamService.Validators validators;
+        private Path temp;
+        private DataOutputStream copy;
+        private boolean abandoned = false;
+
+        StoringInputStream(InputStream in, String key, ConditionalStreamService.Validators validators) {
+            super(in);
+            this.key = key;
+            this.validators = validators;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) complete();
+            else write(new byte[] {(byte) b}, 0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) complete();
+            else write(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            abandon();
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                abandon();
+            }
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (abandoned) return;
+            try {
+                if (copy == null) {
+                    temp = Files.createTempFile(directory, "tmp", SUFFIX + ".tmp");
+                    copy = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+                    copy.writeInt(FORMAT_VERSION);
+                    copy.writeUTF(key);
+                    writeOptionalUTF(copy, validators.etag());
+                    writeOptionalUTF(copy, validators.lastModified());
+                }
+                copy.write(b, off, len);
+            } catch (IOException e) {
+                log.debug("Cannot store response to {}", key, e);
+                abandon();
+            }
+        }
+
+        private void complete() {
+            if (abandoned) return;
+            try {
+                if (copy == null) write(new byte[0], 0, 0);
+                if (abandoned) return;
+                copy.close();
+                copy = null;
+                Files.move(temp, file(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                temp = null;
+            } catch (IOException e) {
+                log.debug("Cannot store response to {}", key, e);
+            } finally {
+                abandon();
+            }
+        }
+
+        private void abandon() {
+            abandoned = true;
+            try {
+                if (copy != null) copy.close();
+                if (temp != null) Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                log.debug("Cannot remove incomplete response to {} in {}", key, temp, e);
+            } finally {
+                copy = null;
+                temp = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * A {@link WatermarkStore} keeping the watermarks in a properties file.
+ * The file is replaced as a whole when watermarks are saved, so that a
+ * crash leaves either the old or the new watermarks.
+ * <p>All the methods in this class are safe for use by multiple
+ * concurrent threads of one process.</p>
+ */
+public class FileWatermarkStore implements WatermarkStore {
+    private final Path file;
+
+    /**
+     * Construct the store.
+     * @param file The properties file, created when first saved.
+     */
+    public FileWatermarkStore(Path file) {
+        this.file = Objects.requireNonNull(file);
+    }
+
+    @Override
+    public synchronized Map<String, OffsetDateTime> load(int examinationTypeSc) throws IOException {
+        String prefix = examinationTypeSc + ".";
+        Map<String, OffsetDateTime> watermarks = new HashMap<>();
+        Properties properties = read();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix))
+                watermarks.put(key.substring(prefix.length()), OffsetDateTime.parse(properties.getProperty(key)));
+        }
+        return watermarks;
+    }
+
+    @Override
+    public synchronized void save(int examinationTypeSc, Map<String, OffsetDateTime> watermarks) throws IOException {
+        Properties properties = read();
+        watermarks.forEach((stationId, t) -> properties.setProperty(examinationTypeSc + "." + stationId, t.toString()));
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp)) {
+                properties.store(os, "Watermarks by examination type and station ID");
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Properties read() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            properties.load(is);
+        } catch (NoSuchFileException e) {
+            // Nothing saved yet.
+        }
+        return properties;
+    }
+}
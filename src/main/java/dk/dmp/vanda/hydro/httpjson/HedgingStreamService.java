@@ -0,0 +1,284 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A {@link StreamService} that cuts the tail latency of another stream
+ * service by hedging: if a response has not arrived when a given
+ * percentile of recent latencies has passed, a duplicate request is
+ * sent, the first response is used, and the other request is cancelled.
+ * This is only sound for idempotent requests, as all the GET requests
+ * of the VanDa Hydro service are.
+ * <p>The latency is the time until the response future completes
+ * successfully, over a window of the {@value #WINDOW} latest responses.
+ * Until {@value #MIN_SAMPLES} latencies are known, the initial delay is
+ * used. Hedged requests are limited to a fraction of all requests by
+ * a token bucket, which every request fills by that fraction, up to
+ * {@value #MAX_TOKENS} hedged requests, so that the load on the service
+ * stays bounded.</p>
+ * <p>A failed request is not hedged, since failure is not slowness.
+ * The result fails when all the requests sent have failed.</p>
+ * <p>The losing request is cancelled, which stops the exchange if the
+ * underlying service passes cancellation on, as
+ * {@link JsonStreamHttpClient} does. Every request keeps a handler
+ * that closes its body unless it is the result, so that a body that
+ * arrives although the request was cancelled does not leak a
+ * connection.</p>
+ * <p>Conditional requests are hedged alike.
+ * Requests are sent by {@link StreamService#getAsync(String, String)}
+ * of the underlying service, or its conditional counterpart, which must not block the calling thread
+ * for hedging to have any effect, e.g. {@link JsonStreamHttpClient}.</p>
+ * <p>All the methods in this class are safe for use by multiple
+ * concurrent threads.</p>
+ */
+public class HedgingStreamService implements ConditionalStreamService {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    static final int WINDOW = 256;
+    static final int MIN_SAMPLES = 16;
+    static final int MAX_TOKENS = 10;
+    private final StreamService streamService;
+    private final double percentile;
+    private final double maxHedgeRate;
+    private final long[] latencies = new long[WINDOW];
+    private int samples = 0;
+    private int next = 0;
+    private long delayNanos;
+    private double tokens = 0;
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * Construct the hedging layer.
+     * @param streamService The service to send requests to.
+     * @param percentile The percentile of latencies after which a
+     *         request is hedged, e.g. 95.
+     * @param initialDelay The delay after which a request is hedged,
+     *         until latencies are known.
+     * @param maxHedgeRate The maximum fraction of requests hedged, e.g. 0.05.
+     * @throws IllegalArgumentException If the percentile is not between 0 and 100,
+     * or the rate is not between 0 and 1.
+     */
+    public HedgingStreamService(StreamService streamService, double percentile, Duration initialDelay, double maxHedgeRate) {
+        if (!(percentile > 0 && percentile < 100))
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        if (!(maxHedgeRate >= 0 && maxHedgeRate <= 1))
+            throw new IllegalArgumentException("Hedge rate must be between 0 and 1: " + maxHedgeRate);
+        this.streamService = Objects.requireNonNull(streamService);
+        this.percentile = percentile;
+        this.maxHedgeRate = maxHedgeRate;
+        this.delayNanos = initialDelay.toNanos();
+    }
+
+    @Override
+    public InputStream get(String path, String query) throws IOException, InterruptedException, IllegalArgumentException {
+        return await(getAsync(path, query));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getAsync(String path, String query) {
+        return hedge(path, () -> streamService.getAsync(path, query), body -> body);
+    }
+
+    @Override
+    public boolean retries() {
+        return streamService.retries();
+    }
+
+    @Override
+    public Response getConditional(String path, String query, Validators validators)
+        throws IOException, InterruptedException, IllegalArgumentException {
+        return await(getConditionalAsync(path, query, validators));
+    }
+
+    @Override
+    public CompletableFuture<Response> getConditionalAsync(String path, String query, Validators validators) {
+        return hedge(path, () -> ConditionalStreamService.of(streamService).getConditionalAsync(path, query, validators),
+            Response::body);
+    }
+
+    private static <R> R await(CompletableFuture<R> response) throws IOException, InterruptedException {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            response.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            if (cause instanceof InterruptedException)
+                throw new IOException("Request was interrupted", cause);
+            if (cause instanceof RuntimeException r) throw r;
+            if (cause instanceof Error err) throw err;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Send a request, and hedge it if it is slow.
+     * @param path The path, for logging.
+     * @param request Sends the request.
+     * @param body Gets the body of a response.
+     */
+    private <R> CompletableFuture<R> hedge(String path, Supplier<CompletableFuture<R>> request, Function<R, InputStream> body) {
+        Hedged<R> h = new Hedged<>();
+        synchronized (latencies) {
+            tokens = Math.min(MAX_TOKENS, tokens + maxHedgeRate);
+        }
+        synchronized (h) {
+            h.pending = 1;
+        }
+        send(request, body, h, false);
+        CompletableFuture.delayedExecutor(hedgeDelay().toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+            synchronized (h) {
+                if (h.decided || h.result.isDone()) return;
+                h.decided = true;
+                if (!takeToken()) return;
+                ++h.pending;
+            }
+            hedges.incrementAndGet();
+            log.debug("Hedging request for {} after {} ms", path, hedgeDelay().toMillis());
+            send(request, body, h, true);
+        });
+        // Cancelling the result cancels the requests
+        h.result.whenComplete((r, e) -> {
+            if (h.result.isCancelled()) {
+                cancel(h.primary);
+                cancel(h.hedge);
+            }
+        });
+        return h.result;
+    }
+
+    /**
+     * The state of a request that may be hedged.
+     */
+    private static class Hedged<R> {
+        final CompletableFuture<R> result = new CompletableFuture<>();
+        volatile CompletableFuture<R> primary, hedge;
+        /** Requests sent and not completed. Guarded by this. */
+        int pending;
+        /** Whether hedging was decided on, one way or the other. Guarded by this. */
+        boolean decided;
+        /** Whether a request succeeded. Guarded by this. */
+        boolean won;
+        /** The first failure. Guarded by this. */
+        Throwable failure;
+    }
+
+    private <R> void send(Supplier<CompletableFuture<R>> request, Function<R, InputStream> body, Hedged<R> h, boolean hedge) {
+        long start = System.nanoTime();
+        CompletableFuture<R> response;
+        try {
+            response = request.get();
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        if (hedge) h.hedge = response;
+        else h.primary = response;
+        // Not removed when the request is cancelled, since its body may still arrive
+        response.whenComplete((r, t) -> {
+            if (t == null) {
+                record(System.nanoTime() - start);
+                boolean won;
+                synchronized (h) {
+                    won = !h.won;
+                    h.won = true;
+                }
+                if (won) {
+                    if (hedge) hedgeWins.incrementAndGet();
+                    cancel(hedge ? h.primary : h.hedge);
+                }
+                // The other request won, or the result was cancelled
+                if (!won || !h.result.complete(r)) closeQuietly(body.apply(r));
+                return;
+            }
+            Throwable e = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            boolean failed;
+            synchronized (h) {
+                --h.pending;
+                if (h.failure == null) h.failure = e;
+                // A failure is not slowness, so it is not hedged, but left to the caller
+                h.decided = true;
+                failed = h.pending == 0;
+            }
+            if (failed) h.result.completeExceptionally(h.failure);
+        });
+    }
+
+    private static void cancel(CompletableFuture<?> response) {
+        if (response != null) response.cancel(true);
+    }
+
+    private static void closeQuietly(InputStream body) {
+        if (body == null) return;
+        try {
+            body.close();
+        } catch (IOException e) {
+            log.debug("Cannot close unused response", e);
+        }
+    }
+
+    private boolean takeToken() {
+        synchronized (latencies) {
+            if (tokens < 1) return false;
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    private void record(long nanos) {
+        synchronized (latencies) {
+            latencies[next] = nanos;
+            next = (next + 1) % WINDOW;
+            if (samples < WINDOW) ++samples;
+            // Sorting the window for every response would be wasteful
+            if (samples >= MIN_SAMPLES && next % MIN_SAMPLES == 0) {
+                long[] sorted = Arrays.copyOf(latencies, samples);
+                Arrays.sort(sorted);
+                int i = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+                delayNanos = sorted[Math.max(0, i)];
+            }
+        }
+    }
+
+    /**
+     * Get the present delay after which requests are hedged.
+     * @return The delay.
+     */
+    public Duration hedgeDelay() {
+        synchronized (latencies) {
+            return Duration.ofNanos(delayNanos);
+        }
+    }
+
+    /**
+     * Get the number of duplicate requests sent.
+     * @return Number of hedged requests.
+     */
+    public long hedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * Get the number of hedged requests answered by the duplicate.
+     * @return Number of hedged requests won by the duplicate.
+     */
+    public long hedgeWinCount() {
+        return hedgeWins.get();
+    }
+}
@@ -2,6 +2,7 @@ package dk.dmp.vanda.hydro.httpjson;
 
 import dk.dmp.vanda.hydro.HydrometryService;
 import dk.dmp.vanda.hydro.Measurement;
+import dk.dmp.vanda.hydro.MeasurementBatch;
 import dk.dmp.vanda.hydro.Station;
 import dk.dmp.vanda.hydro.WaterLevelMeasurement;
 import org.slf4j.Logger;
@@ -9,27 +10,125 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.lang.invoke.MethodHandles;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.DoublePredicate;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
- * A VanDa Hydro service client that expects data to be returned as JSON.
+ * A VanDa Hydro service client that expects data to be returned as JSON,
+ * or measurements as CSV or Parquet if so configured.
  * All the methods in this class are safe for use by multiple concurrent threads.
  * However, the operations builders are not.
  */
 public class HydrometryServiceClient implements HydrometryService, AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    /**
+     * The default number of concurrent requests of batch operations
+     * and split time windows.
+     */
+    public static final int DEFAULT_CONCURRENCY = 16;
+    /**
+     * The default number of times a chunk of a split time window is
+     * requested before giving up.
+     */
+    public static final int DEFAULT_CHUNK_ATTEMPTS = 3;
+    /**
+     * The backoff before a chunk is requested again, doubled for each
+     * following attempt.
+     */
+    public static final Duration CHUNK_BACKOFF = Duration.ofMillis(100);
+    /**
+     * The maximum backoff before a chunk is requested again. A chunk is
+     * not requested again if the service asks to wait longer.
+     */
+    public static final Duration CHUNK_MAX_BACKOFF = Duration.ofSeconds(10);
     private final StreamService streamService;
-    private final Deserializer deserializer = new Deserializer();
+    private final Executor executor;
+    private final Deserializer deserializer;
+    private final MeasurementFormat measurementFormat;
+
+    /**
+     * The format in which measurements are requested.
+     */
+    public enum MeasurementFormat {
+        /**
+         * JSON, the default format of the service.
+         */
+        JSON,
+        /**
+         * CSV, requested by {@code format=csv}. It is more compact than
+         * JSON and faster to parse. Columnar operations request JSON
+         * instead.
+         * @see CsvMeasurementReader
+         */
+        CSV,
+        /**
+         * Parquet, requested by {@code format=parquet}. It is the most
+         * compact format, and columnar operations read it directly into
+         * batches. The whole response is held in memory while read.
+         * @see ParquetMeasurementReader
+         */
+        PARQUET
+    }
 
     /**
      * Construct the service client.
+     * Responses to asynchronous operations are deserialized in virtual threads.
      * @param streamService A service that delivers JSON stream data.
      */
     public HydrometryServiceClient(StreamService streamService) {
+        this(streamService, VirtualThreads.executor);
+    }
+
+    /**
+     * Construct the service client.
+     * @param streamService A service that delivers JSON stream data.
+     * @param executor Executor for deserializing responses to
+     *         asynchronous operations. Since deserialization reads from
+     *         the response stream, the tasks may block while waiting
+     *         for data.
+     */
+    public HydrometryServiceClient(StreamService streamService, Executor executor) {
+        this(streamService, executor, Deserializer.Decoder.DIRECT);
+    }
+
+    /**
+     * Construct the service client.
+     * @param streamService A service that delivers JSON stream data.
+     * @param executor Executor for deserializing responses to
+     *         asynchronous operations.
+     * @param decoder How JSON values are mapped to objects.
+     */
+    public HydrometryServiceClient(StreamService streamService, Executor executor, Deserializer.Decoder decoder) {
+        this(streamService, executor, decoder, MeasurementFormat.JSON);
+    }
+
+    /**
+     * Construct the service client.
+     * @param streamService A service that delivers JSON, CSV or Parquet stream data.
+     * @param executor Executor for deserializing responses to
+     *         asynchronous operations.
+     * @param decoder How JSON values are mapped to objects.
+     * @param measurementFormat The format in which measurements are requested.
+     */
+    public HydrometryServiceClient(StreamService streamService, Executor executor, Deserializer.Decoder decoder,
+                                   MeasurementFormat measurementFormat) {
         this.streamService = Objects.requireNonNull(streamService);
+        this.executor = Objects.requireNonNull(executor);
+        this.deserializer = new Deserializer(decoder);
+        this.measurementFormat = Objects.requireNonNull(measurementFormat);
     }
 
     @Override
@@ -47,6 +146,26 @@ public class HydrometryServiceClient implements HydrometryService, AutoCloseable
         return new WaterFlowsRequest();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>The requests are performed in virtual threads, at most
+     * {@value #DEFAULT_CONCURRENCY} at a time unless configured.</p>
+     */
+    @Override
+    public GetWaterLevelsBatchOperation getWaterLevelsBatch() {
+        return new WaterLevelsBatchRequest();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The requests are performed in virtual threads, at most
+     * {@value #DEFAULT_CONCURRENCY} at a time unless configured.</p>
+     */
+    @Override
+    public GetWaterFlowsBatchOperation getWaterFlowsBatch() {
+        return new WaterFlowsBatchRequest();
+    }
+
     /**
      * Closes the internal JSON-B deserializer.
      * @throws IOException If thrown by JSON-B.
@@ -58,16 +177,35 @@ public class HydrometryServiceClient implements HydrometryService, AutoCloseable
 
     private class StationsRequest implements GetStationsOperation {
         private final URLEncodedFormData form = new URLEncodedFormData();
+        private Set<String> fields;
         {
             form.setPath("stations");
         }
 
         @Override
         public Iterator<Station> exec() throws IOException, InterruptedException {
-            List<Station> stations = deserializer.deserializeStations(streamService.get(form.getPath(), form.getFormData()));
+            List<Station> stations = deserializer.deserializeStations(streamService.get(form.getPath(), form.getFormData()), fields);
             return stations.iterator();
         }
 
+        @Override
+        public CompletableFuture<Iterator<Station>> execAsync() {
+            return streamService.getAsync(form.getPath(), form.getFormData())
+                .thenApplyAsync(body -> {
+                    try {
+                        return deserializer.deserializeStations(body, fields).iterator();
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+        }
+
+        @Override
+        public Stream<Station> stream() throws IOException, InterruptedException {
+            List<Station> stations = deserializer.deserializeStations(streamService.get(form.getPath(), form.getFormData()), fields);
+            return StreamSupport.stream(Spliterators.spliterator(stations, Spliterator.ORDERED | Spliterator.NONNULL), false);
+        }
+
         @Override
         public void stationId(String stationId) {
             form.append("stationId", stationId);
@@ -103,6 +241,11 @@ public class HydrometryServiceClient implements HydrometryService, AutoCloseable
             form.append("withResultsAfter", RFC3339NoSecondsFormatter.formatUTC(pointInTime));
         }
 
+        @Override
+        public void fields(Collection<String> fields) {
+            this.fields = project(this.fields, fields, JsonDecoder.STATION_FIELDS);
+        }
+
         @Override
         public void withResultsCreatedAfter(OffsetDateTime pointInTime) {
             form.append("withResultsCreatedAfter", RFC3339NoSecondsFormatter.formatUTC(pointInTime));
@@ -115,8 +258,18 @@ public class HydrometryServiceClient implements HydrometryService, AutoCloseable
         }
 
         @Override
-        protected List<JsonStationResults<JsonWaterLevelMeasurement>> deserialize(InputStream body) throws IOException {
-            return deserializer.deserializeWaterLevels(body);
+        protected MeasurementReader<JsonWaterLevelMeasurement> read(InputStream body) throws IOException {
+            return switch (measurementFormat) {
+                case JSON -> deserializer.readWaterLevels(body, form.toString(), projection(), filter());
+                case CSV -> deserializer.readWaterLevelsCsv(body, form.toString(), projection(), filter());
+                case PARQUET -> deserializer.readWaterLevelsParquet(body, form.toString(), filter());
+            };
+        }
+
+        @Override
+        protected Iterator<MeasurementBatch> readColumnar(InputStream body) throws IOException {
+            if (measurementFormat == MeasurementFormat.PARQUET) return deserializer.readParquet(body, true, form.toString());
+            return deserializer.readColumnar(body, true, form.toString());
         }
 
         @Override
@@ -131,8 +284,18 @@ public class HydrometryServiceClient implements HydrometryService, AutoCloseable
         }
 
         @Override
-        protected List<JsonStationResults<JsonMeasurement>> deserialize(InputStream body) throws IOException {
-            return deserializer.deserializeWaterFlows(body);
+        protected MeasurementReader<JsonMeasurement> read(InputStream body) throws IOException {
+            return switch (measurementFormat) {
+                case JSON -> deserializer.readWaterFlows(body, form.toString(), projection(), filter());
+                case CSV -> deserializer.readWaterFlowsCsv(body, form.toString(), projection(), filter());
+                case PARQUET -> deserializer.readWaterFlowsParquet(body, form.toString(), filter());
+            };
+        }
+
+        @Override
+        protected Iterator<MeasurementBatch> readColumnar(InputStream body) throws IOException {
+            if (measurementFormat == MeasurementFormat.PARQUET) return deserializer.readParquet(body, false, form.toString());
+            return deserializer.readColumnar(body, false, form.toString());
         }
 
         @Override
@@ -142,31 +305,338 @@ public class HydrometryServiceClient implements HydrometryService, AutoCloseable
     }
 
     private abstract class MeasurementsRequest<T, J extends JsonMeasurement> implements GetMeasurements<T> {
+        private static final Comparator<JsonMeasurement> byMeasurementTime = Comparator.comparing(
+            JsonMeasurement::measurementDateTime, Comparator.nullsFirst(Comparator.naturalOrder()));
         protected final URLEncodedFormData form = new URLEncodedFormData();
+        private OffsetDateTime from, to;
+        private Duration chunkLength;
+        private int maxConcurrency = DEFAULT_CONCURRENCY;
+        private int maxAttempts = DEFAULT_CHUNK_ATTEMPTS;
+        private int prefetch = Integer.MAX_VALUE;
+        private int maxBufferedMeasurements = Integer.MAX_VALUE;
+        private Set<String> fields;
+        private final MeasurementFilter filter = new MeasurementFilter();
+        {
+            switch (measurementFormat) {
+                case CSV -> form.set("format", "csv");
+                case PARQUET -> form.set("format", "parquet");
+            }
+        }
 
+        /**
+         * Perform the request. The measurements are deserialized lazily
+         * while the response is streamed, so only the first measurement
+         * has been read when this returns. A response that cannot be
+         * deserialized beyond that is reported by the iterator as an
+         * {@link java.io.UncheckedIOException}.
+         * <p>If the window is split, this returns when the first chunk
+         * has been fetched.</p>
+         */
         @Override
         public Iterator<T> exec() throws IOException, InterruptedException {
-            List<JsonStationResults<J>> stations = deserialize(streamService.get(form.getPath(), form.getFormData()));
-            if (stations.isEmpty()) return Collections.emptyIterator();
-            if (stations.size() > 1) {
-                List<JsonStationId> ids = collectIds(stations);
-                log.debug("Multiple stations in response from {}: {}", form, ids);
+            if (isSplit()) return iterate(execSplit());
+            return iterate(read(streamService.get(form.getPath(), form.getFormData())));
+        }
+
+        @Override
+        public CompletableFuture<Iterator<T>> execAsync() {
+            if (isSplit()) return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return iterate(execSplit());
+                } catch (IOException | InterruptedException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            return streamService.getAsync(form.getPath(), form.getFormData())
+                .thenApplyAsync(body -> {
+                    try {
+                        return iterate(read(body));
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+        }
+
+        @Override
+        public Iterator<MeasurementBatch> execColumnar() throws IOException, InterruptedException {
+            // Columnar batches are read from JSON or Parquet
+            URLEncodedFormData f = form.copy();
+            if (measurementFormat == MeasurementFormat.CSV) f.remove("format");
+            return readColumnar(streamService.get(f.getPath(), f.getFormData()));
+        }
+
+        /**
+         * Perform the request like {@link #exec()}. Closing the stream
+         * closes the response, or, if the window is split, cancels the
+         * chunks not yet fetched. The stream is sized when the reader
+         * knows the number of measurements once the first is read, as
+         * for Parquet, where the whole response is read at once.
+         */
+        @Override
+        public Stream<T> stream() throws IOException, InterruptedException {
+            if (isSplit()) {
+                SplitWindowIterator chunks = execSplit();
+                return StreamSupport.stream(spliterator(chunks, -1), false).onClose(chunks::close);
+            }
+            return stream(read(streamService.get(form.getPath(), form.getFormData())));
+        }
+
+        private Stream<T> stream(MeasurementReader<J> reader) {
+            return StreamSupport.stream(spliterator(reader, reader.remaining()), false).onClose(reader::close);
+        }
+
+        /**
+         * The response is requested by {@link StreamService#getAsync(String, String)},
+         * and the measurements are read by tasks of the executor of the
+         * client as they are demanded. If the window is split, the chunks
+         * are fetched like for {@link #stream()}.
+         */
+        @Override
+        public Flow.Publisher<T> publisher() {
+            return new StreamPublisher<>(this::streamAsync, executor);
+        }
+
+        private CompletableFuture<Stream<T>> streamAsync() {
+            if (isSplit()) return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return stream();
+                } catch (IOException | InterruptedException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            return streamService.getAsync(form.getPath(), form.getFormData())
+                .thenApplyAsync(body -> {
+                    try {
+                        return stream(read(body));
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+        }
+
+        private Iterator<T> iterate(Iterator<J> reader) {
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return reader.hasNext();
+                }
+
+                @Override
+                public T next() {
+                    return cast(reader.next());
+                }
+            };
+        }
+
+        /**
+         * Characterize the measurements. They are cast by the iterator
+         * rather than by a mapping stage of the stream, since a stage
+         * does not report whether its elements are non-null.
+         * @param size The number of measurements, or -1 if unknown.
+         */
+        private Spliterator<T> spliterator(Iterator<J> reader, long size) {
+            int characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+            return size < 0
+                ? Spliterators.spliteratorUnknownSize(iterate(reader), characteristics)
+                : Spliterators.spliterator(iterate(reader), size, characteristics);
+        }
+
+        protected abstract MeasurementReader<J> read(InputStream body) throws IOException;
+
+        /**
+         * Get the fields to decode. The chunks of a split window are
+         * ordered by measurement time, so it is always decoded then,
+         * and the fields tested by the filter are always decoded.
+         * @return The fields, or {@code null} for all.
+         */
+        protected Set<String> projection() {
+            if (fields == null) return null;
+            Set<String> f = filter.project(fields);
+            if (isSplit()) f.add("measurementDateTime");
+            return f;
+        }
+
+        /**
+         * Get the conditions on the measurements.
+         * @return The filter, or {@code null} if there are no conditions.
+         */
+        protected MeasurementFilter filter() {
+            return filter.isEmpty() ? null : filter;
+        }
+
+        protected abstract Iterator<MeasurementBatch> readColumnar(InputStream body) throws IOException;
+
+        private boolean isSplit() {
+            return chunkLength != null && from != null && to != null;
+        }
+
+        /**
+         * Fetch each chunk of the split window in a virtual thread of
+         * its own, and iterate the chunks in chronological order.
+         * Chunks are submitted as the iteration proceeds, within the
+         * prefetch and memory limits.
+         */
+        private SplitWindowIterator execSplit() throws IOException, InterruptedException {
+            List<URLEncodedFormData> chunks = new ArrayList<>();
+            for (TimeWindow chunk : TimeWindow.of(from, to).split(chunkLength)) {
+                URLEncodedFormData f = form.copy();
+                f.set("from", RFC3339NoSecondsFormatter.formatUTC(chunk.from()));
+                f.set("to", RFC3339NoSecondsFormatter.formatUTC(chunk.to()));
+                chunks.add(f);
+            }
+            ExecutorService chunkExecutor = Executors.newThreadPerTaskExecutor(VirtualThreads.factory);
+            SplitWindowIterator i = new SplitWindowIterator(chunks, chunkExecutor, new Semaphore(maxConcurrency));
+            try {
+                i.awaitNonEmpty();
+            } catch (IOException | InterruptedException e) {
+                chunkExecutor.shutdownNow();
+                throw e;
+            }
+            return i;
+        }
+
+        private List<J> fetchChunk(URLEncodedFormData f, Semaphore permits) throws IOException, InterruptedException {
+            permits.acquire();
+            try {
+                for (int attempt = 1; ; ++attempt) {
+                    IOException failure;
+                    boolean responded = false;
+                    try {
+                        InputStream body = streamService.get(f.getPath(), f.getFormData());
+                        responded = true;
+                        try (MeasurementReader<J> r = read(body)) {
+                            List<J> results = new ArrayList<>();
+                            r.forEachRemaining(results::add);
+                            results.sort(byMeasurementTime);
+                            return results;
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    } catch (UncheckedIOException e) {
+                        failure = e.getCause();
+                    }
+                    // A resilience layer has already retried the request, but not reading the body
+                    boolean retried = !responded && streamService.retries();
+                    if (attempt >= maxAttempts || retried || !ResilientStreamService.isRetryable(failure)) throw failure;
+                    Duration delay = ResilientStreamService.retryDelay(failure, attempt, CHUNK_BACKOFF, CHUNK_MAX_BACKOFF, Instant.now());
+                    if (delay == null) throw failure;
+                    log.debug("Retrying chunk {} in {} ms after failed attempt {}", f, delay.toMillis(), attempt, failure);
+                    Thread.sleep(delay);
+                }
+            } finally {
+                permits.release();
             }
-            Stream<T> m = stations.stream().flatMap(JsonStationResults::denormalize).map(this::cast);
-            return m.iterator();
         }
 
-        protected abstract List<JsonStationResults<J>> deserialize(InputStream body) throws IOException;
+        private class SplitWindowIterator implements Iterator<J> {
+            private final List<URLEncodedFormData> forms;
+            private final List<Future<List<J>>> chunks;
+            private final ExecutorService chunkExecutor;
+            private final Semaphore permits;
+            private final AtomicInteger buffered = new AtomicInteger();
+            private final AtomicInteger pending = new AtomicInteger();
+            private final AtomicInteger chunkSize = new AtomicInteger(-1);
+            private int nextChunk = 0;
+            private Iterator<J> current = Collections.emptyIterator();
 
-        private static List<JsonStationId> collectIds(List<? extends JsonStationResults<?>> stations) {
-            List<JsonStationId> ids = new LinkedList<>();
-            for (JsonStationResults<?> s : stations) {
-                JsonStationId n = new JsonStationId();
-                n.stationId = s.stationId;
-                n.operatorStationId = s.operatorStationId;
-                ids.add(n);
+            SplitWindowIterator(List<URLEncodedFormData> forms, ExecutorService chunkExecutor, Semaphore permits) {
+                this.forms = forms;
+                this.chunks = new ArrayList<>(forms.size());
+                this.chunkExecutor = chunkExecutor;
+                this.permits = permits;
+                submit();
+            }
+
+            /**
+             * Submit the chunks ahead of the chunk being iterated up to
+             * the prefetch limit, while the buffered measurements allow.
+             * The next chunk is always submitted.
+             */
+            private void submit() {
+                while (chunks.size() < forms.size()
+                    && (chunks.size() <= nextChunk || chunks.size() - nextChunk < prefetch && isBelowMemoryLimit())) {
+                    URLEncodedFormData f = forms.get(chunks.size());
+                    pending.incrementAndGet();
+                    chunks.add(chunkExecutor.submit(() -> {
+                        try {
+                            List<J> results = fetchChunk(f, permits);
+                            chunkSize.set(results.size());
+                            buffered.addAndGet(results.size());
+                            return results;
+                        } finally {
+                            pending.decrementAndGet();
+                        }
+                    }));
+                }
+                if (chunks.size() == forms.size()) chunkExecutor.shutdown();
+            }
+
+            /**
+             * Tell whether the buffered measurements, and those of the
+             * chunks being fetched, are fewer than the limit. The size
+             * of a chunk being fetched is estimated by the latest fetched
+             * chunk, so until one is fetched, no chunk is fetched ahead.
+             */
+            private boolean isBelowMemoryLimit() {
+                if (maxBufferedMeasurements == Integer.MAX_VALUE) return true;
+                int estimate = chunkSize.get();
+                if (estimate < 0) return pending.get() == 0;
+                return buffered.get() + (long) pending.get() * estimate < maxBufferedMeasurements;
+            }
+
+            /**
+             * Wait for chunks until one with measurements or the end is reached.
+             */
+            void awaitNonEmpty() throws IOException, InterruptedException {
+                while (! current.hasNext() && nextChunk < forms.size()) {
+                    submit();
+                    Future<List<J>> f = chunks.set(nextChunk++, null);
+                    try {
+                        List<J> results = f.get();
+                        buffered.addAndGet(-results.size());
+                        current = results.iterator();
+                        submit();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException x) throw x;
+                        if (e.getCause() instanceof InterruptedException x) throw x;
+                        throw new IOException("Cannot fetch chunk of " + form, e.getCause());
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    awaitNonEmpty();
+                } catch (IOException e) {
+                    chunkExecutor.shutdownNow();
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    chunkExecutor.shutdownNow();
+                    Thread.currentThread().interrupt();
+                    InterruptedIOException x = new InterruptedIOException("Interrupted while waiting for chunk of " + form);
+                    x.initCause(e);
+                    throw new UncheckedIOException(x);
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public J next() {
+                if (! hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+
+            /**
+             * Stop fetching chunks, interrupting the requests in progress,
+             * which closes their responses.
+             */
+            void close() {
+                chunkExecutor.shutdownNow();
+                for (Future<List<J>> f : chunks) if (f != null) f.cancel(true);
+                current = Collections.emptyIterator();
+                nextChunk = forms.size();
             }
-            return ids;
         }
 
         protected abstract T cast(J result);
@@ -188,11 +658,13 @@ public class HydrometryServiceClient implements HydrometryService, AutoCloseable
 
         @Override
         public void from(OffsetDateTime pointInTime) {
+            from = pointInTime;
             form.append("from", RFC3339NoSecondsFormatter.formatUTC(pointInTime));
         }
 
         @Override
         public void to(OffsetDateTime pointInTime) {
+            to = pointInTime;
             form.append("to", RFC3339NoSecondsFormatter.formatUTC(pointInTime));
         }
 
@@ -200,5 +672,422 @@ public class HydrometryServiceClient implements HydrometryService, AutoCloseable
         public void createdAfter(OffsetDateTime pointInTime) {
             form.append("createdAfter", RFC3339NoSecondsFormatter.formatUTC(pointInTime));
         }
+
+        @Override
+        public void splitWindow(Duration chunkLength) {
+            if (chunkLength.toMinutes() < 1)
+                throw new IllegalArgumentException("Chunk length must be at least a minute: " + chunkLength);
+            this.chunkLength = chunkLength;
+        }
+
+        @Override
+        public void maxConcurrency(int maxConcurrency) {
+            if (maxConcurrency < 1)
+                throw new IllegalArgumentException("Max concurrency must be at least 1: " + maxConcurrency);
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        @Override
+        public void prefetch(int chunks) {
+            if (chunks < 1)
+                throw new IllegalArgumentException("Prefetch must be at least 1: " + chunks);
+            this.prefetch = chunks;
+        }
+
+        @Override
+        public void maxBufferedMeasurements(int measurements) {
+            if (measurements < 1)
+                throw new IllegalArgumentException("Max buffered measurements must be at least 1: " + measurements);
+            this.maxBufferedMeasurements = measurements;
+        }
+
+        @Override
+        public void maxAttempts(int maxAttempts) {
+            if (maxAttempts < 1)
+                throw new IllegalArgumentException("Max attempts must be at least 1: " + maxAttempts);
+            this.maxAttempts = maxAttempts;
+        }
+
+        @Override
+        public void fields(Collection<String> fields) {
+            this.fields = project(this.fields, fields, JsonDecoder.MEASUREMENT_FIELDS);
+        }
+
+        @Override
+        public void filterResult(DoublePredicate condition) {
+            filter.result(condition);
+        }
+
+        @Override
+        public void filterMeasurementTime(LongPredicate condition) {
+            filter.measurementTime(condition);
+        }
+
+        @Override
+        public void filterParameterSc(IntPredicate condition) {
+            filter.parameterSc(condition);
+        }
+
+        @Override
+        public void filterExaminationTypeSc(IntPredicate condition) {
+            filter.examinationTypeSc(condition);
+        }
+
+        @Override
+        public void filterUnitSc(IntPredicate condition) {
+            filter.unitSc(condition);
+        }
+    }
+
+    private class WaterLevelsBatchRequest extends MeasurementsBatchRequest<WaterLevelMeasurement> implements GetWaterLevelsBatchOperation {
+        @Override
+        protected GetMeasurements<WaterLevelMeasurement> newRequest() {
+            return new WaterLevelsRequest();
+        }
+    }
+
+    private class WaterFlowsBatchRequest extends MeasurementsBatchRequest<Measurement> implements GetWaterFlowsBatchOperation {
+        @Override
+        protected GetMeasurements<Measurement> newRequest() {
+            return new WaterFlowsRequest();
+        }
+    }
+
+    private abstract static class MeasurementsBatchRequest<T> implements GetMeasurementsBatch<T> {
+        private final Set<String> stationIds = new LinkedHashSet<>();
+        private final List<Consumer<GetMeasurements<T>>> conditions = new ArrayList<>();
+        private int maxConcurrency = DEFAULT_CONCURRENCY;
+
+        protected abstract GetMeasurements<T> newRequest();
+
+        @Override
+        public Iterator<StationMeasurements<T>> exec() {
+            return new BatchIterator();
+        }
+
+        @Override
+        public Stream<StationMeasurements<T>> stream() {
+            BatchIterator outcomes = new BatchIterator();
+            return StreamSupport.stream(Spliterators.spliterator(outcomes, stationIds.size(), Spliterator.NONNULL), false)
+                .onClose(outcomes::close);
+        }
+
+        /**
+         * Iterates the outcomes of the stations as their responses start.
+         * Each open response takes up a permit until it is read to the
+         * end or closed.
+         */
+        private class BatchIterator implements Iterator<StationMeasurements<T>> {
+            private final int limit = maxConcurrency;
+            private final ExecutorService executor = Executors.newThreadPerTaskExecutor(VirtualThreads.factory);
+            private final CompletionService<StationResult<T>> completion = new ExecutorCompletionService<>(executor);
+            private final Semaphore permits = new Semaphore(limit);
+            private final Map<Future<StationResult<T>>, String> pending = new HashMap<>();
+            /** The outcomes handed out, in order, that may still be open. */
+            private final Deque<StationResult<T>> handedOut = new ArrayDeque<>();
+            /** The outcomes with open responses. Guarded by itself. */
+            private final Set<StationResult<T>> open = new HashSet<>();
+            /** Guarded by {@link #open}. */
+            private boolean closed;
+            private InterruptedException interruption;
+
+            BatchIterator() {
+                for (String stationId : stationIds) {
+                    pending.put(completion.submit(() -> fetch(stationId)), stationId);
+                }
+                executor.shutdown();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !pending.isEmpty();
+            }
+
+            @Override
+            public StationMeasurements<T> next() {
+                if (pending.isEmpty()) throw new NoSuchElementException();
+                if (interruption == null) try {
+                    Future<StationResult<T>> f = await();
+                    String stationId = pending.remove(f);
+                    try {
+                        StationResult<T> r = f.get();
+                        handedOut.add(r);
+                        return r;
+                    } catch (ExecutionException e) {
+                        return StationResult.failed(stationId, asException(e.getCause()));
+                    }
+                } catch (InterruptedException e) {
+                    interruption = e;
+                    executor.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+                Iterator<Map.Entry<Future<StationResult<T>>, String>> i = pending.entrySet().iterator();
+                String stationId = i.next().getValue();
+                i.remove();
+                return StationResult.failed(stationId, interruption);
+            }
+
+            /**
+             * Wait for the next station. If the outcomes handed out take
+             * up every permit, the earliest one not being streamed is
+             * read into memory, so that another station can be requested.
+             */
+            private Future<StationResult<T>> await() throws InterruptedException {
+                for (;;) {
+                    Future<StationResult<T>> f = completion.poll();
+                    if (f != null) return f;
+                    handedOut.removeIf(StationResult::isClosed);
+                    if (handedOut.size() < limit) return completion.take();
+                    StationResult<T> unread = handedOut.stream().filter(StationResult::isUnread).findFirst()
+                        .orElseThrow(() -> new IllegalStateException(
+                            "All " + limit + " requests are taken up by stations being streamed, close one to get the next"));
+                    log.debug("Reading the measurements of station {} into memory to request another station", unread.stationId());
+                    unread.measurements();
+                }
+            }
+
+            private StationResult<T> fetch(String stationId) throws InterruptedException {
+                permits.acquire();
+                Stream<T> measurements;
+                try {
+                    GetMeasurements<T> op = newRequest();
+                    op.stationId(stationId);
+                    conditions.forEach(c -> c.accept(op));
+                    measurements = op.stream();
+                } catch (IOException | UncheckedIOException e) {
+                    permits.release();
+                    log.debug("Cannot fetch measurements of station {}", stationId, e);
+                    return StationResult.failed(stationId, e);
+                } catch (InterruptedException | RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+                StationResult<T> r = new StationResult<>(stationId, measurements, this::closed);
+                synchronized (open) {
+                    if (!closed) {
+                        open.add(r);
+                        return r;
+                    }
+                }
+                r.close();
+                return r;
+            }
+
+            private void closed(StationResult<T> r) {
+                synchronized (open) {
+                    open.remove(r);
+                }
+                permits.release();
+            }
+
+            /**
+             * Cancel the outstanding requests, and close the open responses.
+             */
+            void close() {
+                List<StationResult<T>> responses;
+                synchronized (open) {
+                    closed = true;
+                    responses = new ArrayList<>(open);
+                }
+                executor.shutdownNow();
+                responses.forEach(StationResult::close);
+                pending.clear();
+                handedOut.clear();
+            }
+        }
+
+        private static Exception asException(Throwable t) {
+            return t instanceof Exception e ? e : new ExecutionException(t);
+        }
+
+        @Override
+        public void stationIds(Collection<String> stationIds) {
+            this.stationIds.addAll(stationIds);
+        }
+
+        @Override
+        public void measurementPointNumber(int measurementPointNumber) {
+            conditions.add(op -> op.measurementPointNumber(measurementPointNumber));
+        }
+
+        @Override
+        public void from(OffsetDateTime pointInTime) {
+            conditions.add(op -> op.from(pointInTime));
+        }
+
+        @Override
+        public void to(OffsetDateTime pointInTime) {
+            conditions.add(op -> op.to(pointInTime));
+        }
+
+        @Override
+        public void createdAfter(OffsetDateTime pointInTime) {
+            conditions.add(op -> op.createdAfter(pointInTime));
+        }
+
+        @Override
+        public void maxConcurrency(int maxConcurrency) {
+            if (maxConcurrency < 1)
+                throw new IllegalArgumentException("Max concurrency must be at least 1: " + maxConcurrency);
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        @Override
+        public void fields(Collection<String> fields) {
+            Set<String> projected = project(null, fields, JsonDecoder.MEASUREMENT_FIELDS);
+            conditions.add(op -> op.fields(projected));
+        }
+
+        @Override
+        public void filterResult(DoublePredicate condition) {
+            Objects.requireNonNull(condition);
+            conditions.add(op -> op.filterResult(condition));
+        }
+
+        @Override
+        public void filterMeasurementTime(LongPredicate condition) {
+            Objects.requireNonNull(condition);
+            conditions.add(op -> op.filterMeasurementTime(condition));
+        }
+
+        @Override
+        public void filterParameterSc(IntPredicate condition) {
+            Objects.requireNonNull(condition);
+            conditions.add(op -> op.filterParameterSc(condition));
+        }
+
+        @Override
+        public void filterExaminationTypeSc(IntPredicate condition) {
+            Objects.requireNonNull(condition);
+            conditions.add(op -> op.filterExaminationTypeSc(condition));
+        }
+
+        @Override
+        public void filterUnitSc(IntPredicate condition) {
+            Objects.requireNonNull(condition);
+            conditions.add(op -> op.filterUnitSc(condition));
+        }
+    }
+
+    /**
+     * Add fields to a projection.
+     * @param projection The projection so far, or {@code null} if there is none.
+     * @param fields The fields to add.
+     * @param known The fields that can be projected.
+     * @return The extended projection.
+     * @throws IllegalArgumentException If a field is unknown.
+     */
+    private static Set<String> project(Set<String> projection, Collection<String> fields, Set<String> known) {
+        for (String f : fields) {
+            if (!known.contains(f)) throw new IllegalArgumentException("Unknown field: " + f);
+        }
+        Set<String> p = projection == null ? new HashSet<>() : projection;
+        p.addAll(fields);
+        return p;
+    }
+
+    /**
+     * The outcome of a station in a batch, streaming its measurements
+     * from the response until they are read.
+     */
+    private static final class StationResult<T> implements StationMeasurements<T> {
+        private final String stationId;
+        private final Consumer<StationResult<T>> onClose;
+        private Stream<T> response;
+        private List<T> measurements;
+        private Exception exception;
+        private boolean streaming, closed;
+
+        StationResult(String stationId, Stream<T> response, Consumer<StationResult<T>> onClose) {
+            this.stationId = stationId;
+            this.response = response;
+            this.onClose = onClose;
+        }
+
+        static <T> StationResult<T> failed(String stationId, Exception exception) {
+            StationResult<T> r = new StationResult<>(stationId, null, x -> {});
+            r.exception = exception;
+            r.measurements = Collections.emptyList();
+            r.closed = true;
+            return r;
+        }
+
+        @Override
+        public String stationId() {
+            return stationId;
+        }
+
+        @Override
+        public synchronized List<T> measurements() {
+            if (measurements != null) return measurements;
+            if (streaming) throw new IllegalStateException("Measurements of station " + stationId + " are being streamed");
+            try {
+                List<T> list = new ArrayList<>();
+                if (!closed) response.forEachOrdered(list::add);
+                measurements = list;
+            } catch (UncheckedIOException e) {
+                log.debug("Cannot read measurements of station {}", stationId, e);
+                exception = e;
+                measurements = Collections.emptyList();
+            } finally {
+                close();
+            }
+            return measurements;
+        }
+
+        @Override
+        public synchronized Stream<T> stream() {
+            if (measurements != null) return measurements.stream();
+            if (streaming) throw new IllegalStateException("Measurements of station " + stationId + " are being streamed");
+            streaming = true;
+            if (closed) return Stream.empty();
+            Iterator<T> i = response.iterator();
+            // Release the response as soon as it is read to the end
+            Iterator<T> closing = new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    boolean more;
+                    try {
+                        more = i.hasNext();
+                    } catch (RuntimeException e) {
+                        close();
+                        throw e;
+                    }
+                    if (!more) close();
+                    return more;
+                }
+
+                @Override
+                public T next() {
+                    return i.next();
+                }
+            };
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(closing, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+        }
+
+        @Override
+        public synchronized Optional<Exception> error() {
+            return Optional.ofNullable(exception);
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Tell whether the response is open and not being streamed.
+         */
+        synchronized boolean isUnread() {
+            return !closed && !streaming;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            response.close();
+            onClose.accept(this);
+        }
     }
 }
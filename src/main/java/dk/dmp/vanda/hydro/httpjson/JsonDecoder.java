@@ -0,0 +1,372 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.Examination;
+import dk.dmp.vanda.hydro.MeasurementPoint;
+import dk.dmp.vanda.hydro.Station;
+import jakarta.json.stream.JsonParser;
+import jakarta.json.stream.JsonParser.Event;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.PrecisionModel;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Decodes the VanDa Hydro JSON schemas by mapping each field name
+ * directly to its setter, as an alternative to JSON-B that needs no
+ * reflection or type adapters. The objects are equal to those made by
+ * JSON-B from the same JSON. Unknown fields are skipped, and null
+ * values of primitive fields leave the default value.
+ * <p>Each method pulls the first event of the value it decodes, and
+ * leaves the parser at the last event of the value. Given a projection,
+ * the fields not in it are skipped like unknown fields, so that their
+ * values are never materialized.</p>
+ */
+final class JsonDecoder {
+    /** The fields of a station that can be projected. */
+    static final Set<String> STATION_FIELDS = Set.of("stationUid", "stationId", "operatorStationId",
+        "oldStationNumber", "locationType", "locationTypeSc", "stationOwnerCvr", "stationOwnerName",
+        "operatorCvr", "operatorName", "name", "description", "loggerId", "location", "measurementPoints");
+    /** The fields of a water level or water flow measurement that can be projected. */
+    static final Set<String> MEASUREMENT_FIELDS = Set.of("stationId", "operatorStationId",
+        "measurementPointNumber", "parameterSc", "parameter", "examinationTypeSc", "examinationType",
+        "measurementDateTime", "result", "resultElevationCorrected", "unitSc", "unit");
+    private static final ConcurrentHashMap<Integer, GeometryFactory> geometryFactories = new ConcurrentHashMap<>();
+
+    private JsonDecoder() {}
+
+    static List<Station> readStations(JsonParser p) {
+        return readStations(p, null);
+    }
+
+    /**
+     * Decode stations, skipping the fields not projected.
+     * @param fields The fields to decode, or {@code null} for all.
+     */
+    static List<Station> readStations(JsonParser p, Set<String> fields) {
+        return readList(p, q -> readStation(q, fields));
+    }
+
+    static List<JsonStationResults<JsonMeasurement>> readStationWaterFlows(JsonParser p) {
+        return readList(p, q -> readStationResults(q, JsonDecoder::readMeasurement));
+    }
+
+    static List<JsonStationResults<JsonWaterLevelMeasurement>> readStationWaterLevels(JsonParser p) {
+        return readList(p, q -> readStationResults(q, JsonDecoder::readWaterLevelMeasurement));
+    }
+
+    static JsonStation readStation(JsonParser p) {
+        return readStation(p, null);
+    }
+
+    static JsonStation readStation(JsonParser p, Set<String> fields) {
+        if (!beginObject(p)) return null;
+        JsonStation s = new JsonStation();
+        while (nextKey(p)) {
+            if (!isProjected(p, fields)) {
+                skipValue(p);
+                continue;
+            }
+            switch (p.getString()) {
+                case "stationUid" -> s.setStationUid(readString(p));
+                case "stationId" -> s.setStationId(readString(p));
+                case "operatorStationId" -> s.setOperatorStationId(readString(p));
+                case "oldStationNumber" -> s.setOldStationNumber(readString(p));
+                case "locationType" -> s.setLocationType(readString(p));
+                case "locationTypeSc" -> {
+                    Integer n = readInteger(p);
+                    if (n != null) s.setLocationTypeSc(n);
+                }
+                case "stationOwnerCvr" -> s.setStationOwnerCvr(readString(p));
+                case "stationOwnerName" -> s.setStationOwnerName(readString(p));
+                case "operatorCvr" -> s.setOperatorCvr(readString(p));
+                case "operatorName" -> s.setOperatorName(readString(p));
+                case "name" -> s.setName(readString(p));
+                case "description" -> s.setDescription(readString(p));
+                case "loggerId" -> s.setLoggerId(readString(p));
+                case "location" -> s.setLocation(readPoint(p));
+                case "measurementPoints" -> s.setMeasurementPoints(readList(p, JsonDecoder::readMeasurementPoint));
+                default -> skipValue(p);
+            }
+        }
+        return s;
+    }
+
+    static MeasurementPoint readMeasurementPoint(JsonParser p) {
+        if (!beginObject(p)) return null;
+        JsonMeasurementPoint m = new JsonMeasurementPoint();
+        while (nextKey(p)) {
+            switch (p.getString()) {
+                case "number" -> {
+                    Integer n = readInteger(p);
+                    if (n != null) m.setNumber(n);
+                }
+                case "name" -> m.setName(readString(p));
+                case "measurementPointType" -> m.setMeasurementPointType(readString(p));
+                case "measurementPointTypeSc" -> m.setMeasurementPointTypeSc(readInteger(p));
+                case "description" -> m.setDescription(readString(p));
+                case "location" -> m.setLocation(readPoint(p));
+                case "intakeNumber" -> m.setIntakeNumber(readInteger(p));
+                case "examinations" -> m.setExaminations(readList(p, JsonDecoder::readExamination));
+                default -> skipValue(p);
+            }
+        }
+        return m;
+    }
+
+    static Examination readExamination(JsonParser p) {
+        if (!beginObject(p)) return null;
+        JsonExamination x = new JsonExamination();
+        while (nextKey(p)) {
+            switch (p.getString()) {
+                case "parameter" -> x.setParameter(readString(p));
+                case "parameterSc" -> x.setParameterSc(readInteger(p));
+                case "examinationType" -> x.setExaminationType(readString(p));
+                case "examinationTypeSc" -> x.setExaminationTypeSc(readInteger(p));
+                case "unit" -> x.setUnit(readString(p));
+                case "unitSc" -> x.setUnitSc(readInteger(p));
+                case "firstResult" -> x.setEarliestResult(readDateTime(p));
+                case "latestResult" -> x.setLatestResult(readDateTime(p));
+                default -> skipValue(p);
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Decode a point like {@link PointJsonAdapter}.
+     */
+    static Point readPoint(JsonParser p) {
+        if (!beginObject(p)) return null;
+        double x = 0, y = 0;
+        String srid = null;
+        while (nextKey(p)) {
+            switch (p.getString()) {
+                case "x" -> x = readDouble(p, 0);
+                case "y" -> y = readDouble(p, 0);
+                case "srid" -> {
+                    Event e = p.next();
+                    srid = e == Event.VALUE_NULL ? null : p.getString();
+                }
+                default -> skipValue(p);
+            }
+        }
+        GeometryFactory gf = geometryFactories.computeIfAbsent(Integer.parseInt(srid),
+            n -> new GeometryFactory(new PrecisionModel(), n));
+        return gf.createPoint(new Coordinate(x, y));
+    }
+
+    static <T extends JsonMeasurement> JsonStationResults<T> readStationResults(JsonParser p, Function<JsonParser, T> readResult) {
+        if (!beginObject(p)) return null;
+        JsonStationResults<T> s = new JsonStationResults<>();
+        while (nextKey(p)) {
+            switch (p.getString()) {
+                case "stationId" -> s.stationId = readString(p);
+                case "operatorStationId" -> s.operatorStationId = readString(p);
+                case "results" -> s.results = readList(p, readResult);
+                default -> skipValue(p);
+            }
+        }
+        return s;
+    }
+
+    static JsonMeasurement readMeasurement(JsonParser p) {
+        return readMeasurement(p, null);
+    }
+
+    /**
+     * Decode a measurement, skipping the fields not projected.
+     * @param fields The fields to decode, or {@code null} for all.
+     */
+    static JsonMeasurement readMeasurement(JsonParser p, Set<String> fields) {
+        JsonMeasurement m = new JsonMeasurement();
+        return readMeasurement(p, m, fields, null) ? m : null;
+    }
+
+    static JsonWaterLevelMeasurement readWaterLevelMeasurement(JsonParser p) {
+        return readWaterLevelMeasurement(p, null);
+    }
+
+    /**
+     * Decode a water level measurement, skipping the fields not projected.
+     * @param fields The fields to decode, or {@code null} for all.
+     */
+    static JsonWaterLevelMeasurement readWaterLevelMeasurement(JsonParser p, Set<String> fields) {
+        JsonWaterLevelMeasurement m = new JsonWaterLevelMeasurement();
+        return readMeasurement(p, m, fields, null) ? m : null;
+    }
+
+    /**
+     * Decode a measurement into a given object, skipping the fields not
+     * projected, and testing each field against the filter as soon as
+     * it is decoded. A measurement time is tested as minutes since the
+     * epoch, parsed without making a date-time object. A measurement that
+     * fails the filter is skipped to its end without decoding the rest of
+     * it, so that the object can be reused for the next measurement.
+     * @param m The object to decode into, with all fields unset. The
+     *         field {@code resultElevationCorrected} is decoded only for
+     *         a water level measurement.
+     * @param fields The fields to decode, or {@code null} for all.
+     * @param filter The conditions, or {@code null} if there are none.
+     * @return {@code false} if the value is null or fails the filter.
+     */
+    static boolean readMeasurement(JsonParser p, JsonMeasurement m, Set<String> fields, MeasurementFilter filter) {
+        if (!beginObject(p)) return false;
+        while (nextKey(p)) {
+            String key = p.getString();
+            if (fields != null && !fields.contains(key)) {
+                skipValue(p);
+            } else if (filter != null && key.equals("measurementDateTime") && filter.tests(key)) {
+                // Tested before a date-time object is made for it
+                String t = readString(p);
+                if (t == null || !filter.acceptsMeasurementTime(ColumnarMeasurementReader.epochMinute(t))) {
+                    while (nextKey(p)) skipValue(p);
+                    return false;
+                }
+                m.setMeasurementDateTime(OffsetDateTime.parse(t));
+            } else if (m instanceof JsonWaterLevelMeasurement w && key.equals("resultElevationCorrected")) {
+                Event e = p.next();
+                w.setResultElevationCorrected(e == Event.VALUE_NULL ? null : Double.parseDouble(number(p, e)));
+            } else if (!readMeasurementField(p, key, m)) {
+                skipValue(p);
+            } else if (filter != null && !filter.acceptsField(key, m)) {
+                // Skip the rest without materializing its keys and values
+                while (nextKey(p)) skipValue(p);
+                return false;
+            }
+        }
+        // Absent fields are tested too
+        return filter == null || filter.accepts(m);
+    }
+
+    /**
+     * Decode the value of a measurement field, if the key is one.
+     * @return Whether the key was known.
+     */
+    private static boolean readMeasurementField(JsonParser p, String key, JsonMeasurement m) {
+        switch (key) {
+            case "stationId" -> m.setStationId(readString(p));
+            case "operatorStationId" -> m.setOperatorStationId(readString(p));
+            case "measurementPointNumber" -> {
+                Integer n = readInteger(p);
+                if (n != null) m.setMeasurementPointNumber(n);
+            }
+            case "parameterSc" -> {
+                Integer n = readInteger(p);
+                if (n != null) m.setParameterSc(n);
+            }
+            case "parameter" -> m.setParameter(readString(p));
+            case "examinationTypeSc" -> {
+                Integer n = readInteger(p);
+                if (n != null) m.setExaminationTypeSc(n);
+            }
+            case "examinationType" -> m.setExaminationType(readString(p));
+            case "measurementDateTime" -> m.setMeasurementDateTime(readDateTime(p));
+            case "result" -> {
+                Event e = p.next();
+                if (e != Event.VALUE_NULL) m.setResult(Double.parseDouble(number(p, e)));
+            }
+            case "unitSc" -> {
+                Integer n = readInteger(p);
+                if (n != null) m.setUnitSc(n);
+            }
+            case "unit" -> m.setUnit(readString(p));
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <T> List<T> readList(JsonParser p, Function<JsonParser, ? extends T> readElement) {
+        Event e = p.next();
+        if (e == Event.VALUE_NULL) return null;
+        expect(p, Event.START_ARRAY, e);
+        List<T> list = new ArrayList<>();
+        PushbackJsonParser q = new PushbackJsonParser(p);
+        while ((e = p.next()) != Event.END_ARRAY) {
+            q.pushback(e);
+            list.add(readElement.apply(q));
+        }
+        return list;
+    }
+
+    /**
+     * Tell whether the current key is in the projection.
+     */
+    private static boolean isProjected(JsonParser p, Set<String> fields) {
+        return fields == null || fields.contains(p.getString());
+    }
+
+    /**
+     * Pull the start of an object.
+     * @return {@code false} if the value is null.
+     */
+    private static boolean beginObject(JsonParser p) {
+        Event e = p.next();
+        if (e == Event.VALUE_NULL) return false;
+        expect(p, Event.START_OBJECT, e);
+        return true;
+    }
+
+    /**
+     * Pull the next key of an object.
+     * @return {@code false} at the end of the object.
+     */
+    private static boolean nextKey(JsonParser p) {
+        Event e = p.next();
+        if (e == Event.END_OBJECT) return false;
+        expect(p, Event.KEY_NAME, e);
+        return true;
+    }
+
+    static String readString(JsonParser p) {
+        Event e = p.next();
+        if (e == Event.VALUE_NULL) return null;
+        expect(p, Event.VALUE_STRING, e);
+        return p.getString();
+    }
+
+    private static Integer readInteger(JsonParser p) {
+        Event e = p.next();
+        if (e == Event.VALUE_NULL) return null;
+        return Integer.valueOf(number(p, e));
+    }
+
+    private static double readDouble(JsonParser p, double ifNull) {
+        Event e = p.next();
+        if (e == Event.VALUE_NULL) return ifNull;
+        return Double.parseDouble(number(p, e));
+    }
+
+    /**
+     * Get the text of a number, also accepting a number in a string.
+     */
+    static String number(JsonParser p, Event e) {
+        if (e != Event.VALUE_STRING) expect(p, Event.VALUE_NUMBER, e);
+        return p.getString();
+    }
+
+    private static OffsetDateTime readDateTime(JsonParser p) {
+        String t = readString(p);
+        return t == null ? null : OffsetDateTime.parse(t);
+    }
+
+    static void skipValue(JsonParser p) {
+        Event e = p.next();
+        if (e == Event.START_OBJECT) p.skipObject();
+        else if (e == Event.START_ARRAY) p.skipArray();
+    }
+
+    static void expect(JsonParser p, Event expected, Event actual) {
+        if (expected != actual) {
+            throw new IllegalStateException(String.format("Expected %s but found %s at %s", expected, actual, p.getLocation()));
+        }
+    }
+}
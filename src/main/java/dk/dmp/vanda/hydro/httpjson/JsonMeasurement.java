@@ -108,6 +108,24 @@ public class JsonMeasurement implements Measurement {
         return unit;
     }
 
+    /**
+     * Unset all fields, so that the object can be reused for another
+     * measurement, e.g. after the previous one was filtered out.
+     */
+    void clear() {
+        stationId = null;
+        operatorStationId = null;
+        measurementPointNumber = 0;
+        parameterSc = 0;
+        parameter = null;
+        examinationTypeSc = 0;
+        examinationType = null;
+        measurementDateTime = null;
+        result = 0;
+        unitSc = 0;
+        unit = null;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
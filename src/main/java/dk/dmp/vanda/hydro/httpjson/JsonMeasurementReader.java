@@ -0,0 +1,236 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import jakarta.json.JsonException;
+import jakarta.json.bind.JsonbException;
+import jakarta.json.stream.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.time.DateTimeException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+import static dk.dmp.vanda.hydro.httpjson.JsonDecoder.expect;
+import static dk.dmp.vanda.hydro.httpjson.JsonDecoder.readString;
+import static dk.dmp.vanda.hydro.httpjson.JsonDecoder.skipValue;
+
+/**
+ * Reads the measurements of a VanDa Hydro measurement response lazily,
+ * one at a time, while the response is streamed. The station
+ * identification of the enclosing station object is denormalized onto
+ * each measurement.
+ * <p>The response is expected to be an array of station objects, each
+ * having a {@code results} array of measurements. As long as the station
+ * identification precedes the results, as it does in responses from
+ * the service, no more than one measurement is held in memory. Otherwise
+ * the results of that station are buffered until the end of the station
+ * object.</p>
+ * <p>The underlying stream is closed when the last measurement has been
+ * read, when reading fails, or when the reader is closed.
+ * Instances are not safe for use by multiple concurrent threads.</p>
+ * @param <J> The kind of measurement.
+ */
+public class JsonMeasurementReader<J extends JsonMeasurement> implements MeasurementReader<J> {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    /**
+     * Maps a single measurement object from the parser.
+     * @param <J> The kind of measurement.
+     */
+    @FunctionalInterface
+    public interface ResultMapper<J> {
+        /**
+         * Map the measurement object starting at the next event of the
+         * parser. On return, the parser must be positioned at the
+         * {@link JsonParser.Event#END_OBJECT} of the measurement.
+         * @param parser The parser positioned right before the object.
+         * @return The mapped measurement, or {@code null} if it is
+         * filtered out.
+         */
+        J map(JsonParser parser);
+    }
+
+    private enum State { START, STATIONS, STATION, RESULTS, END }
+
+    private final JsonParser parser;
+    private final PushbackJsonParser resultParser;
+    private final ResultMapper<J> mapper;
+    private final String description;
+    private final Queue<J> ready = new ArrayDeque<>();
+    private State state;
+    private JsonStationId station;
+    private boolean stationIdSeen, operatorStationIdSeen;
+    private List<J> undenormalized;
+    private int stationCount;
+    private J next;
+    private boolean closed;
+
+    /**
+     * Construct a reader.
+     * @param parser The parser of the response, or {@code null} if there is no response body.
+     * @param mapper Maps each measurement object.
+     * @param description Description of the response origin, used for logging.
+     */
+    public JsonMeasurementReader(JsonParser parser, ResultMapper<J> mapper, String description) {
+        this.parser = parser;
+        this.resultParser = parser == null ? null : new PushbackJsonParser(parser);
+        this.mapper = mapper;
+        this.description = description;
+        state = parser == null ? State.END : State.START;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && state != State.END) try {
+            next = prefetch();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return next != null;
+    }
+
+    @Override
+    public J next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        J r = next;
+        next = null;
+        return r;
+    }
+
+    /**
+     * Read ahead until the next measurement is available or the end of
+     * the response is reached. Unlike {@link #hasNext()}, parse failures
+     * are reported as checked exceptions.
+     * @return The next measurement, or {@code null} if there are no more.
+     * @throws IOException If the response cannot be parsed.
+     */
+    @Override
+    public J prefetch() throws IOException {
+        if (next != null) return next;
+        try {
+            next = advance();
+        } catch (JsonException | JsonbException | IllegalStateException | IllegalArgumentException | DateTimeException e) {
+            close();
+            throw new IOException("Cannot deserialize measurements from " + description, e);
+        }
+        if (next == null) close();
+        return next;
+    }
+
+    private J advance() {
+        for (;;) {
+            if (!ready.isEmpty()) return ready.poll();
+            switch (state) {
+                case START -> {
+                    expect(parser, JsonParser.Event.START_ARRAY, parser.next());
+                    state = State.STATIONS;
+                }
+                case STATIONS -> {
+                    JsonParser.Event e = parser.next();
+                    if (e == JsonParser.Event.END_ARRAY) {
+                        // Consume the rest of the body, verifying that it is only whitespace
+                        if (parser.hasNext()) expect(parser, null, parser.next());
+                        state = State.END;
+                        continue;
+                    }
+                    expect(parser, JsonParser.Event.START_OBJECT, e);
+                    beginStation();
+                    state = State.STATION;
+                }
+                case STATION -> {
+                    JsonParser.Event e = parser.next();
+                    if (e == JsonParser.Event.END_OBJECT) {
+                        endStation();
+                        state = State.STATIONS;
+                        continue;
+                    }
+                    expect(parser, JsonParser.Event.KEY_NAME, e);
+                    switch (parser.getString()) {
+                        case "stationId" -> {
+                            station.stationId = readString(parser);
+                            stationIdSeen = true;
+                        }
+                        case "operatorStationId" -> {
+                            station.operatorStationId = readString(parser);
+                            operatorStationIdSeen = true;
+                        }
+                        case "results" -> {
+                            e = parser.next();
+                            if (e != JsonParser.Event.VALUE_NULL) {
+                                expect(parser, JsonParser.Event.START_ARRAY, e);
+                                state = State.RESULTS;
+                            }
+                        }
+                        default -> skipValue(parser);
+                    }
+                }
+                case RESULTS -> {
+                    JsonParser.Event e = parser.next();
+                    if (e == JsonParser.Event.END_ARRAY) {
+                        state = State.STATION;
+                        continue;
+                    }
+                    expect(parser, JsonParser.Event.START_OBJECT, e);
+                    resultParser.pushback(e);
+                    J r = mapper.map(resultParser);
+                    if (r == null) continue;
+                    if (stationIdSeen && operatorStationIdSeen) {
+                        return denormalize(r);
+                    } else {
+                        if (undenormalized == null) undenormalized = new ArrayList<>();
+                        undenormalized.add(r);
+                    }
+                }
+                case END -> {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private void beginStation() {
+        station = new JsonStationId();
+        stationIdSeen = false;
+        operatorStationIdSeen = false;
+        undenormalized = null;
+        if (++stationCount > 1)
+            log.debug("Multiple stations in response from {}, now at number {}", description, stationCount);
+    }
+
+    private void endStation() {
+        if (undenormalized != null) {
+            log.debug("Station identification after results in response from {}: {}", description, station);
+            for (J r : undenormalized) ready.add(denormalize(r));
+            undenormalized = null;
+        }
+    }
+
+    private J denormalize(J r) {
+        r.setStationId(station.stationId);
+        r.setOperatorStationId(station.operatorStationId);
+        return r;
+    }
+
+    /**
+     * Close the underlying stream. Measurements that are not yet read
+     * are discarded.
+     */
+    @Override
+    public void close() {
+        state = State.END;
+        ready.clear();
+        next = null;
+        if (parser != null && !closed) try {
+            closed = true;
+            parser.close();
+        } catch (JsonException e) {
+            log.debug("Cannot close response from {}", description, e);
+        }
+    }
+}
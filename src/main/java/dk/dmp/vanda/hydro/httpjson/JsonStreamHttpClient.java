@@ -13,16 +13,29 @@ import java.net.http.HttpResponse;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A {@link StreamService} that interacts with a remote endpoint over
  * HTTP and expects JSON response content.
- * The implementation is immutable, thus thread-safe.
+ * <p>If so configured, gzip or deflate compressed responses are
+ * requested by {@code Accept-Encoding}, and decompressed while they
+ * are streamed. Measurement responses are very repetitive, so this
+ * reduces the transferred size many times.</p>
+ * <p>Conditional requests are made by {@code If-None-Match} and
+ * {@code If-Modified-Since}, and a {@code 304 Not Modified} response
+ * is reported as such.</p>
+ * The implementation is thread-safe.
  */
-public class JsonStreamHttpClient implements StreamService {
+public class JsonStreamHttpClient implements ConditionalStreamService {
     private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
     private final HttpClient httpClient;
     private final URI apiBase;
+    private final boolean acceptCompression;
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
 
     /**
      * Construct the service client.
@@ -35,6 +48,20 @@ public class JsonStreamHttpClient implements StreamService {
      * or includes query or fragment components.
      */
     public JsonStreamHttpClient(URI apiBase, HttpClient httpClient) throws IllegalArgumentException {
+        this(apiBase, httpClient, false);
+    }
+
+    /**
+     * Construct the service client.
+     * @param apiBase Base URL of VanDa Hydro service.
+     * @param httpClient The client for sending HTTP requests.
+     * @param acceptCompression Whether to request gzip or deflate
+     *         compressed responses.
+     * @throws IllegalArgumentException If the API base URI is not a URL
+     * or includes query or fragment components.
+     */
+    public JsonStreamHttpClient(URI apiBase, HttpClient httpClient, boolean acceptCompression) throws IllegalArgumentException {
+        this.acceptCompression = acceptCompression;
         this.httpClient = Objects.requireNonNull(httpClient);
         if (apiBase.getPath() == null) {
             throw new IllegalArgumentException(String.format("API base URL has no path component: %s", apiBase));
@@ -71,22 +98,196 @@ public class JsonStreamHttpClient implements StreamService {
         throws IOException, InterruptedException, IllegalArgumentException
     {
         HttpRequest req = buildRequest(path, query);
-        ExtendedHttpResponse<InputStream> response =
-            new ExtendedHttpResponse<>(httpClient.send(
-                req, HttpResponse.BodyHandlers.ofInputStream()
-            ));
+        return handleResponse(httpClient.send(req, HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    /**
+     * Submit a GET request like {@link #get(String, String)} by
+     * {@link HttpClient#sendAsync(HttpRequest, HttpResponse.BodyHandler)}.
+     * The calling thread is not blocked while waiting for the response.
+     * Cancelling the future cancels the exchange, and a body that
+     * arrives anyway is closed.
+     * @param path The URL-encoded operation path that the request shall be sent to.
+     * @param query The URL-encoded query.
+     * @return The future response body, completed exceptionally with
+     * {@link HttpResponseException} if the response is not success.
+     */
+    @Override
+    public CompletableFuture<InputStream> getAsync(String path, String query) {
+        HttpRequest req;
+        try {
+            req = buildRequest(path, query);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<HttpResponse<InputStream>> sent = httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofInputStream());
+        return cancellable(sent, sent.thenApply(r -> {
+            try {
+                return handleResponse(r);
+            } catch (HttpResponseException e) {
+                throw new CompletionException(e);
+            }
+        }));
+    }
+
+    /**
+     * Submit a GET request like {@link #get(String, String)}, with
+     * {@code If-None-Match} and {@code If-Modified-Since} headers from
+     * the given validators.
+     * @param path The URL-encoded operation path that the request shall be sent to.
+     * @param query The URL-encoded query.
+     * @param validators The validators of the stored response, or
+     *         {@code null} to make the request unconditional.
+     * @return The response.
+     * @throws IllegalArgumentException If the combined URL violates RFC 2396.
+     * @throws IOException If an I/O error occurs when sending or receiving, or the client has shut down.
+     * @throws InterruptedException If the operation is interrupted.
+     * @throws HttpResponseException If the response is neither success nor not modified.
+     */
+    @Override
+    public Response getConditional(String path, String query, Validators validators)
+        throws IOException, InterruptedException, IllegalArgumentException
+    {
+        HttpRequest req = buildConditionalRequest(path, query, validators);
+        return handleConditionalResponse(httpClient.send(req, HttpResponse.BodyHandlers.ofInputStream()), validators);
+    }
+
+    /**
+     * Submit a conditional GET request like
+     * {@link #getConditional(String, String, Validators)} by
+     * {@link HttpClient#sendAsync(HttpRequest, HttpResponse.BodyHandler)}.
+     * @param path The URL-encoded operation path that the request shall be sent to.
+     * @param query The URL-encoded query.
+     * @param validators The validators of the stored response, or
+     *         {@code null} to make the request unconditional.
+     * @return The future response, completed exceptionally with
+     * {@link HttpResponseException} if the response is neither success
+     * nor not modified. Cancelling it cancels the exchange like for
+     * {@link #getAsync(String, String)}.
+     */
+    @Override
+    public CompletableFuture<Response> getConditionalAsync(String path, String query, Validators validators) {
+        HttpRequest req;
+        try {
+            req = buildConditionalRequest(path, query, validators);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<HttpResponse<InputStream>> sent = httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofInputStream());
+        return cancellable(sent, sent.thenApply(r -> {
+            try {
+                return handleConditionalResponse(r, validators);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }));
+    }
+
+    /**
+     * Pass the cancellation of a dependent stage on to the exchange,
+     * which cancelling the stage does not do by itself. If the response
+     * has arrived anyway, or arrives later, its body is closed, since
+     * no one else will.
+     * @param sent The future response of the exchange.
+     * @param result The stage handling the response.
+     * @return The stage.
+     */
+    private static <T> CompletableFuture<T> cancellable(CompletableFuture<HttpResponse<InputStream>> sent,
+                                                        CompletableFuture<T> result) {
+        result.whenComplete((r, t) -> {
+            if (!result.isCancelled()) return;
+            sent.cancel(true);
+            sent.thenAccept(response -> {
+                InputStream body = response.body();
+                if (body != null) try {
+                    body.close();
+                } catch (IOException e) {
+                    log.debug("Cannot close response from {}", response.uri(), e);
+                }
+            });
+        });
+        return result;
+    }
+
+    private HttpRequest buildConditionalRequest(String path, String query, Validators validators) {
+        HttpRequest req = buildRequest(path, query);
+        if (validators == null || !validators.isPresent()) return req;
+        HttpRequest.Builder builder = HttpRequest.newBuilder(req, (n, v) -> true);
+        if (validators.etag() != null) builder.header("If-None-Match", validators.etag());
+        if (validators.lastModified() != null) builder.header("If-Modified-Since", validators.lastModified());
+        return builder.build();
+    }
+
+    private Response handleConditionalResponse(HttpResponse<InputStream> httpResponse, Validators validators) throws IOException {
+        Validators received = new Validators(
+            httpResponse.headers().firstValue("ETag").orElse(null),
+            httpResponse.headers().firstValue("Last-Modified").orElse(null));
+        if (httpResponse.statusCode() == 304) {
+            InputStream body = httpResponse.body();
+            if (body != null) body.close();
+            // A 304 response need not repeat the validators
+            return new Response(true, null, received.isPresent() ? received : validators);
+        }
+        return new Response(false, handleResponse(httpResponse), received);
+    }
+
+    private InputStream handleResponse(HttpResponse<InputStream> httpResponse) throws HttpResponseException {
+        ExtendedHttpResponse<InputStream> response = new ExtendedHttpResponse<>(httpResponse);
         if (response.statusCode() != 200) {
             throw new HttpResponseException(response);
         }
         checkContentType(response);
-        return response.body();
+        InputStream body = response.body();
+        if (body == null) return null;
+        // An empty body is known from the framing, without reading it
+        if (response.headers().firstValueAsLong("Content-Length").orElse(-1) == 0) {
+            try {
+                body.close();
+            } catch (IOException e) {
+                log.debug("Cannot close empty response from {}", response.uri(), e);
+            }
+            return null;
+        }
+        List<String> encodings = contentEncodings(response);
+        return new ContentDecodingInputStream(body, encodings, receivedBytes, decodedBytes);
+    }
+
+    private static List<String> contentEncodings(HttpResponse<?> response) {
+        List<String> encodings = new ArrayList<>();
+        for (String value : response.headers().allValues("Content-Encoding")) {
+            for (String e : value.split(",")) {
+                e = e.trim().toLowerCase(Locale.ROOT);
+                if (!e.isEmpty()) encodings.add(e);
+            }
+        }
+        return encodings;
+    }
+
+    /**
+     * Get the total number of response body bytes received, i.e. before
+     * decompression.
+     * @return Received bytes.
+     */
+    public long receivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * Get the total number of response body bytes after decompression.
+     * This equals {@link #receivedBytes()} if responses are not compressed.
+     * @return Decoded bytes.
+     */
+    public long decodedBytes() {
+        return decodedBytes.get();
     }
 
     /**
      * Build a request from the API base URL, operation path and
      * query parameters. This is not the same as {@link URI#resolve(URI)},
      * since the whole base URL is preserved in the result.
-     * <p>Let the request accept JSON as return data.</p>
+     * <p>Let the request accept JSON as return data, or CSV or Parquet
+     * if the query has {@code format=csv} or {@code format=parquet}.
+     * Accept gzip or deflate encoding if compression is enabled.</p>
      * @param path The URL-encoded request path.
      * @param query The URL-encoded request query.
      * @return The built request.
@@ -96,23 +297,42 @@ public class JsonStreamHttpClient implements StreamService {
         throws IllegalArgumentException
     {
         if (path == null) path = "";
+        String accept = acceptedMediaType(query);
         if (query == null || query.isEmpty()) query = "";
         else query = "?" + query;
         URI requestURL = URI.create(apiBase.toString() + path + query);
-        return HttpRequest.newBuilder(requestURL)
-                .header("Accept", "application/json")
-                .build();
+        HttpRequest.Builder builder = HttpRequest.newBuilder(requestURL)
+                .header("Accept", accept);
+        if (acceptCompression) builder.header("Accept-Encoding", "gzip, deflate");
+        return builder.build();
+    }
+
+    private static String acceptedMediaType(String query) {
+        if (query != null) for (String p : query.split("&")) {
+            if (p.equalsIgnoreCase("format=csv")) return "text/csv";
+            if (p.equalsIgnoreCase("format=parquet")) return "application/vnd.apache.parquet";
+        }
+        return "application/json";
+    }
+
+    private static boolean isRequestedFormat(String mediaType, ExtendedHttpResponse<?> response) {
+        boolean parquet = mediaType.equalsIgnoreCase("application/vnd.apache.parquet")
+            || mediaType.equalsIgnoreCase("application/octet-stream");
+        if (!parquet && !mediaType.equalsIgnoreCase("text/csv")) return false;
+        String accepted = acceptedMediaType(response.request().uri().getRawQuery());
+        return parquet ? accepted.endsWith("parquet") : accepted.equals("text/csv");
     }
 
     /**
      * Verify that the response content type corresponds to the expected
-     * content type for JSON.
+     * content type for JSON, or the requested format.
      * @param response The response to validate.
      */
     protected void checkContentType(ExtendedHttpResponse<?> response) {
         Optional<ContentType> contentType = response.contentType();
         Optional<String> mediaType = contentType.flatMap(ContentType::getMediaType);
-        if (mediaType.isPresent() && ! mediaType.get().equalsIgnoreCase("application/json"))
+        if (mediaType.isPresent() && ! mediaType.get().equalsIgnoreCase("application/json")
+            && ! isRequestedFormat(mediaType.get(), response))
             log.debug("Unexpected media type in response from {}: {}", response.uri(), mediaType.get());
         Optional<Charset> charset = contentType.flatMap(ContentType::getCharset);
         if (charset.isPresent() && ! charset.get().equals(StandardCharsets.UTF_8))
@@ -17,6 +17,12 @@ public class JsonWaterLevelMeasurement extends JsonMeasurement implements WaterL
         return resultElevationCorrected;
     }
 
+    @Override
+    void clear() {
+        super.clear();
+        resultElevationCorrected = null;
+    }
+
     @Override
     public boolean equals(Object o) {
         return super.equals(o)
@@ -0,0 +1,180 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService.GetMeasurements;
+import dk.dmp.vanda.hydro.Measurement;
+import dk.dmp.vanda.hydro.MeasurementBatch;
+
+import java.time.OffsetDateTime;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.DoublePredicate;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+
+/**
+ * Conditions on the primitive fields of measurements, tested by the
+ * readers on each field as it is parsed, so that a measurement that
+ * fails them is skipped before an object is made for it. Absent fields
+ * are tested with the value a measurement gets without them, i.e. 0,
+ * except that a measurement without a time fails a condition on it.
+ * <p>Conditions are added while a request is built, and must not be
+ * added while measurements are read.</p>
+ * @see GetMeasurements#filterResult(DoublePredicate)
+ */
+final class MeasurementFilter {
+    private DoublePredicate result;
+    private LongPredicate measurementTime;
+    private IntPredicate parameterSc, examinationTypeSc, unitSc;
+
+    void result(DoublePredicate condition) {
+        Objects.requireNonNull(condition);
+        result = result == null ? condition : result.and(condition);
+    }
+
+    void measurementTime(LongPredicate condition) {
+        Objects.requireNonNull(condition);
+        measurementTime = measurementTime == null ? condition : measurementTime.and(condition);
+    }
+
+    void parameterSc(IntPredicate condition) {
+        Objects.requireNonNull(condition);
+        parameterSc = parameterSc == null ? condition : parameterSc.and(condition);
+    }
+
+    void examinationTypeSc(IntPredicate condition) {
+        Objects.requireNonNull(condition);
+        examinationTypeSc = examinationTypeSc == null ? condition : examinationTypeSc.and(condition);
+    }
+
+    void unitSc(IntPredicate condition) {
+        Objects.requireNonNull(condition);
+        unitSc = unitSc == null ? condition : unitSc.and(condition);
+    }
+
+    /**
+     * Tell whether there are no conditions.
+     */
+    boolean isEmpty() {
+        return result == null && measurementTime == null && parameterSc == null
+            && examinationTypeSc == null && unitSc == null;
+    }
+
+    /**
+     * Tell whether a field is tested.
+     * @param field The name of the field, as in JSON.
+     */
+    boolean tests(String field) {
+        return switch (field) {
+            case "result" -> result != null;
+            case "measurementDateTime" -> measurementTime != null;
+            case "parameterSc" -> parameterSc != null;
+            case "examinationTypeSc" -> examinationTypeSc != null;
+            case "unitSc" -> unitSc != null;
+            default -> false;
+        };
+    }
+
+    /**
+     * Add the fields tested to a projection, as they must be decoded.
+     * @param fields The projection, or {@code null} for all fields.
+     * @return The extended projection.
+     */
+    Set<String> project(Set<String> fields) {
+        if (fields == null) return null;
+        Set<String> f = new HashSet<>(fields);
+        if (result != null) f.add("result");
+        if (measurementTime != null) f.add("measurementDateTime");
+        if (parameterSc != null) f.add("parameterSc");
+        if (examinationTypeSc != null) f.add("examinationTypeSc");
+        if (unitSc != null) f.add("unitSc");
+        return f;
+    }
+
+    /**
+     * Add the conditions to another request.
+     */
+    void applyTo(GetMeasurements<?> request) {
+        if (result != null) request.filterResult(result);
+        if (measurementTime != null) request.filterMeasurementTime(measurementTime);
+        if (parameterSc != null) request.filterParameterSc(parameterSc);
+        if (examinationTypeSc != null) request.filterExaminationTypeSc(examinationTypeSc);
+        if (unitSc != null) request.filterUnitSc(unitSc);
+    }
+
+    boolean acceptsResult(double value) {
+        return result == null || result.test(value);
+    }
+
+    boolean acceptsMeasurementTime(long epochMinute) {
+        return measurementTime == null || measurementTime.test(epochMinute);
+    }
+
+    /**
+     * Tell whether a measurement without a time is accepted, i.e. if
+     * there are no conditions on the time.
+     */
+    boolean acceptsNoMeasurementTime() {
+        return measurementTime == null;
+    }
+
+    /**
+     * Test the time of a measurement that is already made, e.g. cached.
+     * Readers test {@linkplain #acceptsMeasurementTime(long) epoch minutes}
+     * before making a date-time.
+     */
+    boolean acceptsMeasurementTime(OffsetDateTime time) {
+        return measurementTime == null || time != null && measurementTime.test(epochMinute(time));
+    }
+
+    boolean acceptsParameterSc(int value) {
+        return parameterSc == null || parameterSc.test(value);
+    }
+
+    boolean acceptsExaminationTypeSc(int value) {
+        return examinationTypeSc == null || examinationTypeSc.test(value);
+    }
+
+    boolean acceptsUnitSc(int value) {
+        return unitSc == null || unitSc.test(value);
+    }
+
+    /**
+     * Test the field of a measurement that has just been decoded.
+     * @param field The name of the field, as in JSON.
+     * @return {@code false} if the measurement fails a condition on the field.
+     */
+    boolean acceptsField(String field, JsonMeasurement m) {
+        return switch (field) {
+            case "result" -> acceptsResult(m.result());
+            case "measurementDateTime" -> acceptsMeasurementTime(m.measurementDateTime());
+            case "parameterSc" -> acceptsParameterSc(m.parameterSc());
+            case "examinationTypeSc" -> acceptsExaminationTypeSc(m.examinationTypeSc());
+            case "unitSc" -> acceptsUnitSc(m.unitSc());
+            default -> true;
+        };
+    }
+
+    /**
+     * Test all the fields of a measurement, e.g. once it is complete,
+     * to test absent fields.
+     */
+    boolean accepts(Measurement m) {
+        return acceptsResult(m.result()) && acceptsMeasurementTime(m.measurementDateTime())
+            && acceptsParameterSc(m.parameterSc()) && acceptsExaminationTypeSc(m.examinationTypeSc())
+            && acceptsUnitSc(m.unitSc());
+    }
+
+    /**
+     * Test the fields that are common to the measurements of a batch.
+     * @return {@code false} if every measurement of the batch fails.
+     */
+    boolean acceptsBatch(MeasurementBatch b) {
+        return acceptsParameterSc(b.parameterSc()) && acceptsExaminationTypeSc(b.examinationTypeSc())
+            && acceptsUnitSc(b.unitSc());
+    }
+
+    static long epochMinute(OffsetDateTime time) {
+        return Math.floorDiv(time.toEpochSecond(), 60);
+    }
+}
@@ -0,0 +1,40 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Reads the measurements of a measurement response lazily, one at a
+ * time, while the response is streamed. Failures to read are reported
+ * by the iterator methods as {@link java.io.UncheckedIOException}.
+ * <p>The underlying stream is closed when the last measurement has been
+ * read, when reading fails, or when the reader is closed.</p>
+ * @param <J> The kind of measurement.
+ */
+public interface MeasurementReader<J extends JsonMeasurement> extends Iterator<J>, Closeable {
+    /**
+     * Read ahead until the next measurement is available or the end of
+     * the response is reached. Unlike {@link #hasNext()}, failures to
+     * read are reported as checked exceptions.
+     * @return The next measurement, or {@code null} if there are no more.
+     * @throws IOException If the response cannot be read.
+     */
+    J prefetch() throws IOException;
+
+    /**
+     * Get the number of measurements not yet returned by {@link #next()},
+     * if it is known without reading them.
+     * @return The number of remaining measurements, or -1 if unknown.
+     */
+    default long remaining() {
+        return -1;
+    }
+
+    /**
+     * Close the underlying stream. Measurements that are not yet read
+     * are discarded.
+     */
+    @Override
+    void close();
+}
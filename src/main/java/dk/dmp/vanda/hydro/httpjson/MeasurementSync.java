@@ -0,0 +1,203 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService;
+import dk.dmp.vanda.hydro.Measurement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.time.Clock;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Synchronizes measurements incrementally, delivering only the
+ * measurements registered (created or updated) by the service since
+ * the previous synchronization of each station.
+ * <p>Each {@linkplain #sync(int) synchronization} finds the stations
+ * with measurements registered after the oldest stored watermark, and
+ * requests the measurements of each of them registered after its own
+ * watermark. These are delivered to a listener as upserts, since a
+ * revised measurement replaces the one of the same station, measurement
+ * point, examination type and measurement time. When a station has been
+ * delivered, its watermark is moved to the minute the synchronization
+ * started in. As that minute is included in the next synchronization,
+ * a measurement may be delivered twice, but none are missed. Stations
+ * without changes have their watermarks moved along, and a station that
+ * fails keeps its watermark until it succeeds.</p>
+ * <p>Stations without a watermark start from the beginning of the time
+ * window that is synchronized, so the first synchronization loads the
+ * whole window.</p>
+ * <p>Only {@link #WATER_LEVEL} and {@link #WATER_FLOW} can be
+ * synchronized, as the service has measurement requests for those two
+ * examination types alone. Stations list other examination types, but
+ * there is no request to get their measurements with.</p>
+ */
+public class MeasurementSync {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    /**
+     * Examination type stancode of water level measurements.
+     */
+    public static final int WATER_LEVEL = 25;
+    /**
+     * Examination type stancode of water flow measurements.
+     */
+    public static final int WATER_FLOW = 27;
+    private final HydrometryService service;
+    private final WatermarkStore store;
+    private final UpsertListener listener;
+    private final OffsetDateTime from;
+    private final Clock clock;
+    private int maxConcurrency = HydrometryServiceClient.DEFAULT_CONCURRENCY;
+
+    /**
+     * Receives the measurements of a station that are new or revised.
+     */
+    @FunctionalInterface
+    public interface UpsertListener {
+        /**
+         * Insert or replace measurements of a station. If this throws,
+         * the measurements are delivered again by the next synchronization.
+         * @param stationId The station ID.
+         * @param examinationTypeSc Examination type as stancode from stancodelist 1101.
+         * @param measurements The new or revised measurements, at least one.
+         * @throws IOException If the measurements cannot be stored.
+         */
+        void upsert(String stationId, int examinationTypeSc, List<? extends Measurement> measurements) throws IOException;
+    }
+
+    /**
+     * The outcome of a synchronization.
+     * @param examinationTypeSc The examination type synchronized.
+     * @param stations The number of stations with measurements delivered.
+     * @param measurements The number of measurements delivered.
+     * @param failures The cause of failure of each station that failed.
+     */
+    public record Result(int examinationTypeSc, int stations, int measurements, Map<String, Exception> failures) {}
+
+    /**
+     * Construct the synchronization.
+     * @param service The service to fetch measurements from.
+     * @param store Where the watermarks are kept.
+     * @param listener Receiver of measurements.
+     * @param from The earliest measurement time to synchronize.
+     */
+    public MeasurementSync(HydrometryService service, WatermarkStore store, UpsertListener listener, OffsetDateTime from) {
+        this(service, store, listener, from, Clock.systemUTC());
+    }
+
+    /**
+     * Construct the synchronization.
+     * @param service The service to fetch measurements from.
+     * @param store Where the watermarks are kept.
+     * @param listener Receiver of measurements.
+     * @param from The earliest measurement time to synchronize.
+     * @param clock The clock telling when a synchronization starts.
+     */
+    public MeasurementSync(HydrometryService service, WatermarkStore store, UpsertListener listener, OffsetDateTime from, Clock clock) {
+        this.service = Objects.requireNonNull(service);
+        this.store = Objects.requireNonNull(store);
+        this.listener = Objects.requireNonNull(listener);
+        this.from = Objects.requireNonNull(from);
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    /**
+     * Limit the number of measurement requests in progress at the same time.
+     * @param maxConcurrency The maximum number of concurrent requests, at least 1.
+     * @throws IllegalArgumentException If the limit is less than 1.
+     */
+    public void maxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("Max concurrency must be at least 1: " + maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Synchronize the measurements of an examination type. The
+     * watermarks are saved when all the stations have been handled.
+     * @param examinationTypeSc {@link #WATER_LEVEL} or {@link #WATER_FLOW}.
+     * @return The outcome.
+     * @throws IOException If the changed stations cannot be found, or
+     * the watermarks cannot be loaded or saved.
+     * @throws InterruptedException If interrupted. Watermarks of the
+     * stations delivered so far are saved.
+     * @throws IllegalArgumentException If the examination type is not
+     * {@link #WATER_LEVEL} or {@link #WATER_FLOW}, which have no
+     * measurement requests.
+     */
+    public Result sync(int examinationTypeSc) throws IOException, InterruptedException {
+        if (examinationTypeSc != WATER_LEVEL && examinationTypeSc != WATER_FLOW)
+            throw new IllegalArgumentException("Examination type not supported: " + examinationTypeSc);
+        OffsetDateTime start = OffsetDateTime.now(clock).withOffsetSameInstant(ZoneOffset.UTC).truncatedTo(ChronoUnit.MINUTES);
+        Map<String, OffsetDateTime> watermarks = store.load(examinationTypeSc);
+        OffsetDateTime since = watermarks.values().stream().min(Comparator.naturalOrder()).orElse(from);
+
+        HydrometryService.GetStationsOperation stations = service.getStations();
+        stations.examinationTypeSc(examinationTypeSc);
+        stations.withResultsCreatedAfter(since);
+        Set<String> changed = new LinkedHashSet<>();
+        stations.exec().forEachRemaining(s -> changed.add(s.stationId()));
+        log.debug("{} stations with examination type {} changed since {}", changed.size(), examinationTypeSc, since);
+
+        Map<String, OffsetDateTime> advanced = new HashMap<>();
+        for (String stationId : watermarks.keySet()) {
+            if (! changed.contains(stationId)) advanced.put(stationId, start);
+        }
+        Map<OffsetDateTime, List<String>> byWatermark = new TreeMap<>();
+        for (String stationId : changed) {
+            byWatermark.computeIfAbsent(watermarks.getOrDefault(stationId, from), t -> new ArrayList<>()).add(stationId);
+        }
+        int stationCount = 0, measurementCount = 0;
+        Map<String, Exception> failures = new LinkedHashMap<>();
+        for (Map.Entry<OffsetDateTime, List<String>> group : byWatermark.entrySet()) {
+            try (Stream<? extends HydrometryService.StationMeasurements<? extends Measurement>> outcomes =
+                     stream(examinationTypeSc, group.getValue(), group.getKey(), start)) {
+                for (Iterator<? extends HydrometryService.StationMeasurements<? extends Measurement>> i = outcomes.iterator(); i.hasNext(); ) {
+                    try (HydrometryService.StationMeasurements<? extends Measurement> outcome = i.next()) {
+                        String stationId = outcome.stationId();
+                        try {
+                            List<? extends Measurement> all = outcome.measurements();
+                            if (outcome.error().isPresent()) throw outcome.error().get();
+                            List<? extends Measurement> measurements = all.stream()
+                                .filter(m -> m.examinationTypeSc() == examinationTypeSc)
+                                .toList();
+                            if (! measurements.isEmpty()) {
+                                listener.upsert(stationId, examinationTypeSc, measurements);
+                                ++stationCount;
+                                measurementCount += measurements.size();
+                            }
+                            advanced.put(stationId, start);
+                        } catch (Exception e) {
+                            log.warn("Cannot synchronize examination type {} of station {}", examinationTypeSc, stationId, e);
+                            failures.put(stationId, e);
+                            // Keep the station from falling out of the changed stations query.
+                            if (! watermarks.containsKey(stationId)) advanced.put(stationId, group.getKey());
+                        }
+                    }
+                }
+            }
+        }
+        store.save(examinationTypeSc, advanced);
+        if (Thread.interrupted()) throw new InterruptedException();
+        return new Result(examinationTypeSc, stationCount, measurementCount, failures);
+    }
+
+    private Stream<? extends HydrometryService.StationMeasurements<? extends Measurement>> stream(
+        int examinationTypeSc, List<String> stationIds, OffsetDateTime createdAfter, OffsetDateTime to)
+    {
+        HydrometryService.GetMeasurementsBatch<? extends Measurement> batch = examinationTypeSc == WATER_LEVEL
+            ? service.getWaterLevelsBatch()
+            : service.getWaterFlowsBatch();
+        batch.stationIds(stationIds);
+        batch.from(from);
+        batch.to(to);
+        batch.createdAfter(createdAfter);
+        batch.maxConcurrency(maxConcurrency);
+        return batch.stream();
+    }
+}
@@ -0,0 +1,682 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decodes the flat columns of a Parquet file held in memory. Only the
+ * subset of the format needed for measurement responses is supported:
+ * <ul>
+ *     <li>top-level required or optional columns of type INT32, INT64,
+ *     INT96, FLOAT, DOUBLE, BYTE_ARRAY and FIXED_LEN_BYTE_ARRAY;</li>
+ *     <li>data pages of version 1 and 2, and dictionary pages;</li>
+ *     <li>PLAIN, PLAIN_DICTIONARY, RLE_DICTIONARY and DELTA_* encoded
+ *     values;</li>
+ *     <li>UNCOMPRESSED, SNAPPY and GZIP compression.</li>
+ * </ul>
+ * Other features cause {@link IllegalStateException} when a column
+ * using them is read.
+ * @see <a href="https://parquet.apache.org/docs/file-format/">Parquet file format</a>
+ */
+final class ParquetFile {
+    static final int BOOLEAN = 0, INT32 = 1, INT64 = 2, INT96 = 3, FLOAT = 4, DOUBLE = 5, BYTE_ARRAY = 6, FIXED_LEN_BYTE_ARRAY = 7;
+    private static final String[] CODECS = {"UNCOMPRESSED", "SNAPPY", "GZIP", "LZO", "BROTLI", "LZ4", "ZSTD", "LZ4_RAW"};
+    private static final int PLAIN = 0, PLAIN_DICTIONARY = 2, RLE = 3, DELTA_BINARY_PACKED = 5,
+        DELTA_LENGTH_BYTE_ARRAY = 6, DELTA_BYTE_ARRAY = 7, RLE_DICTIONARY = 8;
+    private static final int DATA_PAGE = 0, DICTIONARY_PAGE = 2, DATA_PAGE_V2 = 3;
+    private static final int MAGIC = 'P' | 'A' << 8 | 'R' << 16 | '1' << 24;
+    private static final long JULIAN_EPOCH_DAY = 2440588;
+
+    private final byte[] data;
+    private final int footerStart;
+    private final Map<String, Column> columns = new HashMap<>();
+    private final List<RowGroup> rowGroups = new ArrayList<>();
+
+    /**
+     * A top-level leaf column.
+     */
+    static final class Column {
+        final int index;
+        String name;
+        int type = -1;
+        int typeLength;
+        boolean optional;
+        /** The number of timestamp units per minute, or 0 if not a timestamp. */
+        long unitsPerMinute;
+        boolean nested;
+
+        Column(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * A row group, with the chunks of the columns in schema order.
+     */
+    record RowGroup(int rows, ColumnChunk[] chunks) {}
+
+    record ColumnChunk(int codec, long values, long dataPageOffset, long dictionaryPageOffset) {}
+
+    /**
+     * Parse the footer of a Parquet file.
+     * @param data The complete file.
+     * @param length The length of the file in {@code data}.
+     * @throws IllegalStateException If the data is not a Parquet file.
+     */
+    ParquetFile(byte[] data, int length) {
+        this.data = data;
+        if (length < 12 || readInt(data, 0) != MAGIC || readInt(data, length - 4) != MAGIC)
+            throw new IllegalStateException("Not a Parquet file");
+        int footerLength = readInt(data, length - 8);
+        footerStart = length - 8 - footerLength;
+        if (footerLength < 0 || footerStart < 4) throw new IllegalStateException("Invalid Parquet footer length: " + footerLength);
+        List<Column> leaves = new ArrayList<>();
+        ThriftCompactReader r = new ThriftCompactReader(data, footerStart, length - 8);
+        r.readStruct((id, type) -> {
+            switch (id) {
+                case 2 -> readSchema(r, leaves);
+                case 4 -> {
+                    long h = r.readListHeader();
+                    for (int i = 0; i < ThriftCompactReader.listSize(h); ++i) rowGroups.add(readRowGroup(r, leaves.size()));
+                }
+                default -> r.skip(type);
+            }
+        });
+        for (Column c : leaves) {
+            if (!c.nested) columns.putIfAbsent(c.name.toLowerCase(Locale.ROOT), c);
+        }
+    }
+
+    private static void readSchema(ThriftCompactReader r, List<Column> leaves) {
+        long h = r.readListHeader();
+        // Remaining children of each enclosing group, the root first
+        int[] remaining = new int[ThriftCompactReader.listSize(h) + 1];
+        int depth = -1;
+        for (int i = 0; i < ThriftCompactReader.listSize(h); ++i) {
+            Column c = new Column(leaves.size());
+            int[] element = new int[2]; // num_children, repetition_type
+            r.readStruct((id, type) -> {
+                switch (id) {
+                    case 1 -> c.type = r.readI32();
+                    case 2 -> c.typeLength = r.readI32();
+                    case 3 -> element[1] = r.readI32();
+                    case 4 -> c.name = r.readString();
+                    case 5 -> element[0] = r.readI32();
+                    case 6 -> {
+                        int convertedType = r.readI32();
+                        if (convertedType == 9) c.unitsPerMinute = 60_000L;
+                        else if (convertedType == 10) c.unitsPerMinute = 60_000_000L;
+                    }
+                    case 10 -> r.readStruct((lid, ltype) -> {
+                        if (lid == 8) r.readStruct((tid, ttype) -> {
+                            if (tid == 2) r.readStruct((uid, utype) -> {
+                                switch (uid) {
+                                    case 1 -> c.unitsPerMinute = 60_000L;
+                                    case 2 -> c.unitsPerMinute = 60_000_000L;
+                                    case 3 -> c.unitsPerMinute = 60_000_000_000L;
+                                }
+                                r.skip(utype);
+                            });
+                            else r.skip(ttype);
+                        });
+                        else r.skip(ltype);
+                    });
+                    default -> r.skip(type);
+                }
+            });
+            if (depth >= 0) --remaining[depth];
+            if (i == 0 || element[0] > 0) {
+                remaining[++depth] = element[0];
+            } else {
+                if (c.type == INT96) c.unitsPerMinute = 1;
+                c.optional = element[1] == 1;
+                c.nested = depth != 0 || element[1] == 2 || c.name == null;
+                leaves.add(c);
+            }
+            while (depth > 0 && remaining[depth] <= 0) --depth;
+        }
+    }
+
+    private RowGroup readRowGroup(ThriftCompactReader r, int leaves) {
+        ColumnChunk[] chunks = new ColumnChunk[leaves];
+        long[] rows = new long[1];
+        int[] n = new int[1];
+        r.readStruct((id, type) -> {
+            switch (id) {
+                case 1 -> {
+                    long h = r.readListHeader();
+                    for (int i = 0; i < ThriftCompactReader.listSize(h); ++i) {
+                        ColumnChunk c = readColumnChunk(r);
+                        if (n[0] < leaves) chunks[n[0]++] = c;
+                    }
+                }
+                case 3 -> rows[0] = r.readI64();
+                default -> r.skip(type);
+            }
+        });
+        if (rows[0] < 0 || rows[0] > Integer.MAX_VALUE) throw new IllegalStateException("Invalid Parquet row count: " + rows[0]);
+        return new RowGroup((int) rows[0], chunks);
+    }
+
+    private static ColumnChunk readColumnChunk(ThriftCompactReader r) {
+        long[] m = new long[4]; // codec, num_values, data_page_offset, dictionary_page_offset
+        boolean[] external = new boolean[1];
+        r.readStruct((id, type) -> {
+            switch (id) {
+                case 1 -> {
+                    r.skip(type);
+                    external[0] = true;
+                }
+                case 3 -> r.readStruct((mid, mtype) -> {
+                    switch (mid) {
+                        case 4 -> m[0] = r.readI32();
+                        case 5 -> m[1] = r.readI64();
+                        case 9 -> m[2] = r.readI64();
+                        case 11 -> m[3] = r.readI64();
+                        default -> r.skip(mtype);
+                    }
+                });
+                default -> r.skip(type);
+            }
+        });
+        if (external[0]) throw new IllegalStateException("Parquet column chunks in external files are not supported");
+        return new ColumnChunk((int) m[0], m[1], m[2], m[3]);
+    }
+
+    List<RowGroup> rowGroups() {
+        return rowGroups;
+    }
+
+    /**
+     * Find a top-level column by name, ignoring case.
+     * @return The column, or {@code null} if there is no such column.
+     */
+    Column column(String name) {
+        return columns.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Decode the values of a column in a row group.
+     * @param group The row group.
+     * @param column The column, or {@code null} for all null values.
+     * @return The values of each row.
+     */
+    Values read(RowGroup group, Column column) {
+        if (column == null) return new Values(null, group.rows());
+        ColumnChunk chunk = group.chunks()[column.index];
+        if (chunk == null || chunk.values() != group.rows())
+            throw new IllegalStateException("Column " + column.name + " does not have a value per row");
+        Values values = new Values(column, group.rows());
+        Values dictionary = null;
+        long start = chunk.dictionaryPageOffset() > 0 && chunk.dictionaryPageOffset() < chunk.dataPageOffset()
+            ? chunk.dictionaryPageOffset() : chunk.dataPageOffset();
+        if (start < 4 || start >= footerStart) throw new IllegalStateException("Invalid Parquet page offset: " + start);
+        int position = (int) start;
+        int row = 0;
+        while (row < group.rows()) {
+            ThriftCompactReader r = new ThriftCompactReader(data, position, footerStart);
+            PageHeader header = new PageHeader();
+            r.readStruct((id, type) -> header.read(r, id, type));
+            position = r.position();
+            if (header.compressedSize < 0 || header.compressedSize > footerStart - position)
+                throw new IllegalStateException("Invalid Parquet page size: " + header.compressedSize);
+            int end = position + header.compressedSize;
+            switch (header.type) {
+                case DICTIONARY_PAGE -> {
+                    if (header.encoding != PLAIN && header.encoding != PLAIN_DICTIONARY)
+                        throw new IllegalStateException("Unsupported Parquet dictionary encoding: " + header.encoding);
+                    byte[] page = uncompress(chunk.codec(), position, header.compressedSize, header.uncompressedSize);
+                    dictionary = new Values(column, header.values);
+                    decodePlain(page, 0, page.length, dictionary, 0, header.values, null);
+                }
+                case DATA_PAGE, DATA_PAGE_V2 -> {
+                    if (header.values < 0 || header.values > group.rows() - row)
+                        throw new IllegalStateException("Invalid Parquet page value count: " + header.values);
+                    readDataPage(header, chunk.codec(), position, values, row, dictionary);
+                    row += header.values;
+                }
+                default -> {}
+            }
+            position = end;
+        }
+        return values;
+    }
+
+    private void readDataPage(PageHeader header, int codec, int position, Values values, int row, Values dictionary) {
+        byte[] page;
+        int p, end;
+        boolean[] defined = null;
+        int bitWidth = values.column.optional ? 1 : 0;
+        if (header.type == DATA_PAGE) {
+            page = uncompress(codec, position, header.compressedSize, header.uncompressedSize);
+            p = 0;
+            end = page.length;
+            if (bitWidth > 0) {
+                if (header.definitionLevelEncoding != RLE)
+                    throw new IllegalStateException("Unsupported Parquet definition level encoding: " + header.definitionLevelEncoding);
+                if (end - p < 4) throw new IllegalStateException("Truncated Parquet definition levels");
+                int length = readInt(page, p);
+                p += 4;
+                if (length < 0 || length > end - p) throw new IllegalStateException("Invalid Parquet definition levels length: " + length);
+                defined = new RunLengthDecoder(page, p, p + length, bitWidth).readDefined(header.values);
+                p += length;
+            }
+        } else {
+            int levels = header.repetitionLevelsLength + header.definitionLevelsLength;
+            if (header.repetitionLevelsLength != 0) throw new IllegalStateException("Repeated Parquet columns are not supported");
+            if (header.definitionLevelsLength < 0 || levels > header.compressedSize)
+                throw new IllegalStateException("Invalid Parquet definition levels length: " + header.definitionLevelsLength);
+            if (bitWidth > 0) {
+                defined = new RunLengthDecoder(data, position, position + levels, bitWidth).readDefined(header.values);
+            }
+            if (header.compressed) {
+                page = uncompress(codec, position + levels, header.compressedSize - levels, header.uncompressedSize - levels);
+                p = 0;
+                end = page.length;
+            } else {
+                page = data;
+                p = position + levels;
+                end = position + header.compressedSize;
+            }
+        }
+        switch (header.encoding) {
+            case PLAIN -> decodePlain(page, p, end, values, row, header.values, defined);
+            case PLAIN_DICTIONARY, RLE_DICTIONARY -> {
+                if (dictionary == null) throw new IllegalStateException("Parquet dictionary page missing for " + values.column.name);
+                // The bit width may be absent if all values are null
+                RunLengthDecoder indices = p < end ? new RunLengthDecoder(page, p + 1, end, page[p])
+                    : new RunLengthDecoder(page, end, end, 0);
+                for (int i = 0; i < header.values; ++i) {
+                    if (defined != null && !defined[i]) values.setNull(row + i);
+                    else values.copy(row + i, dictionary, indices.next());
+                }
+            }
+            case DELTA_BINARY_PACKED, DELTA_LENGTH_BYTE_ARRAY, DELTA_BYTE_ARRAY ->
+                decodeDelta(header.encoding, page, p, end, values, row, header.values, defined);
+            default -> throw new IllegalStateException("Unsupported Parquet encoding: " + header.encoding);
+        }
+    }
+
+    private static void decodeDelta(int encoding, byte[] page, int p, int end, Values values, int row, int n, boolean[] defined) {
+        int type = values.column.type;
+        boolean integers = type == INT32 || type == INT64;
+        if (encoding == DELTA_BINARY_PACKED ? !integers : type != BYTE_ARRAY)
+            throw new IllegalStateException("Unsupported Parquet encoding of " + values.column.name + ": " + encoding);
+        int count = n;
+        if (defined != null) for (int i = 0; i < n; ++i) if (!defined[i]) --count;
+        long[] deltas = new long[count];
+        long[] lengths = null;
+        p = decodeDeltas(page, p, end, deltas);
+        if (encoding == DELTA_BYTE_ARRAY) {
+            lengths = new long[count];
+            p = decodeDeltas(page, p, end, lengths);
+        }
+        byte[] previous = new byte[0];
+        for (int i = 0, k = 0; i < n; ++i) {
+            if (defined != null && !defined[i]) {
+                values.setNull(row + i);
+                continue;
+            }
+            long d = deltas[k++];
+            if (integers) {
+                values.longs[row + i] = type == INT32 ? (int) d : d;
+            } else if (encoding == DELTA_LENGTH_BYTE_ARRAY) {
+                if (d < 0 || d > end - p) throw new IllegalStateException("Truncated Parquet values of " + values.column.name);
+                values.strings[row + i] = values.decodeString(page, p, (int) d, row + i);
+                p += (int) d;
+            } else {
+                // Each value is a prefix of the previous value followed by a suffix
+                long suffix = lengths[k - 1];
+                if (d < 0 || d > previous.length || suffix < 0 || suffix > end - p)
+                    throw new IllegalStateException("Truncated Parquet values of " + values.column.name);
+                if (d == previous.length && suffix == 0 && i > 0 && !values.isNull(row + i - 1)) {
+                    values.strings[row + i] = values.strings[row + i - 1];
+                    continue;
+                }
+                byte[] v = Arrays.copyOf(previous, (int) (d + suffix));
+                System.arraycopy(page, p, v, (int) d, (int) suffix);
+                p += (int) suffix;
+                values.strings[row + i] = new String(v, StandardCharsets.UTF_8);
+                previous = v;
+            }
+        }
+    }
+
+    /**
+     * Decode DELTA_BINARY_PACKED integers.
+     * @param out Receives the values, of which there must be at least as many.
+     * @return The position after the encoded values.
+     */
+    private static int decodeDeltas(byte[] b, int p, int end, long[] out) {
+        int[] position = {p};
+        long blockSize = readVarint(b, position, end), miniBlocks = readVarint(b, position, end);
+        long total = readVarint(b, position, end), value = zigzag(readVarint(b, position, end));
+        if (blockSize <= 0 || blockSize % 128 != 0 || miniBlocks <= 0 || blockSize % miniBlocks != 0
+            || blockSize / miniBlocks % 32 != 0 || total < out.length)
+            throw new IllegalStateException("Invalid Parquet delta header");
+        int perMiniBlock = (int) (blockSize / miniBlocks);
+        long n = 0;
+        if (total > 0 && out.length > 0) out[0] = value;
+        if (total > 0) n = 1;
+        p = position[0];
+        while (n < total) {
+            position[0] = p;
+            long minDelta = zigzag(readVarint(b, position, end));
+            int widths = position[0];
+            p = widths + (int) miniBlocks;
+            if (p > end) throw new IllegalStateException("Truncated Parquet delta block");
+            for (int m = 0; m < miniBlocks && n < total; ++m) {
+                int width = b[widths + m] & 0xff;
+                int bytes = perMiniBlock / 8 * width;
+                if (width > 64 || bytes > end - p) throw new IllegalStateException("Truncated Parquet delta block");
+                for (int j = 0; j < perMiniBlock && n < total; ++j, ++n) {
+                    value += minDelta + readBits(b, p, (long) j * width, width);
+                    if (n < out.length) out[(int) n] = value;
+                }
+                p += bytes;
+            }
+        }
+        return p;
+    }
+
+    private static long readBits(byte[] b, int p, long bitIndex, int width) {
+        long v = 0;
+        int i = p + (int) (bitIndex >>> 3), shift = (int) (bitIndex & 7);
+        for (int got = 0; got < width; got += 8 - shift, shift = 0) {
+            v |= (long) ((b[i++] & 0xff) >>> shift) << got;
+        }
+        return width == 64 ? v : v & (1L << width) - 1;
+    }
+
+    private static long readVarint(byte[] b, int[] position, int end) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= end) throw new IllegalStateException("Truncated Parquet varint");
+            byte x = b[position[0]++];
+            v |= (long) (x & 0x7f) << shift;
+            if (x >= 0) return v;
+        }
+        throw new IllegalStateException("Invalid Parquet varint");
+    }
+
+    private static long zigzag(long n) {
+        return n >>> 1 ^ -(n & 1);
+    }
+
+    private static void decodePlain(byte[] page, int p, int end, Values values, int row, int n, boolean[] defined) {
+        int type = values.column.type;
+        int width = switch (type) {
+            case INT32, FLOAT -> 4;
+            case INT64, DOUBLE -> 8;
+            case INT96 -> 12;
+            case FIXED_LEN_BYTE_ARRAY -> values.column.typeLength;
+            case BYTE_ARRAY -> -1;
+            default -> throw new IllegalStateException("Unsupported Parquet type of " + values.column.name + ": " + type);
+        };
+        for (int i = 0; i < n; ++i) {
+            if (defined != null && !defined[i]) {
+                values.setNull(row + i);
+                continue;
+            }
+            int length = width;
+            if (width < 0) {
+                if (end - p < 4) throw new IllegalStateException("Truncated Parquet values of " + values.column.name);
+                length = readInt(page, p);
+                p += 4;
+            }
+            if (length < 0 || length > end - p) throw new IllegalStateException("Truncated Parquet values of " + values.column.name);
+            switch (type) {
+                case INT32 -> values.longs[row + i] = readInt(page, p);
+                case INT64 -> values.longs[row + i] = readLong(page, p);
+                case FLOAT -> values.doubles[row + i] = Float.intBitsToFloat(readInt(page, p));
+                case DOUBLE -> values.doubles[row + i] = Double.longBitsToDouble(readLong(page, p));
+                case INT96 -> {
+                    // Nanoseconds of the day followed by the Julian day
+                    long day = (readInt(page, p + 8) & 0xffffffffL) - JULIAN_EPOCH_DAY;
+                    values.longs[row + i] = day * 1440 + Math.floorDiv(readLong(page, p), 60_000_000_000L);
+                }
+                default -> values.strings[row + i] = values.decodeString(page, p, length, row + i);
+            }
+            p += length;
+        }
+    }
+
+    private byte[] uncompress(int codec, int offset, int length, int uncompressedLength) {
+        if (uncompressedLength < 0) throw new IllegalStateException("Invalid Parquet page size: " + uncompressedLength);
+        byte[] page = switch (codec) {
+            case 0 -> Arrays.copyOfRange(data, offset, offset + length);
+            case 1 -> Snappy.uncompress(data, offset, length, uncompressedLength);
+            case 2 -> {
+                try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data, offset, length))) {
+                    yield in.readNBytes(uncompressedLength);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            default -> throw new IllegalStateException("Unsupported Parquet compression codec: "
+                + (codec >= 0 && codec < CODECS.length ? CODECS[codec] : codec));
+        };
+        if (page.length != uncompressedLength) throw new IllegalStateException("Parquet page size differs from header");
+        return page;
+    }
+
+    private static int readInt(byte[] b, int p) {
+        return b[p] & 0xff | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16 | b[p + 3] << 24;
+    }
+
+    private static long readLong(byte[] b, int p) {
+        return readInt(b, p) & 0xffffffffL | (long) readInt(b, p + 4) << 32;
+    }
+
+    private static final class PageHeader {
+        int type = -1, uncompressedSize, compressedSize, values, encoding, definitionLevelEncoding = RLE;
+        int definitionLevelsLength, repetitionLevelsLength;
+        boolean compressed = true;
+
+        void read(ThriftCompactReader r, int id, int type) {
+            switch (id) {
+                case 1 -> this.type = r.readI32();
+                case 2 -> uncompressedSize = r.readI32();
+                case 3 -> compressedSize = r.readI32();
+                case 5 -> r.readStruct((did, dtype) -> {
+                    switch (did) {
+                        case 1 -> values = r.readI32();
+                        case 2 -> encoding = r.readI32();
+                        case 3 -> definitionLevelEncoding = r.readI32();
+                        default -> r.skip(dtype);
+                    }
+                });
+                case 7 -> r.readStruct((did, dtype) -> {
+                    switch (did) {
+                        case 1 -> values = r.readI32();
+                        case 2 -> encoding = r.readI32();
+                        default -> r.skip(dtype);
+                    }
+                });
+                case 8 -> r.readStruct((did, dtype) -> {
+                    switch (did) {
+                        case 1 -> values = r.readI32();
+                        case 4 -> encoding = r.readI32();
+                        case 5 -> definitionLevelsLength = r.readI32();
+                        case 6 -> repetitionLevelsLength = r.readI32();
+                        case 7 -> compressed = dtype == ThriftCompactReader.BOOLEAN_TRUE;
+                        default -> r.skip(dtype);
+                    }
+                });
+                default -> r.skip(type);
+            }
+        }
+    }
+
+    /**
+     * Decodes the RLE/bit-packing hybrid encoding of definition levels
+     * and dictionary indices.
+     */
+    private static final class RunLengthDecoder {
+        private final byte[] b;
+        private int p;
+        private final int end;
+        private final int bitWidth;
+        private int repeats, packed, value;
+        private long bits;
+        private int bitCount;
+
+        RunLengthDecoder(byte[] b, int p, int end, int bitWidth) {
+            if (bitWidth < 0 || bitWidth > 32) throw new IllegalStateException("Invalid Parquet bit width: " + bitWidth);
+            this.b = b;
+            this.p = p;
+            this.end = end;
+            this.bitWidth = bitWidth;
+        }
+
+        boolean[] readDefined(int n) {
+            boolean[] defined = new boolean[n];
+            for (int i = 0; i < n; ++i) defined[i] = next() != 0;
+            return defined;
+        }
+
+        int next() {
+            if (repeats == 0 && packed == 0) readHeader();
+            if (repeats > 0) {
+                --repeats;
+                return value;
+            }
+            --packed;
+            while (bitCount < bitWidth) {
+                bits |= (long) (b[p++] & 0xff) << bitCount;
+                bitCount += 8;
+            }
+            int v = (int) (bits & (1L << bitWidth) - 1);
+            bits >>>= bitWidth;
+            bitCount -= bitWidth;
+            return v;
+        }
+
+        private void readHeader() {
+            long header = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (p >= end || shift > 28) throw new IllegalStateException("Truncated Parquet run-length data");
+                byte x = b[p++];
+                header |= (long) (x & 0x7f) << shift;
+                if (x >= 0) break;
+            }
+            bits = 0;
+            bitCount = 0;
+            if ((header & 1) == 0) {
+                int bytes = (bitWidth + 7) / 8;
+                if (end - p < bytes) throw new IllegalStateException("Truncated Parquet run-length data");
+                value = 0;
+                for (int i = 0; i < bytes; ++i) value |= (b[p++] & 0xff) << 8 * i;
+                repeats = (int) (header >>> 1);
+                if (repeats <= 0) readHeader();
+            } else {
+                long groups = header >>> 1;
+                if (groups <= 0 || groups * bitWidth > end - p) throw new IllegalStateException("Truncated Parquet bit-packed data");
+                packed = (int) (groups * 8);
+            }
+        }
+    }
+
+    /**
+     * The values of a column in a row group. Integers and timestamps are
+     * held as longs, floating point numbers as doubles, and byte arrays
+     * as strings.
+     */
+    static final class Values {
+        private final Column column;
+        private final boolean missing;
+        private boolean[] nulls;
+        private long[] longs;
+        private double[] doubles;
+        private String[] strings;
+
+        Values(Column column, int size) {
+            this.column = column;
+            missing = column == null;
+            if (missing) return;
+            switch (column.type) {
+                case INT32, INT64, INT96 -> longs = new long[size];
+                case FLOAT, DOUBLE -> doubles = new double[size];
+                case BYTE_ARRAY, FIXED_LEN_BYTE_ARRAY -> strings = new String[size];
+                default -> throw new IllegalStateException("Unsupported Parquet type of " + column.name + ": " + column.type);
+            }
+        }
+
+        private void setNull(int row) {
+            if (nulls == null) nulls = new boolean[longs != null ? longs.length : doubles != null ? doubles.length : strings.length];
+            nulls[row] = true;
+        }
+
+        private void copy(int row, Values dictionary, int index) {
+            if (index < 0 || index >= dictionary.size()) throw new IllegalStateException("Invalid Parquet dictionary index: " + index);
+            if (longs != null) longs[row] = dictionary.longs[index];
+            else if (doubles != null) doubles[row] = dictionary.doubles[index];
+            else strings[row] = dictionary.strings[index];
+        }
+
+        private int size() {
+            return longs != null ? longs.length : doubles != null ? doubles.length : strings.length;
+        }
+
+        /**
+         * Decode a string, reusing the previous row's string if equal.
+         */
+        private String decodeString(byte[] b, int p, int length, int row) {
+            if (row > 0 && strings[row - 1] != null && strings[row - 1].length() == length) {
+                String previous = strings[row - 1];
+                int i = 0;
+                while (i < length && previous.charAt(i) == (b[p + i] & 0xff) && b[p + i] >= 0) ++i;
+                if (i == length) return previous;
+            }
+            return new String(b, p, length, StandardCharsets.UTF_8);
+        }
+
+        boolean isNull(int row) {
+            return missing || nulls != null && nulls[row];
+        }
+
+        String string(int row) {
+            if (isNull(row)) return null;
+            if (strings != null) return strings[row];
+            if (longs != null) return Long.toString(longs[row]);
+            return Double.toString(doubles[row]);
+        }
+
+        int integer(int row) {
+            if (isNull(row)) return 0;
+            if (longs == null || column.unitsPerMinute != 0)
+                throw new IllegalStateException("Column " + column.name + " is not an integer");
+            long v = longs[row];
+            if (v != (int) v) throw new IllegalStateException("Value of " + column.name + " out of range: " + v);
+            return (int) v;
+        }
+
+        double number(int row) {
+            if (isNull(row)) return Double.NaN;
+            if (doubles != null) return doubles[row];
+            if (longs != null && column.unitsPerMinute == 0) return longs[row];
+            throw new IllegalStateException("Column " + column.name + " is not a number");
+        }
+
+        /**
+         * Get a timestamp column value as minutes since the epoch.
+         * @return Minutes since 1970-01-01T00:00Z, or {@link Long#MIN_VALUE} if null.
+         */
+        long epochMinute(int row) {
+            if (isNull(row)) return Long.MIN_VALUE;
+            if (strings != null) return ColumnarMeasurementReader.epochMinute(strings[row]);
+            if (longs == null || column.unitsPerMinute == 0)
+                throw new IllegalStateException("Column " + column.name + " is not a timestamp");
+            return Math.floorDiv(longs[row], column.unitsPerMinute);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.MeasurementBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.time.DateTimeException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Queue;
+
+/**
+ * Reads the measurements of a VanDa Hydro measurement response in
+ * Parquet format into {@linkplain MeasurementBatch columnar batches}.
+ * The file has a row per measurement, with columns named like the
+ * fields of the JSON response, e.g. {@code stationId} and
+ * {@code measurementDateTime}. Missing columns are taken as null.
+ * <p>The measurement time may be a timestamp or an RFC 3339 string.
+ * A new batch is started whenever station, measurement point,
+ * parameter, examination type or unit changes from one row to the
+ * next, and batches are returned in file order.</p>
+ * <p>As the metadata of a Parquet file is at its end, the whole response
+ * is read into memory before the first batch is available. The row
+ * groups are then decoded one at a time. Only the subset of Parquet used
+ * for such responses is supported, see {@link ParquetFile}.</p>
+ * <p>The underlying stream is closed when the response has been read,
+ * when reading fails, or when the reader is closed.
+ * Instances are not safe for use by multiple concurrent threads.</p>
+ */
+public class ParquetMeasurementReader implements Iterator<MeasurementBatch>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private final InputStream body;
+    private final boolean elevationCorrected;
+    private final String description;
+    private final Queue<ColumnarMeasurementBatch> ready = new ArrayDeque<>();
+    private ParquetFile file;
+    private Iterator<ParquetFile.RowGroup> rowGroups;
+    private ColumnarMeasurementBatch batch;
+    private long rows = -1;
+    private boolean ended, closed;
+
+    /**
+     * Construct a reader.
+     * @param body The response body, or {@code null} if there is no response body.
+     * @param elevationCorrected Whether the measurements have results
+     *         corrected for elevation, i.e. are water levels.
+     * @param description Description of the response origin, used for logging.
+     */
+    public ParquetMeasurementReader(InputStream body, boolean elevationCorrected, String description) {
+        this.body = body;
+        this.elevationCorrected = elevationCorrected;
+        this.description = description;
+        ended = body == null;
+        if (ended) rows = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return prefetch();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public MeasurementBatch next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return ready.poll();
+    }
+
+    /**
+     * Read ahead until the next batch is available or the end of the
+     * response is reached. Unlike {@link #hasNext()}, failures to read
+     * are reported as checked exceptions.
+     * @return Whether there is a next batch.
+     * @throws IOException If the response cannot be read.
+     */
+    boolean prefetch() throws IOException {
+        try {
+            while (ready.isEmpty() && !ended) readRowGroup();
+        } catch (IOException | UncheckedIOException | IllegalStateException | DateTimeException e) {
+            close();
+            throw new IOException("Cannot deserialize measurements from " + description, e);
+        }
+        if (ready.isEmpty()) close();
+        return !ready.isEmpty();
+    }
+
+    /**
+     * Get the number of rows of the response, which is the number of
+     * measurements in all its batches.
+     * @return The number of rows, or -1 if the response is not yet read.
+     */
+    long rowCount() {
+        return rows;
+    }
+
+    private void readRowGroup() throws IOException {
+        if (file == null) {
+            byte[] data = body.readAllBytes();
+            closeBody();
+            if (isWhitespace(data)) {
+                ended = true;
+                rows = 0;
+                return;
+            }
+            file = new ParquetFile(data, data.length);
+            rowGroups = file.rowGroups().iterator();
+            rows = file.rowGroups().stream().mapToLong(ParquetFile.RowGroup::rows).sum();
+        }
+        if (!rowGroups.hasNext()) {
+            if (batch != null) {
+                batch.trim();
+                ready.add(batch);
+                batch = null;
+            }
+            ended = true;
+            return;
+        }
+        ParquetFile.RowGroup g = rowGroups.next();
+        ParquetFile.Values stationIds = read(g, "stationId");
+        ParquetFile.Values operatorStationIds = read(g, "operatorStationId");
+        ParquetFile.Values measurementPointNumbers = read(g, "measurementPointNumber");
+        ParquetFile.Values parameterScs = read(g, "parameterSc");
+        ParquetFile.Values parameters = read(g, "parameter");
+        ParquetFile.Values examinationTypeScs = read(g, "examinationTypeSc");
+        ParquetFile.Values examinationTypes = read(g, "examinationType");
+        ParquetFile.Values unitScs = read(g, "unitSc");
+        ParquetFile.Values units = read(g, "unit");
+        ParquetFile.Values times = read(g, "measurementDateTime");
+        ParquetFile.Values results = read(g, "result");
+        ParquetFile.Values corrected = elevationCorrected ? read(g, "resultElevationCorrected") : read(g, null);
+        for (int i = 0; i < g.rows(); ++i) {
+            String stationId = stationIds.string(i), operatorStationId = operatorStationIds.string(i);
+            int measurementPointNumber = measurementPointNumbers.integer(i);
+            int parameterSc = parameterScs.integer(i), examinationTypeSc = examinationTypeScs.integer(i), unitSc = unitScs.integer(i);
+            String parameter = parameters.string(i), examinationType = examinationTypes.string(i), unit = units.string(i);
+            if (batch == null || !Objects.equals(batch.stationId, stationId) || !Objects.equals(batch.operatorStationId, operatorStationId)
+                || !batch.accepts(measurementPointNumber, parameterSc, parameter, examinationTypeSc, examinationType, unitSc, unit))
+            {
+                if (batch != null) {
+                    batch.trim();
+                    ready.add(batch);
+                }
+                batch = new ColumnarMeasurementBatch(measurementPointNumber, parameterSc, parameter,
+                    examinationTypeSc, examinationType, unitSc, unit, elevationCorrected);
+                batch.stationId = stationId;
+                batch.operatorStationId = operatorStationId;
+            }
+            batch.add(times.epochMinute(i), results.number(i), corrected.number(i));
+        }
+    }
+
+    private ParquetFile.Values read(ParquetFile.RowGroup g, String name) {
+        return file.read(g, name == null ? null : file.column(name));
+    }
+
+    private static boolean isWhitespace(byte[] data) {
+        for (byte b : data) if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return false;
+        return true;
+    }
+
+    private void closeBody() {
+        if (body != null && !closed) try {
+            closed = true;
+            body.close();
+        } catch (IOException e) {
+            log.debug("Cannot close response from {}", description, e);
+        }
+    }
+
+    /**
+     * Close the underlying stream. Batches that are not yet read are
+     * discarded.
+     */
+    @Override
+    public void close() {
+        ended = true;
+        ready.clear();
+        batch = null;
+        file = null;
+        closeBody();
+    }
+}
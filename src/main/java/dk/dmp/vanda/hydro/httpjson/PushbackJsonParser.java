@@ -0,0 +1,104 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import jakarta.json.JsonArray;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonValue;
+import jakarta.json.stream.JsonLocation;
+import jakarta.json.stream.JsonParser;
+
+import java.math.BigDecimal;
+
+/**
+ * Lets a decoder that expects to pull the first event of a value
+ * itself see the event that has already been pulled.
+ */
+class PushbackJsonParser implements JsonParser {
+    private final JsonParser parser;
+    private Event pushedBack;
+
+    PushbackJsonParser(JsonParser parser) {
+        this.parser = parser;
+    }
+
+    void pushback(Event e) {
+        pushedBack = e;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return pushedBack != null || parser.hasNext();
+    }
+
+    @Override
+    public Event next() {
+        if (pushedBack == null) return parser.next();
+        Event e = pushedBack;
+        pushedBack = null;
+        return e;
+    }
+
+    @Override
+    public Event currentEvent() {
+        return parser.currentEvent();
+    }
+
+    @Override
+    public String getString() {
+        return parser.getString();
+    }
+
+    @Override
+    public boolean isIntegralNumber() {
+        return parser.isIntegralNumber();
+    }
+
+    @Override
+    public int getInt() {
+        return parser.getInt();
+    }
+
+    @Override
+    public long getLong() {
+        return parser.getLong();
+    }
+
+    @Override
+    public BigDecimal getBigDecimal() {
+        return parser.getBigDecimal();
+    }
+
+    @Override
+    public JsonLocation getLocation() {
+        return parser.getLocation();
+    }
+
+    @Override
+    public JsonObject getObject() {
+        return parser.getObject();
+    }
+
+    @Override
+    public JsonValue getValue() {
+        return parser.getValue();
+    }
+
+    @Override
+    public JsonArray getArray() {
+        return parser.getArray();
+    }
+
+    @Override
+    public void skipObject() {
+        parser.skipObject();
+    }
+
+    @Override
+    public void skipArray() {
+        parser.skipArray();
+    }
+
+    @Override
+    public void close() {
+        // The underlying parser is closed by its owner.
+    }
+}
@@ -0,0 +1,559 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService;
+import dk.dmp.vanda.hydro.Measurement;
+import dk.dmp.vanda.hydro.MeasurementBatch;
+import dk.dmp.vanda.hydro.WaterLevelMeasurement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoublePredicate;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link HydrometryService} that keeps the measurements fetched from
+ * another hydrometry service, and remembers which time windows of each
+ * station and measurement point it has fetched.
+ * <p>A water level or water flow request by {@linkplain
+ * GetMeasurements#stationId(String) station ID} with both {@linkplain
+ * GetMeasurements#from(OffsetDateTime) from} and {@linkplain
+ * GetMeasurements#to(OffsetDateTime) to} is answered from the stored
+ * measurements where the window has been fetched before, and only the
+ * parts of the window not yet fetched are requested. Each such gap is
+ * requested on its own, with the other conditions of the request,
+ * including a {@linkplain GetMeasurements#splitWindow(Duration) split}.
+ * The measurements are returned in ascending order of measurement time.
+ * Requests by operator station ID, with {@linkplain
+ * GetMeasurements#createdAfter(OffsetDateTime) createdAfter}, or without
+ * a window are passed on unchanged, as are columnar requests, station
+ * requests and batches.</p>
+ * <p>Since measurements may still arrive for the current minute and the
+ * future, only the part of a window before the minute it was fetched in
+ * is remembered as fetched. Measurements corrected by the service later
+ * are not noticed until the cache is {@linkplain #invalidateAll()
+ * invalidated}. When more than a given number of measurements are
+ * stored, the least recently used series are evicted.</p>
+ * <p>The returned measurements are shared between callers.
+ * All the methods in this class are safe for use by multiple
+ * concurrent threads. However, the operations builders are not.</p>
+ */
+public class RangeCachingHydrometryService implements HydrometryService {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private final HydrometryService service;
+    private final long maxMeasurements;
+    private final Clock clock;
+    private final ConcurrentHashMap<SeriesKey, Series<?>> series = new ConcurrentHashMap<>();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong uses = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Construct the cache.
+     * @param service The service to fetch measurements from.
+     * @param maxMeasurements The maximum number of measurements to store.
+     */
+    public RangeCachingHydrometryService(HydrometryService service, long maxMeasurements) {
+        this(service, maxMeasurements, Clock.systemUTC());
+    }
+
+    /**
+     * Construct the cache.
+     * @param service The service to fetch measurements from.
+     * @param maxMeasurements The maximum number of measurements to store.
+     * @param clock The clock telling which minutes may still get measurements.
+     */
+    public RangeCachingHydrometryService(HydrometryService service, long maxMeasurements, Clock clock) {
+        this.service = Objects.requireNonNull(service);
+        this.maxMeasurements = maxMeasurements;
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    @Override
+    public GetStationsOperation getStations() {
+        return service.getStations();
+    }
+
+    @Override
+    public GetWaterLevelsOperation getWaterLevels() {
+        return new WaterLevelsRequest();
+    }
+
+    @Override
+    public GetWaterFlowsOperation getWaterFlows() {
+        return new WaterFlowsRequest();
+    }
+
+    @Override
+    public GetWaterLevelsBatchOperation getWaterLevelsBatch() {
+        return service.getWaterLevelsBatch();
+    }
+
+    @Override
+    public GetWaterFlowsBatchOperation getWaterFlowsBatch() {
+        return service.getWaterFlowsBatch();
+    }
+
+    /**
+     * Forget all stored measurements and fetched windows.
+     */
+    public void invalidateAll() {
+        for (SeriesKey key : series.keySet()) evict(key, true);
+    }
+
+    /**
+     * Get the number of requests answered without contacting the service.
+     * @return Number of cache hits.
+     */
+    public long hitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests passed on to the underlying service,
+     * including each gap of a partially fetched window.
+     * @return Number of requests made.
+     */
+    public long requestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of stored measurements.
+     * @return Number of measurements.
+     */
+    public long size() {
+        return size.get();
+    }
+
+    private static long minutes(OffsetDateTime t) {
+        return Math.floorDiv(t.toEpochSecond(), 60);
+    }
+
+    private static OffsetDateTime dateTime(long minutes) {
+        return OffsetDateTime.ofInstant(Instant.ofEpochSecond(minutes * 60), ZoneOffset.UTC);
+    }
+
+    private <T extends Measurement> Series<T> series(SeriesKey key) {
+        @SuppressWarnings("unchecked")
+        Series<T> s = (Series<T>) series.computeIfAbsent(key, k -> new Series<>());
+        return s;
+    }
+
+    private void evictIfFull(SeriesKey current) {
+        while (size.get() > maxMeasurements) {
+            SeriesKey eldest = null;
+            long eldestUse = Long.MAX_VALUE;
+            for (Map.Entry<SeriesKey, Series<?>> e : series.entrySet()) {
+                if (! e.getKey().equals(current) && e.getValue().lastUse < eldestUse) {
+                    eldest = e.getKey();
+                    eldestUse = e.getValue().lastUse;
+                }
+            }
+            if (eldest == null || ! evict(eldest, false)) return;
+        }
+    }
+
+    private boolean evict(SeriesKey key, boolean wait) {
+        Series<?> s = series.get(key);
+        if (s == null) return true;
+        if (wait) s.lock.lock();
+        else if (! s.lock.tryLock()) return false;
+        try {
+            if (s.evicted) return true;
+            series.remove(key, s);
+            s.evicted = true;
+            size.addAndGet(-s.count);
+            log.debug("Evicted {} measurements of {}", s.count, key);
+        } finally {
+            s.lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Identifies the measurements of a station by operation, since water
+     * levels and water flows are different series, and measurement point,
+     * where {@code null} stands for all measurement points.
+     */
+    private record SeriesKey(String operation, String stationId, Integer measurementPointNumber) {}
+
+    /**
+     * The stored measurements of a station, and the windows fetched, as
+     * inclusive intervals of minutes since the epoch. Guarded by the lock.
+     */
+    private static class Series<T extends Measurement> {
+        final ReentrantLock lock = new ReentrantLock();
+        final TreeMap<Long, Long> fetched = new TreeMap<>();
+        final TreeMap<Long, List<T>> measurements = new TreeMap<>();
+        long count = 0;
+        volatile long lastUse;
+        boolean evicted = false;
+
+        List<TimeWindow> gaps(long first, long last) {
+            List<TimeWindow> gaps = new ArrayList<>();
+            long start = first;
+            Map.Entry<Long, Long> before = fetched.floorEntry(start);
+            if (before != null && before.getValue() >= start) start = before.getValue() + 1;
+            if (start > last) return gaps;
+            for (Map.Entry<Long, Long> w : fetched.subMap(start, true, last, true).entrySet()) {
+                if (w.getKey() > start) gaps.add(new TimeWindow(dateTime(start), dateTime(w.getKey() - 1)));
+                start = Math.max(start, w.getValue() + 1);
+            }
+            if (start <= last) gaps.add(new TimeWindow(dateTime(start), dateTime(last)));
+            return gaps;
+        }
+
+        void markFetched(long first, long last) {
+            Map.Entry<Long, Long> before = fetched.floorEntry(first);
+            if (before != null && before.getValue() >= first - 1) {
+                first = before.getKey();
+                last = Math.max(last, before.getValue());
+            }
+            Iterator<Long> i = fetched.subMap(first, true, last + 1, true).values().iterator();
+            while (i.hasNext()) {
+                last = Math.max(last, i.next());
+                i.remove();
+            }
+            fetched.put(first, last);
+        }
+
+        /**
+         * Replace the stored measurements of a window.
+         * @return The change in the number of stored measurements.
+         */
+        long replace(long first, long last, List<T> fetchedMeasurements) {
+            long before = count;
+            Map<Long, List<T>> window = measurements.subMap(first, true, last, true);
+            for (List<T> l : window.values()) count -= l.size();
+            window.clear();
+            for (T m : fetchedMeasurements) {
+                if (m.measurementDateTime() == null) continue;
+                measurements.computeIfAbsent(minutes(m.measurementDateTime()), k -> new ArrayList<>(1)).add(m);
+                ++count;
+            }
+            return count - before;
+        }
+
+        List<T> get(long first, long last) {
+            List<T> result = new ArrayList<>();
+            for (List<T> l : measurements.subMap(first, true, last, true).values()) result.addAll(l);
+            return result;
+        }
+    }
+
+    private class WaterLevelsRequest extends CachedMeasurementsRequest<WaterLevelMeasurement> implements GetWaterLevelsOperation {
+        @Override
+        protected GetMeasurements<WaterLevelMeasurement> newRequest() {
+            return service.getWaterLevels();
+        }
+
+        @Override
+        protected String operation() {
+            return "water-levels";
+        }
+    }
+
+    private class WaterFlowsRequest extends CachedMeasurementsRequest<Measurement> implements GetWaterFlowsOperation {
+        @Override
+        protected GetMeasurements<Measurement> newRequest() {
+            return service.getWaterFlows();
+        }
+
+        @Override
+        protected String operation() {
+            return "water-flows";
+        }
+    }
+
+    private abstract class CachedMeasurementsRequest<T extends Measurement> implements GetMeasurements<T> {
+        private String stationId, operatorStationId;
+        private Integer measurementPointNumber;
+        private OffsetDateTime from, to, createdAfter;
+        private Duration chunkLength;
+        private Integer maxConcurrency, maxAttempts, prefetch, maxBufferedMeasurements;
+        private Set<String> fields;
+        private final MeasurementFilter filter = new MeasurementFilter();
+
+        protected abstract GetMeasurements<T> newRequest();
+
+        protected abstract String operation();
+
+        @Override
+        public Iterator<T> exec() throws IOException, InterruptedException {
+            if (isPassThrough()) {
+                requests.incrementAndGet();
+                return passThrough().exec();
+            }
+            return cached().iterator();
+        }
+
+        /**
+         * A cached result is a list, so the stream is sized, and closing
+         * it is only needed for requests passed on.
+         */
+        @Override
+        public Stream<T> stream() throws IOException, InterruptedException {
+            if (isPassThrough()) {
+                requests.incrementAndGet();
+                return passThrough().stream();
+            }
+            List<T> result = cached();
+            return StreamSupport.stream(Spliterators.spliterator(result, Spliterator.ORDERED | Spliterator.NONNULL), false);
+        }
+
+        /**
+         * A cached result is published from a virtual thread, which
+         * fetches the gaps of the window.
+         */
+        @Override
+        public Flow.Publisher<T> publisher() {
+            if (isPassThrough()) {
+                GetMeasurements<T> request = passThrough();
+                return subscriber -> {
+                    requests.incrementAndGet();
+                    request.publisher().subscribe(subscriber);
+                };
+            }
+            return new StreamPublisher<>(() -> CompletableFuture.supplyAsync(() -> {
+                try {
+                    return stream();
+                } catch (IOException | InterruptedException e) {
+                    throw new CompletionException(e);
+                }
+            }, VirtualThreads.executor), VirtualThreads.executor);
+        }
+
+        private boolean isPassThrough() {
+            return stationId == null || operatorStationId != null || createdAfter != null || from == null || to == null;
+        }
+
+        private List<T> cached() throws IOException, InterruptedException {
+            TimeWindow window = TimeWindow.of(from, to);
+            long first = minutes(window.from());
+            long last = minutes(window.to());
+            SeriesKey key = new SeriesKey(operation(), stationId, measurementPointNumber);
+            List<T> result;
+            while (true) {
+                Series<T> s = series(key);
+                s.lock.lock();
+                try {
+                    if (s.evicted) continue;
+                    s.lastUse = uses.incrementAndGet();
+                    result = fetch(s, first, last);
+                    break;
+                } finally {
+                    s.lock.unlock();
+                }
+            }
+            evictIfFull(key);
+            // The cache holds all the measurements of the window, so they are filtered afterwards
+            if (filter.isEmpty()) return result;
+            List<T> accepted = new ArrayList<>();
+            for (T m : result) if (filter.accepts(m)) accepted.add(m);
+            return accepted;
+        }
+
+        /**
+         * Columnar results are not cached, since the cache holds
+         * measurement objects.
+         */
+        @Override
+        public Iterator<MeasurementBatch> execColumnar() throws IOException, InterruptedException {
+            requests.incrementAndGet();
+            return passThrough().execColumnar();
+        }
+
+        private GetMeasurements<T> passThrough() {
+            GetMeasurements<T> request = newRequest();
+            configure(request);
+            if (from != null) request.from(from);
+            if (to != null) request.to(to);
+            if (createdAfter != null) request.createdAfter(createdAfter);
+            if (fields != null) request.fields(fields);
+            filter.applyTo(request);
+            return request;
+        }
+
+        private List<T> fetch(Series<T> s, long first, long last) throws IOException, InterruptedException {
+            List<TimeWindow> gaps = s.gaps(first, last);
+            if (gaps.isEmpty()) hits.incrementAndGet();
+            long now = minutes(OffsetDateTime.now(clock));
+            for (TimeWindow gap : gaps) {
+                GetMeasurements<T> request = newRequest();
+                configure(request);
+                request.from(gap.from());
+                request.to(gap.to());
+                requests.incrementAndGet();
+                List<T> fetched = new ArrayList<>();
+                try {
+                    request.exec().forEachRemaining(fetched::add);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                long gapFirst = minutes(gap.from());
+                long gapLast = minutes(gap.to());
+                size.addAndGet(s.replace(gapFirst, gapLast, fetched));
+                if (Math.min(gapLast, now - 1) >= gapFirst) s.markFetched(gapFirst, Math.min(gapLast, now - 1));
+            }
+            return s.get(first, last);
+        }
+
+        private void configure(GetMeasurements<T> request) {
+            if (stationId != null) request.stationId(stationId);
+            if (operatorStationId != null) request.operatorStationId(operatorStationId);
+            if (measurementPointNumber != null) request.measurementPointNumber(measurementPointNumber);
+            if (chunkLength != null) request.splitWindow(chunkLength);
+            if (maxConcurrency != null) request.maxConcurrency(maxConcurrency);
+            if (maxAttempts != null) request.maxAttempts(maxAttempts);
+            if (prefetch != null) request.prefetch(prefetch);
+            if (maxBufferedMeasurements != null) request.maxBufferedMeasurements(maxBufferedMeasurements);
+        }
+
+        @Override
+        public CompletableFuture<Iterator<T>> execAsync() {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return exec();
+                } catch (IOException | InterruptedException e) {
+                    throw new CompletionException(e);
+                }
+            }, VirtualThreads.executor);
+        }
+
+        @Override
+        public void stationId(String stationId) {
+            this.stationId = stationId;
+        }
+
+        @Override
+        public void operatorStationId(String operatorStationId) {
+            this.operatorStationId = operatorStationId;
+        }
+
+        @Override
+        public void measurementPointNumber(int measurementPointNumber) {
+            this.measurementPointNumber = measurementPointNumber;
+        }
+
+        @Override
+        public void from(OffsetDateTime pointInTime) {
+            this.from = pointInTime;
+        }
+
+        @Override
+        public void to(OffsetDateTime pointInTime) {
+            this.to = pointInTime;
+        }
+
+        @Override
+        public void createdAfter(OffsetDateTime pointInTime) {
+            this.createdAfter = pointInTime;
+        }
+
+        @Override
+        public void splitWindow(Duration chunkLength) {
+            if (chunkLength.toMinutes() < 1)
+                throw new IllegalArgumentException("Chunk length must be at least a minute: " + chunkLength);
+            this.chunkLength = chunkLength;
+        }
+
+        @Override
+        public void maxConcurrency(int maxConcurrency) {
+            if (maxConcurrency < 1)
+                throw new IllegalArgumentException("Max concurrency must be at least 1: " + maxConcurrency);
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        @Override
+        public void prefetch(int chunks) {
+            if (chunks < 1)
+                throw new IllegalArgumentException("Prefetch must be at least 1: " + chunks);
+            this.prefetch = chunks;
+        }
+
+        @Override
+        public void maxBufferedMeasurements(int measurements) {
+            if (measurements < 1)
+                throw new IllegalArgumentException("Max buffered measurements must be at least 1: " + measurements);
+            this.maxBufferedMeasurements = measurements;
+        }
+
+        @Override
+        public void maxAttempts(int maxAttempts) {
+            if (maxAttempts < 1)
+                throw new IllegalArgumentException("Max attempts must be at least 1: " + maxAttempts);
+            this.maxAttempts = maxAttempts;
+        }
+
+        /**
+         * The projection applies to requests passed on. The cache holds
+         * measurements with all their fields, since they are shared.
+         */
+        @Override
+        public void fields(Collection<String> fields) {
+            for (String f : fields) {
+                if (!JsonDecoder.MEASUREMENT_FIELDS.contains(f)) throw new IllegalArgumentException("Unknown field: " + f);
+            }
+            if (this.fields == null) this.fields = new HashSet<>();
+            this.fields.addAll(fields);
+        }
+
+        /**
+         * The conditions are tested while parsing by requests passed on,
+         * while cached measurements are tested when they are returned.
+         */
+        @Override
+        public void filterResult(DoublePredicate condition) {
+            filter.result(condition);
+        }
+
+        @Override
+        public void filterMeasurementTime(LongPredicate condition) {
+            filter.measurementTime(condition);
+        }
+
+        @Override
+        public void filterParameterSc(IntPredicate condition) {
+            filter.parameterSc(condition);
+        }
+
+        @Override
+        public void filterExaminationTypeSc(IntPredicate condition) {
+            filter.examinationTypeSc(condition);
+        }
+
+        @Override
+        public void filterUnitSc(IntPredicate condition) {
+            filter.unitSc(condition);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.net.SocketTimeoutException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A {@link StreamService} that retries failed requests to another
+ * stream service, and stops sending requests for a while when the
+ * service keeps failing.
+ * <p>A request is retried if it failed by an {@link IOException} other
+ * than {@link HttpResponseException}, {@link CircuitOpenException} or an
+ * interruption, or by a response with status 408,
+ * 429, 500, 502, 503 or 504. It is retried up to a maximum number of
+ * attempts, waiting a random time between half and all of an
+ * exponentially increasing backoff before each retry, but at least as
+ * long as a {@code Retry-After} header asks. If {@code Retry-After}
+ * asks for more than the maximum backoff, the request is not retried.</p>
+ * <p>After a number of consecutive failed attempts, the circuit breaker
+ * opens, and requests fail by {@link CircuitOpenException} without
+ * being sent. When the break has passed, a single trial request is let
+ * through. If it succeeds, the circuit closes, otherwise it opens again.
+ * A response with a status that is not retried counts as success here,
+ * since the service did respond.</p>
+ * <p>Only sending the request and receiving the response headers is
+ * retried. Failures while the body is read are reported to the reader.
+ * Conditional requests are retried alike.</p>
+ * <p>All the methods in this class are safe for use by multiple
+ * concurrent threads.</p>
+ */
+public class ResilientStreamService implements ConditionalStreamService {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private static final Set<Integer> RETRYABLE_STATUS = Set.of(408, 429, 500, 502, 503, 504);
+    private final StreamService streamService;
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final int failureThreshold;
+    private final Duration breakDuration;
+    private final Clock clock;
+    private final Object lock = new Object();
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private Instant openUntil = Instant.MIN;
+    private boolean trialInFlight = false;
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * The state of the circuit breaker.
+     */
+    public enum State {
+        /** Requests are sent. */
+        CLOSED,
+        /** Requests fail without being sent. */
+        OPEN,
+        /** A trial request is sent, the others fail without being sent. */
+        HALF_OPEN
+    }
+
+    /**
+     * Construct the resilience layer.
+     * @param streamService The service to send requests to.
+     * @param maxAttempts The maximum number of attempts per request.
+     * @param initialBackoff The backoff before the first retry, doubled for each following retry.
+     * @param maxBackoff The maximum backoff.
+     * @param failureThreshold The number of consecutive failures that opens the circuit breaker.
+     * @param breakDuration How long the circuit breaker stays open.
+     * @throws IllegalArgumentException If a number is not positive or a duration is negative.
+     */
+    public ResilientStreamService(StreamService streamService, int maxAttempts, Duration initialBackoff, Duration maxBackoff,
+                                  int failureThreshold, Duration breakDuration) {
+        this(streamService, maxAttempts, initialBackoff, maxBackoff, failureThreshold, breakDuration, Clock.systemUTC());
+    }
+
+    /**
+     * Construct the resilience layer.
+     * @param streamService The service to send requests to.
+     * @param maxAttempts The maximum number of attempts per request.
+     * @param initialBackoff The backoff before the first retry, doubled for each following retry.
+     * @param maxBackoff The maximum backoff.
+     * @param failureThreshold The number of consecutive failures that opens the circuit breaker.
+     * @param breakDuration How long the circuit breaker stays open.
+     * @param clock The clock to measure the break and {@code Retry-After} dates by.
+     * @throws IllegalArgumentException If a number is not positive or a duration is negative.
+     */
+    public ResilientStreamService(StreamService streamService, int maxAttempts, Duration initialBackoff, Duration maxBackoff,
+                                  int failureThreshold, Duration breakDuration, Clock clock) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("Maximum attempts must be positive: " + maxAttempts);
+        if (failureThreshold < 1)
+            throw new IllegalArgumentException("Failure threshold must be positive: " + failureThreshold);
+        if (initialBackoff.isNegative() || maxBackoff.isNegative() || breakDuration.isNegative())
+            throw new IllegalArgumentException("Durations must not be negative: " + initialBackoff + ", " + maxBackoff + ", " + breakDuration);
+        this.streamService = Objects.requireNonNull(streamService);
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.failureThreshold = failureThreshold;
+        this.breakDuration = breakDuration;
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    /**
+     * Sends a request to the underlying service.
+     */
+    private interface Request<R> {
+        R send() throws IOException, InterruptedException;
+    }
+
+    @Override
+    public InputStream get(String path, String query) throws IOException, InterruptedException, IllegalArgumentException {
+        return call(path, () -> streamService.get(path, query));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getAsync(String path, String query) {
+        CompletableFuture<InputStream> result = new CompletableFuture<>();
+        attemptAsync(path, () -> streamService.getAsync(path, query), 1, null, result);
+        return result;
+    }
+
+    @Override
+    public boolean retries() {
+        return true;
+    }
+
+    @Override
+    public Response getConditional(String path, String query, Validators validators)
+        throws IOException, InterruptedException, IllegalArgumentException {
+        return call(path, () -> ConditionalStreamService.of(streamService).getConditional(path, query, validators));
+    }
+
+    @Override
+    public CompletableFuture<Response> getConditionalAsync(String path, String query, Validators validators) {
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        attemptAsync(path, () -> ConditionalStreamService.of(streamService).getConditionalAsync(path, query, validators),
+            1, null, result);
+        return result;
+    }
+
+    private <R> R call(String path, Request<R> request) throws IOException, InterruptedException {
+        IOException last = null;
+        for (int attempt = 1; ; ++attempt) {
+            permit(path, last);
+            try {
+                R response = request.send();
+                succeeded();
+                return response;
+            } catch (IOException e) {
+                Duration delay = failed(e, attempt);
+                if (delay == null) throw e;
+                log.debug("Retrying {} in {} ms after {}", path, delay.toMillis(), e.toString());
+                Thread.sleep(delay);
+                last = e;
+            } catch (InterruptedException | RuntimeException e) {
+                released();
+                throw e;
+            }
+        }
+    }
+
+    private <R> void attemptAsync(String path, Supplier<CompletableFuture<R>> request, int attempt, IOException last,
+                                  CompletableFuture<R> result) {
+        try {
+            permit(path, last);
+        } catch (CircuitOpenException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        CompletableFuture<R> response;
+        try {
+            response = request.get();
+        } catch (RuntimeException e) {
+            released();
+            result.completeExceptionally(e);
+            return;
+        }
+        response.whenComplete((r, t) -> {
+            if (t == null) {
+                succeeded();
+                result.complete(r);
+                return;
+            }
+            Throwable e = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (!(e instanceof IOException io)) {
+                released();
+                result.completeExceptionally(e);
+                return;
+            }
+            Duration delay = failed(io, attempt);
+            if (delay == null) {
+                result.completeExceptionally(e);
+                return;
+            }
+            log.debug("Retrying {} in {} ms after {}", path, delay.toMillis(), e.toString());
+            CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS)
+                .execute(() -> attemptAsync(path, request, attempt + 1, io, result));
+        });
+    }
+
+    /**
+     * Tell whether a request that failed may succeed if repeated.
+     * A request that was interrupted, other than by a socket timeout,
+     * or not sent since the circuit breaker is open, is not retried.
+     * @param e The failure.
+     * @return Whether to retry.
+     */
+    static boolean isRetryable(Throwable e) {
+        if (e instanceof HttpResponseException h) return RETRYABLE_STATUS.contains(h.statusCode());
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) return false;
+        return e instanceof IOException && !(e instanceof CircuitOpenException);
+    }
+
+    /**
+     * Get the delay asked for by the {@code Retry-After} header of a
+     * failed response.
+     * @param e The failure.
+     * @param now The present time.
+     * @return The delay, or empty if none is asked for.
+     */
+    static Optional<Duration> retryAfter(IOException e, Instant now) {
+        if (!(e instanceof HttpResponseException h) || h.headers() == null) return Optional.empty();
+        return h.headers().firstValue("Retry-After").map(String::trim).flatMap(v -> {
+            try {
+                if (v.chars().allMatch(Character::isDigit)) return Optional.of(Duration.ofSeconds(Long.parseLong(v)));
+                Instant date = ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                return Optional.of(date.isAfter(now) ? Duration.between(now, date) : Duration.ZERO);
+            } catch (NumberFormatException | DateTimeParseException x) {
+                log.debug("Ignoring malformed Retry-After: {}", v);
+                return Optional.empty();
+            }
+        });
+    }
+
+    /**
+     * Get the delay before retrying a failed attempt: a random time
+     * between half and all of an exponentially increasing backoff, but
+     * at least as long as a {@code Retry-After} header asks.
+     * @param e The failure.
+     * @param attempt The number of the failed attempt, from 1.
+     * @param initialBackoff The backoff before the first retry, doubled for each following retry.
+     * @param maxBackoff The maximum backoff.
+     * @param now The present time.
+     * @return The delay, or {@code null} if {@code Retry-After} asks
+     * for more than the maximum backoff.
+     */
+    static Duration retryDelay(IOException e, int attempt, Duration initialBackoff, Duration maxBackoff, Instant now) {
+        Duration delay = backoff(attempt, initialBackoff, maxBackoff);
+        Optional<Duration> asked = retryAfter(e, now);
+        if (asked.isPresent()) {
+            if (asked.get().compareTo(maxBackoff) > 0) return null;
+            if (asked.get().compareTo(delay) > 0) delay = asked.get();
+        }
+        return delay;
+    }
+
+    private static Duration backoff(int attempt, Duration initialBackoff, Duration maxBackoff) {
+        long cap = maxBackoff.toNanos();
+        long nanos = initialBackoff.toNanos();
+        for (int i = 1; i < attempt && nanos < cap; ++i) nanos *= 2;
+        nanos = Math.min(nanos, cap);
+        return Duration.ofNanos(nanos / 2 + ThreadLocalRandom.current().nextLong(nanos / 2 + 1));
+    }
+
+    /**
+     * Let a request through, unless the circuit breaker is open.
+     */
+    private void permit(String path, IOException last) throws CircuitOpenException {
+        synchronized (lock) {
+            if (state == State.OPEN) {
+                if (clock.instant().isBefore(openUntil)) {
+                    rejections.incrementAndGet();
+                    throw new CircuitOpenException("Circuit breaker is open until " + openUntil + ", not requesting " + path, last);
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = false;
+            }
+            if (state == State.HALF_OPEN) {
+                if (trialInFlight) {
+                    rejections.incrementAndGet();
+                    throw new CircuitOpenException("Circuit breaker awaits a trial request, not requesting " + path, last);
+                }
+                trialInFlight = true;
+            }
+        }
+    }
+
+    private void succeeded() {
+        synchronized (lock) {
+            consecutiveFailures = 0;
+            trialInFlight = false;
+            if (state != State.CLOSED) log.info("Circuit breaker closed");
+            state = State.CLOSED;
+        }
+    }
+
+    /**
+     * Account for a request that neither succeeded nor failed.
+     */
+    private void released() {
+        synchronized (lock) {
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * Account for a failed attempt.
+     * @return The delay before retrying, or {@code null} to not retry.
+     */
+    private Duration failed(IOException e, int attempt) {
+        if (!isRetryable(e)) {
+            if (e instanceof HttpResponseException) succeeded();
+            else released();
+            return null;
+        }
+        synchronized (lock) {
+            trialInFlight = false;
+            if (state == State.HALF_OPEN || ++consecutiveFailures >= failureThreshold) {
+                if (state != State.OPEN) log.warn("Circuit breaker opened for {} after {}", breakDuration, e.toString());
+                state = State.OPEN;
+                openUntil = clock.instant().plus(breakDuration);
+            }
+        }
+        if (attempt >= maxAttempts) return null;
+        Duration delay = retryDelay(e, attempt, initialBackoff, maxBackoff, clock.instant());
+        if (delay != null) retries.incrementAndGet();
+        return delay;
+    }
+
+    /**
+     * Get the state of the circuit breaker.
+     * @return The state. It is {@link State#OPEN} until a request is
+     * made after the break.
+     */
+    public State state() {
+        synchronized (lock) {
+            return state;
+        }
+    }
+
+    /**
+     * Get the number of retried attempts.
+     * @return Number of retries.
+     */
+    public long retryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Get the number of requests that failed without being sent, since
+     * the circuit breaker was open.
+     * @return Number of rejected requests.
+     */
+    public long rejectionCount() {
+        return rejections.get();
+    }
+}
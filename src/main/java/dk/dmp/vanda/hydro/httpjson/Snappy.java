@@ -0,0 +1,85 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+/**
+ * Decompresses raw Snappy data, as used by Parquet pages.
+ * @see <a href="https://github.com/google/snappy/blob/main/format_description.txt">Snappy compressed format description</a>
+ */
+final class Snappy {
+    private Snappy() {}
+
+    /**
+     * Decompress a block of raw Snappy data.
+     * @param in The compressed data.
+     * @param offset The start of the block.
+     * @param length The length of the block.
+     * @param uncompressedLength The expected length of the decompressed data.
+     * @return The decompressed data.
+     * @throws IllegalStateException If the data is corrupt, or does not
+     * state the expected length. This is checked before the decompressed
+     * data is allocated.
+     */
+    static byte[] uncompress(byte[] in, int offset, int length, int uncompressedLength) {
+        int p = offset, end = offset + length;
+        long size = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (p >= end || shift > 28) throw new IllegalStateException("Invalid Snappy length");
+            byte b = in[p++];
+            size |= (long) (b & 0x7f) << shift;
+            if (b >= 0) break;
+        }
+        if (size != uncompressedLength)
+            throw new IllegalStateException("Snappy length " + size + " differs from expected " + uncompressedLength);
+        // A 3 byte copy yields at most 64 bytes
+        if (size > 22L * length) throw new IllegalStateException("Snappy length too large for block: " + size);
+        byte[] out = new byte[(int) size];
+        int q = 0;
+        while (p < end) {
+            int tag = in[p++] & 0xff;
+            int n, distance;
+            switch (tag & 3) {
+                case 0 -> {
+                    n = tag >>> 2;
+                    if (n >= 60) {
+                        int bytes = n - 59;
+                        if (p + bytes > end) throw new IllegalStateException("Truncated Snappy literal");
+                        n = 0;
+                        for (int i = 0; i < bytes; ++i) n |= (in[p++] & 0xff) << 8 * i;
+                    }
+                    ++n;
+                    if (n <= 0 || p + n > end || q + n > out.length) throw new IllegalStateException("Invalid Snappy literal");
+                    System.arraycopy(in, p, out, q, n);
+                    p += n;
+                    q += n;
+                    continue;
+                }
+                case 1 -> {
+                    if (p >= end) throw new IllegalStateException("Truncated Snappy copy");
+                    n = 4 + (tag >>> 2 & 7);
+                    distance = (tag >>> 5) << 8 | in[p++] & 0xff;
+                }
+                case 2 -> {
+                    if (p + 2 > end) throw new IllegalStateException("Truncated Snappy copy");
+                    n = 1 + (tag >>> 2);
+                    distance = in[p] & 0xff | (in[p + 1] & 0xff) << 8;
+                    p += 2;
+                }
+                default -> {
+                    if (p + 4 > end) throw new IllegalStateException("Truncated Snappy copy");
+                    n = 1 + (tag >>> 2);
+                    distance = in[p] & 0xff | (in[p + 1] & 0xff) << 8 | (in[p + 2] & 0xff) << 16 | in[p + 3] << 24;
+                    p += 4;
+                }
+            }
+            if (distance <= 0 || distance > q || q + n > out.length) throw new IllegalStateException("Invalid Snappy copy");
+            if (distance >= n) {
+                System.arraycopy(out, q - distance, out, q, n);
+                q += n;
+            } else {
+                // Overlapping copy repeats the last distance bytes
+                for (int i = 0; i < n; ++i, ++q) out[q] = out[q - distance];
+            }
+        }
+        if (q != out.length) throw new IllegalStateException("Snappy data shorter than stated length");
+        return out;
+    }
+}
@@ -0,0 +1,192 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Publishes the elements of a stream that is opened asynchronously,
+ * e.g. the measurements of a response, as they are demanded.
+ * <p>The stream is opened when the first element is requested, and
+ * each subscription opens a stream of its own. Elements are only read
+ * while there is outstanding demand, by a task run by the executor,
+ * so no thread is held by a subscription while it waits for demand or
+ * for the stream to open. The stream is closed when its end is reached,
+ * when reading fails, or when the subscription is cancelled.
+ * Failures to open or read the stream are signalled to the subscriber,
+ * while a subscriber that throws has its subscription cancelled.</p>
+ * <p>Reading an element may block while waiting for the response,
+ * so the executor should run tasks in virtual threads, such as the
+ * default executor of {@link HydrometryServiceClient}.</p>
+ * @param <T> The kind of element.
+ */
+class StreamPublisher<T> implements Flow.Publisher<T> {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private final Supplier<CompletableFuture<Stream<T>>> open;
+    private final Executor executor;
+
+    /**
+     * Construct the publisher.
+     * @param open Opens the stream of a subscription.
+     * @param executor Runs the tasks that deliver elements.
+     */
+    StreamPublisher(Supplier<CompletableFuture<Stream<T>>> open, Executor executor) {
+        this.open = Objects.requireNonNull(open);
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        subscriber.onSubscribe(new Subscription(Objects.requireNonNull(subscriber)));
+    }
+
+    private class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        /** Signals not yet handled by the delivering task. */
+        private final AtomicInteger signals = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile IllegalArgumentException violation;
+        // The following are only used by the delivering task
+        private CompletableFuture<Stream<T>> opening;
+        private Stream<T> stream;
+        private Iterator<T> elements;
+        private boolean done;
+
+        Subscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) violation = new IllegalArgumentException("Demand must be positive: " + n);
+            else demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            signal();
+        }
+
+        /**
+         * Run the delivering task, unless it is running, in which case
+         * it runs once more before it ends.
+         */
+        private void signal() {
+            if (signals.getAndIncrement() == 0) executor.execute(this::deliver);
+        }
+
+        private void deliver() {
+            int handled = 1;
+            do {
+                step();
+                handled = signals.addAndGet(-handled);
+            } while (handled != 0);
+        }
+
+        private void step() {
+            if (done) return;
+            if (cancelled) {
+                close();
+                done = true;
+                return;
+            }
+            if (violation != null) {
+                fail(violation);
+                return;
+            }
+            if (demand.get() == 0) return;
+            if (elements == null) {
+                if (opening == null) {
+                    try {
+                        opening = Objects.requireNonNull(open.get());
+                    } catch (RuntimeException e) {
+                        fail(e);
+                        return;
+                    }
+                    opening.whenComplete((s, t) -> signal());
+                    return;
+                }
+                if (!opening.isDone()) return;
+                try {
+                    stream = opening.join();
+                    elements = stream.iterator();
+                } catch (CompletionException e) {
+                    fail(e.getCause() != null ? e.getCause() : e);
+                    return;
+                } catch (RuntimeException e) {
+                    fail(e);
+                    return;
+                }
+            }
+            while (demand.get() > 0 && !cancelled && violation == null) {
+                T next;
+                try {
+                    if (!elements.hasNext()) {
+                        close();
+                        done = true;
+                        call(subscriber::onComplete);
+                        return;
+                    }
+                    next = elements.next();
+                } catch (UncheckedIOException e) {
+                    fail(e.getCause());
+                    return;
+                } catch (RuntimeException e) {
+                    fail(e);
+                    return;
+                }
+                // Unbounded demand is not counted down
+                if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                call(() -> subscriber.onNext(next));
+            }
+        }
+
+        /**
+         * Signal the subscriber, cancelling the subscription if it
+         * fails, as a subscriber must not throw.
+         */
+        private void call(Runnable signal) {
+            try {
+                signal.run();
+            } catch (RuntimeException | Error e) {
+                log.warn("Subscriber failed, cancelling subscription", e);
+                cancelled = true;
+                close();
+                done = true;
+            }
+        }
+
+        private void fail(Throwable e) {
+            close();
+            done = true;
+            call(() -> subscriber.onError(e));
+        }
+
+        /**
+         * Close the stream, or, if it is being opened, close it when it opens.
+         */
+        private void close() {
+            try {
+                if (stream != null) stream.close();
+                else if (opening != null) opening.thenAccept(Stream::close);
+            } catch (RuntimeException e) {
+                log.warn("Cannot close stream", e);
+            }
+        }
+    }
+}
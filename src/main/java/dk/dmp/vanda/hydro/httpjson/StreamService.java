@@ -2,6 +2,7 @@ package dk.dmp.vanda.hydro.httpjson;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 public interface StreamService {
     /**
@@ -14,4 +15,39 @@ public interface StreamService {
      * @throws InterruptedException If the operation is interrupted.
      */
     InputStream get(String path, String query) throws IOException, InterruptedException, IllegalArgumentException;
+
+    /**
+     * Submit a request for the given request path and query parameters
+     * without waiting for the response.
+     * <p>The default implementation performs the request by
+     * {@link #get(String, String)} in the calling thread.
+     * Implementations that can send requests asynchronously should
+     * override it.</p>
+     * @param path The URL-encoded operation path that the request shall be sent to.
+     * @param query The URL-encoded query.
+     * @return The future response body. It is completed exceptionally
+     * with the exceptions declared by {@link #get(String, String)}.
+     * Implementations should let cancelling it cancel the request, and
+     * close a body that arrives anyway.
+     */
+    default CompletableFuture<InputStream> getAsync(String path, String query) {
+        try {
+            return CompletableFuture.completedFuture(get(path, query));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Tell whether this service retries failed requests by itself, so
+     * that callers need not retry them again. Services that send their
+     * requests on to another service should pass on its answer.
+     * @return {@code false} unless overridden.
+     */
+    default boolean retries() {
+        return false;
+    }
 }
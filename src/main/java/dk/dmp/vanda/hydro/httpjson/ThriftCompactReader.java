@@ -0,0 +1,171 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads values encoded by the Thrift compact protocol from a byte
+ * array, as used by the metadata of Parquet files. Structs are read by
+ * a callback for each field, which must read or {@linkplain #skip(int)
+ * skip} the field value.
+ * @see <a href="https://github.com/apache/thrift/blob/master/doc/specs/thrift-compact-protocol.md">Thrift Compact protocol encoding</a>
+ */
+final class ThriftCompactReader {
+    static final int BOOLEAN_TRUE = 1, BOOLEAN_FALSE = 2, BYTE = 3, I16 = 4, I32 = 5, I64 = 6,
+        DOUBLE = 7, BINARY = 8, LIST = 9, SET = 10, MAP = 11, STRUCT = 12;
+    private static final int MAX_DEPTH = 64;
+
+    private final byte[] bytes;
+    private int position;
+    private final int limit;
+    private int depth;
+
+    /**
+     * Reads a field of a struct.
+     */
+    @FunctionalInterface
+    interface FieldReader {
+        /**
+         * Read or skip the value of a field.
+         * @param id The field ID.
+         * @param type The compact type of the field. Boolean fields have
+         *         their value in the type.
+         */
+        void read(int id, int type);
+    }
+
+    ThriftCompactReader(byte[] bytes, int offset, int limit) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.limit = limit;
+    }
+
+    int position() {
+        return position;
+    }
+
+    void readStruct(FieldReader fields) {
+        if (++depth > MAX_DEPTH) throw new IllegalStateException("Thrift values nested too deeply");
+        int id = 0;
+        for (;;) {
+            int header = readByte() & 0xff;
+            if (header == 0) break;
+            int delta = header >>> 4;
+            id = delta == 0 ? readI16() : id + delta;
+            fields.read(id, header & 0x0f);
+        }
+        --depth;
+    }
+
+    /**
+     * Read the header of a list or set.
+     * @return The element type in the low 4 bits, and the size in the
+     *         remaining bits.
+     */
+    long readListHeader() {
+        int header = readByte() & 0xff;
+        long size = header >>> 4;
+        if (size == 15) size = readVarint();
+        if (size < 0 || size > limit - position) throw new IllegalStateException("Invalid Thrift list size: " + size);
+        return size << 4 | header & 0x0f;
+    }
+
+    static int listSize(long header) {
+        return (int) (header >>> 4);
+    }
+
+    static int listType(long header) {
+        return (int) (header & 0x0f);
+    }
+
+    /**
+     * Read a boolean element of a list. Boolean struct fields have their
+     * value in the field type.
+     */
+    boolean readBoolean() {
+        return readByte() == BOOLEAN_TRUE;
+    }
+
+    int readI16() {
+        return (int) zigzag(readVarint());
+    }
+
+    int readI32() {
+        return (int) zigzag(readVarint());
+    }
+
+    long readI64() {
+        return zigzag(readVarint());
+    }
+
+    String readString() {
+        int n = readLength();
+        String s = new String(bytes, position, n, StandardCharsets.UTF_8);
+        position += n;
+        return s;
+    }
+
+    void skip(int type) {
+        switch (type) {
+            case BOOLEAN_TRUE, BOOLEAN_FALSE -> {}
+            case BYTE -> readByte();
+            case I16, I32, I64 -> readVarint();
+            case DOUBLE -> advance(8);
+            case BINARY -> advance(readLength());
+            case LIST, SET -> {
+                if (++depth > MAX_DEPTH) throw new IllegalStateException("Thrift values nested too deeply");
+                long h = readListHeader();
+                for (int i = 0; i < listSize(h); ++i) skipElement(listType(h));
+                --depth;
+            }
+            case MAP -> {
+                if (++depth > MAX_DEPTH) throw new IllegalStateException("Thrift values nested too deeply");
+                long size = readVarint();
+                if (size > 0) {
+                    int types = readByte() & 0xff;
+                    for (long i = 0; i < size; ++i) {
+                        skipElement(types >>> 4);
+                        skipElement(types & 0x0f);
+                    }
+                }
+                --depth;
+            }
+            case STRUCT -> readStruct((id, t) -> skip(t));
+            default -> throw new IllegalStateException("Unknown Thrift compact type: " + type);
+        }
+    }
+
+    private void skipElement(int type) {
+        if (type == BOOLEAN_TRUE || type == BOOLEAN_FALSE) readByte();
+        else skip(type);
+    }
+
+    private int readLength() {
+        long n = readVarint();
+        if (n < 0 || n > limit - position) throw new IllegalStateException("Invalid Thrift binary length: " + n);
+        return (int) n;
+    }
+
+    private void advance(int n) {
+        if (n > limit - position) throw new IllegalStateException("Thrift value beyond end of data");
+        position += n;
+    }
+
+    private byte readByte() {
+        if (position >= limit) throw new IllegalStateException("Thrift value beyond end of data");
+        return bytes[position++];
+    }
+
+    private long readVarint() {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return v;
+        }
+        throw new IllegalStateException("Invalid Thrift varint");
+    }
+
+    private static long zigzag(long n) {
+        return n >>> 1 ^ -(n & 1);
+    }
+}
@@ -0,0 +1,61 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A window of measurement time with both ends inclusive, like the
+ * {@code from} and {@code to} arguments of the service. Since the
+ * service ignores time components after minute, so does the window.
+ * @param from The first minute of the window, in UTC.
+ * @param to The last minute of the window, in UTC.
+ */
+record TimeWindow(OffsetDateTime from, OffsetDateTime to) {
+    TimeWindow {
+        Objects.requireNonNull(from);
+        Objects.requireNonNull(to);
+    }
+
+    /**
+     * Make a window from points in time given at any precision and offset.
+     * @param from The start of the window, inclusive.
+     * @param to The end of the window, inclusive.
+     * @return The window, at minute precision in UTC.
+     */
+    static TimeWindow of(OffsetDateTime from, OffsetDateTime to) {
+        return new TimeWindow(minute(from), minute(to));
+    }
+
+    private static OffsetDateTime minute(OffsetDateTime t) {
+        return t.withOffsetSameInstant(ZoneOffset.UTC).truncatedTo(ChronoUnit.MINUTES);
+    }
+
+    /**
+     * Split the window into consecutive windows. Since both ends are
+     * inclusive, each window starts the minute after the previous one
+     * ends, so no minute is covered twice.
+     * @param length The length of each window, at least one minute.
+     *         The last window may be shorter.
+     * @return The windows in chronological order, or an empty list if
+     * this window ends before it starts.
+     * @throws IllegalArgumentException If the length is less than a minute.
+     */
+    List<TimeWindow> split(Duration length) {
+        long minutes = length.toMinutes();
+        if (minutes < 1)
+            throw new IllegalArgumentException("Window length must be at least a minute: " + length);
+        List<TimeWindow> windows = new ArrayList<>();
+        for (OffsetDateTime start = from; ! start.isAfter(to); ) {
+            OffsetDateTime end = start.plusMinutes(minutes - 1);
+            if (end.isAfter(to)) end = to;
+            windows.add(new TimeWindow(start, end));
+            start = end.plusMinutes(1);
+        }
+        return windows;
+    }
+}
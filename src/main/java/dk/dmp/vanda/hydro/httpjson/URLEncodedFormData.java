@@ -4,6 +4,10 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Objects;
 import java.util.StringJoiner;
 
@@ -14,7 +18,18 @@ import java.util.StringJoiner;
  */
 public class URLEncodedFormData {
     private String path;
-    private final StringJoiner params = new StringJoiner("&");
+    private final List<String[]> params = new ArrayList<>();
+
+    /**
+     * Make a copy with the same path and parameters.
+     * @return The copy, independent of this.
+     */
+    public URLEncodedFormData copy() {
+        URLEncodedFormData c = new URLEncodedFormData();
+        c.path = path;
+        c.params.addAll(params);
+        return c;
+    }
 
     /**
      * Set and encode the target path, a.k.a. relative action URL.
@@ -43,10 +58,46 @@ public class URLEncodedFormData {
      */
     public void append(String name, String value) {
         Objects.requireNonNull(name, "Parameter name cannot be null");
-        StringBuilder b = new StringBuilder(urlEncode(name));
-        if (value != null) b.append("=").append(urlEncode(value));
-        params.add(b.toString());
+        params.add(encode(name, value));
     }
+
+    /**
+     * Set parameter. The first parameter of the same name is replaced
+     * in its position and any further ones are removed. If there is
+     * none, the parameter is appended.
+     * @param name Parameter name.
+     * @param value Parameter value.
+     */
+    public void set(String name, String value) {
+        Objects.requireNonNull(name, "Parameter name cannot be null");
+        String[] p = encode(name, value);
+        int i = 0;
+        while (i < params.size() && ! params.get(i)[0].equals(p[0])) ++i;
+        if (i == params.size()) {
+            params.add(p);
+        } else {
+            params.set(i++, p);
+            while (i < params.size()) {
+                if (params.get(i)[0].equals(p[0])) params.remove(i);
+                else ++i;
+            }
+        }
+    }
+
+    /**
+     * Remove all parameters of the given name.
+     * @param name Parameter name.
+     */
+    public void remove(String name) {
+        Objects.requireNonNull(name, "Parameter name cannot be null");
+        String encoded = urlEncode(name);
+        params.removeIf(p -> p[0].equals(encoded));
+    }
+
+    private static String[] encode(String name, String value) {
+        return new String[]{urlEncode(name), value == null ? null : urlEncode(value)};
+    }
+
     private static String urlEncode(String s) {
         return URLEncoder.encode(s, StandardCharsets.UTF_8).replaceAll("\\+", "%20");
     }
@@ -57,7 +108,36 @@ public class URLEncodedFormData {
      * @return The form data string, or {@code null} if no parameters are appended.
      */
     public String getFormData() {
-        return params.toString();
+        StringJoiner j = new StringJoiner("&");
+        for (String[] p : params) j.add(p[1] == null ? p[0] : p[0] + "=" + p[1]);
+        return j.toString();
+    }
+
+    /**
+     * Build a form data string like {@link #getFormData()}, but with
+     * the parameters sorted by name, so that equivalent queries give
+     * equal strings.
+     * @return The canonical form data string.
+     */
+    public String getCanonicalFormData() {
+        return canonicalize(getFormData());
+    }
+
+    /**
+     * Sort the parameters of a form data string by name. Parameters of
+     * the same name keep their relative order, since it may be
+     * significant.
+     * @param formData An encoded form data string, or {@code null}.
+     * @return The canonical form data string, empty if {@code null} is given.
+     */
+    public static String canonicalize(String formData) {
+        if (formData == null || formData.isEmpty()) return "";
+        String[] params = formData.split("&");
+        Arrays.sort(params, Comparator.comparing((String p) -> {
+            int i = p.indexOf('=');
+            return i < 0 ? p : p.substring(0, i);
+        }));
+        return String.join("&", params);
     }
 
     /**
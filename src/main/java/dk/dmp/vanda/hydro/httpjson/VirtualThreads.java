@@ -0,0 +1,21 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads for tasks that block while waiting for responses.
+ */
+final class VirtualThreads {
+    /**
+     * Creates named virtual threads.
+     */
+    static final ThreadFactory factory = Thread.ofVirtual().name("hydrometry-", 0).factory();
+
+    /**
+     * Runs each task in a new virtual thread.
+     */
+    static final Executor executor = task -> factory.newThread(task).start();
+
+    private VirtualThreads() {}
+}
@@ -0,0 +1,30 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.util.Map;
+
+/**
+ * Persists how far the measurements of each station have been
+ * synchronized by a {@link MeasurementSync}, per examination type.
+ * A watermark is the point in time from which measurements registered
+ * by the service have not yet been delivered.
+ */
+public interface WatermarkStore {
+    /**
+     * Load the watermarks of an examination type.
+     * @param examinationTypeSc Examination type as stancode from stancodelist 1101.
+     * @return The watermark of each station ID, empty if none are stored.
+     * @throws IOException If the watermarks cannot be loaded.
+     */
+    Map<String, OffsetDateTime> load(int examinationTypeSc) throws IOException;
+
+    /**
+     * Store watermarks of an examination type. The watermarks of
+     * stations not given are kept.
+     * @param examinationTypeSc Examination type as stancode from stancodelist 1101.
+     * @param watermarks The new watermark of each station ID.
+     * @throws IOException If the watermarks cannot be stored.
+     */
+    void save(int examinationTypeSc, Map<String, OffsetDateTime> watermarks) throws IOException;
+}
@@ -0,0 +1,226 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class AdaptiveConcurrencyStreamServiceTest {
+    @Mock
+    StreamService streamLayer;
+    CachingStreamServiceTest.MutableClock clock = new CachingStreamServiceTest.MutableClock();
+
+    private static InputStream body() {
+        return new ByteArrayInputStream(new byte[] {'[', ']'});
+    }
+
+    @Test
+    void testConstructionFail() {
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveConcurrencyStreamService(streamLayer, 1, 0, 2));
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveConcurrencyStreamService(streamLayer, 3, 1, 2));
+    }
+
+    @Test
+    void testQueued() throws Exception {
+        CountDownLatch sent = new CountDownLatch(2), proceed = new CountDownLatch(1);
+        AtomicInteger concurrent = new AtomicInteger(), maxConcurrent = new AtomicInteger();
+        when(streamLayer.get("op", "")).thenAnswer(i -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            sent.countDown();
+            proceed.await();
+            concurrent.decrementAndGet();
+            return null;
+        });
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 2, 1, 2, clock);
+        try (ExecutorService executor = Executors.newFixedThreadPool(3)) {
+            Future<?> f1 = executor.submit(() -> limiter.get("op", ""));
+            Future<?> f2 = executor.submit(() -> limiter.get("op", ""));
+            Future<?> f3 = executor.submit(() -> limiter.get("op", ""));
+            assertTrue(sent.await(5, TimeUnit.SECONDS));
+            while (limiter.queueDepth() < 1) Thread.sleep(1);
+            assertEquals(2, limiter.inFlight());
+            proceed.countDown();
+            f1.get();
+            f2.get();
+            f3.get();
+        }
+        assertEquals(2, maxConcurrent.get());
+        assertEquals(0, limiter.inFlight());
+        assertEquals(0, limiter.queueDepth());
+        verify(streamLayer, times(3)).get("op", "");
+    }
+
+    @Test
+    void testHeldUntilBodyRead() throws IOException, InterruptedException {
+        when(streamLayer.get("op", "")).thenAnswer(i -> body());
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 1, 1, 1, clock);
+        InputStream first = limiter.get("op", "");
+        assertEquals(1, limiter.inFlight());
+        assertEquals(2, first.readAllBytes().length);
+        assertEquals(0, limiter.inFlight());
+        first.close();
+        assertEquals(0, limiter.inFlight());
+        limiter.get("op", "").close();
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    void testAdditiveIncrease() throws IOException, InterruptedException {
+        when(streamLayer.get("op", "")).thenAnswer(i -> body());
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 1, 1, 4, clock);
+        // The limit increases by 1/limit per request: 1, 2, 2.5, 2.9, 3.2, ...
+        for (int i = 0; i < 2; ++i) limiter.get("op", "").close();
+        assertEquals(2, limiter.limit());
+        // A serial client does not use enough of the limit to raise it
+        for (int i = 0; i < 100; ++i) limiter.get("op", "").close();
+        assertEquals(2, limiter.limit());
+        try (InputStream open = limiter.get("op", "")) {
+            for (int i = 0; i < 100; ++i) limiter.get("op", "").close();
+        }
+        assertEquals(4, limiter.limit());
+    }
+
+    @Test
+    void testMultiplicativeDecrease() throws IOException, InterruptedException {
+        HttpResponseException unavailable = ResilientStreamServiceTest.status(503, null);
+        HttpResponseException notFound = ResilientStreamServiceTest.status(404, null);
+        when(streamLayer.get("op", "")).thenThrow(unavailable, notFound, new IOException("Connection reset"));
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 20, 10, 20, clock);
+        assertThrows(HttpResponseException.class, () -> limiter.get("op", ""));
+        assertEquals(18, limiter.limit());
+        assertThrows(HttpResponseException.class, () -> limiter.get("op", ""));
+        assertEquals(18, limiter.limit());
+        assertThrows(IOException.class, () -> limiter.get("op", ""));
+        assertEquals(16, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    void testSlowResponse() throws IOException, InterruptedException {
+        AtomicInteger millis = new AtomicInteger(10);
+        when(streamLayer.get("op", "")).thenAnswer(i -> {
+            clock.advance(Duration.ofMillis(millis.get()));
+            return null;
+        });
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 20, 1, 20, clock);
+        limiter.get("op", "");
+        limiter.get("op", "");
+        assertEquals(20, limiter.limit());
+        millis.set(30);
+        limiter.get("op", "");
+        assertEquals(18, limiter.limit());
+    }
+
+    @Test
+    void testDecreaseOncePerRoundTrip() throws IOException, InterruptedException {
+        when(streamLayer.get("op", "")).thenAnswer(i -> body());
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 20, 1, 20, clock);
+        limiter.get("op", "").close();
+        // Concurrent responses that are all slow are one signal of overload
+        List<CompletableFuture<InputStream>> responses = new ArrayList<>();
+        when(streamLayer.getAsync("op", "")).thenAnswer(i -> {
+            CompletableFuture<InputStream> response = new CompletableFuture<>();
+            responses.add(response);
+            return response;
+        });
+        List<CompletableFuture<InputStream>> results = new ArrayList<>();
+        for (int i = 0; i < 16; ++i) results.add(limiter.getAsync("op", ""));
+        clock.advance(Duration.ofSeconds(1));
+        for (CompletableFuture<InputStream> response : responses) response.complete(body());
+        for (CompletableFuture<InputStream> result : results) result.join().close();
+        assertEquals(18, limiter.limit());
+        // A request sent after the decrease may decrease it again
+        clock.advance(Duration.ofSeconds(1));
+        limiter.getAsync("op", "");
+        clock.advance(Duration.ofSeconds(1));
+        responses.getLast().complete(body());
+        assertEquals(16, limiter.limit());
+    }
+
+    @Test
+    void testCancelQueued() throws IOException {
+        CompletableFuture<InputStream> response = new CompletableFuture<>();
+        when(streamLayer.getAsync("op", "")).thenReturn(response);
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 1, 1, 1, clock);
+        CompletableFuture<InputStream> first = limiter.getAsync("op", "");
+        CompletableFuture<InputStream> second = limiter.getAsync("op", "");
+        assertEquals(1, limiter.queueDepth());
+        second.cancel(true);
+        assertEquals(0, limiter.queueDepth());
+        response.complete(body());
+        first.join().close();
+        assertEquals(0, limiter.inFlight());
+        verify(streamLayer, times(1)).getAsync("op", "");
+    }
+
+    @Test
+    void testCancelInFlight() {
+        CompletableFuture<InputStream> response = new CompletableFuture<>();
+        when(streamLayer.getAsync("op", "")).thenReturn(response);
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 1, 1, 1, clock);
+        limiter.getAsync("op", "").cancel(true);
+        assertTrue(response.isCancelled());
+        assertEquals(0, limiter.inFlight());
+        assertEquals(1, limiter.limit());
+    }
+
+    @Test
+    void testCancelledBodyClosed() {
+        // Like a response arriving while it is cancelled
+        CompletableFuture<InputStream> response = new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return false;
+            }
+        };
+        when(streamLayer.getAsync("op", "")).thenReturn(response);
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 1, 1, 1, clock);
+        limiter.getAsync("op", "").cancel(true);
+        assertEquals(1, limiter.inFlight());
+        AtomicBoolean closed = new AtomicBoolean();
+        response.complete(new ByteArrayInputStream(new byte[0]) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        });
+        assertTrue(closed.get());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    void testAsync() throws ExecutionException, InterruptedException, IOException {
+        CompletableFuture<InputStream> response = new CompletableFuture<>();
+        when(streamLayer.getAsync("op", "")).thenReturn(response).thenReturn(CompletableFuture.completedFuture(body()));
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 1, 1, 1, clock);
+        CompletableFuture<InputStream> first = limiter.getAsync("op", "");
+        CompletableFuture<InputStream> second = limiter.getAsync("op", "");
+        assertEquals(1, limiter.queueDepth());
+        assertFalse(second.isDone());
+        response.completeExceptionally(ResilientStreamServiceTest.status(404, null));
+        assertThrows(ExecutionException.class, first::get);
+        second.get().close();
+        assertEquals(0, limiter.inFlight());
+        assertEquals(0, limiter.queueDepth());
+    }
+}
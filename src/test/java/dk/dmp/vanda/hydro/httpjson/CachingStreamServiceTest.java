@@ -0,0 +1,162 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService;
+import dk.dmp.vanda.hydro.WaterLevelMeasurement;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CachingStreamServiceTest {
+    @Mock
+    StreamService streamLayer;
+    MutableClock clock = new MutableClock();
+    CachingStreamService cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new CachingStreamService(streamLayer, 10, Duration.ofMinutes(5), clock);
+    }
+
+    private static InputStream body(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try (is) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void testHit() throws IOException, InterruptedException {
+        when(streamLayer.get("op", "b=2&a=1")).thenReturn(body("[1]"));
+        assertEquals("[1]", read(cache.get("op", "b=2&a=1")));
+        assertEquals("[1]", read(cache.get("op", "a=1&b=2")));
+        verify(streamLayer, times(1)).get(any(), any());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    void testNullBody() throws IOException, InterruptedException {
+        assertNull(cache.get("op", ""));
+        assertNull(cache.get("op", ""));
+        verify(streamLayer, times(1)).get(any(), any());
+    }
+
+    @Test
+    void testNotReadToEnd() throws IOException, InterruptedException {
+        when(streamLayer.get("op", "")).thenReturn(body("[1]"), body("[2]"));
+        try (InputStream is = cache.get("op", "")) {
+            assertEquals('[', is.read());
+        }
+        assertEquals("[2]", read(cache.get("op", "")));
+        assertEquals("[2]", read(cache.get("op", "")));
+        assertEquals(2, cache.missCount());
+    }
+
+    @Test
+    void testExpiry() throws IOException, InterruptedException {
+        when(streamLayer.get("op", "")).thenReturn(body("[1]"), body("[2]"));
+        assertEquals("[1]", read(cache.get("op", "")));
+        clock.advance(Duration.ofMinutes(5));
+        assertEquals("[2]", read(cache.get("op", "")));
+        assertEquals(0, cache.hitCount());
+        assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    void testEviction() throws IOException, InterruptedException {
+        when(streamLayer.get(any(), any())).thenAnswer(i -> body("[" + i.getArgument(1) + "]"));
+        read(cache.get("op", "1234"));
+        read(cache.get("op", "12"));
+        read(cache.get("op", "1234"));
+        assertEquals(1, cache.hitCount());
+        read(cache.get("op", "1"));
+        assertEquals(1, cache.evictionCount());
+        assertEquals(9, cache.size());
+        read(cache.get("op", "1234"));
+        assertEquals(2, cache.hitCount());
+        read(cache.get("op", "12"));
+        assertEquals(2, cache.evictionCount());
+        assertEquals(10, cache.size());
+        read(cache.get("op", "too long to store"));
+        assertEquals(10, cache.size());
+        assertEquals(5, cache.missCount());
+    }
+
+    @Test
+    void testAsync() throws ExecutionException, InterruptedException, IOException {
+        when(streamLayer.getAsync("op", "")).thenReturn(CompletableFuture.completedFuture(body("[1]")));
+        assertEquals("[1]", read(cache.getAsync("op", "").get()));
+        assertEquals("[1]", read(cache.getAsync("op", "").get()));
+        verify(streamLayer, times(1)).getAsync(any(), any());
+    }
+
+    @Test
+    void testClient() throws Exception {
+        cache = new CachingStreamService(streamLayer, 1 << 20, Duration.ofMinutes(5), clock);
+        when(streamLayer.get(eq("water-levels"), any())).thenAnswer(i -> getClass().getResourceAsStream("water-level_61000181.json"));
+        when(streamLayer.get(eq("stations"), any())).thenAnswer(i -> getClass().getResourceAsStream("stations.json"));
+        try (HydrometryServiceClient client = new HydrometryServiceClient(cache)) {
+            for (int i = 0; i < 2; ++i) {
+                assertEquals("61000181", client.getStations().exec().next().stationId());
+            }
+            for (int i = 0; i < 2; ++i) {
+                HydrometryService.GetWaterLevelsOperation op = client.getWaterLevels();
+                op.stationId("61000181");
+                List<WaterLevelMeasurement> measurements = new ArrayList<>();
+                op.exec().forEachRemaining(measurements::add);
+                assertEquals(2, measurements.size());
+            }
+        }
+        verify(streamLayer, times(1)).get(eq("water-levels"), any());
+        verify(streamLayer, times(1)).get(eq("stations"), any());
+    }
+
+    static class MutableClock extends Clock {
+        private Instant now = Instant.parse("2024-01-01T00:00:00Z");
+
+        void advance(Duration d) {
+            now = now.plus(d);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoalescingStreamServiceTest {
+    private static InputStream body(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try (is) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void awaitCoalesced(CoalescingStreamService service, long n) throws InterruptedException {
+        while (service.coalescedCount() < n) Thread.sleep(1);
+    }
+
+    @Test
+    void testCoalesce() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger requests = new AtomicInteger();
+        CoalescingStreamService service = new CoalescingStreamService((path, query) -> {
+            requests.incrementAndGet();
+            started.countDown();
+            release.await();
+            return body("[" + query + "]");
+        });
+        List<Future<String>> results = new ArrayList<>();
+        results.add(CompletableFuture.supplyAsync(() -> get(service, "a=1&b=2"), VirtualThreads.executor));
+        started.await();
+        for (int i = 0; i < 4; ++i)
+            results.add(CompletableFuture.supplyAsync(() -> get(service, "b=2&a=1"), VirtualThreads.executor));
+        awaitCoalesced(service, 4);
+        release.countDown();
+        for (Future<String> r : results) assertEquals("[a=1&b=2]", r.get());
+        assertEquals(1, requests.get());
+        assertEquals(1, service.requestCount());
+
+        assertEquals("[a=1]", read(service.get("op", "a=1")));
+        assertEquals(2, requests.get());
+    }
+
+    private static String get(StreamService service, String query) {
+        try {
+            return read(service.get("op", query));
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    void testSharedFailure() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IOException failure = new IOException("Connection reset");
+        CoalescingStreamService service = new CoalescingStreamService((path, query) -> {
+            started.countDown();
+            release.await();
+            throw failure;
+        });
+        CompletableFuture<InputStream> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return service.get("op", "");
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }, VirtualThreads.executor);
+        started.await();
+        CompletableFuture<InputStream> second = service.getAsync("op", "");
+        awaitCoalesced(service, 1);
+        release.countDown();
+        assertSame(failure, assertThrows(ExecutionException.class, first::get).getCause().getCause());
+        assertSame(failure, assertThrows(ExecutionException.class, second::get).getCause());
+    }
+
+    @Test
+    void testAsync() throws Exception {
+        CompletableFuture<InputStream> response = new CompletableFuture<>();
+        AtomicInteger requests = new AtomicInteger();
+        CoalescingStreamService service = new CoalescingStreamService(new StreamService() {
+            @Override
+            public InputStream get(String path, String query) {
+                throw new AssertionError();
+            }
+
+            @Override
+            public CompletableFuture<InputStream> getAsync(String path, String query) {
+                requests.incrementAndGet();
+                return response;
+            }
+        });
+        CompletableFuture<InputStream> first = service.getAsync("op", "x=1");
+        CompletableFuture<InputStream> second = service.getAsync("op", "x=1");
+        response.complete(body("[1]"));
+        assertEquals("[1]", read(first.get()));
+        assertEquals("[1]", read(second.get()));
+        assertEquals(1, requests.get());
+        assertEquals(1, service.coalescedCount());
+    }
+
+    @Test
+    void testNullBody() throws Exception {
+        CoalescingStreamService service = new CoalescingStreamService((path, query) -> null);
+        assertNull(service.get("op", ""));
+        assertNull(service.getAsync("op", "").get());
+    }
+
+    @Test
+    void testUnsharedBodyNotBuffered() throws Exception {
+        InputStream body = body("[1]");
+        CoalescingStreamService service = new CoalescingStreamService((path, query) -> body);
+        assertSame(body, service.get("op", ""));
+        assertSame(body, service.getAsync("op", "").get());
+        assertEquals(2, service.requestCount());
+        assertEquals(0, service.coalescedCount());
+    }
+
+    @Test
+    void testSharedBodyStreamed() throws Exception {
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; ++i) data[i] = (byte) i;
+        AtomicBoolean closed = new AtomicBoolean();
+        CompletableFuture<InputStream> response = new CompletableFuture<>();
+        CoalescingStreamService service = new CoalescingStreamService(new StreamService() {
+            @Override
+            public InputStream get(String path, String query) {
+                throw new AssertionError();
+            }
+
+            @Override
+            public CompletableFuture<InputStream> getAsync(String path, String query) {
+                return response;
+            }
+        });
+        CompletableFuture<InputStream> first = service.getAsync("op", "");
+        CompletableFuture<InputStream> second = service.getAsync("op", "");
+        CompletableFuture<InputStream> cancelled = service.getAsync("op", "");
+        cancelled.cancel(true);
+        response.complete(new ByteArrayInputStream(data) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        });
+        InputStream a = first.get(), b = second.get();
+        assertArrayEquals(Arrays.copyOf(data, 100), a.readNBytes(100));
+        assertArrayEquals(data, b.readAllBytes());
+        b.close();
+        assertFalse(closed.get());
+        assertArrayEquals(Arrays.copyOfRange(data, 100, data.length), a.readAllBytes());
+        a.close();
+        assertTrue(closed.get());
+        assertThrows(IOException.class, a::read);
+    }
+
+    @Test
+    void testLateRequestNotShared() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        CoalescingStreamService service = new CoalescingStreamService((path, query) -> {
+            requests.incrementAndGet();
+            return body("[1]");
+        });
+        InputStream first = service.get("op", "");
+        InputStream second = service.get("op", "");
+        assertEquals("[1]", read(first));
+        assertEquals("[1]", read(second));
+        assertEquals(2, requests.get());
+        assertEquals(0, service.coalescedCount());
+    }
+}
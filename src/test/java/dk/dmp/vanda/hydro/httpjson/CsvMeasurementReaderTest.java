@@ -0,0 +1,184 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CsvMeasurementReaderTest {
+    private static InputStream body(String csv) {
+        return new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static <J extends JsonMeasurement> List<J> readAll(CsvMeasurementReader<J> reader) {
+        List<J> measurements = new ArrayList<>();
+        reader.forEachRemaining(measurements::add);
+        return measurements;
+    }
+
+    @Test
+    void testWaterLevels() throws IOException {
+        try (Deserializer d = new Deserializer()) {
+            List<JsonWaterLevelMeasurement> l = readAll(d.readWaterLevelsCsv(body("""
+                stationId,measurementPointNumber,parameter,examinationTypeSc,measurementDateTime,result,resultElevationCorrected,unit,extra
+                61000181,1,Vandstand,25,2023-10-02T18:10:00.00Z,31.8,-58.2,cm,x
+                61000181,1,Vandstand,25,2023-10-02T18:05:00Z,-1e-3,,cm
+                """), "test"));
+            assertEquals(2, l.size());
+            JsonWaterLevelMeasurement m = l.getFirst();
+            assertEquals("61000181", m.stationId());
+            assertNull(m.operatorStationId());
+            assertEquals(1, m.measurementPointNumber());
+            assertEquals(25, m.examinationTypeSc());
+            assertEquals(OffsetDateTime.parse("2023-10-02T18:10Z"), m.measurementDateTime());
+            assertEquals(31.8, m.result());
+            assertEquals(-58.2, m.resultElevationCorrected());
+            assertEquals(-0.001, l.get(1).result());
+            assertNull(l.get(1).resultElevationCorrected());
+            assertSame(m.stationId(), l.get(1).stationId());
+            assertSame(m.unit(), l.get(1).unit());
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    void testSemicolonQuotedDecimalComma() {
+        CsvMeasurementReader<JsonMeasurement> r = new CsvMeasurementReader<>(body(
+            "﻿\"stationId\";\"Parameter\";\"result\";\"measurementDateTime\"\r\n"
+            + "\"61000181\";\"Vand;f\"\"ø\"\"ring\";-1403,8;2023-10-02T20:10:00+02:00\r\n"
+            + "\r\n"
+            + "\"610\n00182\";null;null;\r\n"), JsonMeasurement::new, "test");
+        List<JsonMeasurement> l = readAll(r);
+        assertEquals(2, l.size());
+        assertEquals("Vand;f\"ø\"ring", l.getFirst().parameter());
+        assertEquals(-1403.8, l.getFirst().result());
+        assertEquals(OffsetDateTime.parse("2023-10-02T20:10:00+02:00"), l.getFirst().measurementDateTime());
+        assertEquals("610\n00182", l.get(1).stationId());
+        assertNull(l.get(1).parameter());
+        assertNull(l.get(1).measurementDateTime());
+        assertEquals(0, l.get(1).result());
+    }
+
+    @Test
+    void testFields() {
+        CsvMeasurementReader<JsonMeasurement> r = new CsvMeasurementReader<>(body("""
+            stationId,parameter,measurementDateTime,result,unit
+            61000181,Vandstand,2023-10-02T18:10:00Z,31.8,cm
+            """), JsonMeasurement::new, "test", Set.of("measurementDateTime", "result"));
+        JsonMeasurement m = r.next();
+        assertEquals(OffsetDateTime.parse("2023-10-02T18:10Z"), m.measurementDateTime());
+        assertEquals(31.8, m.result());
+        assertNull(m.stationId());
+        assertNull(m.parameter());
+        assertNull(m.unit());
+    }
+
+    @Test
+    void testFilter() {
+        MeasurementFilter filter = new MeasurementFilter();
+        filter.result(r -> r > 31.75);
+        filter.unitSc(sc -> sc == 19);
+        CsvMeasurementReader<JsonMeasurement> r = new CsvMeasurementReader<>(body("""
+            stationId,measurementDateTime,result,unitSc
+            61000181,2023-10-02T18:10:00Z,31.8,19
+            61000181,2023-10-02T18:05:00Z,31.7,19
+            61000181,2023-10-02T18:00:00Z,,19
+            61000181,2023-10-02T17:55:00Z,31.9,
+            61000181,2023-10-02T17:50:00Z,31.9,19
+            """), JsonMeasurement::new, "test", null, filter);
+        assertEquals(OffsetDateTime.parse("2023-10-02T18:10Z"), r.next().measurementDateTime());
+        assertEquals(OffsetDateTime.parse("2023-10-02T17:50Z"), r.next().measurementDateTime());
+        assertFalse(r.hasNext());
+    }
+
+    @Test
+    void testEmpty() throws IOException {
+        assertNull(new CsvMeasurementReader<>(null, JsonMeasurement::new, "test").prefetch());
+        assertNull(new CsvMeasurementReader<>(body(" \n"), JsonMeasurement::new, "test").prefetch());
+        assertNull(new CsvMeasurementReader<>(body("stationId,result"), JsonMeasurement::new, "test").prefetch());
+        assertNull(new CsvMeasurementReader<>(body("stationId,result\n\n"), JsonMeasurement::new, "test").prefetch());
+    }
+
+    @Test
+    void testInvalid() {
+        for (String csv : List.of("result\nabc\n", "measurementDateTime\nyesterday\n", "stationId\n\"unterminated\n",
+                "measurementPointNumber\n1.5\n", "measurementDateTime\n2023-13-02T18:10:00Z\n")) {
+            CsvMeasurementReader<JsonMeasurement> r = new CsvMeasurementReader<>(body(csv), JsonMeasurement::new, "test");
+            IOException e = assertThrows(IOException.class, r::prefetch, csv);
+            assertTrue(e.getMessage().endsWith("line 2"), e.getMessage());
+            assertFalse(r.hasNext());
+        }
+        CsvMeasurementReader<JsonMeasurement> r = new CsvMeasurementReader<>(body("result\n1\nx\n"), JsonMeasurement::new, "test");
+        assertEquals(1, r.next().result());
+        assertThrows(UncheckedIOException.class, r::hasNext);
+    }
+
+    @Test
+    void testClose() {
+        AtomicBoolean closed = new AtomicBoolean();
+        InputStream body = new ByteArrayInputStream("result\n1\n2\n".getBytes(StandardCharsets.US_ASCII)) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        CsvMeasurementReader<JsonMeasurement> r = new CsvMeasurementReader<>(body, JsonMeasurement::new, "test");
+        assertTrue(r.hasNext());
+        r.close();
+        assertTrue(closed.get());
+        assertFalse(r.hasNext());
+    }
+
+    @Test
+    void testParseDouble() {
+        SplittableRandom random = new SplittableRandom(1);
+        List<String> numbers = new ArrayList<>(List.of("0", "-0", "+1", "1.", ".5", "123456789012345", "1234567890123456",
+            "0.000000000000000000000001", "1e3", "-2.5E-3", "9007199254740993", "31.8", "-1403.8"));
+        for (int i = 0; i < 10000; ++i) {
+            numbers.add(String.format(Locale.ROOT, "%." + random.nextInt(0, 8) + "f", random.nextDouble(-1e6, 1e6)));
+        }
+        for (String n : numbers) {
+            char[] c = ("x" + n + "y").toCharArray();
+            assertEquals(Double.parseDouble(n), CsvMeasurementReader.parseDouble(c, 1, c.length - 1), n);
+        }
+        char[] c = "1,25".toCharArray();
+        assertEquals(1.25, CsvMeasurementReader.parseDouble(c, 0, c.length));
+    }
+
+    @Test
+    void testParseDateTime() {
+        for (String t : List.of("2023-10-02T18:10:59.99Z", "2023-10-02T18:10Z", "2023-10-02t18:10:00Z", "2023-10-02T18:10:00.123456789Z",
+                "2023-10-02T20:10:00+02:00", "1969-12-31T23:59:30Z")) {
+            char[] c = t.toCharArray();
+            assertEquals(OffsetDateTime.parse(t.replace('t', 'T')), CsvMeasurementReader.parseDateTime(c, 0, c.length), t);
+        }
+    }
+
+    @Test
+    void testEpochMinute() {
+        for (String t : List.of("2023-10-02T18:10:59.99Z", "2023-10-02T18:10Z", "2023-10-02T18:10:00.123456789Z",
+                "2023-10-02T20:10:00+02:00", "1969-12-31T23:59:30Z")) {
+            char[] c = ("x" + t + "y").toCharArray();
+            assertEquals(Math.floorDiv(OffsetDateTime.parse(t).toEpochSecond(), 60),
+                CsvMeasurementReader.epochMinute(c, 1, c.length - 1), t);
+        }
+        for (String t : List.of("2023-10-02T18:10:xxZ", "2023-10-02T18:10:60Z", "2023-10-02T18:60Z")) {
+            char[] c = t.toCharArray();
+            assertThrows(DateTimeException.class, () -> CsvMeasurementReader.epochMinute(c, 0, c.length), t);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.Station;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Verifies that the direct decoder makes the same objects as JSON-B.
+ */
+class DeserializerTest {
+    private static final String STATIONS = """
+        [{
+          "stationUid": "2e76caf9-d772-4c07-a6f1-0b7b4cf4d187",
+          "stationId": "61000181",
+          "operatorStationId": null,
+          "locationTypeSc": 1,
+          "dguNumber": null,
+          "unknownObject": {"a": [1, {"b": null}]},
+          "location": {"x": 679796.2734, "y": 6091352.6536, "srid": "25832"},
+          "measurementPoints": [{
+            "number": 1,
+            "name": "Indløb",
+            "measurementPointTypeSc": null,
+            "intakeNumber": 2,
+            "location": {"x": 1.5, "y": 2, "srid": "4326"},
+            "examinations": [{
+              "parameter": "Vandstand",
+              "parameterSc": 1233,
+              "examinationTypeSc": 25,
+              "unitSc": null,
+              "firstResult": "2020-01-01T00:00:00.00Z",
+              "latestResult": "2023-10-02T18:10:00+02:00"
+            }]
+          }]
+        },
+        {"stationId": "61000182", "stationUid": "not a uuid", "measurementPoints": null}]
+        """;
+
+    private static final String WATER_LEVELS = """
+        [{"stationId": "61000181", "extra": [], "results": [
+          {"measurementPointNumber": 1, "measurementDateTime": "2023-10-02T18:10:00.00Z", "result": 31.8, "resultElevationCorrected": -58.2},
+          {"measurementPointNumber": 2, "measurementDateTime": "2023-10-02T18:05:00Z", "result": -1e-3, "resultElevationCorrected": null, "unit": "cm"}
+        ]}, {"stationId": "61000182", "results": null}]
+        """;
+
+    private final Deserializer direct = new Deserializer(Deserializer.Decoder.DIRECT);
+    private final Deserializer jsonb = new Deserializer(Deserializer.Decoder.JSONB);
+
+    @AfterEach
+    void tearDown() throws Exception {
+        direct.close();
+        jsonb.close();
+    }
+
+    private static InputStream body(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private InputStream resource(String name) {
+        return getClass().getResourceAsStream(name);
+    }
+
+    private static void assertSame(List<?> expected, List<?> actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    /**
+     * Station results have no equality of their own.
+     */
+    private static void assertSameResults(List<? extends JsonStationResults<?>> expected, List<? extends JsonStationResults<?>> actual) {
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(
+            expected.stream().flatMap(JsonStationResults::denormalize).toList(),
+            actual.stream().flatMap(JsonStationResults::denormalize).toList());
+    }
+
+    @Test
+    void testStations() throws IOException {
+        List<Station> expected = jsonb.deserializeStations(body(STATIONS));
+        assertSame(expected, direct.deserializeStations(body(STATIONS)));
+        assertEquals(2, expected.size());
+        assertEquals(1, expected.getFirst().measurementPoints().getFirst().examinations().size());
+        assertSame(jsonb.deserializeStations(resource("stations.json")), direct.deserializeStations(resource("stations.json")));
+    }
+
+    @Test
+    void testWaterLevels() throws IOException {
+        assertSameResults(jsonb.deserializeWaterLevels(body(WATER_LEVELS)), direct.deserializeWaterLevels(body(WATER_LEVELS)));
+        assertSame(readAll(jsonb.readWaterLevels(body(WATER_LEVELS), "test")), readAll(direct.readWaterLevels(body(WATER_LEVELS), "test")));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "water-level_61000181.json", "water-level_extra.json" })
+    void testWaterLevelResources(String name) throws IOException {
+        assertSameResults(jsonb.deserializeWaterLevels(resource(name)), direct.deserializeWaterLevels(resource(name)));
+        List<JsonWaterLevelMeasurement> expected = readAll(jsonb.readWaterLevels(resource(name), name));
+        assertFalse(expected.isEmpty());
+        assertSame(expected, readAll(direct.readWaterLevels(resource(name), name)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "water-flow_61000181.json" })
+    void testWaterFlowResources(String name) throws IOException {
+        assertSameResults(jsonb.deserializeWaterFlows(resource(name)), direct.deserializeWaterFlows(resource(name)));
+        List<JsonMeasurement> expected = readAll(jsonb.readWaterFlows(resource(name), name));
+        assertFalse(expected.isEmpty());
+        assertSame(expected, readAll(direct.readWaterFlows(resource(name), name)));
+    }
+
+    @Test
+    void testEmpty() throws IOException {
+        for (Deserializer d : List.of(direct, jsonb)) {
+            assertTrue(d.deserializeStations(body("  ")).isEmpty());
+            assertTrue(d.deserializeStations(null).isEmpty());
+            assertFalse(d.readWaterFlows(body(""), "test").hasNext());
+        }
+    }
+
+    @Test
+    void testLeadingWhitespace() throws IOException {
+        String space = " \n".repeat(10_000);
+        for (Deserializer d : List.of(direct, jsonb)) {
+            assertTrue(d.deserializeStations(body(space)).isEmpty());
+            assertFalse(d.readWaterFlows(body(space), "test").hasNext());
+            assertEquals(1, readAll(d.readWaterFlows(body(space + "[{\"results\": [{\"result\": 1}]}]"), "test")).size());
+            assertThrows(IOException.class, () -> d.readWaterFlows(body(space + "X"), "test"));
+        }
+    }
+
+    @Test
+    void testInvalid() {
+        for (Deserializer d : List.of(direct, jsonb)) {
+            assertThrows(IOException.class, () -> d.deserializeStations(body("{}")));
+            assertThrows(IOException.class, () -> d.deserializeStations(body("[{\"locationTypeSc\": \"one\"}]")));
+            assertThrows(IOException.class, () -> d.deserializeWaterFlows(body("[{\"results\": [{\"measurementDateTime\": \"now\"}]}]")));
+            assertThrows(IOException.class, () -> d.readWaterFlows(body("[{\"results\": [{\"result\": []}]}]"), "test"));
+        }
+    }
+
+    private static <J extends JsonMeasurement> List<J> readAll(JsonMeasurementReader<J> reader) {
+        List<J> measurements = new ArrayList<>();
+        reader.forEachRemaining(measurements::add);
+        return measurements;
+    }
+}
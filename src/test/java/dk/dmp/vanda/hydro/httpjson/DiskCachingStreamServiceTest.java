@@ -0,0 +1,195 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class DiskCachingStreamServiceTest {
+    static final ConditionalStreamService.Validators V1 = new ConditionalStreamService.Validators("\"1\"", "Mon, 01 Jan 2024 00:00:00 GMT");
+    static final ConditionalStreamService.Response NOT_MODIFIED = new ConditionalStreamService.Response(true, null, V1);
+    @Mock
+    ConditionalStreamService streamLayer;
+    @TempDir
+    Path directory;
+    DiskCachingStreamService cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cache = new DiskCachingStreamService(streamLayer, directory);
+    }
+
+    private static ConditionalStreamService.Response ok(String s, ConditionalStreamService.Validators validators) {
+        return new ConditionalStreamService.Response(false, new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)), validators);
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try (is) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private long files() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void testNotModified() throws IOException, InterruptedException {
+        when(streamLayer.getConditional("op", "b=2&a=1", null)).thenReturn(ok("[1]", V1));
+        when(streamLayer.getConditional("op", "a=1&b=2", V1)).thenReturn(NOT_MODIFIED);
+        assertEquals("[1]", read(cache.get("op", "b=2&a=1")));
+        assertEquals("[1]", read(cache.get("op", "a=1&b=2")));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(1, files());
+    }
+
+    @Test
+    void testModified() throws IOException, InterruptedException {
+        ConditionalStreamService.Validators v2 = new ConditionalStreamService.Validators("\"2\"", null);
+        when(streamLayer.getConditional("op", "", null)).thenReturn(ok("[1]", V1));
+        when(streamLayer.getConditional("op", "", V1)).thenReturn(ok("[2]", v2));
+        when(streamLayer.getConditional("op", "", v2)).thenReturn(NOT_MODIFIED);
+        assertEquals("[1]", read(cache.get("op", "")));
+        assertEquals("[2]", read(cache.get("op", "")));
+        assertEquals("[2]", read(cache.get("op", "")));
+        assertEquals(1, cache.hitCount());
+        assertEquals(2, cache.missCount());
+    }
+
+    @Test
+    void testSurvivesRestart() throws IOException, InterruptedException {
+        when(streamLayer.getConditional("op", "", null)).thenReturn(ok("[1]", V1));
+        assertEquals("[1]", read(cache.get("op", "")));
+        DiskCachingStreamService restarted = new DiskCachingStreamService(streamLayer, directory);
+        when(streamLayer.getConditional("op", "", V1)).thenReturn(NOT_MODIFIED);
+        assertEquals("[1]", read(restarted.get("op", "")));
+        assertEquals(1, restarted.hitCount());
+        assertEquals(0, restarted.missCount());
+    }
+
+    @Test
+    void testNotReadToEnd() throws IOException, InterruptedException {
+        when(streamLayer.getConditional("op", "", null)).thenReturn(ok("[1]", V1), ok("[1]", V1));
+        try (InputStream is = cache.get("op", "")) {
+            assertEquals('[', is.read());
+        }
+        assertEquals(0, files());
+        assertEquals("[1]", read(cache.get("op", "")));
+        verify(streamLayer, times(2)).getConditional("op", "", null);
+        assertEquals(1, files());
+    }
+
+    @Test
+    void testWithoutValidators() throws IOException, InterruptedException {
+        ConditionalStreamService.Validators none = new ConditionalStreamService.Validators(null, null);
+        when(streamLayer.getConditional("op", "", null)).thenReturn(ok("[1]", V1));
+        when(streamLayer.getConditional("op", "", V1)).thenReturn(ok("[2]", none));
+        assertEquals("[1]", read(cache.get("op", "")));
+        assertEquals("[2]", read(cache.get("op", "")));
+        assertEquals(0, files());
+    }
+
+    @Test
+    void testCorruptFileIgnored() throws IOException, InterruptedException {
+        when(streamLayer.getConditional("op", "", null)).thenReturn(ok("[1]", V1), ok("[2]", V1));
+        assertEquals("[1]", read(cache.get("op", "")));
+        try (Stream<Path> files = Files.list(directory)) {
+            Files.write(files.findFirst().orElseThrow(), new byte[] {0, 0, 0, 1, 0});
+        }
+        assertEquals("[2]", read(cache.get("op", "")));
+        assertEquals(2, cache.missCount());
+    }
+
+    @Test
+    void testInvalidateAll() throws IOException, InterruptedException {
+        when(streamLayer.getConditional("op", "", null)).thenReturn(ok("[1]", V1), ok("[1]", V1));
+        assertEquals("[1]", read(cache.get("op", "")));
+        cache.invalidateAll();
+        assertEquals(0, files());
+        assertEquals("[1]", read(cache.get("op", "")));
+        assertEquals(0, cache.hitCount());
+    }
+
+    @Test
+    void testFailureClosesStored() throws IOException, InterruptedException {
+        when(streamLayer.getConditional("op", "", null)).thenReturn(ok("[1]", V1));
+        when(streamLayer.getConditional("op", "", V1)).thenThrow(new IOException("down"));
+        assertEquals("[1]", read(cache.get("op", "")));
+        assertThrows(IOException.class, () -> cache.get("op", ""));
+        // An open file would prevent deletion on some platforms
+        cache.invalidateAll();
+        assertEquals(0, files());
+    }
+
+    @Test
+    void testAsync() throws IOException, ExecutionException, InterruptedException {
+        when(streamLayer.getConditionalAsync(eq("op"), eq(""), isNull())).thenReturn(CompletableFuture.completedFuture(ok("[1]", V1)));
+        when(streamLayer.getConditionalAsync("op", "", V1)).thenReturn(CompletableFuture.completedFuture(NOT_MODIFIED));
+        assertEquals("[1]", read(cache.getAsync("op", "").get()));
+        assertEquals("[1]", read(cache.getAsync("op", "").get()));
+        assertEquals(1, cache.hitCount());
+        verify(streamLayer, never()).getConditional(any(), any(), any());
+    }
+
+    @Test
+    void testAsyncFailure() throws ExecutionException, InterruptedException, IOException {
+        when(streamLayer.getConditionalAsync(eq("op"), eq(""), isNull())).thenReturn(CompletableFuture.completedFuture(ok("[1]", V1)));
+        when(streamLayer.getConditionalAsync("op", "", V1)).thenReturn(CompletableFuture.failedFuture(new IOException("down")));
+        assertEquals("[1]", read(cache.getAsync("op", "").get()));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> cache.getAsync("op", "").get());
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+
+    @Test
+    void testAboveLayers() throws IOException, InterruptedException, ExecutionException {
+        HttpResponseException unavailable = ResilientStreamServiceTest.status(503, null);
+        // Hedging sends every request asynchronously
+        when(streamLayer.getConditionalAsync("op", "", null))
+            .thenReturn(CompletableFuture.failedFuture(unavailable))
+            .thenReturn(CompletableFuture.completedFuture(ok("[1]", V1)));
+        when(streamLayer.getConditionalAsync("op", "", V1)).thenReturn(CompletableFuture.completedFuture(NOT_MODIFIED));
+        AdaptiveConcurrencyStreamService limiter = new AdaptiveConcurrencyStreamService(streamLayer, 4, 1, 8);
+        ResilientStreamService resilient = new ResilientStreamService(limiter, 2, Duration.ofMillis(1), Duration.ofMillis(1),
+            5, Duration.ofMinutes(1));
+        HedgingStreamService hedging = new HedgingStreamService(resilient, 95, Duration.ofMinutes(1), 0);
+        DiskCachingStreamService layered = new DiskCachingStreamService(hedging, directory);
+        assertEquals("[1]", read(layered.get("op", "")));
+        assertEquals("[1]", read(layered.getAsync("op", "").get()));
+        assertEquals(1, layered.hitCount());
+        assertEquals(1, resilient.retryCount());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    void testUnconditionalLayer() throws IOException, InterruptedException {
+        StreamService unconditional = (path, query) -> new ByteArrayInputStream("[1]".getBytes(StandardCharsets.UTF_8));
+        DiskCachingStreamService layered = new DiskCachingStreamService(ConditionalStreamService.of(unconditional), directory);
+        assertEquals("[1]", read(layered.get("op", "")));
+        assertEquals("[1]", read(layered.get("op", "")));
+        assertEquals(0, layered.hitCount());
+        assertEquals(0, files());
+    }
+}
@@ -0,0 +1,576 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An embeddable stand-in for the VanDa Hydro service, serving
+ * deterministic synthetic data over HTTP on the loopback interface.
+ * It implements the GET operations {@code stations},
+ * {@code water-levels}, {@code water-flows} and
+ * {@code measurements/results/{current,first,all,valid-from}} of the
+ * service, the latter four alike since there is no registration history.
+ * Measurements are sent as CSV by {@code format=csv}. Responses are
+ * gzip or deflate compressed if accepted by {@code Accept-Encoding}.
+ * Station responses have an {@code ETag}, and a request with a matching
+ * {@code If-None-Match} is answered by {@code 304 Not Modified}.
+ * <p>The data set has the given number of stations with IDs from
+ * {@value #FIRST_STATION_ID} up. Every other station has two measurement
+ * points, and each measurement point has a water level and a water flow
+ * measurement every 10 minutes from {@link #START} until the present
+ * time of the clock, less the {@linkplain #setCreationDelay(Duration)
+ * creation delay}. A measurement is created when its creation delay has
+ * passed, so measurements accrue as the clock advances. Measurements are
+ * returned latest first for each measurement point.</p>
+ * <p>Latency, bandwidth, concurrency and error rate of the service can
+ * be set while it is running, e.g. to exercise client resilience under
+ * load. All the methods in this class are safe for use by multiple
+ * concurrent threads.</p>
+ */
+public class FakeHydrometryServer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    /** The ID of the first station. */
+    public static final int FIRST_STATION_ID = 61000000;
+    /** The time of the first measurement. */
+    public static final OffsetDateTime START = OffsetDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    /** The interval between measurements. */
+    public static final Duration INTERVAL = Duration.ofMinutes(10);
+    private static final long START_MINUTE = START.toEpochSecond() / 60;
+    private static final long INTERVAL_MINUTES = INTERVAL.toMinutes();
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SS'Z'");
+    private static final Examination WATER_LEVEL = new Examination(25, "Vandstand", 1233, "Vandstand", 19, "cm");
+    private static final Examination WATER_FLOW = new Examination(27, "Vandføring", 1155, "Vandføring", 55, "l/s");
+
+    private record Examination(int examinationTypeSc, String examinationType, int parameterSc, String parameter, int unitSc, String unit) {}
+
+    private final HttpServer server;
+    private final int stations;
+    private final Clock clock;
+    private final AtomicLong requests = new AtomicLong(), failures = new AtomicLong();
+    private volatile Duration latency = Duration.ZERO;
+    private volatile Duration creationDelay = INTERVAL;
+    private volatile long bytesPerSecond;
+    private volatile double errorRate;
+    private volatile int errorStatus = 503;
+    private volatile long seed;
+    private volatile Semaphore permits;
+
+    /**
+     * Start a server on an ephemeral port, using the system clock.
+     * @param stations The number of stations.
+     * @throws IOException If the server cannot be bound.
+     */
+    public FakeHydrometryServer(int stations) throws IOException {
+        this(stations, Clock.systemUTC());
+    }
+
+    /**
+     * Start a server on an ephemeral port.
+     * @param stations The number of stations.
+     * @param clock The clock of the present time, which determines the
+     *         measurements that have been created.
+     * @throws IOException If the server cannot be bound.
+     */
+    public FakeHydrometryServer(int stations, Clock clock) throws IOException {
+        if (stations < 0 || stations > 1_000_000)
+            throw new IllegalArgumentException("Number of stations must be between 0 and 1000000: " + stations);
+        this.stations = stations;
+        this.clock = Objects.requireNonNull(clock);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api/", this::handle);
+        server.setExecutor(VirtualThreads.executor);
+        server.start();
+        log.debug("Fake VanDa Hydro service listening at {}", apiBase());
+    }
+
+    /**
+     * Get the base URL of the service, for
+     * {@link JsonStreamHttpClient#JsonStreamHttpClient(URI, java.net.http.HttpClient)}.
+     */
+    public URI apiBase() {
+        InetSocketAddress a = server.getAddress();
+        return URI.create("http://" + a.getAddress().getHostAddress() + ":" + a.getPort() + "/api/");
+    }
+
+    /**
+     * Delay each response by the given duration before the response
+     * headers are sent. Default is no delay.
+     */
+    public void setLatency(Duration latency) {
+        if (latency.isNegative()) throw new IllegalArgumentException("Latency must not be negative: " + latency);
+        this.latency = latency;
+    }
+
+    /**
+     * Limit the rate at which each response body is sent.
+     * @param bytesPerSecond The rate limit, or 0 for no limit, which is
+     *         the default.
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0) throw new IllegalArgumentException("Bytes per second must not be negative: " + bytesPerSecond);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Limit the number of requests handled concurrently. Requests beyond
+     * the limit are rejected with status 429 and a {@code Retry-After}
+     * header.
+     * @param maxConcurrentRequests The limit, or 0 for no limit, which is
+     *         the default.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 0)
+            throw new IllegalArgumentException("Max concurrent requests must not be negative: " + maxConcurrentRequests);
+        permits = maxConcurrentRequests == 0 ? null : new Semaphore(maxConcurrentRequests);
+    }
+
+    /**
+     * Fail the given fraction of requests with the
+     * {@linkplain #setErrorStatus(int) error status} and a
+     * {@code Retry-After} header. Which requests fail is determined by
+     * the {@linkplain #setSeed(long) seed} and the sequence number of
+     * the request. Default is 0.
+     * @param errorRate The fraction between 0 and 1.
+     */
+    public void setErrorRate(double errorRate) {
+        if (!(errorRate >= 0 && errorRate <= 1)) throw new IllegalArgumentException("Error rate must be between 0 and 1: " + errorRate);
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Set the status of failed requests. Default is 503.
+     */
+    public void setErrorStatus(int errorStatus) {
+        if (errorStatus < 400 || errorStatus > 599) throw new IllegalArgumentException("Error status must be 4xx or 5xx: " + errorStatus);
+        this.errorStatus = errorStatus;
+    }
+
+    /**
+     * Set the seed of the failures. Default is 0.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Set the time from a measurement is taken until it is created in the
+     * service. Default is the measurement interval.
+     */
+    public void setCreationDelay(Duration creationDelay) {
+        if (creationDelay.isNegative()) throw new IllegalArgumentException("Creation delay must not be negative: " + creationDelay);
+        this.creationDelay = creationDelay;
+    }
+
+    /**
+     * Get the number of requests received.
+     */
+    public long requestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of requests failed by the error rate or concurrency
+     * limit.
+     */
+    public long failureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Get the number of measurement points of a station.
+     * @param stationId The station ID.
+     * @return The number of measurement points, or 0 if there is no such station.
+     */
+    public int measurementPoints(String stationId) {
+        int i = stationIndex(stationId);
+        return i < 0 ? 0 : i % 2 + 1;
+    }
+
+    /**
+     * Get the synthetic result of a measurement.
+     * @param stationId The station ID.
+     * @param measurementPointNumber The measurement point number.
+     * @param examinationTypeSc 25 for water level or 27 for water flow.
+     * @param measurementDateTime The measurement time.
+     * @return The result in cm or l/s.
+     */
+    public static double result(String stationId, int measurementPointNumber, int examinationTypeSc, OffsetDateTime measurementDateTime) {
+        return result(Integer.parseInt(stationId) - FIRST_STATION_ID, measurementPointNumber,
+            examinationTypeSc, measurementDateTime.toEpochSecond() / 60);
+    }
+
+    private static double result(int station, int point, int examinationTypeSc, long minute) {
+        double yearly = Math.sin(2 * Math.PI * minute / (365 * 1440));
+        double daily = Math.sin(2 * Math.PI * minute / 1440 + station + point);
+        double level = 50 + 40 * yearly + 10 * daily;
+        return Math.round((examinationTypeSc == WATER_FLOW.examinationTypeSc ? level * 12.3 : level) * 10) / 10.0;
+    }
+
+    private int stationIndex(String stationId) {
+        try {
+            int i = Integer.parseInt(stationId) - FIRST_STATION_ID;
+            return i >= 0 && i < stations ? i : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void handle(HttpExchange exchange) {
+        long n = requests.getAndIncrement();
+        Semaphore p = permits;
+        boolean permitted = p == null || p.tryAcquire();
+        try (exchange) {
+            Thread.sleep(latency);
+            if (!permitted) {
+                failures.incrementAndGet();
+                sendError(exchange, 429, "Too many concurrent requests");
+                return;
+            }
+            double rate = errorRate;
+            if (rate > 0 && new SplittableRandom(seed ^ n).nextDouble() < rate) {
+                failures.incrementAndGet();
+                sendError(exchange, errorStatus, "Synthetic failure");
+                return;
+            }
+            serve(exchange);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.debug("Cannot send response to {}", exchange.getRemoteAddress(), e);
+        } finally {
+            if (permitted && p != null) p.release();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            sendError(exchange, 405, "Only GET is supported");
+            return;
+        }
+        String operation = exchange.getRequestURI().getPath().substring("/api/".length());
+        try {
+            Map<String, List<String>> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            switch (operation) {
+                case "stations" -> sendStations(exchange, query);
+                case "water-levels" -> sendMeasurements(exchange, query, List.of(WATER_LEVEL));
+                case "water-flows" -> sendMeasurements(exchange, query, List.of(WATER_FLOW));
+                case "measurements/results/current", "measurements/results/first",
+                     "measurements/results/all", "measurements/results/valid-from" ->
+                    sendMeasurements(exchange, query, List.of(WATER_LEVEL, WATER_FLOW));
+                default -> sendError(exchange, 404, "No such operation: " + operation);
+            }
+        } catch (IllegalArgumentException | DateTimeException e) {
+            // Thrown while parsing the query, before the response headers are sent
+            sendError(exchange, 400, String.valueOf(e.getMessage()));
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = ("{\"status\":" + status + ",\"title\":\"" + message.replace("\"", "'") + "\"}").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/problem+json; charset=utf-8");
+        if (status == 429 || status == 503) exchange.getResponseHeaders().set("Retry-After", "1");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private Writer beginJson(HttpExchange exchange) throws IOException {
+        return begin(exchange, "application/json; charset=utf-8");
+    }
+
+    /**
+     * Choose gzip or deflate if accepted, ignoring quality values other than 0.
+     */
+    private static String contentEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        Set<String> accepted = new HashSet<>();
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?")) continue;
+            accepted.add(parts[0].trim().toLowerCase(Locale.ROOT));
+        }
+        if (accepted.contains("gzip")) return "gzip";
+        if (accepted.contains("deflate")) return "deflate";
+        return null;
+    }
+
+    private Writer begin(HttpExchange exchange, String contentType) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        String encoding = contentEncoding(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        if (encoding != null) exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        long limit = bytesPerSecond;
+        if (limit > 0) out = new ThrottledOutputStream(out, limit);
+        if ("gzip".equals(encoding)) out = new GZIPOutputStream(out, 8192);
+        else if ("deflate".equals(encoding)) out = new DeflaterOutputStream(out, new Deflater(), 8192);
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+    }
+
+    private void sendStations(HttpExchange exchange, Map<String, List<String>> query) throws IOException {
+        List<String> stationIds = query.getOrDefault("stationId", List.of());
+        List<String> operatorStationIds = query.getOrDefault("operatorStationId", List.of());
+        String ownerCvr = single(query, "stationOwnerCvr"), operatorCvr = single(query, "operatorCvr");
+        String parameterSc = single(query, "parameterSc"), examinationTypeSc = single(query, "examinationTypeSc");
+        List<Examination> examinations = new ArrayList<>();
+        for (Examination x : List.of(WATER_LEVEL, WATER_FLOW)) {
+            if (parameterSc != null && Integer.parseInt(parameterSc) != x.parameterSc) continue;
+            if (examinationTypeSc != null && Integer.parseInt(examinationTypeSc) != x.examinationTypeSc) continue;
+            examinations.add(x);
+        }
+        long latest = latestMinute();
+        if (!examinations.isEmpty()) {
+            String resultsAfter = single(query, "withResultsAfter");
+            if (resultsAfter != null && latest * 60 <= OffsetDateTime.parse(resultsAfter).toEpochSecond())
+                examinations.clear();
+            String createdAfter = single(query, "withResultsCreatedAfter");
+            if (createdAfter != null && latest * 60 + creationDelay.toSeconds() <= OffsetDateTime.parse(createdAfter).toEpochSecond())
+                examinations.clear();
+        }
+        boolean ownerMatches = ownerCvr == null || ownerCvr.equals("DK25798376");
+        boolean operatorMatches = operatorCvr == null || operatorCvr.equals("DK25798376");
+        boolean filtered = query.containsKey("parameterSc") || query.containsKey("examinationTypeSc")
+            || query.containsKey("withResultsAfter") || query.containsKey("withResultsCreatedAfter");
+        // The response is determined by the query and the latest measurement
+        String etag = "W/\"" + Integer.toHexString(Objects.hash(stations, exchange.getRequestURI().getRawQuery(), latest)) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || List.of(ifNoneMatch.split("\\s*,\\s*")).contains(etag))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        try (Writer w = beginJson(exchange)) {
+            w.write('[');
+            boolean first = true;
+            for (int i = 0; i < stations; ++i) {
+                String stationId = String.valueOf(FIRST_STATION_ID + i);
+                String operatorStationId = String.valueOf(610000 + i);
+                if (!stationIds.isEmpty() && !stationIds.contains(stationId)) continue;
+                if (!operatorStationIds.isEmpty() && !operatorStationIds.contains(operatorStationId)) continue;
+                if (!ownerMatches || !operatorMatches || filtered && examinations.isEmpty()) continue;
+                if (!first) w.write(',');
+                first = false;
+                writeStation(w, i, stationId, operatorStationId, examinations, latest);
+            }
+            w.write(']');
+        }
+    }
+
+    private void writeStation(Writer w, int i, String stationId, String operatorStationId, List<Examination> examinations, long latest) throws IOException {
+        SplittableRandom random = new SplittableRandom(i);
+        w.write("{\"stationUid\":\"" + new UUID(random.nextLong(), random.nextLong())
+            + "\",\"stationId\":\"" + stationId
+            + "\",\"operatorStationId\":\"" + operatorStationId
+            + "\",\"oldStationNumber\":null,\"locationType\":\"Vandløb\",\"locationTypeSc\":1"
+            + ",\"stationOwnerCvr\":\"DK25798376\",\"stationOwnerName\":\"Miljøstyrelsen\""
+            + ",\"operatorCvr\":\"DK25798376\",\"operatorName\":\"Miljøstyrelsen\""
+            + ",\"name\":\"Syntetisk station " + i + "\",\"description\":null,\"loggerId\":\"" + (40000 + i) + "\""
+            + ",\"location\":" + point(random) + ",\"measurementPoints\":[");
+        for (int n = 1; n <= i % 2 + 1; ++n) {
+            if (n > 1) w.write(',');
+            w.write("{\"number\":" + n + ",\"name\":\"Målepunkt " + n
+                + "\",\"measurementPointType\":\"Vandstandsmåler\",\"measurementPointTypeSc\":1,\"description\":null"
+                + ",\"location\":" + point(random) + ",\"examinations\":[");
+            for (int k = 0; k < examinations.size(); ++k) {
+                Examination x = examinations.get(k);
+                if (k > 0) w.write(',');
+                w.write("{\"parameter\":\"" + x.parameter + "\",\"parameterSc\":" + x.parameterSc
+                    + ",\"examinationType\":\"" + x.examinationType + "\",\"examinationTypeSc\":" + x.examinationTypeSc
+                    + ",\"unit\":\"" + x.unit + "\",\"unitSc\":" + x.unitSc
+                    + ",\"firstResult\":\"" + TIMESTAMP.format(START)
+                    + "\",\"latestResult\":\"" + TIMESTAMP.format(dateTime(latest)) + "\"}");
+            }
+            w.write("]}");
+        }
+        w.write("]}");
+    }
+
+    private static String point(SplittableRandom random) {
+        return String.format(Locale.ROOT, "{\"x\":%.4f,\"y\":%.4f,\"srid\":\"25832\"}",
+            random.nextDouble(440000, 890000), random.nextDouble(6050000, 6400000));
+    }
+
+    private void sendMeasurements(HttpExchange exchange, Map<String, List<String>> query, List<Examination> examinations) throws IOException {
+        String stationId = single(query, "stationId"), operatorStationId = single(query, "operatorStationId");
+        int i;
+        if (stationId != null) i = stationIndex(stationId);
+        else if (operatorStationId != null) i = stationIndex(String.valueOf(Integer.parseInt(operatorStationId) - 610000 + FIRST_STATION_ID));
+        else throw new IllegalArgumentException("Either stationId or operatorStationId is required");
+        Integer number = integer(query, "measurementPointNumber");
+        Integer examinationTypeSc = integer(query, "examinationTypeSc"), parameterSc = integer(query, "parameterSc");
+        String from = single(query, "from"), to = single(query, "to"), createdAfter = single(query, "createdAfter");
+        String format = single(query, "format");
+        if (format != null && !format.equals("csv")) throw new IllegalArgumentException("Format not supported: " + format);
+
+        long latest = latestMinute();
+        long last = to == null ? latest : Math.min(latest, Math.floorDiv(OffsetDateTime.parse(to).toEpochSecond(), 60));
+        long first = from == null ? last - 1440 : Math.ceilDiv(OffsetDateTime.parse(from).toEpochSecond(), 60);
+        if (createdAfter != null) {
+            long created = Math.floorDiv(OffsetDateTime.parse(createdAfter).toEpochSecond() - creationDelay.toSeconds(), 60) + 1;
+            first = Math.max(first, created);
+        }
+        first = Math.max(first, START_MINUTE);
+        // Align to the measurement interval
+        first = START_MINUTE + Math.ceilDiv(first - START_MINUTE, INTERVAL_MINUTES) * INTERVAL_MINUTES;
+        last = START_MINUTE + Math.floorDiv(last - START_MINUTE, INTERVAL_MINUTES) * INTERVAL_MINUTES;
+
+        if (format != null) {
+            sendMeasurementsCsv(exchange, i, number, examinationTypeSc, parameterSc, examinations, first, last);
+            return;
+        }
+        try (Writer w = beginJson(exchange)) {
+            w.write('[');
+            if (i >= 0) {
+                w.write("{\"stationId\":\"" + (FIRST_STATION_ID + i) + "\",\"operatorStationId\":\"" + (610000 + i) + "\",\"results\":[");
+                boolean firstResult = true;
+                for (int n = 1; n <= i % 2 + 1; ++n) {
+                    if (number != null && number != n) continue;
+                    for (Examination x : examinations) {
+                        if (examinationTypeSc != null && examinationTypeSc != x.examinationTypeSc) continue;
+                        if (parameterSc != null && parameterSc != x.parameterSc) continue;
+                        String common = ",\"parameterSc\":" + x.parameterSc + ",\"parameter\":\"" + x.parameter
+                            + "\",\"examinationTypeSc\":" + x.examinationTypeSc + ",\"examinationType\":\"" + x.examinationType + "\"";
+                        String unit = ",\"unitSc\":" + x.unitSc + ",\"unit\":\"" + x.unit + "\"}";
+                        for (long m = last; m >= first; m -= INTERVAL_MINUTES) {
+                            if (!firstResult) w.write(',');
+                            firstResult = false;
+                            double result = result(i, n, x.examinationTypeSc, m);
+                            w.write("{\"measurementPointNumber\":" + n + common
+                                + ",\"measurementDateTime\":\"" + TIMESTAMP.format(dateTime(m))
+                                + "\",\"result\":" + result);
+                            if (x == WATER_LEVEL) w.write(",\"resultElevationCorrected\":" + elevationCorrected(result));
+                            w.write(unit);
+                        }
+                    }
+                }
+                w.write("]}");
+            }
+            w.write(']');
+        }
+    }
+
+    /**
+     * Send measurements as CSV with a header of the JSON field names.
+     */
+    private void sendMeasurementsCsv(HttpExchange exchange, int i, Integer number, Integer examinationTypeSc, Integer parameterSc,
+                                     List<Examination> examinations, long first, long last) throws IOException {
+        try (Writer w = begin(exchange, "text/csv; charset=utf-8")) {
+            w.write("stationId,operatorStationId,measurementPointNumber,parameterSc,parameter,examinationTypeSc,examinationType,"
+                + "measurementDateTime,result,resultElevationCorrected,unitSc,unit\r\n");
+            if (i < 0) return;
+            String station = (FIRST_STATION_ID + i) + "," + (610000 + i) + ",";
+            for (int n = 1; n <= i % 2 + 1; ++n) {
+                if (number != null && number != n) continue;
+                for (Examination x : examinations) {
+                    if (examinationTypeSc != null && examinationTypeSc != x.examinationTypeSc) continue;
+                    if (parameterSc != null && parameterSc != x.parameterSc) continue;
+                    String common = station + n + "," + x.parameterSc + "," + x.parameter + "," + x.examinationTypeSc + "," + x.examinationType + ",";
+                    String unit = "," + x.unitSc + "," + x.unit + "\r\n";
+                    for (long m = last; m >= first; m -= INTERVAL_MINUTES) {
+                        double result = result(i, n, x.examinationTypeSc, m);
+                        w.write(common + TIMESTAMP.format(dateTime(m)) + "," + result + ","
+                            + (x == WATER_LEVEL ? String.valueOf(elevationCorrected(result)) : "") + unit);
+                    }
+                }
+            }
+        }
+    }
+
+    private static double elevationCorrected(double result) {
+        return Math.round(result * 10 - 900) / 10.0;
+    }
+
+    /**
+     * Get the measurement time of the latest measurement created.
+     */
+    private long latestMinute() {
+        long created = Math.floorDiv(clock.instant().getEpochSecond() - creationDelay.toSeconds(), 60);
+        return START_MINUTE + Math.floorDiv(created - START_MINUTE, INTERVAL_MINUTES) * INTERVAL_MINUTES;
+    }
+
+    private static OffsetDateTime dateTime(long epochMinute) {
+        return OffsetDateTime.ofInstant(Instant.ofEpochSecond(epochMinute * 60), ZoneOffset.UTC);
+    }
+
+    private static String single(Map<String, List<String>> query, String name) {
+        List<String> values = query.get(name);
+        if (values == null) return null;
+        if (values.size() > 1) throw new IllegalArgumentException("Parameter " + name + " must not be repeated");
+        return values.getFirst();
+    }
+
+    private static Integer integer(Map<String, List<String>> query, String name) {
+        String value = single(query, name);
+        return value == null ? null : Integer.valueOf(value);
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) {
+        Map<String, List<String>> params = new HashMap<>();
+        if (query == null || query.isEmpty()) return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    /**
+     * Stop the server, closing open connections.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    /**
+     * Writes no faster than a given rate.
+     */
+    private static class ThrottledOutputStream extends FilterOutputStream {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long written;
+
+        ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+            super(out);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+            long due = start + written * 1_000_000_000L / bytesPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait > 0) try {
+                Thread.sleep(Duration.ofNanos(wait));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
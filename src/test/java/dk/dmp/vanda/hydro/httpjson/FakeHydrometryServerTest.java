@@ -0,0 +1,197 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService;
+import dk.dmp.vanda.hydro.Measurement;
+import dk.dmp.vanda.hydro.Station;
+import dk.dmp.vanda.hydro.WaterLevelMeasurement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FakeHydrometryServerTest {
+    CachingStreamServiceTest.MutableClock clock = new CachingStreamServiceTest.MutableClock();
+    FakeHydrometryServer server;
+    HttpClient http;
+    JsonStreamHttpClient streamService;
+    HydrometryServiceClient service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new FakeHydrometryServer(5, clock);
+        http = HttpClient.newHttpClient();
+        streamService = new JsonStreamHttpClient(server.apiBase(), http);
+        service = new HydrometryServiceClient(streamService);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        service.close();
+        http.close();
+        server.close();
+    }
+
+    private static <T> List<T> list(Iterator<T> i) {
+        List<T> list = new ArrayList<>();
+        i.forEachRemaining(list::add);
+        return list;
+    }
+
+    @Test
+    void testStations() throws IOException, InterruptedException {
+        List<Station> stations = list(service.getStations().exec());
+        assertEquals(5, stations.size());
+        assertEquals("61000000", stations.getFirst().stationId());
+        assertEquals(1, stations.get(0).measurementPoints().size());
+        assertEquals(2, stations.get(1).measurementPoints().size());
+        assertEquals(2, stations.get(1).measurementPoints().get(1).examinations().size());
+        assertEquals(25832, stations.get(2).location().getSRID());
+        assertEquals(list(service.getStations().exec()).toString(), stations.toString());
+
+        HydrometryService.GetStationsOperation op = service.getStations();
+        op.stationId("61000003");
+        op.examinationTypeSc(27);
+        stations = list(op.exec());
+        assertEquals(1, stations.size());
+        assertEquals("610003", stations.getFirst().operatorStationId());
+        assertEquals(27, stations.getFirst().measurementPoints().getFirst().examinations().getFirst().examinationTypeSc());
+    }
+
+    @Test
+    void testStationsWithResultsCreatedAfter() throws IOException, InterruptedException {
+        HydrometryService.GetStationsOperation op = service.getStations();
+        op.withResultsCreatedAfter(OffsetDateTime.parse("2024-01-01T00:00Z"));
+        assertTrue(list(op.exec()).isEmpty());
+        clock.advance(Duration.ofMinutes(10));
+        op = service.getStations();
+        op.withResultsCreatedAfter(OffsetDateTime.parse("2024-01-01T00:00Z"));
+        assertEquals(5, list(op.exec()).size());
+    }
+
+    @Test
+    void testWaterLevels() throws IOException, InterruptedException {
+        HydrometryService.GetWaterLevelsOperation op = service.getWaterLevels();
+        op.stationId("61000001");
+        op.from(OffsetDateTime.parse("2023-10-02T18:00Z"));
+        op.to(OffsetDateTime.parse("2023-10-02T18:30Z"));
+        List<WaterLevelMeasurement> measurements = list(op.exec());
+        assertEquals(8, measurements.size());
+        WaterLevelMeasurement m = measurements.getFirst();
+        assertEquals(1, m.measurementPointNumber());
+        assertEquals(OffsetDateTime.parse("2023-10-02T18:30Z"), m.measurementDateTime());
+        assertEquals(FakeHydrometryServer.result("61000001", 1, 25, m.measurementDateTime()), m.result());
+        assertEquals(m.result() - 90, m.resultElevationCorrected(), 0.05);
+        assertEquals("cm", m.unit());
+        assertEquals(2, measurements.getLast().measurementPointNumber());
+
+        op = service.getWaterLevels();
+        op.stationId("61000001");
+        op.measurementPointNumber(2);
+        op.from(OffsetDateTime.parse("2023-12-31T23:45Z"));
+        op.to(OffsetDateTime.parse("2024-01-02T00:00Z"));
+        measurements = list(op.exec());
+        assertEquals(List.of(OffsetDateTime.parse("2023-12-31T23:50Z")),
+            measurements.stream().map(Measurement::measurementDateTime).toList());
+    }
+
+    @Test
+    void testWaterFlowsCreatedAfter() throws IOException, InterruptedException {
+        clock.advance(Duration.ofHours(1));
+        HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+        op.stationId("61000000");
+        // Created 10 minutes after the measurement time
+        op.createdAfter(OffsetDateTime.parse("2024-01-01T00:30Z"));
+        List<Measurement> measurements = list(op.exec());
+        assertEquals(List.of(OffsetDateTime.parse("2024-01-01T00:50Z"), OffsetDateTime.parse("2024-01-01T00:40Z"),
+                OffsetDateTime.parse("2024-01-01T00:30Z")),
+            measurements.stream().map(Measurement::measurementDateTime).toList());
+        assertEquals("l/s", measurements.getFirst().unit());
+    }
+
+    @Test
+    void testResults() throws IOException, InterruptedException {
+        var body = streamService.get("measurements/results/current", "stationId=61000000&from=2023-10-02T18:00Z&to=2023-10-02T18:10Z");
+        List<JsonStationResults<JsonMeasurement>> results;
+        try (Deserializer d = new Deserializer()) {
+            results = d.deserializeWaterFlows(body);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        assertEquals(List.of(25, 25, 27, 27), results.getFirst().results.stream().map(JsonMeasurement::examinationTypeSc).toList());
+    }
+
+    @Test
+    void testErrors() throws IOException, InterruptedException {
+        server.setErrorRate(1);
+        HttpResponseException e = assertThrows(HttpResponseException.class, () -> service.getStations().exec());
+        assertEquals(503, e.statusCode());
+        assertEquals("1", e.headers().firstValue("Retry-After").orElseThrow());
+        server.setErrorRate(0);
+        assertEquals(5, list(service.getStations().exec()).size());
+        assertEquals(1, server.failureCount());
+        assertEquals(2, server.requestCount());
+
+        e = assertThrows(HttpResponseException.class, () -> service.getWaterLevels().exec());
+        assertEquals(400, e.statusCode());
+        e = assertThrows(HttpResponseException.class, () -> streamService.get("nothing", null));
+        assertEquals(404, e.statusCode());
+    }
+
+    @Test
+    void testCompressed() throws Exception {
+        JsonStreamHttpClient compressing = new JsonStreamHttpClient(server.apiBase(), http, true);
+        try (HydrometryServiceClient compressed = new HydrometryServiceClient(compressing)) {
+            HydrometryService.GetWaterLevelsOperation op = compressed.getWaterLevels();
+            op.stationId("61000001");
+            op.from(OffsetDateTime.parse("2023-10-01T00:00Z"));
+            String expected = list(op.exec()).toString();
+            assertTrue(compressing.receivedBytes() * 5 < compressing.decodedBytes(),
+                compressing.receivedBytes() + " of " + compressing.decodedBytes());
+            op = service.getWaterLevels();
+            op.stationId("61000001");
+            op.from(OffsetDateTime.parse("2023-10-01T00:00Z"));
+            assertEquals(expected, list(op.exec()).toString());
+            assertEquals(streamService.receivedBytes(), streamService.decodedBytes());
+            assertEquals(compressing.decodedBytes(), streamService.decodedBytes());
+        }
+    }
+
+    @Test
+    void testConditional(@TempDir Path directory) throws Exception {
+        String expected = list(service.getStations().exec()).toString();
+        try (HydrometryServiceClient cached = new HydrometryServiceClient(new DiskCachingStreamService(streamService, directory))) {
+            assertEquals(expected, list(cached.getStations().exec()).toString());
+        }
+        DiskCachingStreamService restarted = new DiskCachingStreamService(streamService, directory);
+        try (HydrometryServiceClient cached = new HydrometryServiceClient(restarted)) {
+            long received = streamService.receivedBytes();
+            assertEquals(expected, list(cached.getStations().exec()).toString());
+            assertEquals(received, streamService.receivedBytes());
+            assertEquals(1, restarted.hitCount());
+            clock.advance(Duration.ofMinutes(10));
+            assertNotEquals(expected, list(cached.getStations().exec()).toString());
+            assertEquals(1, restarted.missCount());
+        }
+    }
+
+    @Test
+    void testThrottled() throws IOException, InterruptedException {
+        server.setLatency(Duration.ofMillis(50));
+        server.setBytesPerSecond(20_000);
+        long start = System.nanoTime();
+        assertEquals(5, list(service.getStations().exec()).size());
+        // About 8 kB of stations
+        assertTrue(System.nanoTime() - start > Duration.ofMillis(300).toNanos());
+    }
+}
@@ -0,0 +1,167 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class HedgingStreamServiceTest {
+    @Mock
+    StreamService streamLayer;
+
+    private static InputStream body(AtomicBoolean closed) {
+        return new ByteArrayInputStream(new byte[0]) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+    }
+
+    /**
+     * Like a response of {@link JsonStreamHttpClient} that arrives
+     * while it is cancelled, so that the body must be closed by the
+     * hedging layer.
+     */
+    private static CompletableFuture<InputStream> uncancellable() {
+        return new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return false;
+            }
+        };
+    }
+
+    private static void awaitHedge(CompletableFuture<InputStream> hedge) throws InterruptedException {
+        while (hedge.getNumberOfDependents() == 0) Thread.sleep(1);
+    }
+
+    @Test
+    void testConstructionFail() {
+        assertThrows(IllegalArgumentException.class, () -> new HedgingStreamService(streamLayer, 100, Duration.ZERO, 0.1));
+        assertThrows(IllegalArgumentException.class, () -> new HedgingStreamService(streamLayer, 95, Duration.ZERO, 1.5));
+    }
+
+    @Test
+    void testFast() throws IOException, InterruptedException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        when(streamLayer.getAsync("op", "")).thenReturn(CompletableFuture.completedFuture(body));
+        HedgingStreamService service = new HedgingStreamService(streamLayer, 95, Duration.ofMillis(10), 1);
+        assertSame(body, service.get("op", ""));
+        Thread.sleep(50);
+        verify(streamLayer, times(1)).getAsync("op", "");
+        assertEquals(0, service.hedgeCount());
+    }
+
+    @Test
+    void testHedgeWins() throws IOException, InterruptedException {
+        CompletableFuture<InputStream> primary = new CompletableFuture<>();
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        when(streamLayer.getAsync("op", "")).thenReturn(primary).thenReturn(CompletableFuture.completedFuture(body));
+        HedgingStreamService service = new HedgingStreamService(streamLayer, 95, Duration.ofMillis(10), 1);
+        assertSame(body, service.get("op", ""));
+        assertTrue(primary.isCancelled());
+        assertEquals(1, service.hedgeCount());
+        assertEquals(1, service.hedgeWinCount());
+    }
+
+    @Test
+    void testPrimaryWins() throws ExecutionException, InterruptedException {
+        CompletableFuture<InputStream> primary = new CompletableFuture<>(), hedge = uncancellable();
+        when(streamLayer.getAsync("op", "")).thenReturn(primary).thenReturn(hedge);
+        HedgingStreamService service = new HedgingStreamService(streamLayer, 95, Duration.ofMillis(10), 1);
+        CompletableFuture<InputStream> result = service.getAsync("op", "");
+        awaitHedge(hedge);
+        AtomicBoolean primaryClosed = new AtomicBoolean(), hedgeClosed = new AtomicBoolean();
+        primary.complete(body(primaryClosed));
+        // The losing request is still running, and its body arrives late
+        hedge.complete(body(hedgeClosed));
+        result.get();
+        assertFalse(primaryClosed.get());
+        assertTrue(hedgeClosed.get());
+        assertEquals(0, service.hedgeWinCount());
+    }
+
+    @Test
+    void testLateResponseClosed() throws ExecutionException, InterruptedException {
+        CompletableFuture<InputStream> primary = uncancellable(), hedge = new CompletableFuture<>();
+        when(streamLayer.getAsync("op", "")).thenReturn(primary).thenReturn(hedge);
+        HedgingStreamService service = new HedgingStreamService(streamLayer, 95, Duration.ofMillis(10), 1);
+        CompletableFuture<InputStream> result = service.getAsync("op", "");
+        awaitHedge(hedge);
+        AtomicBoolean primaryClosed = new AtomicBoolean(), hedgeClosed = new AtomicBoolean();
+        hedge.complete(body(hedgeClosed));
+        primary.complete(body(primaryClosed));
+        result.get();
+        assertTrue(primaryClosed.get());
+        assertFalse(hedgeClosed.get());
+    }
+
+    @Test
+    void testBothFail() throws InterruptedException {
+        CompletableFuture<InputStream> primary = new CompletableFuture<>(), hedge = new CompletableFuture<>();
+        when(streamLayer.getAsync("op", "")).thenReturn(primary).thenReturn(hedge);
+        HedgingStreamService service = new HedgingStreamService(streamLayer, 95, Duration.ofMillis(10), 1);
+        CompletableFuture<InputStream> result = service.getAsync("op", "");
+        awaitHedge(hedge);
+        IOException first = new IOException("first");
+        primary.completeExceptionally(first);
+        assertFalse(result.isDone());
+        hedge.completeExceptionally(new IOException("second"));
+        ExecutionException e = assertThrows(ExecutionException.class, result::get);
+        assertSame(first, e.getCause());
+    }
+
+    @Test
+    void testFailureNotHedged() throws InterruptedException {
+        when(streamLayer.getAsync("op", "")).thenReturn(CompletableFuture.failedFuture(new IOException("down")));
+        HedgingStreamService service = new HedgingStreamService(streamLayer, 95, Duration.ofMillis(10), 1);
+        assertThrows(IOException.class, () -> service.get("op", ""));
+        Thread.sleep(50);
+        verify(streamLayer, times(1)).getAsync("op", "");
+    }
+
+    @Test
+    void testRateLimited() throws InterruptedException, ExecutionException {
+        CompletableFuture<InputStream> primary = new CompletableFuture<>();
+        when(streamLayer.getAsync("op", "")).thenReturn(primary);
+        HedgingStreamService service = new HedgingStreamService(streamLayer, 95, Duration.ofMillis(10), 0);
+        CompletableFuture<InputStream> result = service.getAsync("op", "");
+        Thread.sleep(50);
+        primary.complete(null);
+        assertNull(result.get());
+        verify(streamLayer, times(1)).getAsync("op", "");
+        assertEquals(0, service.hedgeCount());
+    }
+
+    @Test
+    void testCancel() {
+        CompletableFuture<InputStream> primary = new CompletableFuture<>();
+        when(streamLayer.getAsync("op", "")).thenReturn(primary);
+        HedgingStreamService service = new HedgingStreamService(streamLayer, 95, Duration.ofMinutes(1), 1);
+        service.getAsync("op", "").cancel(true);
+        assertTrue(primary.isCancelled());
+    }
+
+    @Test
+    void testDelayFromLatencies() throws IOException, InterruptedException {
+        when(streamLayer.getAsync("op", "")).thenAnswer(i -> CompletableFuture.completedFuture(null));
+        HedgingStreamService service = new HedgingStreamService(streamLayer, 95, Duration.ofMinutes(1), 0.1);
+        for (int i = 1; i < HedgingStreamService.MIN_SAMPLES; ++i) service.get("op", "");
+        assertEquals(Duration.ofMinutes(1), service.hedgeDelay());
+        service.get("op", "");
+        assertTrue(service.hedgeDelay().compareTo(Duration.ofSeconds(1)) < 0, service.hedgeDelay().toString());
+    }
+}
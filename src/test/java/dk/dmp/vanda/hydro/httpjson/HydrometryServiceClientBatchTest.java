@@ -0,0 +1,136 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService;
+import dk.dmp.vanda.hydro.WaterLevelMeasurement;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class HydrometryServiceClientBatchTest {
+    private static InputStream response(String stationId) {
+        String json = "[{\"stationId\":\"" + stationId + "\",\"results\":["
+            + "{\"measurementDateTime\":\"2023-10-02T18:10:00Z\",\"result\":1.5},"
+            + "{\"measurementDateTime\":\"2023-10-02T18:05:00Z\",\"result\":2.5}]}]";
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testBatch() throws Exception {
+        HttpResponseException failure = mock(HttpResponseException.class);
+        Set<String> queries = ConcurrentHashMap.newKeySet();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        StreamService streamLayer = (path, query) -> {
+            queries.add(path + "?" + query);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            if (query.contains("stationId=3")) throw failure;
+            return response(query.substring(10, 11));
+        };
+        try (HydrometryServiceClient service = new HydrometryServiceClient(streamLayer)) {
+            HydrometryService.GetWaterLevelsBatchOperation op = service.getWaterLevelsBatch();
+            op.stationIds(List.of("1", "2", "3", "4", "5"));
+            op.from(OffsetDateTime.parse("2023-10-02T18:00Z"));
+            op.to(OffsetDateTime.parse("2023-10-02T19:00Z"));
+            op.maxConcurrency(2);
+            Map<String, HydrometryService.StationMeasurements<WaterLevelMeasurement>> outcomes = new HashMap<>();
+            op.exec().forEachRemaining(o -> outcomes.put(o.stationId(), o));
+            assertEquals(Set.of("1", "2", "3", "4", "5"), outcomes.keySet());
+            assertEquals(2, outcomes.get("1").measurements().size());
+            assertEquals("2", outcomes.get("2").measurements().getFirst().stationId());
+            assertTrue(outcomes.get("1").error().isEmpty());
+            assertSame(failure, outcomes.get("3").error().orElseThrow());
+            assertTrue(outcomes.get("3").measurements().isEmpty());
+            assertTrue(queries.contains("water-levels?stationId=4&from=2023-10-02T18%3A00Z&to=2023-10-02T19%3A00Z"));
+            assertTrue(maxInFlight.get() <= 2);
+        }
+    }
+
+    private static StreamService tracking(Set<String> closed) {
+        return (path, query) -> {
+            String stationId = query.substring(10, 11);
+            return new FilterInputStream(response(stationId)) {
+                @Override
+                public void close() throws IOException {
+                    closed.add(stationId);
+                    super.close();
+                }
+            };
+        };
+    }
+
+    private static HydrometryService.GetWaterLevelsBatchOperation batch(HydrometryServiceClient service, int maxConcurrency) {
+        HydrometryService.GetWaterLevelsBatchOperation op = service.getWaterLevelsBatch();
+        op.stationIds(List.of("1", "2", "3"));
+        op.maxConcurrency(maxConcurrency);
+        return op;
+    }
+
+    @Test
+    void testStreamStation() throws Exception {
+        Set<String> closed = ConcurrentHashMap.newKeySet();
+        try (HydrometryServiceClient service = new HydrometryServiceClient(tracking(closed));
+             Stream<HydrometryService.StationMeasurements<WaterLevelMeasurement>> outcomes = batch(service, 1).stream())
+        {
+            Iterator<HydrometryService.StationMeasurements<WaterLevelMeasurement>> i = outcomes.iterator();
+            HydrometryService.StationMeasurements<WaterLevelMeasurement> first = i.next();
+            Stream<WaterLevelMeasurement> measurements = first.stream();
+            assertThrows(IllegalStateException.class, first::measurements);
+            assertThrows(IllegalStateException.class, i::next, "The only permit is taken by the stream");
+            assertEquals(2, measurements.count());
+            assertTrue(closed.contains(first.stationId()), "The response is closed when read to the end");
+            HydrometryService.StationMeasurements<WaterLevelMeasurement> second = i.next();
+            HydrometryService.StationMeasurements<WaterLevelMeasurement> third = i.next();
+            assertEquals(2, second.measurements().size(), "Read into memory to request the third station");
+            assertTrue(closed.contains(second.stationId()));
+            assertEquals(2, third.stream().count());
+            assertEquals(Set.of("1", "2", "3"), closed);
+        }
+    }
+
+    @Test
+    void testCloseBatch() throws Exception {
+        Set<String> closed = ConcurrentHashMap.newKeySet();
+        HydrometryService.StationMeasurements<WaterLevelMeasurement> first;
+        try (HydrometryServiceClient service = new HydrometryServiceClient(tracking(closed))) {
+            try (Stream<HydrometryService.StationMeasurements<WaterLevelMeasurement>> outcomes = batch(service, 3).stream()) {
+                first = outcomes.iterator().next();
+                assertFalse(closed.contains(first.stationId()));
+            }
+            assertTrue(closed.contains(first.stationId()), "Unread responses are closed with the batch");
+            assertTrue(first.measurements().isEmpty());
+        }
+    }
+
+    @Test
+    void testEmptyBatch() throws Exception {
+        try (HydrometryServiceClient service = new HydrometryServiceClient((path, query) -> fail())) {
+            Iterator<HydrometryService.StationMeasurements<WaterLevelMeasurement>> i = service.getWaterLevelsBatch().exec();
+            assertFalse(i.hasNext());
+            assertThrows(NoSuchElementException.class, i::next);
+        }
+    }
+
+    @Test
+    void testIllegalConcurrency() throws Exception {
+        try (HydrometryServiceClient service = new HydrometryServiceClient((path, query) -> fail())) {
+            assertThrows(IllegalArgumentException.class, () -> service.getWaterFlowsBatch().maxConcurrency(0));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.Measurement;
+import dk.dmp.vanda.hydro.MeasurementBatch;
+import dk.dmp.vanda.hydro.WaterLevelMeasurement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class HydrometryServiceClientColumnarTest {
+    @Mock
+    StreamService streamLayer;
+    HydrometryServiceClient service;
+
+    @BeforeEach
+    void setUp() {
+        service = new HydrometryServiceClient(streamLayer);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        service.close();
+    }
+
+    private static InputStream body(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<MeasurementBatch> list(Iterator<MeasurementBatch> i) {
+        List<MeasurementBatch> batches = new ArrayList<>();
+        i.forEachRemaining(batches::add);
+        return batches;
+    }
+
+    @Test
+    void testWaterLevels() throws IOException, InterruptedException {
+        when(streamLayer.get(eq("water-levels"), any())).thenAnswer(i -> getClass().getResourceAsStream("water-level_extra.json"));
+        List<MeasurementBatch> batches = list(service.getWaterLevels().execColumnar());
+
+        List<WaterLevelMeasurement> expected = new ArrayList<>();
+        when(streamLayer.get(eq("water-levels"), any())).thenAnswer(i -> getClass().getResourceAsStream("water-level_extra.json"));
+        service.getWaterLevels().exec().forEachRemaining(expected::add);
+
+        int n = 0;
+        for (MeasurementBatch b : batches) {
+            assertEquals(b.size(), b.results().length);
+            for (int i = 0; i < b.size(); ++i, ++n) {
+                WaterLevelMeasurement m = expected.get(n);
+                assertEquals(m.stationId(), b.stationId());
+                assertEquals(m.operatorStationId(), b.operatorStationId());
+                assertEquals(m.measurementPointNumber(), b.measurementPointNumber());
+                assertEquals(m.parameter(), b.parameter());
+                assertEquals(m.examinationTypeSc(), b.examinationTypeSc());
+                assertEquals(m.unit(), b.unit());
+                assertEquals(m.measurementDateTime(), b.measurementDateTime(i));
+                assertEquals(m.result(), b.results()[i]);
+                assertEquals(m.resultElevationCorrected(), b.resultsElevationCorrected()[i]);
+            }
+        }
+        assertEquals(expected.size(), n);
+    }
+
+    @Test
+    void testWaterFlows() throws IOException, InterruptedException {
+        when(streamLayer.get(eq("water-flows"), any())).thenAnswer(i -> getClass().getResourceAsStream("water-flow_61000181.json"));
+        List<MeasurementBatch> batches = list(service.getWaterFlows().execColumnar());
+        assertEquals(1, batches.size());
+        MeasurementBatch b = batches.getFirst();
+        assertEquals("61000181", b.stationId());
+        assertEquals(27, b.examinationTypeSc());
+        assertEquals("l/s", b.unit());
+        assertArrayEquals(new double[] { -1403.8, -1614.6 }, b.results());
+        assertArrayEquals(new long[] {
+            OffsetDateTime.parse("2023-10-02T18:10Z").toEpochSecond() / 60,
+            OffsetDateTime.parse("2023-10-02T18:05Z").toEpochSecond() / 60
+        }, b.measurementEpochMinutes());
+        assertNull(b.resultsElevationCorrected());
+
+        List<Measurement> expected = new ArrayList<>();
+        when(streamLayer.get(eq("water-flows"), any())).thenAnswer(i -> getClass().getResourceAsStream("water-flow_61000181.json"));
+        service.getWaterFlows().exec().forEachRemaining(expected::add);
+        assertEquals(expected.getFirst().measurementDateTime(), b.measurementDateTime(0));
+    }
+
+    @Test
+    void testRuns() throws IOException, InterruptedException {
+        when(streamLayer.get(any(), any())).thenReturn(body("""
+            [{"results":[
+              {"measurementPointNumber":1,"measurementDateTime":"2023-10-02T18:10Z","result":1,"resultElevationCorrected":null},
+              {"measurementPointNumber":2,"measurementDateTime":"2023-10-02T20:10+02:00","result":2},
+              {"measurementPointNumber":2,"measurementDateTime":null,"result":null,"resultElevationCorrected":3}
+            ],"stationId":"61000181","operatorStationId":"610181"}]
+            """));
+        List<MeasurementBatch> batches = list(service.getWaterLevels().execColumnar());
+        assertEquals(2, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertEquals(2, batches.get(1).measurementPointNumber());
+        assertEquals("610181", batches.get(1).operatorStationId());
+        long t = OffsetDateTime.parse("2023-10-02T18:10Z").toEpochSecond() / 60;
+        assertArrayEquals(new long[] { t, Long.MIN_VALUE }, batches.get(1).measurementEpochMinutes());
+        assertNull(batches.get(1).measurementDateTime(1));
+        assertTrue(Double.isNaN(batches.get(1).results()[1]));
+        assertTrue(Double.isNaN(batches.get(0).resultsElevationCorrected()[0]));
+        assertEquals(3, batches.get(1).resultsElevationCorrected()[1]);
+    }
+
+    @Test
+    void testBatchesStreamed() throws IOException, InterruptedException {
+        when(streamLayer.get(any(), any())).thenReturn(body("""
+            [{"stationId":"61000181","operatorStationId":"610181","results":[
+              {"measurementPointNumber":1,"measurementDateTime":"2023-10-02T18:10Z","result":1},
+              {"measurementPointNumber":2,"measurementDateTime":"2023-10-02T18:10Z","result":2},
+              {"measurementPointNumber":2,"measurementDateTime":"yesterday"}
+            """));
+        Iterator<MeasurementBatch> i = service.getWaterLevels().execColumnar();
+        MeasurementBatch b = i.next();
+        assertEquals(1, b.measurementPointNumber());
+        assertEquals("61000181", b.stationId());
+        assertThrows(UncheckedIOException.class, i::hasNext);
+    }
+
+    @Test
+    void testMaxBatchSize() throws IOException, InterruptedException {
+        StringBuilder json = new StringBuilder("[{\"stationId\":\"61000181\",\"results\":[");
+        for (int j = 0; j <= ColumnarMeasurementReader.MAX_BATCH_SIZE; ++j) {
+            if (j > 0) json.append(',');
+            json.append("{\"measurementDateTime\":\"2023-10-02T18:10Z\",\"result\":").append(j).append('}');
+        }
+        json.append("],\"operatorStationId\":\"610181\"},{\"stationId\":\"61000182\",\"operatorStationId\":null,\"results\":[");
+        for (int j = 0; j <= ColumnarMeasurementReader.MAX_BATCH_SIZE; ++j) {
+            if (j > 0) json.append(',');
+            json.append("{\"measurementDateTime\":\"2023-10-02T18:10Z\",\"result\":").append(j).append('}');
+        }
+        json.append("]}]");
+        when(streamLayer.get(any(), any())).thenReturn(body(json.toString()));
+        List<MeasurementBatch> batches = list(service.getWaterLevels().execColumnar());
+        // Results before the station is identified are held in one batch
+        assertEquals(List.of(ColumnarMeasurementReader.MAX_BATCH_SIZE + 1, ColumnarMeasurementReader.MAX_BATCH_SIZE, 1),
+            batches.stream().map(MeasurementBatch::size).toList());
+        assertEquals("610181", batches.get(0).operatorStationId());
+        assertEquals("61000182", batches.get(2).stationId());
+        assertEquals(ColumnarMeasurementReader.MAX_BATCH_SIZE, batches.get(2).results()[0]);
+    }
+
+    @Test
+    void testEmpty() throws IOException, InterruptedException {
+        when(streamLayer.get(any(), any())).thenReturn(body(" "), body("[]"), null);
+        for (int i = 0; i < 3; ++i) assertFalse(service.getWaterLevels().execColumnar().hasNext());
+    }
+
+    @Test
+    void testInvalid() throws IOException, InterruptedException {
+        when(streamLayer.get(any(), any())).thenReturn(body("{}"), body("[{\"results\":[{\"measurementDateTime\":\"yesterday\"}]}]"));
+        assertThrows(IOException.class, () -> service.getWaterLevels().execColumnar());
+        assertThrows(IOException.class, () -> service.getWaterLevels().execColumnar());
+    }
+
+    @Test
+    void testEpochMinute() {
+        for (String t : List.of("2023-10-02T18:10:59.99Z", "2023-10-02T18:10Z", "2023-10-02t18:10:00Z", "2023-10-02T20:10:00+02:00", "1969-12-31T23:59:30Z")) {
+            assertEquals(Math.floorDiv(OffsetDateTime.parse(t.replace('t', 'T')).toEpochSecond(), 60), ColumnarMeasurementReader.epochMinute(t), t);
+        }
+        for (String t : List.of("2023-10-02T18:10:xxZ", "2023-10-02T18:10:60Z", "2023-10-02T18:10:00.1234567890Z", "2023-10-02T18:60Z")) {
+            assertThrows(DateTimeException.class, () -> ColumnarMeasurementReader.epochMinute(t), t);
+        }
+    }
+
+    @Test
+    void testQuotedNumbers() throws IOException, InterruptedException {
+        String json = """
+            [{"stationId":"1","results":[
+              {"measurementPointNumber":"1","measurementDateTime":"2023-10-02T18:10Z","result":"1.5","resultElevationCorrected":"2.5"}
+            ]}]""";
+        when(streamLayer.get(any(), any())).thenReturn(body(json), body(json));
+        MeasurementBatch b = list(service.getWaterLevels().execColumnar()).getFirst();
+        WaterLevelMeasurement m = service.getWaterLevels().exec().next();
+        assertEquals(m.measurementPointNumber(), b.measurementPointNumber());
+        assertArrayEquals(new double[] { m.result() }, b.results());
+        assertArrayEquals(new double[] { m.resultElevationCorrected() }, b.resultsElevationCorrected());
+        assertEquals(1.5, m.result());
+    }
+}
@@ -0,0 +1,89 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService;
+import dk.dmp.vanda.hydro.MeasurementBatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HydrometryServiceClientCsvTest {
+    FakeHydrometryServer server;
+    HttpClient http;
+    HydrometryServiceClient json, csv;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new FakeHydrometryServer(3, new CachingStreamServiceTest.MutableClock());
+        http = HttpClient.newHttpClient();
+        JsonStreamHttpClient streamService = new JsonStreamHttpClient(server.apiBase(), http);
+        json = new HydrometryServiceClient(streamService);
+        csv = new HydrometryServiceClient(streamService, VirtualThreads.executor, Deserializer.Decoder.DIRECT,
+            HydrometryServiceClient.MeasurementFormat.CSV);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        json.close();
+        csv.close();
+        http.close();
+        server.close();
+    }
+
+    private static String list(Iterator<?> i) {
+        List<Object> list = new ArrayList<>();
+        i.forEachRemaining(list::add);
+        return list.toString();
+    }
+
+    private static HydrometryService.GetWaterLevelsOperation waterLevels(HydrometryService service) {
+        HydrometryService.GetWaterLevelsOperation op = service.getWaterLevels();
+        op.stationId("61000001");
+        op.from(OffsetDateTime.parse("2023-10-01T00:00Z"));
+        op.to(OffsetDateTime.parse("2023-10-02T00:00Z"));
+        return op;
+    }
+
+    @Test
+    void testWaterLevels() throws IOException, InterruptedException {
+        String expected = list(waterLevels(json).exec());
+        assertEquals(expected, list(waterLevels(csv).exec()));
+        HydrometryService.GetWaterLevelsOperation op = waterLevels(csv);
+        op.splitWindow(Duration.ofHours(5));
+        assertEquals(list(waterLevels(json).exec()).length(), list(op.exec()).length());
+    }
+
+    @Test
+    void testWaterFlows() throws IOException, InterruptedException {
+        HydrometryService.GetWaterFlowsOperation op = json.getWaterFlows();
+        op.stationId("61000002");
+        String expected = list(op.exec());
+        op = csv.getWaterFlows();
+        op.stationId("61000002");
+        assertEquals(expected, list(op.exec()));
+        assertTrue(expected.contains("l/s"));
+    }
+
+    @Test
+    void testColumnarIsJson() throws IOException, InterruptedException {
+        Iterator<MeasurementBatch> batches = waterLevels(csv).execColumnar();
+        assertEquals(2, batches.next().measurementPointNumber() + batches.next().measurementPointNumber() - 1);
+        assertFalse(batches.hasNext());
+    }
+
+    @Test
+    void testStationNotFound() throws IOException, InterruptedException {
+        HydrometryService.GetWaterFlowsOperation op = csv.getWaterFlows();
+        op.stationId("1");
+        assertFalse(op.exec().hasNext());
+    }
+}
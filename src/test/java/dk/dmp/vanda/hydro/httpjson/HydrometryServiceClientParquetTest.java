@@ -0,0 +1,112 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService;
+import dk.dmp.vanda.hydro.MeasurementBatch;
+import dk.dmp.vanda.hydro.WaterLevelMeasurement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class HydrometryServiceClientParquetTest {
+    @Mock
+    StreamService streamLayer;
+    HydrometryServiceClient service;
+
+    @BeforeEach
+    void setUp() {
+        service = new HydrometryServiceClient(streamLayer, VirtualThreads.executor, Deserializer.Decoder.DIRECT,
+            HydrometryServiceClient.MeasurementFormat.PARQUET);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        service.close();
+    }
+
+    private static List<String> list(Iterator<?> i) {
+        List<String> list = new ArrayList<>();
+        i.forEachRemaining(o -> list.add(o.toString()));
+        return list;
+    }
+
+    @Test
+    void testWaterLevels() throws Exception {
+        when(streamLayer.get(eq("water-levels"), argThat(q -> q.contains("format=parquet"))))
+            .thenAnswer(i -> getClass().getResourceAsStream("water-level_61000181_snappy.parquet"));
+        HydrometryService.GetWaterLevelsOperation op = service.getWaterLevels();
+        op.stationId("61000181");
+        List<String> measurements = list(op.exec());
+        try (Deserializer d = new Deserializer()) {
+            assertEquals(list(d.readWaterLevelsCsv(getClass().getResourceAsStream("water-level_61000181_snappy.csv"), "csv")), measurements);
+        }
+    }
+
+    @Test
+    void testWaterLevelsFiltered() throws Exception {
+        when(streamLayer.get(eq("water-levels"), argThat(q -> q.contains("format=parquet"))))
+            .thenAnswer(i -> getClass().getResourceAsStream("water-level_61000181_snappy.parquet"));
+        HydrometryService.GetWaterLevelsOperation op = service.getWaterLevels();
+        op.stationId("61000181");
+        List<WaterLevelMeasurement> all = op.stream().toList();
+        double median = all.stream().mapToDouble(WaterLevelMeasurement::result).sorted().skip(all.size() / 2).findFirst().orElseThrow();
+        op.filterResult(r -> r >= median);
+        try (Stream<WaterLevelMeasurement> s = op.stream()) {
+            List<WaterLevelMeasurement> above = s.toList();
+            assertFalse(above.isEmpty());
+            assertEquals(all.stream().filter(m -> m.result() >= median).toList(), above);
+        }
+        op.filterParameterSc(sc -> sc != all.get(0).parameterSc());
+        assertFalse(op.exec().hasNext());
+    }
+
+    @Test
+    void testWaterLevelsStreamSized() throws Exception {
+        when(streamLayer.get(eq("water-levels"), argThat(q -> q.contains("format=parquet"))))
+            .thenAnswer(i -> getClass().getResourceAsStream("water-level_61000181_snappy.parquet"));
+        HydrometryService.GetWaterLevelsOperation op = service.getWaterLevels();
+        op.stationId("61000181");
+        int expected = list(op.exec()).size();
+        try (Stream<WaterLevelMeasurement> s = op.stream()) {
+            Spliterator<WaterLevelMeasurement> measurements = s.spliterator();
+            assertTrue(measurements.hasCharacteristics(Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED));
+            assertEquals(expected, measurements.getExactSizeIfKnown());
+            Spliterator<WaterLevelMeasurement> prefix = measurements.trySplit();
+            assertNotNull(prefix);
+            assertEquals(expected, prefix.getExactSizeIfKnown() + measurements.getExactSizeIfKnown());
+        }
+        try (Stream<WaterLevelMeasurement> s = op.stream()) {
+            assertEquals(expected, s.parallel().count());
+        }
+    }
+
+    @Test
+    void testWaterFlowsColumnar() throws IOException, InterruptedException {
+        when(streamLayer.get(eq("water-flows"), argThat(q -> q.contains("format=parquet"))))
+            .thenAnswer(i -> getClass().getResourceAsStream("water-flow_61000181_uncompressed.parquet"));
+        HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+        op.stationId("61000181");
+        Iterator<MeasurementBatch> batches = op.execColumnar();
+        MeasurementBatch b = batches.next();
+        assertEquals("l/s", b.unit());
+        assertNull(b.resultsElevationCorrected());
+        int n = b.size();
+        while (batches.hasNext()) n += batches.next().size();
+        assertEquals(600, n);
+    }
+}
@@ -0,0 +1,312 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService;
+import dk.dmp.vanda.hydro.Measurement;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class HydrometryServiceClientSplitTest {
+    /**
+     * Respond with a measurement at each end of the requested window,
+     * latest first like the service does.
+     */
+    private static InputStream response(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String p : query.split("&")) {
+            String[] kv = p.split("=", 2);
+            params.put(kv[0], URLDecoder.decode(kv[1], StandardCharsets.UTF_8));
+        }
+        String json = "[{\"stationId\":\"61000181\",\"results\":["
+            + "{\"measurementDateTime\":\"" + params.get("to") + "\",\"result\":2},"
+            + "{\"measurementDateTime\":\"" + params.get("from") + "\",\"result\":1}]}]";
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testSplitWindow() throws Exception {
+        Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        StreamService streamLayer = (path, query) -> {
+            int attempt = attempts.computeIfAbsent(query, q -> new AtomicInteger()).incrementAndGet();
+            if (query.contains("from=2024-01-10") && attempt == 1) throw new IOException("Connection reset");
+            return response(query);
+        };
+        try (HydrometryServiceClient service = new HydrometryServiceClient(streamLayer)) {
+            HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+            op.stationId("61000181");
+            op.from(OffsetDateTime.parse("2024-01-01T00:00:30+01:00"));
+            op.to(OffsetDateTime.parse("2024-01-31T01:00+01:00"));
+            op.createdAfter(OffsetDateTime.parse("2023-01-01T00:00Z"));
+            op.splitWindow(Duration.ofDays(10));
+            op.maxConcurrency(2);
+            List<OffsetDateTime> times = new ArrayList<>();
+            op.exec().forEachRemaining(m -> times.add(m.measurementDateTime()));
+            assertEquals(List.of(
+                OffsetDateTime.parse("2023-12-31T23:00Z"), OffsetDateTime.parse("2024-01-10T22:59Z"),
+                OffsetDateTime.parse("2024-01-10T23:00Z"), OffsetDateTime.parse("2024-01-20T22:59Z"),
+                OffsetDateTime.parse("2024-01-20T23:00Z"), OffsetDateTime.parse("2024-01-30T22:59Z"),
+                OffsetDateTime.parse("2024-01-30T23:00Z"), OffsetDateTime.parse("2024-01-31T00:00Z")
+            ), times);
+        }
+        assertEquals(4, attempts.size());
+        assertTrue(attempts.containsKey("stationId=61000181&from=2024-01-10T23%3A00Z&to=2024-01-20T22%3A59Z&createdAfter=2023-01-01T00%3A00Z"));
+        attempts.forEach((q, n) -> assertEquals(q.contains("from=2024-01-10") ? 2 : 1, n.get(), q));
+    }
+
+    @Test
+    void testSplitWindowFails() throws Exception {
+        HttpResponseException failure = mock(HttpResponseException.class);
+        when(failure.statusCode()).thenReturn(400);
+        AtomicInteger requests = new AtomicInteger();
+        StreamService streamLayer = (path, query) -> {
+            requests.incrementAndGet();
+            if (query.contains("from=2024-01-02")) throw failure;
+            return response(query);
+        };
+        try (HydrometryServiceClient service = new HydrometryServiceClient(streamLayer)) {
+            HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+            op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+            op.to(OffsetDateTime.parse("2024-01-02T23:59Z"));
+            op.splitWindow(Duration.ofDays(1));
+            Iterator<Measurement> i = op.exec();
+            assertNotNull(i.next());
+            assertNotNull(i.next());
+            UncheckedIOException e = assertThrows(UncheckedIOException.class, i::hasNext);
+            assertSame(failure, e.getCause());
+        }
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void testChunkRetryBacksOff() throws Exception {
+        Map<String, List<Long>> attempts = new ConcurrentHashMap<>();
+        HttpResponseException unavailable = ResilientStreamServiceTest.status(503, "1");
+        StreamService streamLayer = (path, query) -> {
+            List<Long> times = attempts.computeIfAbsent(query, q -> Collections.synchronizedList(new ArrayList<>()));
+            times.add(System.nanoTime());
+            if (times.size() == 1) throw unavailable;
+            return response(query);
+        };
+        try (HydrometryServiceClient service = new HydrometryServiceClient(streamLayer)) {
+            HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+            op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+            op.to(OffsetDateTime.parse("2024-01-01T23:59Z"));
+            op.splitWindow(Duration.ofDays(1));
+            assertEquals(2, op.stream().count());
+        }
+        List<Long> times = attempts.values().iterator().next();
+        assertEquals(2, times.size());
+        assertTrue(times.get(1) - times.get(0) >= TimeUnit.SECONDS.toNanos(1), "Waits as Retry-After asks");
+    }
+
+    @Test
+    void testChunkRetryAfterTooLong() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpResponseException limited = ResilientStreamServiceTest.status(429, "3600");
+        StreamService streamLayer = (path, query) -> {
+            requests.incrementAndGet();
+            throw limited;
+        };
+        try (HydrometryServiceClient service = new HydrometryServiceClient(streamLayer)) {
+            HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+            op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+            op.to(OffsetDateTime.parse("2024-01-01T23:59Z"));
+            op.splitWindow(Duration.ofDays(1));
+            assertSame(limited, assertThrows(HttpResponseException.class, op::exec));
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    void testChunkNotRetriedAboveResilience() throws Exception {
+        Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        StreamService streamLayer = (path, query) -> {
+            attempts.computeIfAbsent(query, q -> new AtomicInteger()).incrementAndGet();
+            throw new IOException("Connection reset");
+        };
+        ResilientStreamService resilient = new ResilientStreamService(streamLayer, 2, Duration.ofMillis(1),
+            Duration.ofMillis(1), 10, Duration.ofMinutes(1));
+        try (HydrometryServiceClient service = new HydrometryServiceClient(resilient)) {
+            HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+            op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+            op.to(OffsetDateTime.parse("2024-01-02T23:59Z"));
+            op.splitWindow(Duration.ofDays(1));
+            IOException e = assertThrows(IOException.class, op::exec);
+            assertEquals("Connection reset", e.getMessage());
+        }
+        assertEquals(2, attempts.get("from=2024-01-01T00%3A00Z&to=2024-01-01T23%3A59Z").get());
+        attempts.forEach((q, n) -> assertTrue(n.get() <= 2, q));
+    }
+
+    @Test
+    void testChunkNotRetriedAboveCachedResilience() throws Exception {
+        Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        StreamService streamLayer = (path, query) -> {
+            attempts.computeIfAbsent(query, q -> new AtomicInteger()).incrementAndGet();
+            throw new IOException("Connection reset");
+        };
+        ResilientStreamService resilient = new ResilientStreamService(streamLayer, 2, Duration.ofMillis(1),
+            Duration.ofMillis(1), 10, Duration.ofMinutes(1));
+        CachingStreamService cache = new CachingStreamService(resilient, 1 << 20, Duration.ofMinutes(1));
+        try (HydrometryServiceClient service = new HydrometryServiceClient(cache)) {
+            HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+            op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+            op.to(OffsetDateTime.parse("2024-01-02T23:59Z"));
+            op.splitWindow(Duration.ofDays(1));
+            assertThrows(IOException.class, op::exec);
+        }
+        assertEquals(2, attempts.get("from=2024-01-01T00%3A00Z&to=2024-01-01T23%3A59Z").get());
+        attempts.forEach((q, n) -> assertTrue(n.get() <= 2, q));
+    }
+
+    @Test
+    void testInterruptionNotRetried() throws Exception {
+        Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        StreamService streamLayer = (path, query) -> {
+            attempts.computeIfAbsent(query, q -> new AtomicInteger()).incrementAndGet();
+            throw new InterruptedIOException();
+        };
+        try (HydrometryServiceClient service = new HydrometryServiceClient(streamLayer)) {
+            HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+            op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+            op.to(OffsetDateTime.parse("2024-01-02T23:59Z"));
+            op.splitWindow(Duration.ofDays(1));
+            assertThrows(InterruptedIOException.class, op::exec);
+        }
+        assertFalse(attempts.isEmpty());
+        attempts.forEach((q, n) -> assertEquals(1, n.get(), q));
+    }
+
+    @Test
+    void testStreamClosedEarly() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1), interrupted = new CountDownLatch(1);
+        StreamService streamLayer = (path, query) -> {
+            if (query.contains("from=2024-01-01")) return response(query);
+            blocked.countDown();
+            try {
+                Thread.sleep(Duration.ofMinutes(1));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return response(query);
+        };
+        try (HydrometryServiceClient service = new HydrometryServiceClient(streamLayer)) {
+            HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+            op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+            op.to(OffsetDateTime.parse("2024-01-02T23:59Z"));
+            op.splitWindow(Duration.ofDays(1));
+            try (Stream<Measurement> measurements = op.stream()) {
+                assertTrue(measurements.spliterator().hasCharacteristics(Spliterator.ORDERED | Spliterator.NONNULL));
+            }
+            try (Stream<Measurement> measurements = op.stream()) {
+                assertTrue(measurements.findFirst().isPresent());
+                assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            }
+            assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Iterate the chunks of a split window of 10 days, and record for
+     * each chunk how many chunks had been requested when it was iterated,
+     * after waiting for the requested chunks.
+     */
+    private static List<Integer> scan(Consumer<HydrometryService.GetWaterFlowsOperation> limits) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        StreamService streamLayer = (path, query) -> {
+            requests.incrementAndGet();
+            return response(query);
+        };
+        List<Integer> requested = new ArrayList<>();
+        try (HydrometryServiceClient service = new HydrometryServiceClient(streamLayer)) {
+            HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+            op.stationId("61000181");
+            op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+            op.to(OffsetDateTime.parse("2024-01-10T23:59Z"));
+            op.splitWindow(Duration.ofDays(1));
+            limits.accept(op);
+            Iterator<Measurement> i = op.exec();
+            while (i.hasNext()) {
+                Thread.sleep(20);
+                requested.add(requests.get());
+                i.next();
+                i.next();
+            }
+        }
+        return requested;
+    }
+
+    @Test
+    void testPrefetch() throws Exception {
+        assertEquals(List.of(3, 4, 5, 6, 7, 8, 9, 10, 10, 10), scan(op -> op.prefetch(2)));
+        assertEquals(List.of(10, 10, 10, 10, 10, 10, 10, 10, 10, 10), scan(op -> {}));
+    }
+
+    @Test
+    void testMaxBufferedMeasurements() throws Exception {
+        // Each chunk has 2 measurements, so only the next chunk is fetched ahead
+        assertEquals(List.of(2, 3, 4, 5, 6, 7, 8, 9, 10, 10), scan(op -> {
+            op.prefetch(5);
+            op.maxBufferedMeasurements(2);
+        }));
+    }
+
+    @Test
+    void testSplitWindowNotRequested() throws Exception {
+        List<String> queries = Collections.synchronizedList(new ArrayList<>());
+        StreamService streamLayer = (path, query) -> {
+            queries.add(query);
+            return InputStream.nullInputStream();
+        };
+        try (HydrometryServiceClient service = new HydrometryServiceClient(streamLayer)) {
+            HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+            op.stationId("61000181");
+            op.splitWindow(Duration.ofDays(1));
+            assertFalse(op.exec().hasNext());
+        }
+        assertEquals(List.of("stationId=61000181"), queries);
+    }
+
+    @Test
+    void testIllegalSplit() throws Exception {
+        try (HydrometryServiceClient service = new HydrometryServiceClient((path, query) -> fail())) {
+            HydrometryService.GetWaterLevelsOperation op = service.getWaterLevels();
+            assertThrows(IllegalArgumentException.class, () -> op.splitWindow(Duration.ofSeconds(59)));
+            assertThrows(IllegalArgumentException.class, () -> op.maxConcurrency(0));
+            assertThrows(IllegalArgumentException.class, () -> op.maxAttempts(0));
+            assertThrows(IllegalArgumentException.class, () -> op.prefetch(0));
+            assertThrows(IllegalArgumentException.class, () -> op.maxBufferedMeasurements(0));
+        }
+    }
+
+    @Test
+    void testTimeWindowSplit() {
+        TimeWindow w = TimeWindow.of(OffsetDateTime.parse("2024-01-01T00:00:59Z"), OffsetDateTime.parse("2024-01-01T00:04Z"));
+        assertEquals(List.of(
+            new TimeWindow(OffsetDateTime.parse("2024-01-01T00:00Z"), OffsetDateTime.parse("2024-01-01T00:01Z")),
+            new TimeWindow(OffsetDateTime.parse("2024-01-01T00:02Z"), OffsetDateTime.parse("2024-01-01T00:03Z")),
+            new TimeWindow(OffsetDateTime.parse("2024-01-01T00:04Z"), OffsetDateTime.parse("2024-01-01T00:04Z"))
+        ), w.split(Duration.ofMinutes(2)));
+        assertTrue(TimeWindow.of(OffsetDateTime.parse("2024-01-02T00:00Z"), OffsetDateTime.parse("2024-01-01T00:00Z")).split(Duration.ofDays(1)).isEmpty());
+    }
+}
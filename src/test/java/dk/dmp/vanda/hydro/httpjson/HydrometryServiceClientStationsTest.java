@@ -19,6 +19,10 @@ import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -117,6 +121,30 @@ class HydrometryServiceClientStationsTest {
         assertFalse(stations.hasNext());
     }
 
+    @Test
+    void testFields() throws IOException, InterruptedException {
+        when(streamLayer.get(any(), any())).thenReturn(getClass().getResourceAsStream("stations.json"));
+        HydrometryService.GetStationsOperation op = service.getStations();
+        op.fields(List.of("stationId"));
+        op.fields(List.of("name"));
+        Station s = op.exec().next();
+        assertEquals(a.stationId(), s.stationId());
+        assertEquals(a.name(), s.name());
+        assertNull(s.operatorStationId());
+        assertNull(s.location());
+        assertNull(s.measurementPoints());
+        assertThrows(IllegalArgumentException.class, () -> op.fields(List.of("examinations")));
+    }
+
+    @Test
+    void testStream() throws IOException, InterruptedException {
+        when(streamLayer.get(any(), any())).thenReturn(getClass().getResourceAsStream("stations.json"));
+        Spliterator<Station> stations = service.getStations().stream().spliterator();
+        assertTrue(stations.hasCharacteristics(Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED));
+        assertEquals(1, stations.getExactSizeIfKnown());
+        assertTrue(stations.tryAdvance(s -> assertEquals(a, s)));
+    }
+
     @Test
     void testInvalidResponse() throws IOException, InterruptedException {
         when(streamLayer.get(any(), any())).thenReturn(new ByteArrayInputStream(new byte[]{'X'}));
@@ -136,4 +164,12 @@ class HydrometryServiceClientStationsTest {
             fail();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void testAsync() throws ExecutionException, InterruptedException {
+        when(streamLayer.getAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(getClass().getResourceAsStream("stations.json")));
+        Iterator<Station> stations = service.getStations().execAsync().get();
+        assertEquals(a, stations.next());
+        assertFalse(stations.hasNext());
+    }
+}
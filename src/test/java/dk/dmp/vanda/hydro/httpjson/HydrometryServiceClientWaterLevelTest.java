@@ -10,12 +10,20 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -120,6 +128,78 @@ class HydrometryServiceClientWaterLevelTest {
         assertThrows(NoSuchElementException.class, water::next);
     }
 
+    @Test
+    void testFields() throws IOException, InterruptedException {
+        when(streamLayer.get(any(), any())).thenReturn(getClass().getResourceAsStream("water-level_61000181.json"));
+        HydrometryService.GetWaterLevelsOperation op = service.getWaterLevels();
+        op.fields(List.of("measurementDateTime", "result"));
+        WaterLevelMeasurement m = op.exec().next();
+        assertEquals(a.measurementDateTime(), m.measurementDateTime());
+        assertEquals(a.result(), m.result());
+        assertNull(m.parameter());
+        assertNull(m.examinationType());
+        assertNull(m.unit());
+        assertNull(m.resultElevationCorrected());
+        assertThrows(IllegalArgumentException.class, () -> op.fields(List.of("results")));
+    }
+
+    @Test
+    void testFilter() throws IOException, InterruptedException {
+        when(streamLayer.get(any(), any())).thenAnswer(i -> getClass().getResourceAsStream("water-level_extra.json"));
+        HydrometryService.GetWaterLevelsOperation op = service.getWaterLevels();
+        op.filterResult(r -> r > 31.75);
+        List<WaterLevelMeasurement> above = op.stream().toList();
+        assertEquals(2, above.size());
+        assertEquals(a, above.get(0));
+        assertEquals("61000182", above.get(1).stationId());
+        assertEquals("610181", above.get(1).operatorStationId());
+        assertEquals(31.8, above.get(1).result());
+        long from = OffsetDateTime.parse("2023-01-01T00:00Z").toEpochSecond() / 60;
+        op.filterMeasurementTime(t -> t >= from);
+        assertEquals(List.of(a), op.stream().toList());
+        op.filterExaminationTypeSc(sc -> sc == 26);
+        assertFalse(op.exec().hasNext());
+    }
+
+    @Test
+    void testFilterMeasurementTime() throws IOException, InterruptedException {
+        when(streamLayer.get(any(), any())).thenReturn(new ByteArrayInputStream("""
+            [{"stationId":"61000181","results":[
+              {"measurementDateTime":"2023-10-02T20:10:30+02:00","result":1},
+              {"measurementDateTime":"2023-10-02T18:09:59Z","result":2},
+              {"measurementDateTime":null,"result":3},
+              {"result":4}
+            ]}]
+            """.getBytes(StandardCharsets.UTF_8)));
+        HydrometryService.GetWaterLevelsOperation op = service.getWaterLevels();
+        long from = OffsetDateTime.parse("2023-10-02T18:10Z").toEpochSecond() / 60;
+        op.filterMeasurementTime(t -> t >= from);
+        List<WaterLevelMeasurement> after = op.stream().toList();
+        assertEquals(1, after.size());
+        assertEquals(OffsetDateTime.parse("2023-10-02T20:10:30+02:00"), after.getFirst().measurementDateTime());
+    }
+
+    @Test
+    void testStreamClosedEarly() throws IOException, InterruptedException {
+        AtomicBoolean closed = new AtomicBoolean();
+        InputStream body = getClass().getResourceAsStream("water-level_extra.json");
+        when(streamLayer.get(any(), any())).thenReturn(new FilterInputStream(body) {
+            @Override
+            public void close() throws IOException {
+                closed.set(true);
+                super.close();
+            }
+        });
+        try (Stream<WaterLevelMeasurement> water = service.getWaterLevels().stream()) {
+            Spliterator<WaterLevelMeasurement> s = water.spliterator();
+            assertTrue(s.hasCharacteristics(Spliterator.ORDERED | Spliterator.NONNULL));
+            assertFalse(s.hasCharacteristics(Spliterator.SIZED));
+            assertTrue(s.tryAdvance(m -> assertEquals(a, m)));
+            assertFalse(closed.get());
+        }
+        assertTrue(closed.get());
+    }
+
     @Test
     void testInvalidResponse() throws IOException, InterruptedException {
         when(streamLayer.get(any(), any())).thenReturn(new ByteArrayInputStream(new byte[]{'X'}));
@@ -139,4 +219,41 @@ class HydrometryServiceClientWaterLevelTest {
             fail();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void testAsync() throws ExecutionException, InterruptedException {
+        when(streamLayer.getAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(getClass().getResourceAsStream("water-level_61000181.json")));
+        Iterator<WaterLevelMeasurement> water = service.getWaterLevels().execAsync().get();
+        assertEquals(a, water.next());
+        assertNotNull(water.next());
+        assertFalse(water.hasNext());
+    }
+
+    @Test
+    void testPublisher() throws InterruptedException {
+        when(streamLayer.getAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(getClass().getResourceAsStream("water-level_61000181.json")));
+        StreamPublisherTest.Recorder<WaterLevelMeasurement> subscriber = new StreamPublisherTest.Recorder<>();
+        service.getWaterLevels().publisher().subscribe(subscriber);
+        subscriber.subscription.request(1);
+        subscriber.awaitCount(1);
+        assertEquals(a, subscriber.items.getFirst());
+        subscriber.subscription.request(2);
+        subscriber.awaitTermination();
+        assertTrue(subscriber.completed);
+        assertEquals(2, subscriber.count());
+    }
+
+    @Test
+    void testAsyncFail(@Mock HttpResponseException response) {
+        when(streamLayer.getAsync(any(), any())).thenReturn(CompletableFuture.failedFuture(response));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> service.getWaterLevels().execAsync().get());
+        assertSame(response, e.getCause());
+    }
+
+    @Test
+    void testAsyncInvalidResponse() {
+        when(streamLayer.getAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(new ByteArrayInputStream(new byte[]{'X'})));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> service.getWaterLevels().execAsync().get());
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+}
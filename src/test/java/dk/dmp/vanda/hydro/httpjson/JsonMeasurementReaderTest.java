@@ -0,0 +1,110 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonMeasurementReaderTest {
+    Deserializer deserializer = new Deserializer();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        deserializer.close();
+    }
+
+    private static InputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testNull() throws IOException {
+        JsonMeasurementReader<JsonWaterLevelMeasurement> r = deserializer.readWaterLevels(null, "test");
+        assertFalse(r.hasNext());
+        assertThrows(NoSuchElementException.class, r::next);
+    }
+
+    @Test
+    void testEmpty() throws IOException {
+        assertFalse(deserializer.readWaterLevels(InputStream.nullInputStream(), "test").hasNext());
+        assertFalse(deserializer.readWaterLevels(stream(" \r\n\t"), "test").hasNext());
+        assertFalse(deserializer.readWaterLevels(stream("[]"), "test").hasNext());
+        assertFalse(deserializer.readWaterLevels(stream("[{\"stationId\":\"1\",\"results\":null}]"), "test").hasNext());
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(IOException.class, () -> deserializer.readWaterLevels(stream("X"), "test"));
+        assertThrows(IOException.class, () -> deserializer.readWaterLevels(stream("{}"), "test"));
+    }
+
+    @Test
+    void testSome() throws IOException {
+        JsonMeasurementReader<JsonWaterLevelMeasurement> r = deserializer.readWaterLevels(getClass().getResourceAsStream("water-level_extra.json"), "test");
+        JsonWaterLevelMeasurement m = r.next();
+        assertAll(
+            () -> assertEquals("61000181", m.stationId()),
+            () -> assertNull(m.operatorStationId()),
+            () -> assertEquals(OffsetDateTime.parse("2023-10-02T18:10Z"), m.measurementDateTime()),
+            () -> assertEquals(-58.2, m.resultElevationCorrected())
+        );
+        assertNotNull(r.next());
+        JsonWaterLevelMeasurement n = r.next();
+        assertEquals("61000182", n.stationId());
+        assertEquals("610181", n.operatorStationId());
+        assertNotNull(r.next());
+        assertFalse(r.hasNext());
+    }
+
+    @Test
+    void testIdentificationAfterResults() throws IOException {
+        JsonMeasurementReader<JsonMeasurement> r = deserializer.readWaterFlows(stream(
+            "[{\"results\":[{\"result\":1.5},{\"result\":2.5}],\"extra\":{\"a\":[1]},\"stationId\":\"61000181\",\"operatorStationId\":\"610181\"}]"),
+            "test");
+        JsonMeasurement m = r.next();
+        assertEquals(1.5, m.result());
+        assertEquals("61000181", m.stationId());
+        assertEquals("610181", r.next().operatorStationId());
+        assertFalse(r.hasNext());
+    }
+
+    @Test
+    void testLazy() throws IOException {
+        String first = "[{\"stationId\":\"61000181\",\"operatorStationId\":null,\"results\":[{\"result\":1.5},";
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        JsonMeasurementReader<JsonMeasurement> r = deserializer.readWaterFlows(new SequenceInputStream(stream(first), failing), "test");
+        assertEquals(1.5, r.next().result());
+        assertThrows(UncheckedIOException.class, r::hasNext);
+        assertFalse(r.hasNext());
+    }
+
+    @Test
+    void testClose() throws IOException {
+        boolean[] closed = {false};
+        InputStream is = new ByteArrayInputStream("[{\"results\":[{},{}]}]".getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        JsonMeasurementReader<JsonMeasurement> r = deserializer.readWaterFlows(is, "test");
+        assertTrue(r.hasNext());
+        r.close();
+        assertTrue(closed[0]);
+        assertFalse(r.hasNext());
+    }
+}
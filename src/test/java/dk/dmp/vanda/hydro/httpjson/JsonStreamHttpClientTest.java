@@ -2,22 +2,35 @@ package dk.dmp.vanda.hydro.httpjson;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -72,6 +85,24 @@ class JsonStreamHttpClientTest {
         assertEquals(Optional.of("application/json"), req.getValue().headers().firstValue("Accept"));
     }
 
+    @Test
+    void testRequestZeroContentLength(@Mock HttpResponse<InputStream> response) throws IOException, InterruptedException, URISyntaxException {
+        HttpHeaders headers = HttpHeaders.of(Map.of("Content-Length", List.of("0")), (k, v) -> true);
+        AtomicBoolean closed = new AtomicBoolean();
+        when(response.statusCode()).thenReturn(200);
+        when(response.headers()).thenReturn(headers);
+        when(response.body()).thenReturn(new ByteArrayInputStream(new byte[0]) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        });
+        when(client.send(any(), ArgumentMatchers.<HttpResponse.BodyHandler<InputStream>>any())).thenReturn(response);
+        JsonStreamHttpClient service = new JsonStreamHttpClient(new URI("http://localhost/api/"), client);
+        assertNull(service.get("op", "foo=bar"));
+        assertTrue(closed.get());
+    }
+
     @Test
     void testRequest(@Mock HttpResponse<InputStream> response) throws IOException, InterruptedException, URISyntaxException {
         HttpHeaders headers = HttpHeaders.of(Map.of("Content-Type", Collections.singletonList("artificial/mediatype; charset=utf-8")), (k, v) -> true);
@@ -89,4 +120,157 @@ class JsonStreamHttpClientTest {
         assertEquals("GET", req.getValue().method());
         assertEquals(Optional.of("application/json"), req.getValue().headers().firstValue("Accept"));
     }
+
+    @Test
+    void testConditional(@Mock HttpResponse<InputStream> response) throws IOException, InterruptedException, URISyntaxException {
+        HttpHeaders headers = HttpHeaders.of(Map.of("ETag", List.of("\"2\"")), (k, v) -> true);
+        when(response.statusCode()).thenReturn(200);
+        when(response.headers()).thenReturn(headers);
+        when(response.body()).thenReturn(InputStream.nullInputStream());
+        when(client.send(any(), ArgumentMatchers.<HttpResponse.BodyHandler<InputStream>>any())).thenReturn(response);
+        JsonStreamHttpClient service = new JsonStreamHttpClient(new URI("http://localhost/api/"), client);
+        ConditionalStreamService.Response r = service.getConditional("op", "foo=bar",
+            new ConditionalStreamService.Validators("\"1\"", "Mon, 01 Jan 2024 00:00:00 GMT"));
+        assertFalse(r.notModified());
+        assertEquals(new ConditionalStreamService.Validators("\"2\"", null), r.validators());
+        r.body().close();
+        ArgumentCaptor<HttpRequest> req = ArgumentCaptor.forClass(HttpRequest.class);
+        verify(client).send(req.capture(), any());
+        assertEquals(Optional.of("\"1\""), req.getValue().headers().firstValue("If-None-Match"));
+        assertEquals(Optional.of("Mon, 01 Jan 2024 00:00:00 GMT"), req.getValue().headers().firstValue("If-Modified-Since"));
+        assertEquals(Optional.of("application/json"), req.getValue().headers().firstValue("Accept"));
+    }
+
+    @Test
+    void testNotModified(@Mock HttpResponse<InputStream> response) throws IOException, InterruptedException, URISyntaxException {
+        HttpHeaders headers = HttpHeaders.of(Collections.emptyMap(), (k, v) -> true);
+        when(response.statusCode()).thenReturn(304);
+        when(response.headers()).thenReturn(headers);
+        when(client.send(any(), ArgumentMatchers.<HttpResponse.BodyHandler<InputStream>>any())).thenReturn(response);
+        JsonStreamHttpClient service = new JsonStreamHttpClient(new URI("http://localhost/api/"), client);
+        ConditionalStreamService.Validators validators = new ConditionalStreamService.Validators("\"1\"", null);
+        ConditionalStreamService.Response r = service.getConditional("op", "foo=bar", validators);
+        assertTrue(r.notModified());
+        assertNull(r.body());
+        assertEquals(validators, r.validators());
+        // Unconditionally, 304 is not success
+        assertThrows(HttpResponseException.class, () -> service.get("op", "foo=bar"));
+    }
+
+    @Test
+    void testAcceptFormat() throws URISyntaxException {
+        JsonStreamHttpClient service = new JsonStreamHttpClient(new URI("http://localhost/api/"), client);
+        assertEquals(Optional.of("text/csv"), service.buildRequest("op", "a=b&format=csv").headers().firstValue("Accept"));
+        assertEquals(Optional.of("application/vnd.apache.parquet"),
+            service.buildRequest("op", "format=parquet").headers().firstValue("Accept"));
+        assertEquals(Optional.of("application/json"), service.buildRequest("op", "format=xml").headers().firstValue("Accept"));
+    }
+
+    private static byte[] compress(String encoding, byte[] data) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        try (OutputStream out = switch (encoding) {
+            case "gzip" -> new GZIPOutputStream(b);
+            case "deflate" -> new DeflaterOutputStream(b);
+            default -> new DeflaterOutputStream(b, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        }) {
+            out.write(data);
+        }
+        return b.toByteArray();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"gzip", "deflate", "raw"})
+    void testCompressed(String encoding, @Mock HttpResponse<InputStream> response) throws IOException, InterruptedException, URISyntaxException {
+        byte[] json = "[{\"stationId\":\"61000181\"}, {\"stationId\":\"61000181\"}, {\"stationId\":\"61000181\"}]".getBytes(StandardCharsets.UTF_8);
+        byte[] body = compress(encoding, json);
+        String contentEncoding = encoding.equals("raw") ? "deflate" : encoding;
+        HttpHeaders headers = HttpHeaders.of(Map.of("Content-Type", List.of("application/json"), "Content-Encoding", List.of(contentEncoding)), (k, v) -> true);
+        when(response.statusCode()).thenReturn(200);
+        when(response.headers()).thenReturn(headers);
+        when(response.body()).thenReturn(new ByteArrayInputStream(body));
+        when(client.send(any(), ArgumentMatchers.<HttpResponse.BodyHandler<InputStream>>any())).thenReturn(response);
+        JsonStreamHttpClient service = new JsonStreamHttpClient(new URI("http://localhost/api/"), client, true);
+        try (InputStream is = service.get("op", "foo=bar")) {
+            assertArrayEquals(json, is.readAllBytes());
+        }
+        assertEquals(body.length, service.receivedBytes());
+        assertEquals(json.length, service.decodedBytes());
+        ArgumentCaptor<HttpRequest> req = ArgumentCaptor.forClass(HttpRequest.class);
+        verify(client).send(req.capture(), any());
+        assertEquals(Optional.of("gzip, deflate"), req.getValue().headers().firstValue("Accept-Encoding"));
+    }
+
+    @Test
+    void testUnsupportedEncoding(@Mock HttpResponse<InputStream> response) throws IOException, InterruptedException, URISyntaxException {
+        HttpHeaders headers = HttpHeaders.of(Map.of("Content-Encoding", List.of("br")), (k, v) -> true);
+        when(response.statusCode()).thenReturn(200);
+        when(response.headers()).thenReturn(headers);
+        when(response.body()).thenReturn(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+        when(client.send(any(), ArgumentMatchers.<HttpResponse.BodyHandler<InputStream>>any())).thenReturn(response);
+        JsonStreamHttpClient service = new JsonStreamHttpClient(new URI("http://localhost/api/"), client, true);
+        try (InputStream is = service.get("op", "foo=bar")) {
+            assertThrows(IOException.class, is::read);
+        }
+    }
+
+    @Test
+    void testRequestAsync(@Mock HttpResponse<InputStream> response) throws IOException, ExecutionException, InterruptedException, URISyntaxException {
+        HttpHeaders headers = HttpHeaders.of(Map.of("Content-Type", Collections.singletonList("application/json; charset=utf-8")), (k, v) -> true);
+        when(response.statusCode()).thenReturn(200);
+        when(response.headers()).thenReturn(headers);
+        when(response.body()).thenReturn(InputStream.nullInputStream());
+        when(client.sendAsync(any(), ArgumentMatchers.<HttpResponse.BodyHandler<InputStream>>any())).thenReturn(CompletableFuture.completedFuture(response));
+        JsonStreamHttpClient service = new JsonStreamHttpClient(new URI("http://localhost/api/"), client);
+        try (InputStream is = service.getAsync("op", "foo=bar").get()) {
+            assertEquals(-1, is.read());
+        }
+        ArgumentCaptor<HttpRequest> req = ArgumentCaptor.forClass(HttpRequest.class);
+        verify(client).sendAsync(req.capture(), any());
+        assertEquals(new URI("http://localhost/api/op?foo=bar"), req.getValue().uri());
+        verify(client, never()).send(any(), any());
+    }
+
+    @Test
+    void testRequestAsync400(@Mock HttpResponse<InputStream> response) throws URISyntaxException {
+        HttpHeaders headers = HttpHeaders.of(Collections.emptyMap(), (k,v) -> true);
+        when(response.statusCode()).thenReturn(400);
+        when(response.headers()).thenReturn(headers);
+        when(response.body()).thenReturn(null);
+        when(client.sendAsync(any(), ArgumentMatchers.<HttpResponse.BodyHandler<InputStream>>any())).thenReturn(CompletableFuture.completedFuture(response));
+        JsonStreamHttpClient service = new JsonStreamHttpClient(new URI("http://localhost/api/"), client);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> service.getAsync("op", "foo=bar").get());
+        assertInstanceOf(HttpResponseException.class, e.getCause());
+    }
+
+    @Test
+    void testCancelAsync() throws URISyntaxException {
+        CompletableFuture<HttpResponse<InputStream>> sent = new CompletableFuture<>();
+        when(client.sendAsync(any(), ArgumentMatchers.<HttpResponse.BodyHandler<InputStream>>any())).thenReturn(sent);
+        JsonStreamHttpClient service = new JsonStreamHttpClient(new URI("http://localhost/api/"), client);
+        assertTrue(service.getAsync("op", "foo=bar").cancel(true));
+        assertTrue(sent.isCancelled());
+    }
+
+    @Test
+    void testLateResponseClosedAsync(@Mock HttpResponse<InputStream> response) throws URISyntaxException {
+        // Like an exchange whose response arrives while it is cancelled
+        CompletableFuture<HttpResponse<InputStream>> sent = new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return false;
+            }
+        };
+        AtomicBoolean closed = new AtomicBoolean();
+        when(response.body()).thenReturn(new ByteArrayInputStream(new byte[0]) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        });
+        when(client.sendAsync(any(), ArgumentMatchers.<HttpResponse.BodyHandler<InputStream>>any())).thenReturn(sent);
+        JsonStreamHttpClient service = new JsonStreamHttpClient(new URI("http://localhost/api/"), client);
+        service.getAsync("op", "foo=bar").cancel(true);
+        sent.complete(response);
+        assertTrue(closed.get());
+    }
 }
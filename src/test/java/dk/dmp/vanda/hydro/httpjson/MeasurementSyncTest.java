@@ -0,0 +1,112 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.Measurement;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MeasurementSyncTest {
+    @TempDir
+    Path dir;
+    List<String> queries = Collections.synchronizedList(new ArrayList<>());
+    Set<String> changedStations = new LinkedHashSet<>();
+    Set<String> failingStations = new HashSet<>();
+    Map<String, List<OffsetDateTime>> upserts = new TreeMap<>();
+
+    private static InputStream body(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private InputStream response(String path, String query) throws IOException {
+        queries.add(path + "?" + query);
+        if (path.equals("stations")) {
+            StringJoiner json = new StringJoiner(",", "[", "]");
+            changedStations.forEach(id -> json.add("{\"stationId\":\"" + id + "\"}"));
+            return body(json.toString());
+        }
+        String stationId = query.substring(10, 11);
+        if (failingStations.contains(stationId)) throw new IOException("Connection reset");
+        return body("[{\"stationId\":\"" + stationId + "\",\"results\":["
+            + "{\"examinationTypeSc\":25,\"measurementDateTime\":\"2024-01-01T12:10:00Z\",\"result\":1.5},"
+            + "{\"examinationTypeSc\":25,\"measurementDateTime\":\"2024-01-01T12:05:00Z\",\"result\":2.5}]}]");
+    }
+
+    @Test
+    void testSync() throws Exception {
+        CachingStreamServiceTest.MutableClock clock = new CachingStreamServiceTest.MutableClock();
+        clock.advance(Duration.ofSeconds(30));
+        FileWatermarkStore store = new FileWatermarkStore(dir.resolve("watermarks.properties"));
+        try (HydrometryServiceClient client = new HydrometryServiceClient(this::response)) {
+            MeasurementSync sync = new MeasurementSync(client, store,
+                (stationId, examinationTypeSc, measurements) -> {
+                    assertEquals(MeasurementSync.WATER_LEVEL, examinationTypeSc);
+                    upserts.computeIfAbsent(stationId, id -> new ArrayList<>())
+                        .addAll(measurements.stream().map(Measurement::measurementDateTime).toList());
+                },
+                OffsetDateTime.parse("2023-12-01T00:00Z"), clock);
+
+            changedStations.addAll(List.of("1", "2"));
+            MeasurementSync.Result result = sync.sync(MeasurementSync.WATER_LEVEL);
+            assertEquals(2, result.stations());
+            assertEquals(4, result.measurements());
+            assertTrue(result.failures().isEmpty());
+            assertEquals(Set.of("1", "2"), upserts.keySet());
+            assertTrue(queries.contains("stations?examinationTypeSc=25&withResultsCreatedAfter=2023-12-01T00%3A00Z"));
+            assertTrue(queries.contains("water-levels?stationId=1&from=2023-12-01T00%3A00Z&to=2024-01-01T00%3A00Z&createdAfter=2023-12-01T00%3A00Z"));
+            assertEquals(Map.of(
+                "1", OffsetDateTime.parse("2024-01-01T00:00Z"),
+                "2", OffsetDateTime.parse("2024-01-01T00:00Z")
+            ), store.load(MeasurementSync.WATER_LEVEL));
+
+            clock.advance(Duration.ofHours(1));
+            queries.clear();
+            upserts.clear();
+            changedStations.clear();
+            changedStations.addAll(List.of("2", "3"));
+            failingStations.add("3");
+            result = sync.sync(MeasurementSync.WATER_LEVEL);
+            assertEquals(1, result.stations());
+            assertEquals(Set.of("3"), result.failures().keySet());
+            assertEquals(Set.of("2"), upserts.keySet());
+            assertEquals("stations?examinationTypeSc=25&withResultsCreatedAfter=2024-01-01T00%3A00Z", queries.getFirst());
+            assertTrue(queries.contains("water-levels?stationId=2&from=2023-12-01T00%3A00Z&to=2024-01-01T01%3A00Z&createdAfter=2024-01-01T00%3A00Z"));
+            assertTrue(queries.contains("water-levels?stationId=3&from=2023-12-01T00%3A00Z&to=2024-01-01T01%3A00Z&createdAfter=2023-12-01T00%3A00Z"));
+            assertEquals(Map.of(
+                "1", OffsetDateTime.parse("2024-01-01T01:00Z"),
+                "2", OffsetDateTime.parse("2024-01-01T01:00Z"),
+                "3", OffsetDateTime.parse("2023-12-01T00:00Z")
+            ), store.load(MeasurementSync.WATER_LEVEL));
+            assertTrue(store.load(MeasurementSync.WATER_FLOW).isEmpty());
+
+            clock.advance(Duration.ofHours(1));
+            queries.clear();
+            changedStations.clear();
+            failingStations.clear();
+            changedStations.add("3");
+            result = sync.sync(MeasurementSync.WATER_LEVEL);
+            assertEquals(1, result.stations());
+            assertEquals("stations?examinationTypeSc=25&withResultsCreatedAfter=2023-12-01T00%3A00Z", queries.getFirst());
+            assertEquals(OffsetDateTime.parse("2024-01-01T02:00Z"), store.load(MeasurementSync.WATER_LEVEL).get("3"));
+        }
+    }
+
+    @Test
+    void testUnsupportedExaminationType() throws Exception {
+        try (HydrometryServiceClient client = new HydrometryServiceClient((path, query) -> fail())) {
+            MeasurementSync sync = new MeasurementSync(client, new FileWatermarkStore(dir.resolve("w")),
+                (stationId, examinationTypeSc, measurements) -> fail(), OffsetDateTime.parse("2023-12-01T00:00Z"));
+            assertThrows(IllegalArgumentException.class, () -> sync.sync(1));
+            assertThrows(IllegalArgumentException.class, () -> sync.maxConcurrency(0));
+        }
+    }
+}
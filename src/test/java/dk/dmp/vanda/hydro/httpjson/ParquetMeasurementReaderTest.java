@@ -0,0 +1,128 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.MeasurementBatch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParquetMeasurementReaderTest {
+    private InputStream resource(String name) {
+        return getClass().getResourceAsStream(name);
+    }
+
+    private static List<String> list(Iterator<?> i) {
+        List<String> list = new ArrayList<>();
+        i.forEachRemaining(o -> list.add(o.toString()));
+        return list;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"water-level_61000181_snappy", "water-level_61000181_gzip_v2"})
+    void testWaterLevels(String name) throws Exception {
+        try (Deserializer d = new Deserializer()) {
+            List<String> expected = list(d.readWaterLevelsCsv(resource(name + ".csv"), "csv"));
+            assertEquals(600, expected.size());
+            assertEquals(expected, list(d.readWaterLevelsParquet(resource(name + ".parquet"), "parquet")));
+        }
+    }
+
+    @Test
+    void testWaterFlows() throws Exception {
+        String name = "water-flow_61000181_uncompressed";
+        try (Deserializer d = new Deserializer()) {
+            List<String> expected = list(d.readWaterFlowsCsv(resource(name + ".csv"), "csv"));
+            assertEquals(600, expected.size());
+            assertEquals(expected, list(d.readWaterFlowsParquet(resource(name + ".parquet"), "parquet")));
+        }
+    }
+
+    @Test
+    void testBatches() {
+        ParquetMeasurementReader r = new ParquetMeasurementReader(resource("water-level_61000181_snappy.parquet"), true, "test");
+        List<MeasurementBatch> batches = new ArrayList<>();
+        r.forEachRemaining(batches::add);
+        assertEquals(600, batches.stream().mapToInt(MeasurementBatch::size).sum());
+        MeasurementBatch b = batches.getFirst();
+        assertEquals("61000181", b.stationId());
+        assertEquals("610181", b.operatorStationId());
+        assertEquals(1, b.measurementPointNumber());
+        assertEquals("Vandstand", b.parameter());
+        assertEquals(19, b.unitSc());
+        assertEquals(OffsetDateTime.parse("2023-10-02T18:10Z"), b.measurementDateTime(0));
+        assertEquals(31.0, b.results()[0]);
+        assertEquals(-59.0, b.resultsElevationCorrected()[0]);
+        assertTrue(Double.isNaN(b.resultsElevationCorrected()[3]));
+        // The operator station ID is null in the 6th row, which starts a batch
+        assertEquals(5, b.size());
+        assertNull(batches.get(1).operatorStationId());
+        assertEquals(2, batches.getLast().measurementPointNumber());
+        for (MeasurementBatch x : batches) assertEquals(x.size(), x.measurementEpochMinutes().length);
+    }
+
+    @Test
+    void testEmpty() throws IOException {
+        assertFalse(new ParquetMeasurementReader(null, true, "test").prefetch());
+        assertFalse(new ParquetMeasurementReader(InputStream.nullInputStream(), true, "test").prefetch());
+        assertFalse(new ParquetMeasurementReader(new ByteArrayInputStream("\r\n".getBytes(StandardCharsets.US_ASCII)), false, "test").prefetch());
+    }
+
+    @Test
+    void testInvalid() throws IOException {
+        byte[] file;
+        try (InputStream in = resource("water-level_61000181_snappy.parquet")) {
+            file = in.readAllBytes();
+        }
+        byte[] corrupt = file.clone();
+        Arrays.fill(corrupt, 4, corrupt.length / 2, (byte) 0x5a);
+        for (byte[] b : List.of("[]".getBytes(StandardCharsets.US_ASCII), Arrays.copyOf(file, file.length / 2), corrupt)) {
+            ParquetMeasurementReader r = new ParquetMeasurementReader(new ByteArrayInputStream(b), true, "test");
+            assertThrows(IOException.class, r::prefetch);
+            assertFalse(r.hasNext());
+        }
+        ParquetMeasurementReader r = new ParquetMeasurementReader(resource("water-level_61000181_zstd.parquet"), true, "test");
+        IOException e = assertThrows(IOException.class, r::prefetch);
+        assertTrue(e.getCause().getMessage().endsWith("ZSTD"), e.getCause().getMessage());
+    }
+
+    @Test
+    void testClose() {
+        AtomicBoolean closed = new AtomicBoolean();
+        InputStream body = new ByteArrayInputStream(new byte[0]) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        ParquetMeasurementReader r = new ParquetMeasurementReader(body, true, "test");
+        assertFalse(r.hasNext());
+        assertTrue(closed.get());
+        r.close();
+    }
+
+    @Test
+    void testSnappyOverlappingCopy() {
+        byte[] block = {8, 0x04, 'a', 'b', 0x09, 0x02};
+        assertEquals("abababab", new String(Snappy.uncompress(block, 0, block.length, 8), StandardCharsets.US_ASCII));
+        assertThrows(IllegalStateException.class, () -> Snappy.uncompress(block, 0, block.length - 1, 8));
+    }
+
+    @Test
+    void testSnappyLengthChecked() {
+        byte[] huge = {(byte) 0xfe, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 0x00, 'a'};
+        assertThrows(IllegalStateException.class, () -> Snappy.uncompress(huge, 0, huge.length, 8));
+        assertThrows(IllegalStateException.class, () -> Snappy.uncompress(huge, 0, huge.length, Integer.MAX_VALUE - 1));
+    }
+}
@@ -0,0 +1,176 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import dk.dmp.vanda.hydro.HydrometryService;
+import dk.dmp.vanda.hydro.Measurement;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangeCachingHydrometryServiceTest {
+    List<String> queries = Collections.synchronizedList(new ArrayList<>());
+    HydrometryServiceClient client;
+
+    /**
+     * Respond with a measurement at each whole hour of the requested
+     * window, latest first like the service does.
+     */
+    private InputStream response(String query) {
+        queries.add(query);
+        Map<String, String> params = new HashMap<>();
+        for (String p : query.split("&")) {
+            String[] kv = p.split("=", 2);
+            params.put(kv[0], URLDecoder.decode(kv[1], StandardCharsets.UTF_8));
+        }
+        OffsetDateTime from = OffsetDateTime.parse(params.get("from"));
+        OffsetDateTime to = OffsetDateTime.parse(params.get("to"));
+        List<String> results = new ArrayList<>();
+        OffsetDateTime t = from.truncatedTo(ChronoUnit.HOURS);
+        if (t.isBefore(from)) t = t.plusHours(1);
+        for (; ! t.isAfter(to); t = t.plusHours(1))
+            results.addFirst("{\"measurementDateTime\":\"" + t + "\",\"result\":" + t.getHour() + "}");
+        String json = "[{\"stationId\":\"" + params.get("stationId") + "\",\"results\":[" + String.join(",", results) + "]}]";
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @BeforeEach
+    void setUp() {
+        client = new HydrometryServiceClient((path, query) -> response(query));
+    }
+
+    private List<OffsetDateTime> get(HydrometryService service, String from, String to) throws Exception {
+        HydrometryService.GetWaterFlowsOperation op = service.getWaterFlows();
+        op.stationId("61000181");
+        op.from(OffsetDateTime.parse(from));
+        op.to(OffsetDateTime.parse(to));
+        List<OffsetDateTime> times = new ArrayList<>();
+        op.exec().forEachRemaining(m -> times.add(m.measurementDateTime()));
+        return times;
+    }
+
+    private static void assertHourly(String from, String to, List<OffsetDateTime> times) {
+        List<OffsetDateTime> expected = new ArrayList<>();
+        for (OffsetDateTime t = OffsetDateTime.parse(from); ! t.isAfter(OffsetDateTime.parse(to)); t = t.plusHours(1))
+            expected.add(t);
+        assertEquals(expected, times);
+    }
+
+    @Test
+    void testGaps() throws Exception {
+        Clock clock = Clock.fixed(Instant.parse("2024-02-05T00:00:00Z"), ZoneOffset.UTC);
+        RangeCachingHydrometryService cache = new RangeCachingHydrometryService(client, 100_000, clock);
+
+        assertHourly("2024-01-01T00:00Z", "2024-01-31T23:00Z", get(cache, "2024-01-01T00:00Z", "2024-01-31T23:59Z"));
+        assertHourly("2024-01-10T00:00Z", "2024-02-10T00:00Z", get(cache, "2024-01-10T00:00Z", "2024-02-10T00:00Z"));
+        assertEquals(List.of(
+            "stationId=61000181&from=2024-01-01T00%3A00Z&to=2024-01-31T23%3A59Z",
+            "stationId=61000181&from=2024-02-01T00%3A00Z&to=2024-02-10T00%3A00Z"
+        ), queries);
+
+        assertHourly("2024-01-05T00:00Z", "2024-01-20T00:00Z", get(cache, "2024-01-05T00:00+00:00", "2024-01-20T00:00:30Z"));
+        assertEquals(2, queries.size());
+        assertEquals(1, cache.hitCount());
+
+        assertHourly("2024-02-03T00:00Z", "2024-02-06T00:00Z", get(cache, "2024-02-03T00:00Z", "2024-02-06T00:00Z"));
+        assertEquals("stationId=61000181&from=2024-02-05T00%3A00Z&to=2024-02-06T00%3A00Z", queries.getLast());
+        assertEquals(31 * 24 + 9 * 24 + 1, cache.size());
+        assertEquals(3, cache.requestCount());
+
+        assertHourly("2023-12-31T00:00Z", "2024-02-02T00:00Z", get(cache, "2023-12-31T00:00Z", "2024-02-02T00:00Z"));
+        assertEquals("stationId=61000181&from=2023-12-31T00%3A00Z&to=2023-12-31T23%3A59Z", queries.getLast());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        get(cache, "2024-01-05T00:00Z", "2024-01-06T00:00Z");
+        assertEquals(5, queries.size());
+    }
+
+    @Test
+    void testSeparateSeries() throws Exception {
+        RangeCachingHydrometryService cache = new RangeCachingHydrometryService(client, 100_000);
+        get(cache, "2024-01-01T00:00Z", "2024-01-01T23:59Z");
+        HydrometryService.GetWaterFlowsOperation op = cache.getWaterFlows();
+        op.stationId("61000181");
+        op.measurementPointNumber(1);
+        op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+        op.to(OffsetDateTime.parse("2024-01-01T23:59Z"));
+        op.exec();
+        assertEquals("stationId=61000181&measurementPointNumber=1&from=2024-01-01T00%3A00Z&to=2024-01-01T23%3A59Z", queries.getLast());
+        assertEquals(2, queries.size());
+    }
+
+    @Test
+    void testStream() throws Exception {
+        RangeCachingHydrometryService cache = new RangeCachingHydrometryService(client, 100_000);
+        HydrometryService.GetWaterFlowsOperation op = cache.getWaterFlows();
+        op.stationId("61000181");
+        op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+        op.to(OffsetDateTime.parse("2024-01-01T23:59Z"));
+        try (Stream<Measurement> measurements = op.stream()) {
+            Spliterator<Measurement> s = measurements.spliterator();
+            assertTrue(s.hasCharacteristics(Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED));
+            assertEquals(24, s.getExactSizeIfKnown());
+        }
+        assertEquals(1, queries.size());
+    }
+
+    @Test
+    void testFilter() throws Exception {
+        RangeCachingHydrometryService cache = new RangeCachingHydrometryService(client, 100_000);
+        assertHourly("2024-01-01T00:00Z", "2024-01-01T23:00Z", get(cache, "2024-01-01T00:00Z", "2024-01-01T23:59Z"));
+        HydrometryService.GetWaterFlowsOperation op = cache.getWaterFlows();
+        op.stationId("61000181");
+        op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+        op.to(OffsetDateTime.parse("2024-01-01T23:59Z"));
+        op.filterResult(r -> r >= 20);
+        List<OffsetDateTime> times = new ArrayList<>();
+        op.exec().forEachRemaining(m -> times.add(m.measurementDateTime()));
+        assertHourly("2024-01-01T20:00Z", "2024-01-01T23:00Z", times);
+        assertEquals(1, queries.size());
+        assertEquals(24, cache.size());
+    }
+
+    @Test
+    void testPassThrough() throws Exception {
+        RangeCachingHydrometryService cache = new RangeCachingHydrometryService(client, 100_000);
+        for (int i = 0; i < 2; ++i) {
+            HydrometryService.GetWaterFlowsOperation op = cache.getWaterFlows();
+            op.stationId("61000181");
+            op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+            op.to(OffsetDateTime.parse("2024-01-01T01:00Z"));
+            op.createdAfter(OffsetDateTime.parse("2023-01-01T00:00Z"));
+            List<Measurement> measurements = new ArrayList<>();
+            op.exec().forEachRemaining(measurements::add);
+            assertEquals(2, measurements.size());
+        }
+        assertEquals(2, queries.size());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testEviction() throws Exception {
+        RangeCachingHydrometryService cache = new RangeCachingHydrometryService(client, 30);
+        get(cache, "2024-01-01T00:00Z", "2024-01-01T23:00Z");
+        assertEquals(24, cache.size());
+        HydrometryService.GetWaterFlowsOperation op = cache.getWaterFlows();
+        op.stationId("61000182");
+        op.from(OffsetDateTime.parse("2024-01-01T00:00Z"));
+        op.to(OffsetDateTime.parse("2024-01-01T23:00Z"));
+        op.exec();
+        assertEquals(24, cache.size());
+        get(cache, "2024-01-01T00:00Z", "2024-01-01T23:00Z");
+        assertEquals(3, queries.size());
+    }
+}
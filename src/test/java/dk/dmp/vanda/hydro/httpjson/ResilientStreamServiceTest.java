@@ -0,0 +1,173 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.quality.Strictness;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ResilientStreamServiceTest {
+    @Mock
+    StreamService streamLayer;
+    CachingStreamServiceTest.MutableClock clock = new CachingStreamServiceTest.MutableClock();
+
+    private ResilientStreamService resilient(int maxAttempts, int failureThreshold) {
+        return new ResilientStreamService(streamLayer, maxAttempts, Duration.ofMillis(1), Duration.ofSeconds(2),
+            failureThreshold, Duration.ofMinutes(1), clock);
+    }
+
+    @SuppressWarnings("unchecked")
+    static HttpResponseException status(int statusCode, String retryAfter) {
+        HttpResponse<InputStream> response = mock(HttpResponse.class, withSettings().strictness(Strictness.LENIENT));
+        when(response.statusCode()).thenReturn(statusCode);
+        when(response.headers()).thenReturn(HttpHeaders.of(
+            retryAfter == null ? Map.of() : Map.of("Retry-After", List.of(retryAfter)), (k, v) -> true));
+        return new HttpResponseException(new ExtendedHttpResponse<>(response));
+    }
+
+    @Test
+    void testConstructionFail() {
+        assertThrows(IllegalArgumentException.class, () -> resilient(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> resilient(1, 0));
+    }
+
+    @Test
+    void testRetrySucceeds() throws IOException, InterruptedException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        HttpResponseException unavailable = status(503, null);
+        when(streamLayer.get("op", "")).thenThrow(unavailable, new IOException("Connection reset")).thenReturn(body);
+        ResilientStreamService service = resilient(3, 5);
+        assertSame(body, service.get("op", ""));
+        assertEquals(2, service.retryCount());
+        assertEquals(ResilientStreamService.State.CLOSED, service.state());
+    }
+
+    @Test
+    void testNotRetryable() throws IOException, InterruptedException {
+        HttpResponseException notFound = status(404, null);
+        when(streamLayer.get("op", "")).thenThrow(notFound);
+        ResilientStreamService service = resilient(3, 1);
+        HttpResponseException e = assertThrows(HttpResponseException.class, () -> service.get("op", ""));
+        assertEquals(404, e.statusCode());
+        verify(streamLayer, times(1)).get("op", "");
+        assertEquals(ResilientStreamService.State.CLOSED, service.state());
+    }
+
+    @Test
+    void testGivesUp() throws IOException, InterruptedException {
+        HttpResponseException badGateway = status(502, null);
+        when(streamLayer.get("op", "")).thenThrow(badGateway);
+        ResilientStreamService service = resilient(3, 5);
+        assertThrows(HttpResponseException.class, () -> service.get("op", ""));
+        verify(streamLayer, times(3)).get("op", "");
+        assertEquals(2, service.retryCount());
+    }
+
+    @Test
+    void testRetryAfter() throws IOException, InterruptedException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        HttpResponseException tooMany = status(429, "1");
+        when(streamLayer.get("op", "")).thenThrow(tooMany).thenReturn(body);
+        ResilientStreamService service = resilient(3, 5);
+        long start = System.nanoTime();
+        assertSame(body, service.get("op", ""));
+        assertTrue(System.nanoTime() - start >= Duration.ofSeconds(1).toNanos());
+    }
+
+    @Test
+    void testRetryAfterTooLong() throws IOException, InterruptedException {
+        HttpResponseException unavailable = status(503, "60");
+        when(streamLayer.get("op", "")).thenThrow(unavailable);
+        ResilientStreamService service = resilient(3, 5);
+        assertThrows(HttpResponseException.class, () -> service.get("op", ""));
+        verify(streamLayer, times(1)).get("op", "");
+    }
+
+    @Test
+    void testRetryAfterDate() {
+        Instant now = Instant.parse("2024-01-01T00:00:00Z");
+        assertEquals(Optional.of(Duration.ofSeconds(90)),
+            ResilientStreamService.retryAfter(status(503, "Mon, 01 Jan 2024 00:01:30 GMT"), now));
+        assertEquals(Optional.of(Duration.ZERO),
+            ResilientStreamService.retryAfter(status(503, "Sun, 31 Dec 2023 23:00:00 GMT"), now));
+        assertEquals(Optional.empty(), ResilientStreamService.retryAfter(status(503, "soon"), now));
+        assertEquals(Optional.empty(), ResilientStreamService.retryAfter(new IOException(), now));
+    }
+
+    @Test
+    void testCircuitBreaker() throws IOException, InterruptedException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        HttpResponseException unavailable = status(503, null);
+        when(streamLayer.get("op", "")).thenThrow(unavailable, unavailable, unavailable).thenReturn(body);
+        ResilientStreamService service = resilient(1, 2);
+        assertThrows(HttpResponseException.class, () -> service.get("op", ""));
+        assertEquals(ResilientStreamService.State.CLOSED, service.state());
+        assertThrows(HttpResponseException.class, () -> service.get("op", ""));
+        assertEquals(ResilientStreamService.State.OPEN, service.state());
+        CircuitOpenException e = assertThrows(CircuitOpenException.class, () -> service.get("op", ""));
+        assertNull(e.getCause());
+        verify(streamLayer, times(2)).get("op", "");
+        assertEquals(1, service.rejectionCount());
+        // The trial request fails and opens the circuit again
+        clock.advance(Duration.ofMinutes(1));
+        assertThrows(HttpResponseException.class, () -> service.get("op", ""));
+        assertEquals(ResilientStreamService.State.OPEN, service.state());
+        clock.advance(Duration.ofMinutes(1));
+        assertSame(body, service.get("op", ""));
+        assertEquals(ResilientStreamService.State.CLOSED, service.state());
+    }
+
+    @Test
+    void testCircuitOpensWhileRetrying() throws IOException, InterruptedException {
+        HttpResponseException failure = status(503, null);
+        when(streamLayer.get("op", "")).thenThrow(failure);
+        ResilientStreamService service = resilient(5, 2);
+        CircuitOpenException e = assertThrows(CircuitOpenException.class, () -> service.get("op", ""));
+        assertSame(failure, e.getCause());
+        verify(streamLayer, times(2)).get("op", "");
+    }
+
+    @Test
+    void testAsync() throws ExecutionException, InterruptedException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        HttpResponseException unavailable = status(503, null), badRequest = status(400, null);
+        when(streamLayer.getAsync("op", ""))
+            .thenReturn(CompletableFuture.failedFuture(unavailable))
+            .thenReturn(CompletableFuture.failedFuture(badRequest))
+            .thenReturn(CompletableFuture.completedFuture(body));
+        ResilientStreamService service = resilient(3, 5);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> service.getAsync("op", "").get());
+        assertEquals(400, assertInstanceOf(HttpResponseException.class, e.getCause()).statusCode());
+        assertSame(body, service.getAsync("op", "").get());
+        assertEquals(1, service.retryCount());
+    }
+
+    @Test
+    void testRetryable() {
+        assertTrue(ResilientStreamService.isRetryable(new IOException("Connection reset")));
+        assertTrue(ResilientStreamService.isRetryable(new SocketTimeoutException()));
+        assertTrue(ResilientStreamService.isRetryable(status(503, null)));
+        assertFalse(ResilientStreamService.isRetryable(status(400, null)));
+        assertFalse(ResilientStreamService.isRetryable(new InterruptedIOException()));
+        assertFalse(ResilientStreamService.isRetryable(new CircuitOpenException("Circuit breaker is open", new IOException())));
+    }
+}
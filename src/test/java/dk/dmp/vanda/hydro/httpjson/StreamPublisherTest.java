@@ -0,0 +1,228 @@
+package dk.dmp.vanda.hydro.httpjson;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamPublisherTest {
+    /**
+     * Records the signals of a subscription.
+     */
+    static class Recorder<T> implements Flow.Subscriber<T> {
+        final List<T> items = new ArrayList<>();
+        final CountDownLatch terminated = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+        volatile boolean completed;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public synchronized void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+            terminated.countDown();
+        }
+
+        synchronized int count() {
+            return items.size();
+        }
+
+        void awaitCount(int n) throws InterruptedException {
+            for (int i = 0; i < 5000 && count() < n; ++i) Thread.sleep(1);
+            assertEquals(n, count());
+        }
+
+        void awaitTermination() throws InterruptedException {
+            assertTrue(terminated.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void testDemand() throws InterruptedException {
+        AtomicInteger opened = new AtomicInteger();
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(() -> {
+            opened.incrementAndGet();
+            return CompletableFuture.completedFuture(Stream.of(1, 2, 3));
+        }, VirtualThreads.executor);
+        Recorder<Integer> subscriber = new Recorder<>();
+        publisher.subscribe(subscriber);
+        Thread.sleep(20);
+        assertEquals(0, opened.get());
+        subscriber.subscription.request(2);
+        subscriber.awaitCount(2);
+        Thread.sleep(20);
+        assertEquals(List.of(1, 2), subscriber.items);
+        assertFalse(subscriber.completed);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.awaitTermination();
+        assertEquals(List.of(1, 2, 3), subscriber.items);
+        assertTrue(subscriber.completed);
+        assertEquals(1, opened.get());
+    }
+
+    @Test
+    void testCancel() throws InterruptedException {
+        AtomicBoolean closed = new AtomicBoolean();
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(
+            () -> CompletableFuture.completedFuture(Stream.iterate(1, i -> i + 1).onClose(() -> closed.set(true))),
+            VirtualThreads.executor);
+        Recorder<Integer> subscriber = new Recorder<>();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        subscriber.awaitCount(1);
+        subscriber.subscription.cancel();
+        for (int i = 0; i < 5000 && !closed.get(); ++i) Thread.sleep(1);
+        assertTrue(closed.get());
+        subscriber.subscription.request(1);
+        Thread.sleep(20);
+        assertEquals(1, subscriber.count());
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    void testCancelWhileOpening() throws InterruptedException {
+        AtomicBoolean closed = new AtomicBoolean();
+        CompletableFuture<Stream<Integer>> opening = new CompletableFuture<>();
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(() -> opening, VirtualThreads.executor);
+        Recorder<Integer> subscriber = new Recorder<>();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        while (opening.getNumberOfDependents() == 0) Thread.sleep(1);
+        subscriber.subscription.cancel();
+        Thread.sleep(20);
+        opening.complete(Stream.of(1).onClose(() -> closed.set(true)));
+        for (int i = 0; i < 5000 && !closed.get(); ++i) Thread.sleep(1);
+        assertTrue(closed.get());
+        assertEquals(0, subscriber.count());
+    }
+
+    @Test
+    void testOpenFails() throws InterruptedException {
+        IOException failure = new IOException("Connection reset");
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(
+            () -> CompletableFuture.failedFuture(new CompletionException(failure)), VirtualThreads.executor);
+        Recorder<Integer> subscriber = new Recorder<>();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        subscriber.awaitTermination();
+        assertSame(failure, subscriber.error);
+    }
+
+    @Test
+    void testReadFails() throws InterruptedException {
+        IOException failure = new IOException("Unexpected end of response");
+        Iterator<Integer> elements = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                throw new UncheckedIOException(failure);
+            }
+
+            @Override
+            public Integer next() {
+                throw new UncheckedIOException(failure);
+            }
+        };
+        AtomicBoolean closed = new AtomicBoolean();
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(() -> CompletableFuture.completedFuture(
+            Stream.iterate(0, i -> elements.hasNext(), i -> elements.next()).skip(1).onClose(() -> closed.set(true))),
+            VirtualThreads.executor);
+        Recorder<Integer> subscriber = new Recorder<>();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        subscriber.awaitTermination();
+        assertSame(failure, subscriber.error);
+        assertTrue(closed.get());
+    }
+
+    @Test
+    void testInvalidDemand() throws InterruptedException {
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(
+            () -> CompletableFuture.completedFuture(Stream.of(1)), VirtualThreads.executor);
+        Recorder<Integer> subscriber = new Recorder<>();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+        subscriber.awaitTermination();
+        assertInstanceOf(IllegalArgumentException.class, subscriber.error);
+    }
+
+    @Test
+    void testOpenThrows() throws InterruptedException {
+        IllegalArgumentException failure = new IllegalArgumentException("Invalid query");
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(() -> {
+            throw failure;
+        }, VirtualThreads.executor);
+        Recorder<Integer> subscriber = new Recorder<>();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        subscriber.awaitTermination();
+        assertSame(failure, subscriber.error);
+    }
+
+    @Test
+    void testReadThrows() throws InterruptedException {
+        IllegalStateException failure = new IllegalStateException("Parser closed");
+        AtomicBoolean closed = new AtomicBoolean();
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(() -> CompletableFuture.completedFuture(
+            Stream.of(1, 2).<Integer>map(i -> {
+                if (i == 2) throw failure;
+                return i;
+            }).onClose(() -> closed.set(true))), VirtualThreads.executor);
+        Recorder<Integer> subscriber = new Recorder<>();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(2);
+        subscriber.awaitTermination();
+        assertEquals(List.of(1), subscriber.items);
+        assertSame(failure, subscriber.error);
+        assertTrue(closed.get());
+    }
+
+    @Test
+    void testSubscriberFails() throws InterruptedException {
+        AtomicBoolean closed = new AtomicBoolean();
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(() -> CompletableFuture.completedFuture(
+            Stream.of(1, 2, 3).onClose(() -> closed.set(true))), VirtualThreads.executor);
+        Recorder<Integer> subscriber = new Recorder<>() {
+            @Override
+            public synchronized void onNext(Integer item) {
+                super.onNext(item);
+                throw new IllegalStateException("Subscriber bug");
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(3);
+        subscriber.awaitCount(1);
+        for (int i = 0; i < 5000 && !closed.get(); ++i) Thread.sleep(1);
+        assertTrue(closed.get());
+        assertEquals(1, subscriber.count());
+        assertNull(subscriber.error);
+        assertFalse(subscriber.completed);
+    }
+}
@@ -51,4 +51,35 @@ class URLEncodedFormDataTest {
                 () -> assertEquals("þ¤%3F%20%23?foo&cr%26zy=%24tr%40n%3F%E2%82%AC%2F%20%7Bsy%3Dbo%7C%7E%7D&dimmer=flop", form.toString(), "Relative")
         );
     }
-}
\ No newline at end of file
+
+    @Test
+    void testSet() {
+        URLEncodedFormData form = new URLEncodedFormData();
+        form.setPath("op");
+        form.append("foo", "bar");
+        form.append("from", "1");
+        form.append("dimmer", "flop");
+        form.append("from", "2");
+        URLEncodedFormData copy = form.copy();
+        copy.set("from", "3:");
+        copy.set("to", null);
+        assertAll(
+                () -> assertEquals("op?foo=bar&from=1&dimmer=flop&from=2", form.toString(), "Original"),
+                () -> assertEquals("op?foo=bar&from=3%3A&dimmer=flop&to", copy.toString(), "Copy")
+        );
+    }
+
+    @Test
+    void testCanonical() {
+        URLEncodedFormData form = new URLEncodedFormData();
+        form.append("to", "2");
+        form.append("from", "1");
+        form.append("b", null);
+        form.append("from", "0");
+        assertAll(
+                () -> assertEquals("b&from=1&from=0&to=2", form.getCanonicalFormData()),
+                () -> assertEquals("", URLEncodedFormData.canonicalize(null)),
+                () -> assertEquals("a=1&b=2", URLEncodedFormData.canonicalize("b=2&a=1"))
+        );
+    }
+}